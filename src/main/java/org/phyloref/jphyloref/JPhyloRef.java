@@ -9,10 +9,16 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.phyloref.jphyloref.commands.Command;
+import org.phyloref.jphyloref.commands.DaemonCommand;
+import org.phyloref.jphyloref.commands.MaterializeCommand;
 import org.phyloref.jphyloref.commands.ResolveCommand;
 import org.phyloref.jphyloref.commands.TestCommand;
 import org.phyloref.jphyloref.commands.WebserverCommand;
+import org.phyloref.jphyloref.helpers.DaemonHelper;
+import org.phyloref.jphyloref.helpers.DiskResultCache;
+import org.phyloref.jphyloref.helpers.JSONLDHelper;
 import org.phyloref.jphyloref.helpers.ReasonerHelper;
+import org.phyloref.jphyloref.helpers.VerificationHelper;
 import org.semanticweb.owlapi.reasoner.OWLReasonerFactory;
 import org.semanticweb.owlapi.util.VersionInfo;
 import org.slf4j.Logger;
@@ -32,7 +38,12 @@ public class JPhyloRef {
   /** List of all commands included in JPhyloRef. */
   private List<Command> commands =
       Arrays.asList(
-          new HelpCommand(), new TestCommand(), new WebserverCommand(), new ResolveCommand());
+          new HelpCommand(),
+          new TestCommand(),
+          new WebserverCommand(),
+          new ResolveCommand(),
+          new MaterializeCommand(),
+          new DaemonCommand());
 
   /**
    * Interpret the command line arguments to determine which command to execute.
@@ -46,6 +57,10 @@ public class JPhyloRef {
 
     // Add global options.
     ReasonerHelper.addCommandLineOptions(opts);
+    JSONLDHelper.addCommandLineOptions(opts);
+    VerificationHelper.addCommandLineOptions(opts);
+    DaemonHelper.addCommandLineOptions(opts);
+    DiskResultCache.addCommandLineOptions(opts);
 
     // Add per-command options.
     for (Command cmd : commands) {
@@ -69,6 +84,8 @@ public class JPhyloRef {
     } else {
       // Look for global options:
       //	--reasoner: Set the reasoner.
+      //	--context-cache: Set the directory in which JSON-LD contexts are cached.
+      JSONLDHelper.configureContextCache(cmdLine);
 
       // The first unprocessed argument should be the command.
       String command = cmdLine.getArgList().get(0);
@@ -157,6 +174,35 @@ public class JPhyloRef {
         System.out.println(
             "    '" + name + "': " + ReasonerHelper.getReasonerNameAndVersion(factory));
       }
+      System.out.println(
+          " --verify-against <reasonerName>: also resolves phyloreferences with this reasoner,"
+              + " and reports any differences (resolve, test and webserver only)");
+      System.out.println(
+          " --verify-sample-rate <fraction>: the fraction of webserver requests to verify"
+              + " (default: "
+              + VerificationHelper.DEFAULT_SAMPLE_RATE
+              + ")");
+      System.out.println(
+          " --via-daemon: sends the input to a running daemon to be resolved (resolve only)");
+      System.out.println(
+          " --daemon-port <port>: the port the daemon listens on (default: "
+              + DaemonHelper.DEFAULT_PORT
+              + ")");
+      System.out.println(
+          " --daemon-token-file <file>: the file the daemon writes its token to, and clients read"
+              + " it from (default: ~/.jphyloref/daemon-<port>.token)");
+      System.out.println(
+          " --daemon-queue-size <requests>: the number of requests that can wait for the daemon"
+              + " before it rejects them as busy (default: "
+              + DaemonHelper.DEFAULT_QUEUE_SIZE
+              + ")");
+      System.out.println(
+          " --result-cache <directory>: stores results in this directory and reuses them for"
+              + " documents that have been reasoned over before (resolve and webserver only)");
+      System.out.println(
+          " --result-cache-megabytes <megabytes>: the total size of the result cache (default: "
+              + DiskResultCache.DEFAULT_MEGABYTES
+              + ")");
 
       // One final blank line, please.
       System.out.println("");
@@ -0,0 +1,406 @@
+package org.phyloref.jphyloref.commands;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONStringer;
+import org.phyloref.jphyloref.helpers.DaemonHelper;
+import org.phyloref.jphyloref.helpers.DiskResultCache;
+import org.phyloref.jphyloref.helpers.JSONLDHelper;
+import org.phyloref.jphyloref.helpers.ReasonerHelper;
+import org.phyloref.jphyloref.helpers.VerificationHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Start a daemon that keeps a JVM running and resolves the ontologies sent to it by "resolve
+ * --via-daemon". This avoids having to start a new JVM and warm up OWLAPI and the reasoner for
+ * every ontology to be resolved, such as when JPhyloRef is run by Webhook for every request. See
+ * DaemonHelper for a description of the protocol used.
+ *
+ * <p>The daemon only listens on the loopback interface, so only clients on the same machine can
+ * connect to it, and only handles requests containing the token it writes to its token file when it
+ * starts. Clients may only set the options in DaemonHelper.FORWARDED_OPTIONS; the result cache
+ * options are taken from the daemon's own command line and used for every request.
+ *
+ * <p>Requests are handled by one thread per available processor. Once every thread is busy and
+ * --daemon-queue-size requests are waiting for one, further requests are rejected with an error
+ * rather than queued.
+ */
+public class DaemonCommand implements Command {
+  /** Set up a logger to use for providing logging. */
+  private static final Logger logger = LoggerFactory.getLogger(DaemonCommand.class);
+
+  /**
+   * This command is named "daemon". It should be invoked as "java -jar jphyloref.jar daemon ..."
+   */
+  @Override
+  public String getName() {
+    return "daemon";
+  }
+
+  /**
+   * A description of the Daemon command.
+   *
+   * @return A description of this command.
+   */
+  @Override
+  public String getDescription() {
+    return "Start a daemon that resolves ontologies sent to it by 'resolve --via-daemon', without starting a new JVM for each of them.";
+  }
+
+  /**
+   * The Daemon command has no command-line options of its own; it uses the global --daemon-port,
+   * --daemon-token-file, --daemon-queue-size, --result-cache and --result-cache-megabytes options.
+   *
+   * @param opts The command-line options to modify for this command.
+   */
+  @Override
+  public void addCommandLineOptions(Options opts) {}
+
+  /**
+   * Start the daemon, and keep it running until the JVM is shut down.
+   *
+   * @param cmdLine The command line options provided to this command.
+   */
+  @Override
+  public int execute(CommandLine cmdLine) throws RuntimeException {
+    int port = DaemonHelper.getPortFromCmdLine(cmdLine);
+    int queueSize = DaemonHelper.getQueueSizeFromCmdLine(cmdLine);
+
+    try (Daemon daemon =
+        new Daemon(
+            port,
+            DaemonHelper.getDaemonArgs(cmdLine),
+            DaemonHelper.createToken(DaemonHelper.getTokenFileFromCmdLine(cmdLine)),
+            Runtime.getRuntime().availableProcessors(),
+            queueSize)) {
+      logger.info(
+          "Daemon listening on {}:{} with a queue of {} requests, using the token in {}",
+          InetAddress.getLoopbackAddress(),
+          daemon.getPort(),
+          queueSize,
+          DaemonHelper.getTokenFileFromCmdLine(cmdLine));
+      daemon.run();
+    } catch (IOException ex) {
+      logger.error("An error occurred while running daemon: {}", ex.toString());
+      return 1;
+    }
+
+    return 0;
+  }
+
+  /** The daemon we set up. */
+  public static class Daemon implements Closeable {
+    /** The socket we listen for connections on. */
+    private final ServerSocket serverSocket;
+
+    /**
+     * How long we wait for the header of a request that we are rejecting, in milliseconds. This is
+     * done on the thread accepting connections, so we can't wait long.
+     */
+    private static final int REJECT_TIMEOUT_MILLIS = 1000;
+
+    /** Handles requests, one thread per request, with a bounded queue of waiting requests. */
+    private final ThreadPoolExecutor executor;
+
+    /** The token that requests must contain. */
+    private final byte[] token;
+
+    /** The resolve command used to resolve every request. */
+    private final ResolveCommand resolveCommand = new ResolveCommand();
+
+    /**
+     * The options of the resolve command. Requests may only contain those in
+     * DaemonHelper.FORWARDED_OPTIONS.
+     */
+    private final Options options = new Options();
+
+    /** Arguments from the daemon's command line that are added to every request. */
+    private final List<String> daemonArgs;
+
+    /**
+     * Create a daemon listening on the loopback interface. Call run() to start handling requests.
+     *
+     * @param port The port to listen on, or 0 to use any free port.
+     * @param daemonArgs Arguments (such as "--result-cache dir") to add to every request, as
+     *     returned by DaemonHelper.getDaemonArgs().
+     * @param token The token that requests must contain, as returned by DaemonHelper.createToken().
+     * @param threads The number of requests to handle at the same time.
+     * @param queueSize The number of requests that can wait for a thread before we reject them.
+     * @throws IOException If we could not listen on this port.
+     * @throws IllegalArgumentException If the token is empty, there are no threads or the queue
+     *     size is negative.
+     */
+    public Daemon(int port, List<String> daemonArgs, String token, int threads, int queueSize)
+        throws IOException {
+      if (token == null || token.isEmpty()) {
+        throw new IllegalArgumentException("The daemon token must not be empty");
+      }
+      if (threads < 1 || queueSize < 0) {
+        throw new IllegalArgumentException(
+            "Expected at least one thread and a queue size of at least zero, but got "
+                + threads
+                + " threads and a queue size of "
+                + queueSize);
+      }
+      this.daemonArgs = new ArrayList<>(daemonArgs);
+      this.token = token.getBytes(StandardCharsets.UTF_8);
+
+      ReasonerHelper.addCommandLineOptions(options);
+      JSONLDHelper.addCommandLineOptions(options);
+      VerificationHelper.addCommandLineOptions(options);
+      DiskResultCache.addCommandLineOptions(options);
+      resolveCommand.addCommandLineOptions(options);
+
+      serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+
+      AtomicInteger threadCount = new AtomicInteger();
+      executor =
+          new ThreadPoolExecutor(
+              threads,
+              threads,
+              0,
+              TimeUnit.MILLISECONDS,
+              (queueSize == 0) ? new SynchronousQueue<>() : new ArrayBlockingQueue<>(queueSize),
+              runnable -> {
+                Thread thread =
+                    new Thread(runnable, "jphyloref-daemon-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+              },
+              new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /** @return The port this daemon is listening on. */
+    public int getPort() {
+      return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Accept and handle requests until this daemon is closed.
+     *
+     * @throws IOException If an error occurred while accepting connections.
+     */
+    public void run() throws IOException {
+      while (true) {
+        Socket socket;
+        try {
+          socket = serverSocket.accept();
+        } catch (SocketException ex) {
+          // The server socket has been closed.
+          if (serverSocket.isClosed()) return;
+          throw ex;
+        }
+        try {
+          executor.execute(() -> handle(socket));
+        } catch (RejectedExecutionException ex) {
+          rejectBusy(socket);
+        }
+      }
+    }
+
+    /** Stop accepting requests. Requests that are already being handled will be completed. */
+    @Override
+    public void close() throws IOException {
+      serverSocket.close();
+      executor.shutdown();
+    }
+
+    /**
+     * Parse the arguments sent with a request, checking that they only contain options that clients
+     * may set, and add the daemon's own arguments to them.
+     *
+     * @param args The arguments sent by the client, starting with the command and input filename.
+     * @return The command line to resolve the request with.
+     * @throws ParseException If the arguments could not be parsed.
+     * @throws IllegalArgumentException If the arguments contain options that clients may not set.
+     */
+    private CommandLine parseRequestArgs(List<String> args) throws ParseException {
+      CommandLine requestCmdLine =
+          new DefaultParser().parse(options, args.toArray(new String[args.size()]));
+      for (Option opt : requestCmdLine.getOptions()) {
+        String name = DaemonHelper.getOptionName(opt);
+        if (!DaemonHelper.FORWARDED_OPTIONS.contains(name)) {
+          throw new IllegalArgumentException("Option '" + name + "' can't be sent to the daemon");
+        }
+      }
+
+      List<String> allArgs = new ArrayList<>(args);
+      allArgs.addAll(daemonArgs);
+      return new DefaultParser().parse(options, allArgs.toArray(new String[allArgs.size()]));
+    }
+
+    /** @return True if a request header contains our token. */
+    private boolean hasToken(JSONObject header) {
+      // Compare the tokens in constant time, so that the time taken doesn't reveal our token.
+      return MessageDigest.isEqual(
+          token, header.optString("token", "").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** @return True if a request header asks for errors to be reported as JSON. */
+    private boolean wantsErrorsAsJSON(JSONObject header) {
+      try {
+        List<String> args = new ArrayList<>();
+        JSONArray forwardedArgs = header.getJSONArray("args");
+        for (int i = 0; i < forwardedArgs.length(); i++) args.add(forwardedArgs.getString(i));
+        return new DefaultParser()
+            .parse(options, args.toArray(new String[args.size()]))
+            .hasOption("errors-as-json");
+      } catch (ParseException | JSONException ex) {
+        return false;
+      }
+    }
+
+    /**
+     * Send an error to a client without resolving its request, in the same way as the resolve
+     * command would report it: as JSON on STDOUT if the request asked for errors as JSON, or on
+     * STDERR with an exit code of 1 otherwise.
+     */
+    private void sendError(OutputStream response, JSONObject header, String error, String message)
+        throws IOException {
+      String stream;
+      String text;
+      int exitCode;
+      if (wantsErrorsAsJSON(header)) {
+        stream = "out";
+        text =
+            new JSONStringer()
+                    .object()
+                    .key("error")
+                    .value(error)
+                    .key("message")
+                    .value(message)
+                    .endObject()
+                    .toString()
+                + "\n";
+        exitCode = 0;
+      } else {
+        stream = "err";
+        text = error + ": " + message + "\n";
+        exitCode = 1;
+      }
+
+      byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+      response.write((stream + " " + bytes.length + "\n").getBytes(StandardCharsets.UTF_8));
+      response.write(bytes);
+      response.write(("exit " + exitCode + "\n").getBytes(StandardCharsets.UTF_8));
+      response.flush();
+    }
+
+    /**
+     * Tell a client that every thread is busy and our queue is full. This is called on the thread
+     * accepting connections, so we only wait briefly for the request header, which we need to
+     * report the error in the format the client asked for.
+     */
+    private void rejectBusy(Socket socket) {
+      logger.warn(
+          "Rejecting daemon request: all {} threads are busy and {} requests are queued",
+          executor.getMaximumPoolSize(),
+          executor.getQueue().size());
+      try (Socket s = socket) {
+        s.setSoTimeout(REJECT_TIMEOUT_MILLIS);
+        InputStream request = new BufferedInputStream(s.getInputStream());
+        JSONObject header = new JSONObject(DaemonHelper.readLine(request));
+        if (!hasToken(header)) return;
+
+        sendError(
+            new BufferedOutputStream(s.getOutputStream()),
+            header,
+            "Daemon is busy",
+            "All "
+                + executor.getMaximumPoolSize()
+                + " daemon threads are busy and its queue is full; please try again later");
+      } catch (IOException | JSONException ex) {
+        logger.error("Could not reject daemon request: {}", ex.toString());
+      }
+    }
+
+    /**
+     * Read a request from a socket, resolve it, and send STDOUT and STDERR back as they are
+     * written, followed by the exit code.
+     */
+    private void handle(Socket socket) {
+      long start = System.currentTimeMillis();
+      try (Socket s = socket) {
+        InputStream request = new BufferedInputStream(s.getInputStream());
+        JSONObject header = new JSONObject(DaemonHelper.readLine(request));
+        if (!hasToken(header)) {
+          logger.warn("Rejecting daemon request without a valid token");
+          sendError(
+              new BufferedOutputStream(s.getOutputStream()),
+              header,
+              "Invalid daemon token",
+              "The request did not contain the token in the daemon's token file");
+          return;
+        }
+
+        String inputFilename = header.getString("input");
+        InputStream input =
+            header.has("length") ? DaemonHelper.limit(request, header.getLong("length")) : request;
+
+        // Reconstruct the command line as the resolve command would have seen it.
+        List<String> args = new ArrayList<>();
+        args.add(resolveCommand.getName());
+        args.add(inputFilename);
+        JSONArray forwardedArgs = header.getJSONArray("args");
+        for (int i = 0; i < forwardedArgs.length(); i++) args.add(forwardedArgs.getString(i));
+
+        // Resolve the input, sending STDOUT and STDERR back to the client as they are written.
+        OutputStream response = new BufferedOutputStream(s.getOutputStream());
+        int exitCode;
+        try (PrintStream outStream =
+                new PrintStream(
+                    new DaemonHelper.FrameOutputStream(response, "out"), false, "UTF-8");
+            PrintStream errStream =
+                new PrintStream(
+                    new DaemonHelper.FrameOutputStream(response, "err"), true, "UTF-8")) {
+          try {
+            CommandLine cmdLine = parseRequestArgs(args);
+            exitCode = resolveCommand.resolve(cmdLine, inputFilename, input, outStream, errStream);
+          } catch (ParseException | RuntimeException ex) {
+            errStream.println("Could not resolve '" + inputFilename + "': " + ex);
+            exitCode = 1;
+          }
+        }
+
+        response.write(("exit " + exitCode + "\n").getBytes(StandardCharsets.UTF_8));
+        response.flush();
+
+        logger.info(
+            "Resolved '{}' with exit code {} in {} ms",
+            inputFilename,
+            exitCode,
+            System.currentTimeMillis() - start);
+      } catch (IOException | JSONException ex) {
+        logger.error("Could not handle daemon request: {}", ex.toString());
+      }
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package org.phyloref.jphyloref.commands;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.Future;
+import org.json.JSONObject;
+import org.phyloref.jphyloref.helpers.SpooledDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A request to reason over a JSON-LD document in the background, started with POST /jobs. Its
+ * status is one of "queued", "running", "completed", "failed" or "cancelled".
+ */
+class Job {
+  /** Set up a logger to use for providing logging. */
+  private static final Logger logger = LoggerFactory.getLogger(Job.class);
+
+  private final String id = UUID.randomUUID().toString();
+  private final long createdAt = System.currentTimeMillis();
+  private volatile Future<?> future;
+
+  /** The document this job reasons over, which we release once the job has finished. */
+  private final SpooledDocument document;
+
+  // Guarded by "this".
+  private String status = "queued";
+  private int phylorefsResolved = 0;
+  private int phylorefCount = 0;
+  private JSONObject result = null;
+  private String error = null;
+  private long finishedAt = 0;
+
+  /**
+   * Create a job to reason over a document.
+   *
+   * @param document The document to reason over. The job holds its own reference to it, which is
+   *     released once the job finishes, even if it was cancelled before it could start.
+   */
+  Job(SpooledDocument document) {
+    this.document = document.retain();
+  }
+
+  /** @return The document this job reasons over. */
+  SpooledDocument getDocument() {
+    return document;
+  }
+
+  /** @return The identifier of this job. */
+  public String getId() {
+    return id;
+  }
+
+  /** @return True if this job has completed, failed or been cancelled. */
+  public synchronized boolean isFinished() {
+    return finishedAt != 0;
+  }
+
+  /** @return The time at which this job finished, or 0 if it hasn't finished yet. */
+  public synchronized long getFinishedAt() {
+    return finishedAt;
+  }
+
+  /** Set the Future running this job, so that it can be cancelled. */
+  void setFuture(Future<?> future) {
+    this.future = future;
+  }
+
+  /** Mark this job as running. Returns false if it was cancelled before it could start. */
+  synchronized boolean start() {
+    if (isFinished()) return false;
+    status = "running";
+    return true;
+  }
+
+  /** Record how many of the phyloreferences in the document this job has resolved so far. */
+  synchronized void setProgress(int phylorefsResolved, int phylorefCount) {
+    this.phylorefsResolved = phylorefsResolved;
+    this.phylorefCount = phylorefCount;
+  }
+
+  /** Mark this job as finished, unless it has already finished (e.g. by being cancelled). */
+  synchronized void finish(String status, JSONObject result, String error) {
+    if (isFinished()) return;
+    this.status = status;
+    this.result = result;
+    this.error = error;
+    this.finishedAt = System.currentTimeMillis();
+
+    try {
+      document.close();
+    } catch (IOException ex) {
+      logger.warn("Could not delete document for job {}: {}", id, ex.toString());
+    }
+  }
+
+  /** Cancel this job, interrupting it if it is already running. */
+  void cancel() {
+    finish("cancelled", null, null);
+    Future<?> f = future;
+    if (f != null) f.cancel(true);
+  }
+
+  /** @return A description of this job and its result as a JSON object. */
+  public synchronized JSONObject toJSON() {
+    JSONObject json = new JSONObject();
+    json.put("id", id);
+    json.put("status", status);
+    json.put("createdAt", Instant.ofEpochMilli(createdAt).toString());
+    if (finishedAt != 0) json.put("finishedAt", Instant.ofEpochMilli(finishedAt).toString());
+
+    json.put("progress", WebserverCommand.createProgress(phylorefsResolved, phylorefCount));
+
+    if (result != null) json.put("result", result);
+    if (error != null) json.put("error", error);
+    return json;
+  }
+}
@@ -0,0 +1,187 @@
+package org.phyloref.jphyloref.commands;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.IHTTPSession;
+import fi.iki.elonen.NanoHTTPD.Method;
+import fi.iki.elonen.NanoHTTPD.Response;
+import fi.iki.elonen.NanoHTTPD.Response.Status;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import org.json.JSONObject;
+import org.phyloref.jphyloref.helpers.SpooledDocument;
+import org.semanticweb.owlapi.model.OWLOntologyCreationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the jobs started with POST /jobs, which reason over JSON-LD documents on the
+ * webserver's reasoning workers in the background, and responds to requests to start, check or
+ * cancel them.
+ */
+class JobManager {
+  /** Set up a logger to use for providing logging. */
+  private static final Logger logger = LoggerFactory.getLogger(JobManager.class);
+
+  /** The webserver whose reasoning workers run our jobs. */
+  private final WebserverCommand.Webserver webserver;
+
+  /** The jobs started with POST /jobs that haven't expired yet, by id. */
+  private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+
+  /** How long we keep the results of finished jobs for, in milliseconds. */
+  private final long jobTTLMillis;
+
+  /**
+   * Create a manager for the jobs of a webserver.
+   *
+   * @param webserver The webserver whose reasoning workers run our jobs.
+   * @param jobTTLMillis How long to keep the results of finished jobs for, in milliseconds.
+   */
+  JobManager(WebserverCommand.Webserver webserver, long jobTTLMillis) {
+    this.webserver = webserver;
+    this.jobTTLMillis = jobTTLMillis;
+  }
+
+  /** @return The number of jobs that haven't expired yet. */
+  int getJobCount() {
+    return jobs.size();
+  }
+
+  /**
+   * Start a job to reason over a JSON-LD document in the background.
+   *
+   * @param document The JSON-LD document to reason over. The job holds its own reference to it, so
+   *     the caller may close it as soon as we return.
+   * @return The job that was started.
+   * @throws RejectedExecutionException If all our workers are busy and our queue is full.
+   */
+  Job startJob(SpooledDocument document) throws IOException {
+    expireJobs();
+
+    Job job = new Job(document);
+    try {
+      job.setFuture(webserver.submitReasoningTask(() -> runJob(job)));
+    } catch (RejectedExecutionException ex) {
+      job.getDocument().close();
+      throw ex;
+    }
+    jobs.put(job.getId(), job);
+    logger.info(
+        "Started job {} with a JSON-LD document of {} bytes", job.getId(), document.getSize());
+    return job;
+  }
+
+  /**
+   * Reason over the document of a job, recording its progress and its result in the job. The
+   * phyloreferences are resolved one at a time, so that the job can report how many of them have
+   * been resolved so far.
+   */
+  private Void runJob(Job job) {
+    if (!job.start()) return null;
+    try (InputStream input = job.getDocument().openStream()) {
+      JSONObject result =
+          webserver.serveReasonPerPhyloref(
+              input,
+              (phyloref, nodes, phylorefsResolved, phylorefCount) -> {
+                if (Thread.currentThread().isInterrupted()) {
+                  throw new CancellationException("Job " + job.getId() + " cancelled");
+                }
+                job.setProgress(phylorefsResolved, phylorefCount);
+              });
+      job.finish("completed", result, null);
+    } catch (CancellationException ex) {
+      job.finish("cancelled", null, null);
+    } catch (OWLOntologyCreationException | IOException | RuntimeException ex) {
+      logger.error("Job {} failed: {}", job.getId(), ex.toString());
+      job.finish("failed", null, ex.toString());
+    }
+    return null;
+  }
+
+  /** @return The job with this id, or null if there is no such job or it has expired. */
+  Job getJob(String id) {
+    expireJobs();
+    return jobs.get(id);
+  }
+
+  /** Forget about jobs that finished longer ago than our job TTL. */
+  private void expireJobs() {
+    long now = System.currentTimeMillis();
+    jobs.values().removeIf(job -> job.isFinished() && now - job.getFinishedAt() > jobTTLMillis);
+  }
+
+  /**
+   * Respond to a request to start a job (POST /jobs) or to check or cancel one (/jobs/[id]).
+   *
+   * @param session The request.
+   * @param document The JSON-LD document sent with the request, or null if it didn't contain one.
+   */
+  Response serve(IHTTPSession session, SpooledDocument document) {
+    String path = session.getUri();
+    Method method = session.getMethod();
+    JSONObject response = new JSONObject("{'status': 'ok'}");
+
+    // Respond to CORS pre-flight requests.
+    if (method.equals(Method.OPTIONS)) {
+      Response preflightResponse =
+          NanoHTTPD.newFixedLengthResponse(Status.OK, NanoHTTPD.MIME_PLAINTEXT, "Options");
+      preflightResponse.addHeader("Access-Control-Allow-Origin", "*");
+      preflightResponse.addHeader("Access-Control-Allow-Methods", "GET, POST, DELETE");
+      return preflightResponse;
+    }
+
+    if (path.equals("/jobs") || path.equals("/jobs/")) {
+      if (!method.equals(Method.POST)) {
+        response.put("status", "error");
+        response.put("error", "Jobs can only be started with a POST request.");
+        return webserver.createResponse(Status.METHOD_NOT_ALLOWED, response);
+      }
+
+      try {
+        if (document == null) {
+          response.put("status", "error");
+          response.put("error", WebserverCommand.MISSING_JSONLD_ERROR);
+          return webserver.createResponse(Status.BAD_REQUEST, response);
+        }
+
+        Job job = startJob(document);
+        response.put("job", job.toJSON());
+        Response accepted = webserver.createResponse(Status.ACCEPTED, response);
+        accepted.addHeader("Location", "/jobs/" + job.getId());
+        return accepted;
+      } catch (RejectedExecutionException ex) {
+        response.put("status", "error");
+        response.put("error", "All reasoning workers are busy; please try again later.");
+        return webserver.withRetryAfter(
+            webserver.createResponse(Status.SERVICE_UNAVAILABLE, response));
+      } catch (IOException ex) {
+        response.put("status", "error");
+        response.put("error", "Could not start job: " + ex.getMessage());
+        return webserver.createResponse(Status.INTERNAL_ERROR, response);
+      }
+    }
+
+    Job job = getJob(path.substring("/jobs/".length()));
+    if (job == null) {
+      response.put("status", "error");
+      response.put("error", "Job '" + path.substring("/jobs/".length()) + "' could not be found.");
+      return webserver.createResponse(Status.NOT_FOUND, response);
+    }
+
+    if (method.equals(Method.DELETE)) {
+      job.cancel();
+      logger.info("Cancelled job {}", job.getId());
+    } else if (!method.equals(Method.GET)) {
+      response.put("status", "error");
+      response.put("error", "Jobs can only be checked with GET or cancelled with DELETE.");
+      return webserver.createResponse(Status.METHOD_NOT_ALLOWED, response);
+    }
+
+    response.put("job", job.toJSON());
+    return webserver.createResponse(Status.OK, response);
+  }
+}
@@ -0,0 +1,209 @@
+package org.phyloref.jphyloref.commands;
+
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Options;
+import org.phyloref.jphyloref.helpers.OntologyLoaderHelper;
+import org.phyloref.jphyloref.helpers.PhylorefHelper;
+import org.phyloref.jphyloref.helpers.ReasonerHelper;
+import org.semanticweb.owlapi.formats.BinaryRDFDocumentFormat;
+import org.semanticweb.owlapi.formats.FunctionalSyntaxDocumentFormat;
+import org.semanticweb.owlapi.formats.RDFXMLDocumentFormat;
+import org.semanticweb.owlapi.formats.TurtleDocumentFormat;
+import org.semanticweb.owlapi.model.OWLAxiom;
+import org.semanticweb.owlapi.model.OWLDocumentFormat;
+import org.semanticweb.owlapi.model.OWLOntology;
+import org.semanticweb.owlapi.model.OWLOntologyCreationException;
+import org.semanticweb.owlapi.model.OWLOntologyManager;
+import org.semanticweb.owlapi.model.OWLOntologyStorageException;
+import org.semanticweb.owlapi.reasoner.OWLReasoner;
+import org.semanticweb.owlapi.reasoner.OWLReasonerFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reason over an ontology of phyloreferences provided on the command line, and write it out
+ * together with the results of reasoning: which classes are phyloreferences, which nodes they
+ * resolve to and which nodes they are expected to resolve to. The resulting ontology can then be
+ * resolved or tested with "--reasoner null", which is much faster than reasoning over it again.
+ */
+public class MaterializeCommand implements Command {
+  /** Set up a logger to use for providing logging. */
+  private static final Logger logger = LoggerFactory.getLogger(MaterializeCommand.class);
+
+  /** The formats we can write the materialized ontology in, in order of preference. */
+  private static final Map<String, Supplier<OWLDocumentFormat>> formats = new LinkedHashMap<>();
+
+  static {
+    formats.put("functional", FunctionalSyntaxDocumentFormat::new);
+    formats.put("binary", BinaryRDFDocumentFormat::new);
+    formats.put("turtle", TurtleDocumentFormat::new);
+    formats.put("rdfxml", RDFXMLDocumentFormat::new);
+  }
+
+  /**
+   * This command is named "materialize". It should be invoked as "java -jar jphyloref.jar
+   * materialize ..."
+   */
+  @Override
+  public String getName() {
+    return "materialize";
+  }
+
+  /**
+   * A description of the Materialize command.
+   *
+   * @return A description of this command.
+   */
+  @Override
+  public String getDescription() {
+    return "Reason over the input ontology and write it out with the results of reasoning, so that it can be resolved or tested later without a reasoner.";
+  }
+
+  /**
+   * Add command-line options specific to this command.
+   *
+   * @param opts The command-line options to modify for this command.
+   */
+  @Override
+  public void addCommandLineOptions(Options opts) {
+    opts.addOption(
+        "i",
+        "input",
+        true,
+        "The input ontology to read in RDF/XML or JSON-LD (can also be provided without the '-i').");
+
+    opts.addOption(
+        "j",
+        "jsonld",
+        false,
+        "Treat the input file as a JSON-LD file. Files with a '.json' or '.jsonld' extension will automatically be treated as a JSON-LD file.");
+
+    opts.addOption(
+        "o",
+        "output",
+        true,
+        "The file to write the materialized ontology to (default: '-', i.e. STDOUT).");
+
+    // All commands share one set of options, so this can't be called '--format', which is used by
+    // the resolve command.
+    opts.addOption(
+        null,
+        "output-format",
+        true,
+        "The format to write the materialized ontology in, one of: "
+            + formats.keySet()
+            + " (default: functional)");
+  }
+
+  /**
+   * Get the document format with a particular name.
+   *
+   * @param name The name of the format.
+   * @return A new instance of this document format.
+   * @throws IllegalArgumentException If there is no format with this name.
+   */
+  public static OWLDocumentFormat getFormat(String name) {
+    if (formats.containsKey(name)) return formats.get(name).get();
+
+    throw new IllegalArgumentException(
+        "No format named '" + name + "'; must be one of: " + formats.keySet());
+  }
+
+  /**
+   * Load the input ontology, reason over it, and write out the materialized ontology.
+   *
+   * @param cmdLine The command line options provided to this command.
+   */
+  @Override
+  public int execute(CommandLine cmdLine) throws RuntimeException {
+    // Extract command-line options
+    String inputFilename = OntologyLoaderHelper.getInputFilenameFromCmdLine(cmdLine);
+    String outputFilename = cmdLine.getOptionValue("output", "-");
+    OWLDocumentFormat format = getFormat(cmdLine.getOptionValue("output-format", "functional"));
+
+    // If the input filename is '-', we should read the ontology from STDIN instead.
+    InputStream inputStreamToReadFrom;
+    try {
+      inputStreamToReadFrom = OntologyLoaderHelper.openInput(inputFilename);
+    } catch (FileNotFoundException ex) {
+      logger.error("Could not open input file '{}': {}", inputFilename, ex);
+      return 1;
+    }
+
+    // Report the name of the file being materialized.
+    logger.info("Input: {}", inputFilename);
+
+    // Load the ontology, either as JSON-LD or as an OWL ontology.
+    OWLOntology ontology;
+    try {
+      ontology =
+          OntologyLoaderHelper.loadOntology(
+              inputStreamToReadFrom,
+              inputFilename,
+              OntologyLoaderHelper.isJSONLD(cmdLine, inputFilename),
+              cmdLine);
+    } catch (OWLOntologyCreationException ex) {
+      logger.error("Could not create ontology '{}': {}", inputFilename, ex);
+      return 1;
+    } catch (IOException ex) {
+      logger.error("Could not read and load ontology '{}': {}", inputFilename, ex);
+      return 1;
+    }
+    OWLOntologyManager manager = ontology.getOWLOntologyManager();
+
+    // Ontology loaded.
+    logger.info("Loaded ontology: {}", ontology);
+
+    // Reason over the ontology, and add the results of reasoning to it. We work these out
+    // before adding any of them, as changing the ontology might cause the reasoner to reclassify
+    // it.
+    OWLReasonerFactory reasonerFactory = ReasonerHelper.getReasonerFactoryFromCmdLine(cmdLine);
+    OWLReasoner reasoner = ReasonerHelper.createReasoner(reasonerFactory, ontology);
+    ReasonerHelper.classify(reasoner);
+
+    Set<OWLAxiom> materializedAxioms = PhylorefHelper.getMaterializedAxioms(ontology, reasoner);
+    if (reasoner != null) reasoner.dispose();
+
+    manager.addAxioms(ontology, materializedAxioms);
+    logger.info(
+        "Materialized {} axioms with reasoner {}",
+        materializedAxioms.size(),
+        ReasonerHelper.getReasonerNameAndVersion(reasonerFactory));
+
+    // Write out the materialized ontology.
+    OutputStream outputStream = null;
+    try {
+      if (outputFilename.equals("-")) {
+        outputStream = System.out;
+      } else {
+        outputStream = new FileOutputStream(outputFilename);
+      }
+
+      manager.saveOntology(ontology, format, outputStream);
+      outputStream.flush();
+    } catch (IOException | OWLOntologyStorageException ex) {
+      logger.error("Could not write materialized ontology to '{}': {}", outputFilename, ex);
+      return 1;
+    } finally {
+      if (outputStream != null && outputStream != System.out) {
+        try {
+          outputStream.close();
+        } catch (IOException ex) {
+          logger.error("Could not close '{}': {}", outputFilename, ex);
+        }
+      }
+    }
+
+    logger.info("Materialized ontology written to: {}", outputFilename);
+    return 0;
+  }
+}
@@ -0,0 +1,220 @@
+package org.phyloref.jphyloref.commands;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.IHTTPSession;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import org.phyloref.jphyloref.helpers.FormReader;
+import org.phyloref.jphyloref.helpers.SpooledDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the bodies of requests sent to /reason and /jobs, decoding the JSON-LD documents they
+ * contain into SpooledDocuments as they are uploaded.
+ */
+class RequestBodyReader {
+  /** Set up a logger to use for providing logging. */
+  private static final Logger logger = LoggerFactory.getLogger(RequestBodyReader.class);
+
+  /**
+   * The Content-Encodings that request bodies may be compressed with. The empty string stands for a
+   * request without a Content-Encoding.
+   */
+  private static final Set<String> SUPPORTED_CONTENT_ENCODINGS =
+      new HashSet<>(Arrays.asList("", "identity", "gzip", "x-gzip", "deflate"));
+
+  /** The size above which JSON-LD documents are spooled to a temporary file, in bytes. */
+  private final long spoolThresholdBytes;
+
+  /** The largest request body or (decompressed) JSON-LD document we accept, in bytes. */
+  private final long maxBodyBytes;
+
+  /** The directory we spool JSON-LD documents to. */
+  private final File spoolDirectory;
+
+  /**
+   * Create a reader for request bodies.
+   *
+   * @param spoolThresholdBytes The size above which JSON-LD documents are spooled to a temporary
+   *     file, in bytes.
+   * @param maxBodyBytes The largest request body or JSON-LD document we accept, in bytes.
+   * @param spoolDirectory The directory to spool JSON-LD documents to.
+   */
+  RequestBodyReader(long spoolThresholdBytes, long maxBodyBytes, File spoolDirectory) {
+    this.spoolThresholdBytes = spoolThresholdBytes;
+    this.maxBodyBytes = maxBodyBytes;
+    this.spoolDirectory = spoolDirectory;
+  }
+
+  /**
+   * @param contentEncoding The Content-Encoding of a request, or null if it didn't have one.
+   * @return True if we can decompress request bodies with this Content-Encoding.
+   */
+  static boolean isSupportedContentEncoding(String contentEncoding) {
+    return SUPPORTED_CONTENT_ENCODINGS.contains(
+        (contentEncoding == null) ? "" : contentEncoding.trim().toLowerCase());
+  }
+
+  /**
+   * Read the JSON-LD document in a form sent to /reason or /jobs. We accept three kinds of inputs:
+   *
+   * <ol>
+   *   <li>A form containing 'jsonld' as a JSON-LD string to process.
+   *   <li>A form containing 'jsonldGzipped' as a Base64-encoded Gzipped string containing a JSON-LD
+   *       string to process.
+   *   <li>A form containing 'jsonldFile' as a JSON-LD file to read.
+   * </ol>
+   *
+   * The form may be sent in the body of the request (either URL-encoded or as a multipart form) or
+   * in its query string. Alternatively, the body may be the JSON-LD document itself, with a
+   * Content-Type of 'application/ld+json' or 'application/json'. Either kind of body may be
+   * compressed with gzip or deflate, as indicated by its Content-Encoding. Rather than parsing the
+   * whole body with NanoHTTPD's parseBody(), we decode the JSON-LD document (and decompress it, if
+   * necessary) as it is read from the request, and spool it into a SpooledDocument, which only
+   * writes it to a temporary file if it is larger than --spool-kilobytes. The other fields of the
+   * form are added to the parameters.
+   *
+   * @param session The request to read the form from.
+   * @param params The parameters to add the other fields of the form to.
+   * @return The JSON-LD document, which must be closed by the caller, or null if the form didn't
+   *     contain one.
+   * @throws SpooledDocument.DocumentTooLargeException If the request body or the JSON-LD document
+   *     is larger than --max-body-megabytes.
+   * @throws IllegalArgumentException If the form is malformed.
+   * @throws IOException If the JSON-LD document could not be read or decompressed.
+   */
+  SpooledDocument readJSONLD(IHTTPSession session, Map<String, List<String>> params)
+      throws IOException {
+    SpooledDocument document =
+        new SpooledDocument(spoolThresholdBytes, maxBodyBytes, spoolDirectory);
+    String[] documentField = {null};
+    FormReader.FieldHandler handler =
+        (name, value) -> {
+          if (!name.equals("jsonld")
+              && !name.equals("jsonldGzipped")
+              && !name.equals("jsonldFile")) {
+            params.computeIfAbsent(name, k -> new ArrayList<>()).add(FormReader.readString(value));
+            return;
+          }
+
+          // Repeated fields are concatenated, but we can't combine different kinds of inputs.
+          if (documentField[0] != null && !documentField[0].equals(name)) {
+            throw new IllegalArgumentException(
+                "Expected a single JSON-LD document, but found both '"
+                    + documentField[0]
+                    + "' and '"
+                    + name
+                    + "' fields");
+          }
+          documentField[0] = name;
+
+          if (name.equals("jsonldGzipped")) {
+            document.readFrom(new GZIPInputStream(Base64.getDecoder().wrap(value)));
+          } else {
+            document.readFrom(value);
+          }
+        };
+
+    try {
+      for (Map.Entry<String, List<String>> entry : session.getParameters().entrySet()) {
+        for (String value : entry.getValue()) {
+          handler.handleField(
+              entry.getKey(), new ByteArrayInputStream(value.getBytes(StandardCharsets.UTF_8)));
+        }
+      }
+
+      if (session.getMethod().equals(NanoHTTPD.Method.PUT)
+          || session.getMethod().equals(NanoHTTPD.Method.POST)) {
+        long contentLength = getContentLength(session);
+        if (contentLength > maxBodyBytes) {
+          throw new SpooledDocument.DocumentTooLargeException(maxBodyBytes);
+        }
+        InputStream body = FormReader.limit(session.getInputStream(), contentLength);
+        InputStream content = decodeContent(body, session.getHeaders().get("content-encoding"));
+
+        String contentType = session.getHeaders().get("content-type");
+        if (isJSONLDContentType(contentType)) {
+          // The body is the JSON-LD document itself.
+          handler.handleField("jsonld", content);
+        } else {
+          FormReader.read(content, contentType, handler);
+        }
+
+        // A compressed body may end before its Content-Length does. We need to read the rest of
+        // it, so that the next request on this connection can be read.
+        FormReader.skip(body);
+      }
+    } catch (IOException | RuntimeException ex) {
+      document.close();
+      throw ex;
+    }
+
+    if (documentField[0] == null) {
+      document.close();
+      return null;
+    }
+    logger.info(
+        "Read {} bytes of JSON-LD from '{}'{}",
+        document.getSize(),
+        documentField[0],
+        document.isSpooled() ? " into a temporary file" : "");
+    return document;
+  }
+
+  /** @return True if a Content-Type indicates that the body of a request is a JSON-LD document. */
+  private boolean isJSONLDContentType(String contentType) {
+    if (contentType == null) return false;
+    String mimeType = contentType.split(";", 2)[0].trim().toLowerCase();
+    return mimeType.equals("application/ld+json") || mimeType.equals("application/json");
+  }
+
+  /**
+   * Decompress the body of a request as it is read, as indicated by its Content-Encoding.
+   *
+   * @param body The body of the request.
+   * @param contentEncoding The Content-Encoding of the request, or null if it didn't have one.
+   * @return A stream of the decompressed body.
+   * @throws IllegalArgumentException If we don't support this encoding; the webserver checks this
+   *     with isSupportedContentEncoding() before reading the body.
+   * @throws IOException If the body isn't compressed in this encoding.
+   */
+  private InputStream decodeContent(InputStream body, String contentEncoding) throws IOException {
+    if (!isSupportedContentEncoding(contentEncoding)) {
+      throw new IllegalArgumentException(
+          "Content-Encoding '" + contentEncoding + "' is not supported");
+    }
+
+    String encoding = (contentEncoding == null) ? "" : contentEncoding.trim().toLowerCase();
+
+    if (encoding.equals("gzip") || encoding.equals("x-gzip")) {
+      return new GZIPInputStream(body);
+    } else if (encoding.equals("deflate")) {
+      return new InflaterInputStream(body);
+    }
+    return body;
+  }
+
+  /** @return The length of the body of a request, or 0 if it doesn't have a Content-Length. */
+  private long getContentLength(IHTTPSession session) {
+    String contentLength = session.getHeaders().get("content-length");
+    if (contentLength == null) return 0;
+    try {
+      return Long.parseLong(contentLength.trim());
+    } catch (NumberFormatException ex) {
+      throw new IllegalArgumentException("Content-Length '" + contentLength + "' is not a number");
+    }
+  }
+}
@@ -1,30 +1,38 @@
 package org.phyloref.jphyloref.commands;
 
-import java.io.File;
-import java.io.FileInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Set;
-import java.util.stream.Collectors;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Options;
-import org.eclipse.rdf4j.rio.RDFParser;
+import org.json.JSONObject;
 import org.json.JSONStringer;
+import org.phyloref.jphyloref.JPhyloRef;
+import org.phyloref.jphyloref.helpers.DaemonHelper;
+import org.phyloref.jphyloref.helpers.DiskResultCache;
+import org.phyloref.jphyloref.helpers.FlightRecorderHelper;
 import org.phyloref.jphyloref.helpers.JSONLDHelper;
+import org.phyloref.jphyloref.helpers.OntologyLoaderHelper;
+import org.phyloref.jphyloref.helpers.PhaseTimer;
 import org.phyloref.jphyloref.helpers.PhylorefHelper;
 import org.phyloref.jphyloref.helpers.ReasonerHelper;
-import org.semanticweb.owlapi.apibinding.OWLManager;
-import org.semanticweb.owlapi.model.IRI;
+import org.phyloref.jphyloref.helpers.ResultCache;
+import org.phyloref.jphyloref.helpers.ResultWriter;
+import org.phyloref.jphyloref.helpers.VerificationHelper;
 import org.semanticweb.owlapi.model.OWLClass;
 import org.semanticweb.owlapi.model.OWLOntology;
 import org.semanticweb.owlapi.model.OWLOntologyCreationException;
-import org.semanticweb.owlapi.model.OWLOntologyManager;
 import org.semanticweb.owlapi.reasoner.OWLReasoner;
 import org.semanticweb.owlapi.reasoner.OWLReasonerFactory;
-import org.semanticweb.owlapi.util.AutoIRIMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -85,10 +93,45 @@ public class ResolveCommand implements Command {
         "errors-as-json",
         false,
         "By default, errors during reasoning are reported to STDERR. Setting this flag collects all errors and includes them as part of the JSON output. This makes it easier to run JPhyloRef as a backend to a web server.");
+
+    opts.addOption(
+        "T",
+        "timings",
+        false,
+        "Include the wall time, CPU time and memory allocated by each phase of resolution (parsing, creating the reasoner, classification, resolution and serialization) in the JSON output as 'timings'.");
+
+    opts.addOption(
+        "f",
+        "format",
+        true,
+        "The format to write results in: 'json' (the default) writes a single JSON object, 'ndjson' writes a line of JSON for each phyloreference followed by a summary line, and 'compact' writes a single JSON object that lists every node once and the nodes of each phyloreference as ranges in that list.");
   }
 
-  /** Use a default base URI when reading JSON-LD file. */
-  private static final String DEFAULT_URI_PREFIX = "http://example.org/jphyloref";
+  /**
+   * Describe how we resolve inputs, so that results cached by a different version of JPhyloRef,
+   * reasoner or JSON-LD loader, or by the webserver (whose results are in a different format),
+   * aren't reused.
+   */
+  private static String getCacheVariant(CommandLine cmdLine, boolean flagJSONLD, String format) {
+    return "resolve "
+        + format
+        + " JPhyloRef/"
+        + JPhyloRef.VERSION
+        + " "
+        + ReasonerHelper.getReasonerNameAndVersion(
+            ReasonerHelper.getReasonerFactoryFromCmdLine(cmdLine))
+        + " "
+        + (flagJSONLD ? "jsonld " + JSONLDHelper.getLoaderFromCmdLine(cmdLine) : "owl");
+  }
+
+  /** Read an input stream to its end. */
+  private static byte[] readAllBytes(InputStream in) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int count;
+    while ((count = in.read(buffer)) != -1) bytes.write(buffer, 0, count);
+    return bytes.toByteArray();
+  }
 
   /**
    * Set up a webserver to listen on the provided hostname and port (or their defaults).
@@ -97,115 +140,238 @@ public class ResolveCommand implements Command {
    */
   @Override
   public int execute(CommandLine cmdLine) throws RuntimeException {
-    // Check where errors should be sent.
-    boolean flagErrorsAsJSON = cmdLine.hasOption("errors-as-json");
-
     // Extract command-line options
-    String inputFilename = cmdLine.getOptionValue("input");
-
-    if (inputFilename == null && cmdLine.getArgList().size() > 1) {
-      // No 'input'? Maybe it's just provided as a left-over option?
-      inputFilename = cmdLine.getArgList().get(1);
-    }
-
-    if (inputFilename == null) {
-      throw new IllegalArgumentException("Error: no input ontology specified (use '-i input.owl')");
-    }
+    String inputFilename = OntologyLoaderHelper.getInputFilenameFromCmdLine(cmdLine);
 
     // If the input filename is '-', we should read the ontology from STDIN instead.
-    InputStream inputStreamToReadFrom = null;
-    if (inputFilename.equals("-")) {
-      inputStreamToReadFrom = System.in;
-    } else {
-      try {
-        inputStreamToReadFrom = new FileInputStream(inputFilename);
-      } catch (FileNotFoundException ex) {
-        logger.error("Could not open input file '{}': {}", inputFilename, ex);
-        return 1;
-      }
+    InputStream inputStreamToReadFrom;
+    try {
+      inputStreamToReadFrom = OntologyLoaderHelper.openInput(inputFilename);
+    } catch (FileNotFoundException ex) {
+      logger.error("Could not open input file '{}': {}", inputFilename, ex);
+      return 1;
     }
 
     // Report the name of the file being tested.
     logger.info("Input: {}", inputFilename);
 
-    // Set up an OWL Ontology Manager to work with.
-    OWLOntologyManager manager = OWLManager.createOWLOntologyManager();
+    // If we've been asked to, send this input to a running daemon to be resolved there.
+    if (DaemonHelper.isViaDaemon(cmdLine)) {
+      return DaemonHelper.resolveViaDaemon(
+          cmdLine, inputFilename, inputStreamToReadFrom, System.out, System.err);
+    }
 
-    // Is purl.obolibrary.org down? No worries, you can access local copies
-    // of your ontologies in the 'ontologies/' folder.
-    AutoIRIMapper mapper = new AutoIRIMapper(new File("ontologies"), true);
-    logger.info("Found local ontologies: {}", mapper.getOntologyIRIs());
-    manager.addIRIMapper(mapper);
+    return resolve(cmdLine, inputFilename, inputStreamToReadFrom, System.out, System.err);
+  }
 
+  /**
+   * Resolve the phyloreferences in an input ontology, and write the results in JSON to an output
+   * stream. This is used both by execute() and by the daemon, which resolves many inputs without
+   * starting a new JVM for each of them.
+   *
+   * @param cmdLine The command line options provided to this command.
+   * @param inputFilename The name of the input, used to determine its format.
+   * @param inputStreamToReadFrom The input ontology to read.
+   * @param out The output stream to write the resulting JSON to (usually STDOUT).
+   * @param err The output stream to write errors to (usually STDERR).
+   * @return The exit code to return to the shell (0 = success, other values = errors).
+   */
+  public int resolve(
+      CommandLine cmdLine,
+      String inputFilename,
+      InputStream inputStreamToReadFrom,
+      PrintStream out,
+      PrintStream err) {
     // Is this a JSON or JSON-LD file?
+    boolean flagJSONLD = OntologyLoaderHelper.isJSONLD(cmdLine, inputFilename);
+
+    return resolve(
+        cmdLine,
+        inputFilename,
+        flagJSONLD,
+        cmdLine.hasOption("errors-as-json"),
+        inputStreamToReadFrom,
+        out,
+        err);
+  }
+
+  /**
+   * Resolve the phyloreferences in an input ontology, and write the results in JSON to an output
+   * stream, without reading the input format or error reporting from the command line. This allows
+   * the webserver to produce the same output as "resolve --errors-as-json".
+   *
+   * @param cmdLine The command line options to use to set up the reasoner and JSON-LD loader.
+   * @param inputFilename The name of the input, used in error messages.
+   * @param flagJSONLD Whether the input should be read as JSON-LD rather than as an ontology.
+   * @param flagErrorsAsJSON Whether errors should be written as JSON to the output stream.
+   * @param inputStreamToReadFrom The input ontology to read.
+   * @param out The output stream to write the resulting JSON to (usually STDOUT).
+   * @param err The output stream to write errors to (usually STDERR).
+   * @return The exit code to return to the shell (0 = success, other values = errors).
+   */
+  public int resolve(
+      CommandLine cmdLine,
+      String inputFilename,
+      boolean flagJSONLD,
+      boolean flagErrorsAsJSON,
+      InputStream inputStreamToReadFrom,
+      PrintStream out,
+      PrintStream err) {
+    String format = cmdLine.getOptionValue("format", "json");
+    if (!ResultWriter.FORMATS.contains(format)) {
+      String message =
+          "Unknown output format '" + format + "'; supported formats are: " + ResultWriter.FORMATS;
+      if (flagErrorsAsJSON) {
+        out.println(
+            new JSONStringer()
+                .object()
+                .key("error")
+                .value("Arguments were invalid (IllegalArgumentException)")
+                .key("message")
+                .value(message)
+                .endObject()
+                .toString());
+        return 0;
+      } else {
+        err.println(message);
+        return 1;
+      }
+    }
+
     OWLOntology ontology;
-    String inputFileLowercase = inputFilename.toLowerCase();
     try {
-      if (cmdLine.hasOption("jsonld")
-          || inputFileLowercase.endsWith(".json")
-          || inputFileLowercase.endsWith(".jsonld")) {
-        // Use the JSONLD Helper to load the ontology.
-        ontology = manager.createOntology();
-        RDFParser parser = JSONLDHelper.createRDFParserForOntology(ontology);
+      // If we've been asked to use a result cache, check whether we've resolved this input before.
+      // Results that include a verification or timings depend on how long resolution took, so we
+      // don't cache them.
+      DiskResultCache resultCache = DiskResultCache.getFromCmdLine(cmdLine);
+      String cacheKey = null;
+      if (resultCache != null
+          && !VerificationHelper.isVerificationRequested(cmdLine)
+          && !cmdLine.hasOption("timings")) {
+        byte[] input = readAllBytes(inputStreamToReadFrom);
+        cacheKey =
+            ResultCache.getKey(
+                new ByteArrayInputStream(input), getCacheVariant(cmdLine, flagJSONLD, format));
+        String cachedResult = resultCache.get(cacheKey);
+        if (cachedResult != null) {
+          err.println("Using cached result for '" + inputFilename + "': " + cacheKey);
+          out.print(cachedResult);
+          out.flush();
+          return 0;
+        }
+        inputStreamToReadFrom = new ByteArrayInputStream(input);
+      }
 
-        // Read from the provided input stream (either STDIN or a file).
-        parser.parse(inputStreamToReadFrom, DEFAULT_URI_PREFIX);
+      // Record how long each phase of resolution takes.
+      PhaseTimer timer = new PhaseTimer();
 
-      } else {
-        // Load the ontology using OWLManager, by reading from the provided
-        // input stream (either STDIN or a file).
-        ontology = manager.loadOntologyFromOntologyDocument(inputStreamToReadFrom);
+      try (PhaseTimer.Phase phase = timer.start("parse")) {
+        ontology =
+            OntologyLoaderHelper.loadOntology(
+                inputStreamToReadFrom, inputFilename, flagJSONLD, cmdLine);
       }
 
       // Ontology loaded.
-      System.err.println("Loaded ontology: " + ontology);
-
-      // We have an ontology! Let's reason over it, and store the results as
-      // a map of a list of node IRIs matched by each phyloref IRI.
-      Map<String, Set<String>> nodesPerPhylorefAsString = new HashMap<>();
-
-      // Set up and start the reasoner.
-      OWLReasonerFactory factory = ReasonerHelper.getReasonerFactoryFromCmdLine(cmdLine);
-      OWLReasoner reasoner = factory.createReasoner(ontology);
-
-      // Go through all the phyloreferences, identifying all the nodes that have
-      // matched to that phyloreference.
-      for (OWLClass phyloref : PhylorefHelper.getPhyloreferences(ontology, reasoner)) {
-        IRI phylorefIRI = phyloref.getIRI();
-
-        // Identify all individuals contained in this phyloref class, but filter out
-        // everything that is not an IRI_CDAO_NODE.
-        Set<String> nodes =
-            PhylorefHelper.getNodesInClass(phyloref, ontology, reasoner)
-                .stream()
-                .map(indiv -> indiv.getIRI().toString())
-                // Strip the default prefix on the node URI if present.
-                .map(iri -> iri.replaceFirst("^" + DEFAULT_URI_PREFIX, ""))
-                .collect(Collectors.toSet());
-
-        // Strip the default prefix on the phyloref URI if present.
-        String nodeURI = phylorefIRI.toString();
-        nodeURI = nodeURI.replaceFirst("^" + DEFAULT_URI_PREFIX, "");
-
-        nodesPerPhylorefAsString.put(nodeURI, nodes);
-      }
+      err.println("Loaded ontology: " + ontology);
 
-      // Dispose of the reasoner.
-      reasoner.dispose();
-
-      // Write the JSON response to STDOUT.
-      System.out.println(
-          new JSONStringer()
-              .object()
-              .key("phylorefs")
-              .value(nodesPerPhylorefAsString)
-              .endObject()
-              .toString());
+      // Write the results to the output stream as we go, stripping the default prefix on the
+      // phyloref and node URIs if present, rather than building the entire result in memory first.
+      // If we're caching the result, we write it into a temporary file in the cache at the same
+      // time, which is only stored once the whole result has been written.
+      try (DiskResultCache.PendingResult pendingResult =
+          (cacheKey != null) ? resultCache.startPut(cacheKey) : null) {
+        Writer outWriter = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        Writer writer = (pendingResult != null) ? pendingResult.tee(outWriter) : outWriter;
+        ResultWriter resultWriter =
+            new ResultWriter(writer, format, OntologyLoaderHelper.DEFAULT_URI_PREFIX);
+
+        try {
+          // We have an ontology! Let's reason over it.
+          // Set up and start the reasoner.
+          OWLReasonerFactory factory = ReasonerHelper.getReasonerFactoryFromCmdLine(cmdLine);
+          OWLReasoner reasoner;
+          try (PhaseTimer.Phase phase = timer.startMultiThreaded("createReasoner")) {
+            reasoner = ReasonerHelper.createReasoner(factory, ontology);
+          }
+
+          VerificationHelper.Verification verification = null;
+          try {
+            // Classify the ontology before we start querying it, so that we can tell how long
+            // classification takes separately from how long it takes to resolve each
+            // phyloreference.
+            try (PhaseTimer.Phase phase = timer.startMultiThreaded("classify")) {
+              ReasonerHelper.classify(reasoner);
+            }
+
+            try (PhaseTimer.Phase phase = timer.startMultiThreaded("resolve")) {
+              if (VerificationHelper.isVerificationRequested(cmdLine)) {
+                // If we've been asked to verify our results against a reference reasoner, resolve
+                // all phyloreferences with both reasoners at once and compare them.
+                verification = verify(cmdLine, ontology, reasoner);
+              } else {
+                // Otherwise, resolve the phyloreferences one at a time, writing out the nodes of
+                // each as soon as it has been resolved. As a result, this phase includes the time
+                // taken to write out every phyloreference.
+                PhylorefHelper.resolvePhyloreferences(
+                    ontology,
+                    reasoner,
+                    (phyloref, nodes, phylorefsResolved, phylorefCount) -> {
+                      resultWriter.writePhyloref(phyloref, nodes);
+                      writer.flush();
+                    });
+              }
+            }
+          } finally {
+            // Dispose of the reasoner.
+            if (reasoner != null) reasoner.dispose();
+          }
+
+          try (PhaseTimer.Phase phase = timer.start("serialize")) {
+            Object serializationEvent = FlightRecorderHelper.beginSerialization();
+            if (verification != null) {
+              resultWriter.writePhylorefs(verification.getPrimary().getNodesPerPhyloref());
+            }
+
+            Map<String, Object> properties = new LinkedHashMap<>();
+            if (verification != null) {
+              properties.put(
+                  "verification", verification.toJSON(OntologyLoaderHelper.DEFAULT_URI_PREFIX));
+            }
+            if (cmdLine.hasOption("timings")) {
+              // The serialization phase itself can't be included in its own output, but it is
+              // logged.
+              properties.put("timings", timer.toJSON());
+            }
+            resultWriter.finish(properties);
+            writer.flush();
+            FlightRecorderHelper.endSerialization(
+                serializationEvent, format, resultWriter.getLength());
+          }
+        } catch (IOException | RuntimeException ex) {
+          // If we failed before writing anything, we can report the error as usual.
+          if (resultWriter.getLength() == 0 && ex instanceof RuntimeException) {
+            throw (RuntimeException) ex;
+          }
+
+          // Some of the results may already have been written, so we can't write an error object
+          // instead of them. We end NDJSON with an error record, and otherwise only report the
+          // error on the error stream.
+          return reportWriteError(
+              inputFilename, ex, resultWriter, writer, format, flagErrorsAsJSON, err);
+        }
+
+        if (out.checkError()) {
+          err.println("Could not write results for '" + inputFilename + "'");
+          return 1;
+        }
+        if (pendingResult != null) pendingResult.commit();
+      }
+      timer.log(logger, "input=" + inputFilename + " axioms=" + ontology.getAxiomCount());
       return 0;
 
     } catch (OWLOntologyCreationException ex) {
       if (flagErrorsAsJSON) {
-        System.out.println(
+        out.println(
             new JSONStringer()
                 .object()
                 .key("error")
@@ -216,12 +382,12 @@ public class ResolveCommand implements Command {
                 .toString());
         return 0;
       } else {
-        System.err.println("Could not create ontology '" + inputFilename + "': " + ex);
+        err.println("Could not create ontology '" + inputFilename + "': " + ex);
         return 1;
       }
     } catch (IOException ex) {
       if (flagErrorsAsJSON) {
-        System.out.println(
+        out.println(
             new JSONStringer()
                 .object()
                 .key("error")
@@ -232,12 +398,12 @@ public class ResolveCommand implements Command {
                 .toString());
         return 0;
       } else {
-        System.err.println("Could not create ontology '" + inputFilename + "': " + ex);
+        err.println("Could not create ontology '" + inputFilename + "': " + ex);
         return 1;
       }
     } catch (IllegalArgumentException ex) {
       if (flagErrorsAsJSON) {
-        System.out.println(
+        out.println(
             new JSONStringer()
                 .object()
                 .key("error")
@@ -249,7 +415,7 @@ public class ResolveCommand implements Command {
                 .toString());
         return 0;
       } else {
-        System.err.println(
+        err.println(
             "Arguments were invalid, likely because no phylorefs were present in '"
                 + inputFilename
                 + "': "
@@ -258,7 +424,7 @@ public class ResolveCommand implements Command {
       }
     } catch (Exception ex) {
       if (flagErrorsAsJSON) {
-        System.out.println(
+        out.println(
             new JSONStringer()
                 .object()
                 .key("error")
@@ -269,10 +435,74 @@ public class ResolveCommand implements Command {
                 .toString());
         return 0;
       } else {
-        System.err.println(
-            "Unexcepted exception while reasoning over '" + inputFilename + "': " + ex);
+        err.println("Unexcepted exception while reasoning over '" + inputFilename + "': " + ex);
         return 1;
       }
     }
   }
+
+  /**
+   * Resolve every phyloreference with both the reasoner and the reference reasoner chosen on the
+   * command line, compare their results and log any disagreements.
+   *
+   * @param cmdLine The command line options, which choose the reference reasoner.
+   * @param ontology The ontology containing the phyloreferences.
+   * @param reasoner The reasoner being verified.
+   * @return A comparison of the results of both reasoners.
+   * @throws InterruptedException If we were interrupted while waiting for either reasoner.
+   */
+  private static VerificationHelper.Verification verify(
+      CommandLine cmdLine, OWLOntology ontology, OWLReasoner reasoner) throws InterruptedException {
+    OWLReasonerFactory referenceFactory =
+        VerificationHelper.getReferenceReasonerFactoryFromCmdLine(cmdLine);
+    OWLReasoner referenceReasoner =
+        referenceFactory == null ? null : referenceFactory.createReasoner(ontology);
+    VerificationHelper.Verification verification;
+    try {
+      verification = VerificationHelper.verify(ontology, reasoner, referenceReasoner);
+    } finally {
+      if (referenceReasoner != null) referenceReasoner.dispose();
+    }
+
+    logger.info("Verification: {}", verification.getSummary());
+    for (Map.Entry<OWLClass, VerificationHelper.Disagreement> entry :
+        verification.getDisagreements().entrySet()) {
+      logger.warn("Reasoners disagree on {}: {}", entry.getKey(), entry.getValue());
+    }
+    return verification;
+  }
+
+  /**
+   * Report an error that occurred after we started writing results. A JSON error object can't be
+   * written after part of a JSON object, so with '--errors-as-json' we only report errors as JSON
+   * if we're writing NDJSON, where the error is written as the final record instead of the summary
+   * line. Otherwise the error is written to the error stream, and the output is left incomplete.
+   *
+   * @return The exit code to return to the shell.
+   */
+  private static int reportWriteError(
+      String inputFilename,
+      Exception ex,
+      ResultWriter resultWriter,
+      Writer writer,
+      String format,
+      boolean flagErrorsAsJSON,
+      PrintStream err) {
+    if (flagErrorsAsJSON && format.equals("ndjson")) {
+      try {
+        resultWriter.writeRecord(
+            "error",
+            new JSONObject()
+                .put("error", "Could not write results (" + ex.getClass().getSimpleName() + ")")
+                .put("message", ex.toString()));
+        writer.flush();
+        return 0;
+      } catch (IOException | RuntimeException ex2) {
+        // The output can't be written to at all, so fall back to the error stream.
+      }
+    }
+
+    err.println("Could not write results for '" + inputFilename + "': " + ex);
+    return 1;
+  }
 }
@@ -1,7 +1,5 @@
 package org.phyloref.jphyloref.commands;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -13,15 +11,14 @@ import java.util.Set;
 import java.util.stream.Collectors;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Options;
-import org.eclipse.rdf4j.rio.RDFParser;
-import org.phyloref.jphyloref.helpers.JSONLDHelper;
+import org.phyloref.jphyloref.helpers.FlightRecorderHelper;
 import org.phyloref.jphyloref.helpers.OWLHelper;
+import org.phyloref.jphyloref.helpers.OntologyLoaderHelper;
 import org.phyloref.jphyloref.helpers.PhylorefHelper;
 import org.phyloref.jphyloref.helpers.ReasonerHelper;
-import org.semanticweb.owlapi.apibinding.OWLManager;
+import org.phyloref.jphyloref.helpers.VerificationHelper;
 import org.semanticweb.owlapi.model.OWLAnnotationProperty;
 import org.semanticweb.owlapi.model.OWLClass;
-import org.semanticweb.owlapi.model.OWLClassExpression;
 import org.semanticweb.owlapi.model.OWLDataFactory;
 import org.semanticweb.owlapi.model.OWLNamedIndividual;
 import org.semanticweb.owlapi.model.OWLOntology;
@@ -29,7 +26,6 @@ import org.semanticweb.owlapi.model.OWLOntologyCreationException;
 import org.semanticweb.owlapi.model.OWLOntologyManager;
 import org.semanticweb.owlapi.reasoner.OWLReasoner;
 import org.semanticweb.owlapi.reasoner.OWLReasonerFactory;
-import org.semanticweb.owlapi.util.AutoIRIMapper;
 import org.semanticweb.owlapi.vocab.OWLRDFVocabulary;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -102,66 +98,29 @@ public class TestCommand implements Command {
   @Override
   public int execute(CommandLine cmdLine) throws RuntimeException {
     // Extract command-line options
-    String inputFilename = cmdLine.getOptionValue("input");
-
-    if (inputFilename == null && cmdLine.getArgList().size() > 1) {
-      // No 'input'? Maybe it's just provided as a left-over option?
-      inputFilename = cmdLine.getArgList().get(1);
-    }
-
-    if (inputFilename == null) {
-      throw new IllegalArgumentException("Error: no input ontology specified (use '-i input.owl')");
-    }
+    String inputFilename = OntologyLoaderHelper.getInputFilenameFromCmdLine(cmdLine);
 
     // If the input filename is '-', we should read the ontology from STDIN instead.
-    InputStream inputStreamToReadFrom = null;
-    if (inputFilename.equals("-")) {
-      inputStreamToReadFrom = System.in;
-    } else {
-      try {
-        inputStreamToReadFrom = new FileInputStream(inputFilename);
-      } catch (FileNotFoundException ex) {
-        logger.error("Could not open input file '{}': {}", inputFilename, ex);
-        return 1;
-      }
+    InputStream inputStreamToReadFrom;
+    try {
+      inputStreamToReadFrom = OntologyLoaderHelper.openInput(inputFilename);
+    } catch (FileNotFoundException ex) {
+      logger.error("Could not open input file '{}': {}", inputFilename, ex);
+      return 1;
     }
 
     // Report the name of the file being tested.
     logger.info("Input: {}", inputFilename);
 
-    // Set up an OWL Ontology Manager to work with.
-    OWLOntologyManager manager = OWLManager.createOWLOntologyManager();
+    // Is this a JSON or JSON-LD file? If so, we remove its default URI prefix from node URIs.
+    boolean flagJSONLD = OntologyLoaderHelper.isJSONLD(cmdLine, inputFilename);
+    String defaultURIPrefix = flagJSONLD ? OntologyLoaderHelper.DEFAULT_URI_PREFIX : null;
 
-    // Is purl.obolibrary.org down? No worries, you can access local copies
-    // of your ontologies in the 'ontologies/' folder.
-    AutoIRIMapper mapper = new AutoIRIMapper(new File("ontologies"), true);
-    logger.info("Found local ontologies: {}", mapper.getOntologyIRIs());
-    manager.addIRIMapper(mapper);
-
-    // Is this a JSON or JSON-LD file?
     OWLOntology ontology;
-    String inputFileLowercase = inputFilename.toLowerCase();
-
-    String defaultURIPrefix = null;
     try {
-      if (cmdLine.hasOption("jsonld")
-          || inputFileLowercase.endsWith(".json")
-          || inputFileLowercase.endsWith(".jsonld")) {
-        // Use the JSONLD Helper to load the ontology.
-        ontology = manager.createOntology();
-        RDFParser parser = JSONLDHelper.createRDFParserForOntology(ontology);
-
-        // Set a default URI prefix in case it is needed.
-        defaultURIPrefix = "http://example.org/jphyloref";
-
-        // Read from the provided input stream (either STDIN or a file).
-        parser.parse(inputStreamToReadFrom, defaultURIPrefix);
-
-      } else {
-        // Load the ontology using OWLManager, by reading from the provided
-        // input stream (either STDIN or a file).
-        ontology = manager.loadOntologyFromOntologyDocument(inputStreamToReadFrom);
-      }
+      ontology =
+          OntologyLoaderHelper.loadOntology(
+              inputStreamToReadFrom, inputFilename, flagJSONLD, cmdLine);
     } catch (OWLOntologyCreationException ex) {
       logger.error("Could not create ontology '{}': {}", inputFilename, ex);
       return 1;
@@ -169,6 +128,7 @@ public class TestCommand implements Command {
       logger.error("Could not read and load ontology '{}': {}", inputFilename, ex);
       return 1;
     }
+    OWLOntologyManager manager = ontology.getOWLOntologyManager();
 
     // Ontology loaded.
     logger.info("Loaded ontology: {}", ontology);
@@ -176,13 +136,31 @@ public class TestCommand implements Command {
     // Reason over the loaded ontology -- but only if the user wants that!
     // Set up an OWLReasoner to work with.
     OWLReasonerFactory reasonerFactory = ReasonerHelper.getReasonerFactoryFromCmdLine(cmdLine);
-    OWLReasoner reasoner = null;
-    if (reasonerFactory != null) reasoner = reasonerFactory.createReasoner(ontology);
+    OWLReasoner reasoner = ReasonerHelper.createReasoner(reasonerFactory, ontology);
 
     // Get a list of all phyloreferences.
     Set<OWLClass> phylorefs = PhylorefHelper.getPhyloreferences(ontology, reasoner);
     logger.info("Phyloreferences identified: {}", phylorefs);
 
+    // If we've been asked to verify our results against a reference reasoner, resolve
+    // all phyloreferences with both reasoners at once and compare them.
+    VerificationHelper.Verification verification = null;
+    if (VerificationHelper.isVerificationRequested(cmdLine)) {
+      OWLReasonerFactory referenceFactory =
+          VerificationHelper.getReferenceReasonerFactoryFromCmdLine(cmdLine);
+      OWLReasoner referenceReasoner =
+          referenceFactory == null ? null : referenceFactory.createReasoner(ontology);
+      try {
+        verification = VerificationHelper.verify(ontology, reasoner, referenceReasoner);
+      } catch (InterruptedException ex) {
+        logger.error("Interrupted while verifying '{}': {}", inputFilename, ex);
+        return 1;
+      } finally {
+        if (referenceReasoner != null) referenceReasoner.dispose();
+      }
+      logger.info("Verification: {}", verification.getSummary());
+    }
+
     // Okay, time to start testing! Each phyloreference counts as one test.
     // TAP (https://testanything.org/) can be read by downstream software
     // to determine which phyloreferences resolved correctly and which did not.
@@ -195,6 +173,9 @@ public class TestCommand implements Command {
             "Using reasoner: "
                 + ReasonerHelper.getReasonerNameAndVersion(
                     ReasonerHelper.getReasonerFactoryFromCmdLine(cmdLine))));
+    if (verification != null) {
+      testSet.addComment(new Comment("Verification: " + verification.getSummary()));
+    }
 
     // Preload some terms we need to use in the following code.
     OWLDataFactory dataFactory = manager.getOWLDataFactory();
@@ -267,24 +248,10 @@ public class TestCommand implements Command {
                             || ps.getStatus().equals(PhylorefHelper.IRI_PSO_PUBLISHED));
 
       // Given a phyloreference class, determine all the nodes that we expect to be
-      // resolved by that phyloreference class.
-      OWLClassExpression expectedNodesExpr =
-          dataFactory.getOWLObjectSomeValuesFrom(
-              dataFactory.getOWLObjectProperty(PhylorefHelper.IRI_OBI_IS_SPECIFIED_OUTPUT_OF),
-              dataFactory.getOWLObjectSomeValuesFrom(
-                  dataFactory.getOWLObjectProperty(PhylorefHelper.IRI_OBI_HAS_SPECIFIED_INPUT),
-                  phyloref));
-
-      Set<OWLNamedIndividual> expectedNodes = new HashSet<>();
-      if (reasoner == null) {
-        // If there's no reasoner, we could look for individuals specifically
-        // marked as expected (see PhylorefHelper for an example). However, we
-        // don't need to implement this until we actually have a need for this.
-        throw new RuntimeException("Testing without reasoner not yet implemented.");
-      }
-
-      // Get direct and indirect instances of the expectedNodesExpr.
-      expectedNodes = reasoner.getInstances(expectedNodesExpr, false).getFlattened();
+      // resolved by that phyloreference class. Without a reasoner, these need to
+      // have been asserted in the ontology, e.g. by the materialize command.
+      Set<OWLNamedIndividual> expectedNodes =
+          PhylorefHelper.getExpectedNodes(phyloref, ontology, reasoner);
       result.addComment(
           new Comment(
               "Expected nodes: " + removeDefaultURIPrefixes(expectedNodes, defaultURIPrefix)));
@@ -293,6 +260,16 @@ public class TestCommand implements Command {
       Set<OWLNamedIndividual> nodes = PhylorefHelper.getNodesInClass(phyloref, ontology, reasoner);
       // System.err.println("Phyloreference <" + phyloref + "> has nodes: " + nodes);
 
+      // Report whether the reference reasoner resolved this phyloreference differently.
+      if (verification != null && verification.getDisagreements().containsKey(phyloref)) {
+        result.addComment(
+            new Comment(
+                "Reference reasoner "
+                    + verification.getReference().getReasonerName()
+                    + " disagrees: "
+                    + verification.getDisagreements().get(phyloref)));
+      }
+
       // Any phyloreference that is not expected to resolve should be ignored.
       if (expectedNodes.isEmpty()) {
         countSkipped++;
@@ -387,7 +364,10 @@ public class TestCommand implements Command {
       }
     }
 
-    System.out.println(tapProducer.dump(testSet));
+    Object serializationEvent = FlightRecorderHelper.beginSerialization();
+    String tapOutput = tapProducer.dump(testSet);
+    FlightRecorderHelper.endSerialization(serializationEvent, "tap", tapOutput.length());
+    System.out.println(tapOutput);
     System.err.println(
         "Testing complete:"
             + countSuccess
@@ -400,7 +380,7 @@ public class TestCommand implements Command {
             + " skipped.");
 
     // Dispose of the reasoner.
-    reasoner.dispose();
+    if (reasoner != null) reasoner.dispose();
 
     // Exit with error unless we have zero failures.
     if (countSuccess == 0) return -1;
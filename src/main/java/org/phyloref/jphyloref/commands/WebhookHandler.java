@@ -0,0 +1,177 @@
+package org.phyloref.jphyloref.commands;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.IHTTPSession;
+import fi.iki.elonen.NanoHTTPD.Method;
+import fi.iki.elonen.NanoHTTPD.Response;
+import fi.iki.elonen.NanoHTTPD.Response.IStatus;
+import fi.iki.elonen.NanoHTTPD.Response.Status;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Base64;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.GZIPInputStream;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.json.JSONObject;
+import org.phyloref.jphyloref.helpers.WebhookHelper;
+import org.semanticweb.owlapi.model.OWLOntologyCreationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Handles Webhook-compatible requests sent to the webserver, so that it can be used in place of
+ * Webhook (see webhook/hooks.json). These are resolved on the webserver's reasoning workers in the
+ * same way as "resolve --errors-as-json".
+ */
+class WebhookHandler {
+  /** Set up a logger to use for providing logging. */
+  private static final Logger logger = LoggerFactory.getLogger(WebhookHandler.class);
+
+  /** The webserver whose reasoning workers resolve our requests. */
+  private final WebserverCommand.Webserver webserver;
+
+  /** The secret that Webhook-compatible requests must be signed with. */
+  private final String secret;
+
+  /** The largest request body we accept, in bytes. */
+  private final long maxBodyBytes;
+
+  /** Used to produce the same responses to Webhook-compatible requests as the resolve command. */
+  private final ResolveCommand resolveCommand = new ResolveCommand();
+
+  /**
+   * The command line used to resolve Webhook-compatible requests. This is the same as the
+   * webserver's command line, except that we don't verify these requests, as the resolve command
+   * would for every request.
+   */
+  private final CommandLine webhookCmdLine;
+
+  /**
+   * Create a handler for Webhook-compatible requests.
+   *
+   * @param webserver The webserver whose reasoning workers resolve our requests.
+   * @param secret The secret that requests must be signed with.
+   * @param cmdLine The command line used to invoke the webserver.
+   * @param maxBodyBytes The largest request body we accept, in bytes.
+   */
+  WebhookHandler(
+      WebserverCommand.Webserver webserver, String secret, CommandLine cmdLine, long maxBodyBytes) {
+    this.webserver = webserver;
+    this.secret = secret;
+    this.maxBodyBytes = maxBodyBytes;
+
+    CommandLine.Builder webhookCmdLineBuilder = new CommandLine.Builder();
+    for (Option opt : cmdLine.getOptions()) {
+      if (opt.getLongOpt() == null || !opt.getLongOpt().startsWith("verify-")) {
+        webhookCmdLineBuilder.addOption(opt);
+      }
+    }
+    webhookCmdLine = webhookCmdLineBuilder.build();
+  }
+
+  /**
+   * Respond to a Webhook-compatible request (see WebhookHelper) with the same JSON output as
+   * "resolve --errors-as-json".
+   */
+  Response serve(IHTTPSession session) {
+    // Respond to CORS pre-flight requests in the same way as Webhook.
+    if (session.getMethod().equals(Method.OPTIONS)) {
+      return createWebhookResponse(Status.OK, NanoHTTPD.MIME_PLAINTEXT, "Options");
+    }
+    if (!session.getMethod().equals(Method.POST)) {
+      return createWebhookResponse(
+          Status.METHOD_NOT_ALLOWED, NanoHTTPD.MIME_PLAINTEXT, "Only POST requests are supported.");
+    }
+
+    // We need the exact bytes of the request body to check its signature, so we read it
+    // ourselves rather than using parseBody().
+    String contentLength = session.getHeaders().get("content-length");
+    if (contentLength == null) {
+      return createWebhookResponse(
+          Status.LENGTH_REQUIRED, NanoHTTPD.MIME_PLAINTEXT, "A Content-Length header is required.");
+    }
+    byte[] payload;
+    try {
+      if (Long.parseLong(contentLength) > maxBodyBytes) {
+        Response tooLarge =
+            createWebhookResponse(
+                Status.PAYLOAD_TOO_LARGE,
+                NanoHTTPD.MIME_PLAINTEXT,
+                "Request body is larger than the maximum of " + maxBodyBytes + " bytes.");
+        tooLarge.closeConnection(true);
+        return tooLarge;
+      }
+      payload = new byte[Integer.parseInt(contentLength)];
+      new DataInputStream(session.getInputStream()).readFully(payload);
+    } catch (NumberFormatException | IOException ex) {
+      return createWebhookResponse(
+          Status.BAD_REQUEST, NanoHTTPD.MIME_PLAINTEXT, "Could not read request body: " + ex);
+    }
+
+    if (!WebhookHelper.isSignatureValid(
+        payload, secret, session.getHeaders().get("x-hub-signature"))) {
+      logger.warn(
+          "Rejecting request with an invalid X-Hub-Signature from {}",
+          session.getRemoteIpAddress());
+      return createWebhookResponse(
+          Status.FORBIDDEN, NanoHTTPD.MIME_PLAINTEXT, "Hook rules were not satisfied.");
+    }
+
+    // Resolve the JSON-LD document in the same way as "resolve --errors-as-json".
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+    try (PrintStream outStream = new PrintStream(out, true, "UTF-8");
+        PrintStream errStream = new PrintStream(err, true, "UTF-8")) {
+      try {
+        String jsonldGzipped =
+            WebhookHelper.getPayloadField(
+                payload, session.getHeaders().get("content-type"), "jsonldGzipped");
+        if (jsonldGzipped == null) {
+          throw new IllegalArgumentException(
+              "Expected a Base64-encoded, gzipped JSON-LD document in the 'jsonldGzipped' field");
+        }
+
+        webserver.runReasoningTask(
+            () -> {
+              try (InputStream input =
+                  new GZIPInputStream(
+                      new ByteArrayInputStream(Base64.getDecoder().decode(jsonldGzipped)))) {
+                return resolveCommand.resolve(
+                    webhookCmdLine, "jsonldGzipped", true, true, input, outStream, errStream);
+              }
+            });
+      } catch (RejectedExecutionException ex) {
+        return webserver.withRetryAfter(
+            createWebhookResponse(
+                Status.SERVICE_UNAVAILABLE,
+                NanoHTTPD.MIME_PLAINTEXT,
+                "All reasoning workers are busy; please try again later."));
+      } catch (OWLOntologyCreationException | IOException | IllegalArgumentException ex) {
+        JSONObject error = new JSONObject();
+        error.put("error", "Could not read request (" + ex.getClass().getSimpleName() + ")");
+        error.put("message", ex.toString());
+        outStream.println(error.toString());
+      }
+
+      logger.info("Webhook request resolved: {}", err.toString("UTF-8").trim());
+      return createWebhookResponse(Status.OK, "application/json", out.toString("UTF-8"));
+    } catch (UnsupportedEncodingException ex) {
+      throw new RuntimeException("'UTF-8' is not supported as an encoding: " + ex);
+    }
+  }
+
+  /** Create a response with the same headers as Webhook (see webhook/hooks.json). */
+  private static Response createWebhookResponse(IStatus status, String mimeType, String body) {
+    Response response = NanoHTTPD.newFixedLengthResponse(status, mimeType, body);
+    response.addHeader("Access-Control-Allow-Origin", "*");
+    response.addHeader("Access-Control-Allow-Methods", "POST, OPTIONS");
+    response.addHeader("Access-Control-Allow-Headers", "X-Hub-Signature");
+    return response;
+  }
+}
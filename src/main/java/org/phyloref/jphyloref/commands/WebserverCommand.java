@@ -3,38 +3,74 @@ package org.phyloref.jphyloref.commands;
 import fi.iki.elonen.NanoHTTPD;
 import fi.iki.elonen.NanoHTTPD.Response.IStatus;
 import fi.iki.elonen.NanoHTTPD.Response.Status;
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.Base64;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.SequenceInputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Options;
 import org.eclipse.rdf4j.rio.RDFParseException;
-import org.eclipse.rdf4j.rio.RDFParser;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.phyloref.jphyloref.JPhyloRef;
+import org.phyloref.jphyloref.helpers.DiskResultCache;
+import org.phyloref.jphyloref.helpers.FlightRecorderHelper;
 import org.phyloref.jphyloref.helpers.JSONLDHelper;
+import org.phyloref.jphyloref.helpers.Metrics;
+import org.phyloref.jphyloref.helpers.OntologyLoaderHelper;
+import org.phyloref.jphyloref.helpers.PhaseTimer;
 import org.phyloref.jphyloref.helpers.PhylorefHelper;
 import org.phyloref.jphyloref.helpers.ReasonerHelper;
+import org.phyloref.jphyloref.helpers.ResultCache;
+import org.phyloref.jphyloref.helpers.ResultWriter;
+import org.phyloref.jphyloref.helpers.SpooledDocument;
+import org.phyloref.jphyloref.helpers.ThreadHelper;
+import org.phyloref.jphyloref.helpers.VerificationHelper;
 import org.semanticweb.owlapi.apibinding.OWLManager;
 import org.semanticweb.owlapi.model.IRI;
+import org.semanticweb.owlapi.model.OWLAxiom;
 import org.semanticweb.owlapi.model.OWLClass;
+import org.semanticweb.owlapi.model.OWLDataFactory;
+import org.semanticweb.owlapi.model.OWLNamedIndividual;
 import org.semanticweb.owlapi.model.OWLOntology;
 import org.semanticweb.owlapi.model.OWLOntologyCreationException;
 import org.semanticweb.owlapi.model.OWLOntologyManager;
 import org.semanticweb.owlapi.reasoner.OWLReasoner;
 import org.semanticweb.owlapi.reasoner.OWLReasonerFactory;
-import org.semanticweb.owlapi.util.AutoIRIMapper;
 import org.semanticweb.owlapi.util.VersionInfo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,7 +83,12 @@ import org.slf4j.LoggerFactory;
  * upload with a 'jsonld' element containing a file upload of a JSON-LD file representing an
  * ontology to test. This command will reason over the ontology and return a JSON dictionary, in
  * which the keys are the IRIs for each phyloreference, and the values are lists of the IRIs of each
- * node matched by that phyloreference.
+ * node matched by that phyloreference. /health: reports whether the webserver is running. /ready:
+ * reports whether the webserver has warmed up and has capacity for another request, with a 503
+ * status if it doesn't.
+ *
+ * <p>The webserver runs until the JVM is shut down, at which point it stops accepting connections
+ * and waits for the requests in progress to complete (up to the time set by --drain-timeout).
  *
  * @author Gaurav Vaidya
  */
@@ -85,6 +126,141 @@ public class WebserverCommand implements Command {
         "h", "host", true, "The hostname to listen to HTTP connections on (default: 'localhost')");
     opts.addOption(
         "p", "port", true, "The TCP port to listen to HTTP connections on (default: 34214)");
+    opts.addOption(
+        "s",
+        "webhook-secret",
+        true,
+        "Accept Webhook-compatible requests signed with this secret (see webhook/hooks.json) at the path set by --webhook-path");
+    opts.addOption(
+        "w",
+        "webhook-path",
+        true,
+        "The path to accept Webhook-compatible requests at (default: '"
+            + DEFAULT_WEBHOOK_PATH
+            + "')");
+    opts.addOption(
+        "d",
+        "drain-timeout",
+        true,
+        "When shutting down, the number of seconds to wait for requests in progress to complete (default: "
+            + DEFAULT_DRAIN_TIMEOUT
+            + ")");
+    opts.addOption(
+        "n",
+        "workers",
+        true,
+        "The number of requests to reason over at the same time (default: the number of available processors)");
+    opts.addOption(
+        "q",
+        "queue-size",
+        true,
+        "The number of requests that can wait for a worker before we respond with '503 Service Unavailable' (default: "
+            + DEFAULT_QUEUE_SIZE
+            + ")");
+    opts.addOption(
+        "t",
+        "job-ttl",
+        true,
+        "The number of seconds to keep the results of finished jobs for (default: "
+            + DEFAULT_JOB_TTL
+            + ")");
+    opts.addOption(
+        "c",
+        "cache-entries",
+        true,
+        "The number of /reason results to cache, or 0 to disable caching (default: "
+            + DEFAULT_CACHE_ENTRIES
+            + ")");
+    opts.addOption(
+        "m",
+        "cache-megabytes",
+        true,
+        "The total size of the /reason results to cache, in megabytes (default: "
+            + DEFAULT_CACHE_MEGABYTES
+            + ")");
+    opts.addOption(
+        "T",
+        "timings",
+        false,
+        "Include the wall time, CPU time and memory allocated by each phase of reasoning in /reason and /jobs results as 'timings'; cached results include the timings of the request that produced them");
+    opts.addOption(
+        "b",
+        "max-body-megabytes",
+        true,
+        "The largest request body or (decompressed) JSON-LD document to accept, in megabytes (default: "
+            + DEFAULT_MAX_BODY_MEGABYTES
+            + ")");
+    opts.addOption(
+        "k",
+        "spool-kilobytes",
+        true,
+        "JSON-LD documents larger than this are written to a temporary file rather than kept in memory while they are reasoned over, in kilobytes (default: "
+            + DEFAULT_SPOOL_KILOBYTES
+            + ")");
+  }
+
+  /** The path that Webhook-compatible requests are accepted at by default. */
+  public static final String DEFAULT_WEBHOOK_PATH = "/hooks/reason";
+
+  /** The number of seconds to wait for requests in progress when shutting down by default. */
+  public static final int DEFAULT_DRAIN_TIMEOUT = 30;
+
+  /** The number of requests that can wait for a reasoning worker by default. */
+  public static final int DEFAULT_QUEUE_SIZE = 16;
+
+  /** The number of seconds we keep the results of finished jobs for by default. */
+  public static final int DEFAULT_JOB_TTL = 3600;
+
+  /** The number of /reason results we cache by default. */
+  public static final int DEFAULT_CACHE_ENTRIES = 1000;
+
+  /** The total size of the /reason results we cache by default, in megabytes. */
+  public static final int DEFAULT_CACHE_MEGABYTES = 64;
+
+  /** The largest request body or JSON-LD document we accept by default, in megabytes. */
+  public static final int DEFAULT_MAX_BODY_MEGABYTES = 256;
+
+  /**
+   * The size above which we spool JSON-LD documents to a temporary file by default, in kilobytes.
+   */
+  public static final int DEFAULT_SPOOL_KILOBYTES = 1024;
+
+  /** The error reported when a form sent to /reason or /jobs doesn't contain a JSON-LD document. */
+  static final String MISSING_JSONLD_ERROR =
+      "Expected a form with a file upload in the 'jsonldFile' field or a JSON-LD string in the 'jsonld' or 'jsonldGzipped' field, but no such field was found";
+
+  /** How long we ask clients to wait before retrying when all our workers are busy, in seconds. */
+  public static final int RETRY_AFTER_SECONDS = 5;
+
+  /**
+   * The media type of streamed /reason responses, which clients request with their Accept header.
+   */
+  public static final String NDJSON_MIME_TYPE = "application/x-ndjson";
+
+  /**
+   * The formats that /reason can return its results in, which clients choose with the 'format'
+   * parameter. 'json' is the default; 'compact' lists every node once (see ResultWriter).
+   */
+  public static final List<String> REASON_FORMATS =
+      Collections.unmodifiableList(Arrays.asList("json", "compact"));
+
+  /** The number of bytes of a streamed response that are buffered until the client reads them. */
+  private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+  /** The histogram buckets for the number of axioms in the ontologies we reason over. */
+  private static final double[] AXIOM_COUNT_BUCKETS = {
+    100, 1000, 10_000, 100_000, 1_000_000, 10_000_000
+  };
+
+  /** The paths reported in request metrics; requests to any other path are reported as 'other'. */
+  private static final Set<String> METRIC_PATHS =
+      new HashSet<>(Arrays.asList("/reason", "/jobs", "/version", "/health", "/ready", "/metrics"));
+
+  /**
+   * A task that reasons over an ontology, which is run by one of the webserver's reasoning workers.
+   */
+  interface ReasoningTask<T> {
+    T call() throws OWLOntologyCreationException, IOException;
   }
 
   /**
@@ -97,258 +273,1884 @@ public class WebserverCommand implements Command {
     String hostname = cmdLine.getOptionValue("host", "localhost");
     String portString = cmdLine.getOptionValue("port", "34214");
     int port = Integer.parseInt(portString);
+    String drainTimeoutString =
+        cmdLine.getOptionValue("drain-timeout", String.valueOf(DEFAULT_DRAIN_TIMEOUT));
+    long drainTimeout = Long.parseLong(drainTimeoutString);
 
     try {
       Webserver webserver = new Webserver(this, hostname, port, cmdLine);
-      while (webserver.isAlive()) {}
+
+      // When the JVM is asked to shut down (e.g. by SIGTERM), stop accepting new connections and
+      // give the requests in progress some time to complete.
+      Runtime.getRuntime()
+          .addShutdownHook(
+              new Thread(
+                  () -> webserver.shutdown(TimeUnit.SECONDS.toMillis(drainTimeout)),
+                  "jphyloref-webserver-shutdown"));
+
+      // Block (without using any CPU) until the webserver has been stopped.
+      webserver.awaitStop();
     } catch (IOException ex) {
       logger.error("An error occurred while running webserver: {}", ex.toString());
+      return 1;
+    } catch (InterruptedException ex) {
+      logger.error("Interrupted while running webserver: {}", ex.toString());
+      return 1;
     }
 
     return 0;
   }
 
-  /** The webserver we set up. */
-  class Webserver extends fi.iki.elonen.NanoHTTPD {
-    /**
-     * We keep a copy of the WebserverCommand that invoked us, although we don't use this for now.
-     */
-    private final WebserverCommand cmd;
+  /**
+   * Determine whether a response may be compressed with gzip, given the Accept-Encoding header of
+   * the request. Unlike NanoHTTPD, which compresses responses whenever this header mentions gzip,
+   * we take quality values into account: "gzip;q=0" refuses gzip, and a client that prefers the
+   * identity encoding (e.g. "identity, gzip;q=0.5") receives an uncompressed response.
+   *
+   * @param acceptEncoding The Accept-Encoding header of the request, or null if it had none.
+   * @return True if the response may be compressed with gzip.
+   */
+  static boolean acceptsGzip(String acceptEncoding) {
+    if (acceptEncoding == null) return false;
 
-    /** The CommandLine used to invoke this webserver. */
-    private final CommandLine cmdLine;
+    double gzip = -1;
+    double identity = -1;
+    double any = -1;
+    for (String coding : acceptEncoding.split(",")) {
+      String[] params = coding.split(";");
+      String name = params[0].trim().toLowerCase();
+      double quality = 1;
+      for (int i = 1; i < params.length; i++) {
+        String param = params[i].trim().toLowerCase();
+        if (!param.startsWith("q=")) continue;
+        try {
+          quality = Double.parseDouble(param.substring(2).trim());
+        } catch (NumberFormatException ex) {
+          quality = 0;
+        }
+      }
 
-    /**
-     * Create and start the webserver. It starts in another thread, so execution will not stop.
-     *
-     * @param cmd The WebserverCommand that created this Webserver.
-     * @param hostname The hostname under which this webserver should listen.
-     * @param port The port this webserver should listen to.
-     */
-    public Webserver(WebserverCommand cmd, String hostname, int port, CommandLine cmdLine)
-        throws IOException {
-      super(hostname, port);
+      if (name.equals("gzip") || name.equals("x-gzip")) gzip = Math.max(gzip, quality);
+      else if (name.equals("identity")) identity = quality;
+      else if (name.equals("*")) any = quality;
+    }
 
-      this.cmd = cmd;
-      this.cmdLine = cmdLine;
+    // Codings that aren't listed get the quality of "*", if present.
+    if (gzip < 0) gzip = any;
+    return gzip > 0 && gzip >= identity;
+  }
 
-      start(NanoHTTPD.SOCKET_READ_TIMEOUT, false);
-      logger.info(
-          "Webserver started with reasoner {}. Try accessing it at http://{}:{}/",
-          ReasonerHelper.getReasonerNameAndVersion(
-              ReasonerHelper.getReasonerFactoryFromCmdLine(cmdLine)),
-          hostname,
-          port);
+  /**
+   * Describe how far reasoning over a document has progressed as a JSON object, as reported by
+   * /jobs/[id].
+   *
+   * @param phylorefsResolved The number of phyloreferences resolved so far.
+   * @param phylorefCount The number of phyloreferences being resolved, or 0 if they haven't been
+   *     found yet.
+   */
+  static JSONObject createProgress(int phylorefsResolved, int phylorefCount) {
+    JSONObject progress = new JSONObject();
+    progress.put("phylorefsResolved", phylorefsResolved);
+    progress.put("phylorefs", phylorefCount);
+    return progress;
+  }
+
+  /**
+   * Runs every connection to the webserver on a thread created by ThreadHelper, which uses virtual
+   * threads where available (Java 21 and later). Connections mostly wait -- for a keep-alive client
+   * to send its next request, for a slow upload, or for a reasoning worker to produce a result --
+   * so this allows many more connections to be kept open than one platform thread each would allow.
+   * Reasoning itself is still carried out by the webserver's bounded pool of reasoning workers.
+   */
+  static class ConnectionRunner implements NanoHTTPD.AsyncRunner {
+    /** Runs each connection on its own thread. */
+    private final ExecutorService executor =
+        ThreadHelper.newThreadPerTaskExecutor("jphyloref-http-");
+
+    /** The connections currently open. */
+    private final Set<NanoHTTPD.ClientHandler> running = ConcurrentHashMap.newKeySet();
+
+    @Override
+    public void exec(NanoHTTPD.ClientHandler clientHandler) {
+      running.add(clientHandler);
+      executor.execute(clientHandler);
     }
 
-    /** Respond to a request for reasoning over a JSON-LD file (/reason). */
-    public JSONObject serveReason(File jsonldFile)
-        throws OWLOntologyCreationException, RDFParseException, IOException {
-      JSONObject response = new JSONObject("{'status': 'ok'}");
+    @Override
+    public void closed(NanoHTTPD.ClientHandler clientHandler) {
+      running.remove(clientHandler);
+    }
 
-      // Prepare an ontology to fill with the provided JSON-LD file.
-      OWLOntologyManager manager = OWLManager.createOWLOntologyManager();
-
-      // Is purl.obolibrary.org down? No worries, you can access local copies
-      // of your ontologies in the 'ontologies/' folder.
-      AutoIRIMapper mapper = new AutoIRIMapper(new File("ontologies"), true);
-      logger.info("Found local ontologies: {}", mapper.getOntologyIRIs());
-      manager.addIRIMapper(mapper);
-
-      // Setup ready; parse the file!
-      // We could jsonldFile.toURI().toString() as the file IRI, but this points
-      // to a temporary file on the server where the JSON-LD file was stored by
-      // NanoHTTPD.
-      //
-      // The JSON-LD loader needs a default URI prefix. The input JSON-LD ontology
-      // will usually provide one in the '@id' field, but if not, we set up a default
-      // URI prefix here. If that prefix appears in either node URIs or phyloref URIs,
-      // we will strip it later -- that way, a JSON-LD ontology without a base URI
-      // (i.e. all of whose URIs are local to the document itself) will produce
-      // results with local URIs as well.
-      String DEFAULT_URI_PREFIX = "http://example.org/jphyloref";
-      OWLOntology ontology = manager.createOntology();
-      RDFParser parser = JSONLDHelper.createRDFParserForOntology(ontology);
-      parser.parse(new FileReader(jsonldFile), DEFAULT_URI_PREFIX);
-      response.put("ontology", ontology.toString());
+    @Override
+    public void closeAll() {
+      for (NanoHTTPD.ClientHandler clientHandler : new ArrayList<>(running)) {
+        clientHandler.close();
+      }
+    }
 
-      // We have an ontology! Let's reason over it, and store the results as
-      // a map of a list of node IRIs matched by each phyloref IRI.
-      Map<String, Set<String>> nodesPerPhylorefAsString = new HashMap<>();
+    /** @return The number of connections currently open. */
+    public int getConnectionCount() {
+      return running.size();
+    }
+  }
 
-      // Set up and start the reasoner.
-      OWLReasonerFactory factory = ReasonerHelper.getReasonerFactoryFromCmdLine(cmdLine);
-      OWLReasoner reasoner = factory.createReasoner(ontology);
+  /**
+   * A /reason document being reasoned over, which other requests for the same document can wait for
+   * instead of reasoning over it again. Its result is the JSON response that is cached for the
+   * document. If the result is being streamed, the NDJSON records of each phyloreference (and
+   * finally the summary) are also added to the flight as they are written, so that streamed
+   * requests waiting for it can send them on straight away.
+   */
+  static class Flight extends CompletableFuture<String> {
+    /** The number of requests waiting for this result, other than the one that started it. */
+    final AtomicInteger waiters = new AtomicInteger();
 
-      // Go through all the phyloreferences, identifying all the nodes that have
-      // matched to that phyloreference.
-      for (OWLClass phyloref : PhylorefHelper.getPhyloreferences(ontology, reasoner)) {
-        IRI phylorefIRI = phyloref.getIRI();
+    /** The NDJSON records streamed so far, each ending with a newline. Guarded by "this". */
+    private final List<String> records = new ArrayList<>();
+
+    /** Add a record that has been streamed, and wake up any requests waiting for it. */
+    synchronized void addRecord(String record) {
+      records.add(record);
+      notifyAll();
+    }
 
-        // Identify all individuals contained in this phyloref class, but filter out
-        // everything that is not an IRI_CDAO_NODE.
-        Set<String> nodes =
-            PhylorefHelper.getNodesInClass(phyloref, ontology, reasoner)
-                .stream()
-                .map(indiv -> indiv.getIRI().toString())
-                // Strip the default prefix on the node URI if present.
-                .map(iri -> iri.replaceFirst("^" + DEFAULT_URI_PREFIX, ""))
-                .collect(Collectors.toSet());
+    /** @return The NDJSON records streamed so far. */
+    synchronized List<String> getRecords() {
+      return new ArrayList<>(records);
+    }
+
+    /**
+     * Wait until a record has been streamed or this flight has completed.
+     *
+     * @param index The index of the record to wait for.
+     * @return The record, or null if the flight completed without streaming it.
+     * @throws InterruptedException If we were interrupted while waiting.
+     */
+    synchronized String awaitRecord(int index) throws InterruptedException {
+      while (records.size() <= index && !isDone()) wait();
+      return (index < records.size()) ? records.get(index) : null;
+    }
 
-        // Strip the default prefix on the phyloref URI if present.
-        String nodeURI = phylorefIRI.toString();
-        nodeURI = nodeURI.replaceFirst("^" + DEFAULT_URI_PREFIX, "");
+    @Override
+    public boolean complete(String result) {
+      boolean completed = super.complete(result);
+      synchronized (this) {
+        notifyAll();
+      }
+      return completed;
+    }
 
-        nodesPerPhylorefAsString.put(nodeURI, nodes);
+    @Override
+    public boolean completeExceptionally(Throwable ex) {
+      boolean completed = super.completeExceptionally(ex);
+      synchronized (this) {
+        notifyAll();
       }
+      return completed;
+    }
+  }
 
-      // Dispose the reasoner.
-      reasoner.dispose();
+  /**
+   * A writer that adds every NDJSON record written to it to a Flight once its line is complete, as
+   * well as passing it on to another writer.
+   */
+  static class FlightWriter extends Writer {
+    /** The writer we pass everything on to. */
+    private final Writer out;
 
-      // Log reasoning results.
-      logger.info("Phyloreferencing reasoning results: {}", nodesPerPhylorefAsString);
+    /** The flight to add records to. */
+    private final Flight flight;
 
-      // Record phyloreferences and matching nodes in JSON response.
-      response.put("phylorefs", nodesPerPhylorefAsString);
-      return response;
+    /** The part of the current record written so far. */
+    private final StringBuilder record = new StringBuilder();
+
+    FlightWriter(Writer out, Flight flight) {
+      this.out = out;
+      this.flight = flight;
     }
 
-    /** Respond to a request for the version (GET /version). */
-    public JSONObject serveVersion() {
-      JSONObject response = new JSONObject("{'status': 'ok'}");
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+      out.write(cbuf, off, len);
+      for (int i = off; i < off + len; i++) {
+        record.append(cbuf[i]);
+        if (cbuf[i] == '\n') {
+          flight.addRecord(record.toString());
+          record.setLength(0);
+        }
+      }
+    }
 
-      // Report OWL API version.
-      String owlapiVersion = VersionInfo.getVersionInfo().getVersion();
-      response.put("owlapiVersion", owlapiVersion);
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
 
-      // Report reasoner version.
-      String reasonerVersion =
-          ReasonerHelper.getReasonerNameAndVersion(
-              ReasonerHelper.getReasonerFactoryFromCmdLine(cmdLine));
-      response.put("reasonerVersion", reasonerVersion);
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
 
-      // Report JPhyloRef version.
-      response.put(
-          "name",
-          "JPhyloRef/" + JPhyloRef.VERSION + " OWLAPI/" + owlapiVersion + " " + reasonerVersion);
-      response.put("version", JPhyloRef.VERSION);
+  /** Something that writes the NDJSON records of a streamed response. */
+  interface RecordsWriter {
+    void write(ResultWriter results) throws IOException;
+  }
 
-      return response;
+  /**
+   * A writer for a streamed response which, once a write fails (e.g. because the client has
+   * disconnected), stops writing and remembers the failure instead of throwing it. This allows
+   * reasoning to continue for other requests waiting for the same result.
+   */
+  static class ClientWriter extends Writer {
+    /** The writer that sends the response to the client. */
+    private final Writer out;
+
+    /** The first write that failed, or null if none have. */
+    private volatile IOException failure;
+
+    ClientWriter(Writer out) {
+      this.out = out;
     }
 
-    /** Set up some common items when communicating with a browser. */
-    public Response createResponse(IStatus status, JSONObject result) {
-      Response response = newFixedLengthResponse(status, "application/json", result.toString());
+    /** @return The first write that failed, or null if none have. */
+    IOException getFailure() {
+      return failure;
+    }
 
-      // Indicate that any resource can access this resource.
-      response.addHeader("Access-Control-Allow-Origin", "*");
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+      if (failure != null) return;
+      try {
+        out.write(cbuf, off, len);
+      } catch (IOException ex) {
+        failure = ex;
+      }
+    }
 
-      return response;
+    @Override
+    public void flush() {
+      if (failure != null) return;
+      try {
+        out.flush();
+      } catch (IOException ex) {
+        failure = ex;
+      }
     }
 
-    /** Respond to a request sent to this webserver. */
     @Override
-    public Response serve(IHTTPSession session) {
-      // Look for web forms in the body of the HTTP request.
-      Map<String, String> files = new HashMap<>();
-      if (session.getMethod().equals(Method.PUT) || session.getMethod().equals(Method.POST)) {
-        try {
-          session.parseBody(files);
-        } catch (IOException ex) {
-          return newFixedLengthResponse(
-              Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Server threw IOException: " + ex);
-        } catch (ResponseException re) {
-          return newFixedLengthResponse(re.getStatus(), MIME_PLAINTEXT, re.getMessage());
-        }
+    public void close() {
+      try {
+        out.close();
+      } catch (IOException ex) {
+        if (failure == null) failure = ex;
       }
+    }
+  }
 
-      // Errors after this point respond with a JSON object.
-      JSONObject response = new JSONObject("{'status': 'ok'}");
+  /**
+   * The end of a streamed response's pipe that the connection reads from. If the stream is marked
+   * as failed, reaching its end throws an IOException, and its connection is closed, so that the
+   * client sees the chunked response end without its final chunk rather than end normally.
+   */
+  static class StreamInputStream extends PipedInputStream {
+    /** True once the stream has failed. Guarded by "this". */
+    private boolean failed = false;
 
-      // Get path and parameters.
-      String path = session.getUri();
-      Map<String, List<String>> params = session.getParameters();
+    /** The response this stream is sent in, once it has been created. Guarded by "this". */
+    private NanoHTTPD.Response response;
 
-      logger.info(">> Request received to '{}': {}", path, params);
+    StreamInputStream(int pipeSize) {
+      super(pipeSize);
+    }
 
-      if (path.equals("/reason")) {
-        // If it is an OPTIONS request, it's probably someone wanting a
-        // pre-flight CORS request. Let's give them that.
-        if (session.getMethod().equals(Method.OPTIONS)) {
-          Response preflightResponse =
-              newFixedLengthResponse(Response.Status.OK, MIME_PLAINTEXT, "Options");
+    /** Set the response this stream is sent in. */
+    synchronized void setResponse(NanoHTTPD.Response response) {
+      this.response = response;
+      if (failed) response.closeConnection(true);
+    }
 
-          // Indicate that any resource can access this resource.
-          preflightResponse.addHeader("Access-Control-Allow-Origin", "*");
-          preflightResponse.addHeader("Access-Control-Allow-Methods", "POST");
-          preflightResponse.addHeader("Access-Control-Allow-Headers", "x-hub-signature");
+    /** Mark this stream as failed. This must be called before the pipe is closed. */
+    synchronized void fail() {
+      failed = true;
+      if (response != null) response.closeConnection(true);
+    }
 
-          return preflightResponse;
+    /** Throw an exception at the end of the stream if it has failed. */
+    private int checkEnd(int result) throws IOException {
+      if (result == -1) {
+        synchronized (this) {
+          if (failed) throw new IOException("Streamed response failed before it was complete");
         }
+      }
+      return result;
+    }
 
-        // We accept three kinds of inputs:
-        //  1. A form containing 'jsonld' as a JSON-LD string to process.
-        //  2. A form containing 'jsonldGzipped' as a Base64-encoded Gzipped string
-        //     containing a JSON-LD string to process.
-        //  3. A form containing 'jsonldFile' as a JSON-LD file to read.
-        // For simplicity's sake, we convert all the possible forms into a
-        // File for processing.
-        try {
-          File jsonldFile = null;
+    @Override
+    public synchronized int read() throws IOException {
+      return checkEnd(super.read());
+    }
 
-          if (params.containsKey("jsonldFile")) {
-            // It's already a file!
-            jsonldFile = new File(files.get("jsonldFile"));
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+      return checkEnd(super.read(b, off, len));
+    }
+  }
 
-          } else {
-            // It's a string, which we need to write to a temporary file.
-            String jsonld = null;
+  /** The webserver we set up. */
+  class Webserver extends fi.iki.elonen.NanoHTTPD {
+    /**
+     * We keep a copy of the WebserverCommand that invoked us, although we don't use this for now.
+     */
+    private final WebserverCommand cmd;
+
+    /** The CommandLine used to invoke this webserver. */
+    private final CommandLine cmdLine;
 
-            if (params.containsKey("jsonld")) {
-              // Read JSON-LD as string.
-              jsonld = String.join("", params.get("jsonld"));
+    /**
+     * Runs shadow verifications one at a time, or null if we haven't been asked to verify our
+     * results against a reference reasoner.
+     */
+    private final ThreadPoolExecutor shadowExecutor;
 
-            } else if (params.containsKey("jsonldGzipped")) {
-              // Read JSON-LD as Gzipped string.
-              String jsonldgzBase64 = String.join("", params.get("jsonldGzipped"));
+    /** The reasoner factory for the reference reasoner used in shadow verifications. */
+    private final OWLReasonerFactory referenceFactory;
 
-              // Convert to a byte stream using Base64.
-              byte[] jsonldGzipped = Base64.getDecoder().decode(jsonldgzBase64);
+    /** The fraction of requests that we verify against the reference reasoner. */
+    private final double sampleRate;
 
-              // Convert unzip byte stream.
-              GZIPInputStream gzis = new GZIPInputStream(new ByteArrayInputStream(jsonldGzipped));
+    /**
+     * Handles Webhook-compatible requests, or null if we haven't been asked to accept them (with
+     * --webhook-secret).
+     */
+    private final WebhookHandler webhookHandler;
 
-              // Read unzipped byte stream as a UTF-8 string, which has to be done line by line.
-              BufferedReader reader = new BufferedReader(new InputStreamReader(gzis, "UTF-8"));
-              StringBuffer jsonldStringBuffer = new StringBuffer();
+    /** The path to accept Webhook-compatible requests at. */
+    private final String webhookPath;
 
-              String buffer;
-              while ((buffer = reader.readLine()) != null) {
-                jsonldStringBuffer.append(buffer);
-              }
+    /** Runs the connections to this webserver. */
+    private final ConnectionRunner connectionRunner = new ConnectionRunner();
 
-              // Store UTF-8 string for further processing.
-              jsonld = jsonldStringBuffer.toString();
-            } else {
-              response.put("status", "error");
-              response.put(
-                  "error",
-                  "Expected a form with a file upload in the 'jsonldFile' field or a JSON-LD string in the 'jsonld' or 'jsonldGzipped' field, but no such field was found");
-              return createResponse(Status.BAD_REQUEST, response);
-            }
+    /**
+     * Whether the response to the request being served on this thread may be compressed with gzip,
+     * as negotiated by serve(). NanoHTTPD calls useGzipWhenAccepted() on the same thread once
+     * serve() has returned.
+     */
+    private final ThreadLocal<Boolean> gzipAccepted = ThreadLocal.withInitial(() -> false);
 
-            // Store the JSON-LD into a file for further processing.
-            if (jsonld != null) {
-              jsonldFile = File.createTempFile("jphyloref", null);
-              FileWriter writer = new FileWriter(jsonldFile);
-              writer.write(String.join(";", jsonld));
-              writer.close();
-            }
-          }
+    /**
+     * The socket we accept connections on. NanoHTTPD doesn't give us access to it, so we keep a
+     * copy when it is created, which allows us to stop accepting connections without closing the
+     * connections that are still being served.
+     */
+    private volatile ServerSocket serverSocket;
 
-          // Process JSON-LD file and return response.
-          return createResponse(Status.OK, serveReason(jsonldFile));
+    /** Counted down once this webserver has been stopped. */
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    /** The number of requests currently being served. Guarded by "this". */
+    private int requestsInProgress = 0;
+
+    /**
+     * Reasons over the ontologies sent to us. NanoHTTPD starts a thread for every connection, so
+     * without this every concurrent request would build its own ontology and reasoner at the same
+     * time. Instead, a fixed number of workers reason over requests, and a bounded number of
+     * requests wait for them; any further requests are rejected with '503 Service Unavailable'.
+     */
+    private final ThreadPoolExecutor reasoningExecutor;
+
+    /** The number of requests rejected because our queue was full. */
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /** The number of requests that have been started by a reasoning worker. */
+    private final AtomicLong startedCount = new AtomicLong();
+
+    /** The total time that requests have waited for a reasoning worker, in milliseconds. */
+    private final AtomicLong totalWaitMillis = new AtomicLong();
+
+    /** The /reason documents currently being reasoned over, by cache key. */
+    private final Map<String, Flight> flights = new ConcurrentHashMap<>();
+
+    /** The number of /reason requests that waited for a document already being reasoned over. */
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    /** Keeps track of the jobs started with POST /jobs. */
+    private final JobManager jobManager;
+
+    /** Caches the results of /reason requests, so that repeated documents aren't reasoned over. */
+    private final ResultCache resultCache;
+
+    /**
+     * Stores the results of /reason requests on disk, where they can be shared with other
+     * processes, or null if no result cache directory was set.
+     */
+    private final DiskResultCache diskResultCache;
+
+    /**
+     * Describes how we reason over documents, so that results cached by a different version of
+     * JPhyloRef, reasoner or JSON-LD loader aren't reused.
+     */
+    private final String cacheVariant;
+
+    /** Set once we have warmed up the reasoner by resolving a small ontology. */
+    private volatile boolean warm = false;
 
+    /** Reads the JSON-LD documents sent to /reason and /jobs. */
+    private final RequestBodyReader bodyReader;
+
+    /**
+     * The directory we spool JSON-LD documents to. Documents delete their own files once they are
+     * no longer needed; anything left over (such as documents for jobs that were still queued) is
+     * deleted when the webserver is stopped.
+     */
+    private final File spoolDirectory;
+
+    /** Set once we have started shutting down; we don't accept new requests after this. */
+    private volatile boolean draining = false;
+
+    /**
+     * The counters and histograms reported at /metrics. Gauges (such as the depth of our queue) are
+     * read when the metrics are requested instead.
+     */
+    private final Metrics metrics = new Metrics();
+
+    /** Counts the requests we've responded to, by path and status. */
+    private final Metrics.CounterFamily requestCounter =
+        metrics.counter(
+            "jphyloref_http_requests_total",
+            "HTTP requests responded to, by path and status.",
+            "path",
+            "status");
+
+    /** Records how long it took to parse documents, reason over them and extract the results. */
+    private final Metrics.HistogramFamily phaseDurations =
+        metrics.histogram(
+            "jphyloref_reasoning_phase_seconds",
+            "Time taken to parse each document ('parse'), create a reasoner and resolve its phyloreferences ('reason') and extract the results ('extract'), in seconds.",
+            Metrics.DURATION_BUCKETS,
+            "phase");
+
+    /** Records the number of axioms in the ontologies we've reasoned over. */
+    private final Metrics.Histogram axiomCounts =
+        metrics
+            .histogram(
+                "jphyloref_ontology_axioms",
+                "The number of axioms in each ontology reasoned over.",
+                AXIOM_COUNT_BUCKETS)
+            .labels();
+
+    /** Counts the phyloreferences we've resolved. */
+    private final Metrics.Counter phylorefCounter =
+        metrics.counter("jphyloref_phylorefs_resolved_total", "Phyloreferences resolved.").labels();
+
+    /** Counts the nodes we've processed while resolving phyloreferences. */
+    private final Metrics.Counter nodeCounter =
+        metrics
+            .counter(
+                "jphyloref_nodes_processed_total",
+                "Phylogeny nodes processed while resolving phyloreferences.")
+            .labels();
+
+    /**
+     * Create and start the webserver. It starts in another thread, so execution will not stop.
+     *
+     * @param cmd The WebserverCommand that created this Webserver.
+     * @param hostname The hostname under which this webserver should listen.
+     * @param port The port this webserver should listen to.
+     */
+    public Webserver(WebserverCommand cmd, String hostname, int port, CommandLine cmdLine)
+        throws IOException {
+      super(hostname, port);
+
+      this.cmd = cmd;
+      this.cmdLine = cmdLine;
+
+      // Shadow verifications are run on a single background thread, after we have responded to
+      // the request. We only queue one verification at a time, and drop any sampled while that
+      // one is waiting, so that a slow reference reasoner can't use up our memory or CPU.
+      if (VerificationHelper.isVerificationRequested(cmdLine)) {
+        referenceFactory = VerificationHelper.getReferenceReasonerFactoryFromCmdLine(cmdLine);
+        sampleRate = VerificationHelper.getSampleRateFromCmdLine(cmdLine);
+        shadowExecutor =
+            new ThreadPoolExecutor(
+                1,
+                1,
+                0,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(1),
+                runnable -> {
+                  Thread thread = new Thread(runnable, "jphyloref-shadow-verification");
+                  thread.setDaemon(true);
+                  return thread;
+                },
+                (runnable, executor) ->
+                    logger.info(
+                        "Skipping shadow verification, as the previous one is still queued"));
+        logger.info(
+            "Verifying {}% of requests against reasoner {}",
+            sampleRate * 100, ReasonerHelper.getReasonerNameAndVersion(referenceFactory));
+      } else {
+        referenceFactory = null;
+        sampleRate = 0;
+        shadowExecutor = null;
+      }
+
+      int workers =
+          Integer.parseInt(
+              cmdLine.getOptionValue(
+                  "workers", String.valueOf(Runtime.getRuntime().availableProcessors())));
+      int queueSize =
+          Integer.parseInt(
+              cmdLine.getOptionValue("queue-size", String.valueOf(DEFAULT_QUEUE_SIZE)));
+      if (workers < 1 || queueSize < 0) {
+        throw new IllegalArgumentException(
+            "Expected at least one worker and a queue size of at least zero, but got "
+                + workers
+                + " workers and a queue size of "
+                + queueSize);
+      }
+      AtomicInteger workerCount = new AtomicInteger();
+      reasoningExecutor =
+          new ThreadPoolExecutor(
+              workers,
+              workers,
+              0,
+              TimeUnit.MILLISECONDS,
+              (queueSize == 0) ? new SynchronousQueue<>() : new ArrayBlockingQueue<>(queueSize),
+              runnable -> {
+                Thread thread =
+                    new Thread(runnable, "jphyloref-reasoner-" + workerCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+              },
+              new ThreadPoolExecutor.AbortPolicy());
+      logger.info("Reasoning with {} workers and a queue of {} requests", workers, queueSize);
+
+      resultCache =
+          new ResultCache(
+              Integer.parseInt(
+                  cmdLine.getOptionValue("cache-entries", String.valueOf(DEFAULT_CACHE_ENTRIES))),
+              Long.parseLong(
+                      cmdLine.getOptionValue(
+                          "cache-megabytes", String.valueOf(DEFAULT_CACHE_MEGABYTES)))
+                  * 1024
+                  * 1024);
+      diskResultCache = DiskResultCache.getFromCmdLine(cmdLine);
+      cacheVariant =
+          "JPhyloRef/"
+              + JPhyloRef.VERSION
+              + " "
+              + ReasonerHelper.getReasonerNameAndVersion(
+                  ReasonerHelper.getReasonerFactoryFromCmdLine(cmdLine))
+              + " "
+              + JSONLDHelper.getLoaderFromCmdLine(cmdLine);
+
+      long maxBodyBytes =
+          Long.parseLong(
+                  cmdLine.getOptionValue(
+                      "max-body-megabytes", String.valueOf(DEFAULT_MAX_BODY_MEGABYTES)))
+              * 1024
+              * 1024;
+      long spoolThresholdBytes =
+          Long.parseLong(
+                  cmdLine.getOptionValue(
+                      "spool-kilobytes", String.valueOf(DEFAULT_SPOOL_KILOBYTES)))
+              * 1024;
+      spoolDirectory = Files.createTempDirectory("jphyloref-webserver").toFile();
+      logger.info(
+          "Accepting documents of up to {} bytes, spooling those over {} bytes to {}",
+          maxBodyBytes,
+          spoolThresholdBytes,
+          spoolDirectory);
+      bodyReader = new RequestBodyReader(spoolThresholdBytes, maxBodyBytes, spoolDirectory);
+
+      jobManager =
+          new JobManager(
+              this,
+              TimeUnit.SECONDS.toMillis(
+                  Long.parseLong(
+                      cmdLine.getOptionValue("job-ttl", String.valueOf(DEFAULT_JOB_TTL)))));
+
+      String webhookSecret = cmdLine.getOptionValue("webhook-secret");
+      webhookPath = cmdLine.getOptionValue("webhook-path", DEFAULT_WEBHOOK_PATH);
+      if (webhookSecret != null) {
+        if (webhookSecret.isEmpty()) {
+          throw new IllegalArgumentException(
+              "The secret set with --webhook-secret must not be empty");
+        }
+        if (METRIC_PATHS.contains(webhookPath) || webhookPath.startsWith("/jobs/")) {
+          throw new IllegalArgumentException(
+              "Webhook path '"
+                  + webhookPath
+                  + "' is already used by the webserver; use another path, such as '"
+                  + DEFAULT_WEBHOOK_PATH
+                  + "'");
+        }
+        webhookHandler = new WebhookHandler(this, webhookSecret, cmdLine, maxBodyBytes);
+        logger.info("Accepting Webhook-compatible requests at {}", webhookPath);
+      } else {
+        webhookHandler = null;
+      }
+
+      setAsyncRunner(connectionRunner);
+      logger.info(
+          "Handling connections on {} threads",
+          ThreadHelper.areVirtualThreadsAvailable() ? "virtual" : "platform");
+      setServerSocketFactory(
+          () -> {
+            serverSocket = new ServerSocket();
+            return serverSocket;
+          });
+      start(NanoHTTPD.SOCKET_READ_TIMEOUT, false);
+      logger.info(
+          "Webserver started with reasoner {}. Try accessing it at http://{}:{}/",
+          ReasonerHelper.getReasonerNameAndVersion(
+              ReasonerHelper.getReasonerFactoryFromCmdLine(cmdLine)),
+          hostname,
+          getListeningPort());
+
+      // Warm up the reasoner in the background; /ready reports whether this has completed.
+      Thread warmupThread = new Thread(this::warmUp, "jphyloref-webserver-warmup");
+      warmupThread.setDaemon(true);
+      warmupThread.start();
+    }
+
+    /**
+     * Resolve a small ontology containing a single phyloreference, so that the classes used by
+     * OWLAPI and the reasoner are loaded and compiled before our first request arrives.
+     */
+    private void warmUp() {
+      long start = System.currentTimeMillis();
+      try {
+        OWLOntologyManager manager = OWLManager.createOWLOntologyManager();
+        OWLDataFactory df = manager.getOWLDataFactory();
+        OWLClass phyloref = df.getOWLClass(IRI.create("http://example.org/jphyloref#phyloref"));
+        OWLNamedIndividual node =
+            df.getOWLNamedIndividual(IRI.create("http://example.org/jphyloref#node"));
+
+        Set<OWLAxiom> axioms = new HashSet<>();
+        axioms.add(
+            df.getOWLSubClassOfAxiom(phyloref, df.getOWLClass(PhylorefHelper.IRI_PHYLOREFERENCE)));
+        axioms.add(
+            df.getOWLClassAssertionAxiom(df.getOWLClass(PhylorefHelper.IRI_CDAO_NODE), node));
+        axioms.add(df.getOWLClassAssertionAxiom(phyloref, node));
+        OWLOntology ontology = manager.createOntology(axioms);
+
+        OWLReasonerFactory factory = ReasonerHelper.getReasonerFactoryFromCmdLine(cmdLine);
+        OWLReasoner reasoner = (factory == null) ? null : factory.createReasoner(ontology);
+        VerificationHelper.resolve(ontology, reasoner);
+        if (reasoner != null) reasoner.dispose();
+
+        logger.info("Webserver warmed up in {} ms", System.currentTimeMillis() - start);
+      } catch (OWLOntologyCreationException | RuntimeException ex) {
+        // Requests may still succeed even if warming up didn't, so we report ourselves as ready.
+        logger.warn("Could not warm up webserver: {}", ex.toString());
+      }
+      warm = true;
+    }
+
+    /** Stop this webserver immediately, closing any connections that are still open. */
+    @Override
+    public void stop() {
+      super.stop();
+      reasoningExecutor.shutdownNow();
+      deleteSpoolDirectory();
+      stopped.countDown();
+    }
+
+    /** Delete the directory we spool documents to, along with any documents still in it. */
+    private void deleteSpoolDirectory() {
+      File[] spooledFiles = spoolDirectory.listFiles();
+      if (spooledFiles != null) {
+        for (File file : spooledFiles) {
+          if (!file.delete()) logger.warn("Could not delete spooled document {}", file);
+        }
+      }
+      if (spoolDirectory.exists() && !spoolDirectory.delete()) {
+        logger.warn("Could not delete spool directory {}", spoolDirectory);
+      }
+    }
+
+    /**
+     * Stop accepting new connections, wait for the requests in progress to complete, and then stop
+     * this webserver.
+     *
+     * @param timeoutMillis The longest time to wait for requests in progress, in milliseconds.
+     */
+    public void shutdown(long timeoutMillis) {
+      draining = true;
+      logger.info("Shutting down webserver; waiting up to {} ms for requests", timeoutMillis);
+
+      try {
+        if (serverSocket != null) serverSocket.close();
+      } catch (IOException ex) {
+        logger.warn("Could not close server socket: {}", ex.toString());
+      }
+
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      synchronized (this) {
+        try {
+          long remaining;
+          while (requestsInProgress > 0
+              && (remaining = deadline - System.currentTimeMillis()) > 0) {
+            wait(remaining);
+          }
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+        if (requestsInProgress > 0) {
+          logger.warn("Stopping webserver with {} requests in progress", requestsInProgress);
+        }
+      }
+
+      stop();
+      logger.info("Webserver stopped");
+    }
+
+    /**
+     * Block until this webserver has been stopped.
+     *
+     * @throws InterruptedException If we were interrupted while waiting.
+     */
+    public void awaitStop() throws InterruptedException {
+      stopped.await();
+    }
+
+    /** @return True if we are warm and have capacity for another request. */
+    public boolean isReady() {
+      return warm && !draining && hasCapacity();
+    }
+
+    /** @return True if a reasoning worker is free, or there is space in the queue for them. */
+    private boolean hasCapacity() {
+      return reasoningExecutor.getActiveCount() < reasoningExecutor.getMaximumPoolSize()
+          || reasoningExecutor.getQueue().remainingCapacity() > 0;
+    }
+
+    /**
+     * Run a task on one of our reasoning workers, and wait for it to complete.
+     *
+     * @param task The task to run.
+     * @return The result of the task.
+     * @throws RejectedExecutionException If all our workers are busy and our queue is full; the
+     *     request should be rejected with '503 Service Unavailable'.
+     */
+    <T> T runReasoningTask(ReasoningTask<T> task) throws OWLOntologyCreationException, IOException {
+      Future<T> future = submitReasoningTask(task);
+
+      try {
+        return future.get();
+      } catch (InterruptedException ex) {
+        future.cancel(true);
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for a reasoning worker", ex);
+      } catch (ExecutionException ex) {
+        throw rethrowCause(ex);
+      }
+    }
+
+    /** Rethrow the exception thrown by a reasoning task, which has been wrapped by its Future. */
+    private RuntimeException rethrowCause(ExecutionException ex)
+        throws OWLOntologyCreationException, IOException {
+      Throwable cause = ex.getCause();
+      if (cause instanceof OWLOntologyCreationException) throw (OWLOntologyCreationException) cause;
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new RuntimeException(cause);
+    }
+
+    /**
+     * Reason over a JSON-LD document for /reason, and cache the result. If the same document is
+     * already being reasoned over for another request, we wait for that result rather than
+     * reasoning over it again, so that many clients sending the same document at once only cost a
+     * single reasoning pass. The reasoning itself isn't tied to any one request: a request that
+     * stops waiting (e.g. because its thread was interrupted) doesn't cancel it for the others.
+     *
+     * @param cacheKey The key of the document, as calculated by ResultCache.getKey().
+     * @param document The JSON-LD document to reason over. If we reason over it, the reasoning task
+     *     holds its own reference to it, so the caller may close it as soon as we return.
+     * @return The result of reasoning over the document, as a JSON string.
+     * @throws RejectedExecutionException If the document isn't already being reasoned over, and all
+     *     our workers are busy and our queue is full.
+     */
+    private String reasonOnce(String cacheKey, SpooledDocument document)
+        throws OWLOntologyCreationException, IOException {
+      Flight flight = new Flight();
+      Flight existingFlight = flights.putIfAbsent(cacheKey, flight);
+
+      if (existingFlight != null) {
+        flight = attachToFlight(cacheKey, existingFlight);
+      } else {
+        Flight newFlight = flight;
+        SpooledDocument taskDocument = document.retain();
+        try {
+          submitReasoningTask(
+              () -> {
+                try (SpooledDocument doc = taskDocument;
+                    InputStream input = doc.openStream()) {
+                  JSONObject response = serveReason(input);
+                  Object serializationEvent = FlightRecorderHelper.beginSerialization();
+                  String result = response.toString();
+                  FlightRecorderHelper.endSerialization(
+                      serializationEvent, "json", result.length());
+                  completeFlight(cacheKey, newFlight, result);
+                } catch (Throwable ex) {
+                  newFlight.completeExceptionally(ex);
+                } finally {
+                  flights.remove(cacheKey, newFlight);
+                }
+                return null;
+              });
+        } catch (RejectedExecutionException ex) {
+          taskDocument.close();
+          flights.remove(cacheKey, newFlight);
+          newFlight.completeExceptionally(ex);
+          throw ex;
+        }
+      }
+
+      try {
+        return flight.get();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for document " + cacheKey, ex);
+      } catch (ExecutionException ex) {
+        throw rethrowCause(ex);
+      }
+    }
+
+    /** Wait for the result of a document that another request is already reasoning over. */
+    private Flight attachToFlight(String cacheKey, Flight flight) {
+      flight.waiters.incrementAndGet();
+      coalescedCount.incrementAndGet();
+      logger.info("Waiting for document {}, which is already being reasoned over", cacheKey);
+      return flight;
+    }
+
+    /**
+     * Cache the result of reasoning over a document, and pass it to the requests waiting for it.
+     */
+    private void completeFlight(String cacheKey, Flight flight, String result) {
+      resultCache.put(cacheKey, result);
+      if (diskResultCache != null) diskResultCache.put(cacheKey, result);
+      flight.complete(result);
+    }
+
+    /**
+     * Submit a task to be run on one of our reasoning workers, without waiting for it to complete.
+     *
+     * @param task The task to run.
+     * @return A Future that will contain the result of the task.
+     * @throws RejectedExecutionException If all our workers are busy and our queue is full.
+     */
+    <T> Future<T> submitReasoningTask(ReasoningTask<T> task) {
+      long submitted = System.currentTimeMillis();
+      Future<T> future;
+      try {
+        future =
+            reasoningExecutor.submit(
+                () -> {
+                  long waitMillis = System.currentTimeMillis() - submitted;
+                  startedCount.incrementAndGet();
+                  totalWaitMillis.addAndGet(waitMillis);
+                  logger.info("Request waited {} ms for a reasoning worker", waitMillis);
+                  return task.call();
+                });
+      } catch (RejectedExecutionException ex) {
+        rejectedCount.incrementAndGet();
+        logger.warn(
+            "Rejecting request: all {} reasoning workers are busy and {} requests are queued",
+            reasoningExecutor.getActiveCount(),
+            reasoningExecutor.getQueue().size());
+        throw ex;
+      }
+      return future;
+    }
+
+    /** Add a Retry-After header to a response rejecting a request because we're too busy. */
+    Response withRetryAfter(Response response) {
+      response.addHeader("Retry-After", String.valueOf(RETRY_AFTER_SECONDS));
+      return response;
+    }
+
+    /** Respond to a request for the health of this webserver (GET /health). */
+    public JSONObject serveHealth() {
+      JSONObject response = new JSONObject("{'status': 'ok'}");
+      response.put("draining", draining);
+      return response;
+    }
+
+    /**
+     * Respond to a request for whether this webserver is ready for requests (GET /ready). This also
+     * reports on our reasoning workers and the requests waiting for them.
+     */
+    public JSONObject serveReady() {
+      JSONObject response = new JSONObject();
+      response.put("status", isReady() ? "ok" : "unavailable");
+      response.put("warm", warm);
+      response.put("draining", draining);
+      response.put("connections", connectionRunner.getConnectionCount());
+      response.put("virtualThreads", ThreadHelper.areVirtualThreadsAvailable());
+      synchronized (this) {
+        response.put("requestsInProgress", requestsInProgress);
+      }
+      response.put("workers", reasoningExecutor.getMaximumPoolSize());
+      response.put("activeWorkers", reasoningExecutor.getActiveCount());
+      response.put("queueDepth", reasoningExecutor.getQueue().size());
+      response.put(
+          "queueCapacity",
+          reasoningExecutor.getQueue().size() + reasoningExecutor.getQueue().remainingCapacity());
+      response.put("rejected", rejectedCount.get());
+      response.put("coalesced", coalescedCount.get());
+      long started = startedCount.get();
+      response.put("averageWaitMillis", (started == 0) ? 0 : totalWaitMillis.get() / started);
+      response.put("cache", resultCache.getStatistics());
+      if (diskResultCache != null) response.put("resultCache", diskResultCache.getStatistics());
+      return response;
+    }
+
+    /**
+     * Respond to a request for our metrics (GET /metrics), in the Prometheus text exposition
+     * format. This includes our counters and histograms, the state of our reasoning workers and
+     * caches, and the memory and garbage collector statistics of the JVM.
+     */
+    public String serveMetrics() {
+      StringBuilder out = new StringBuilder();
+      metrics.write(out);
+
+      Metrics.writeGauge(
+          out, "jphyloref_ready", "1 if this webserver is ready for requests.", isReady() ? 1 : 0);
+      Metrics.writeGauge(
+          out,
+          "jphyloref_connections",
+          "Open HTTP connections.",
+          connectionRunner.getConnectionCount());
+      synchronized (this) {
+        Metrics.writeGauge(
+            out,
+            "jphyloref_requests_in_progress",
+            "Requests being responded to.",
+            requestsInProgress);
+      }
+      Metrics.writeGauge(
+          out, "jphyloref_workers", "Reasoning workers.", reasoningExecutor.getMaximumPoolSize());
+      Metrics.writeGauge(
+          out,
+          "jphyloref_workers_active",
+          "Reasoning workers that are reasoning over a document.",
+          reasoningExecutor.getActiveCount());
+      Metrics.writeGauge(
+          out,
+          "jphyloref_queue_depth",
+          "Requests waiting for a reasoning worker.",
+          reasoningExecutor.getQueue().size());
+      Metrics.writeGauge(
+          out,
+          "jphyloref_queue_capacity",
+          "The number of requests that can wait for a reasoning worker.",
+          reasoningExecutor.getQueue().size() + reasoningExecutor.getQueue().remainingCapacity());
+      Metrics.writeGauge(
+          out, "jphyloref_jobs", "Jobs that have not expired.", jobManager.getJobCount());
+      Metrics.writeCounter(
+          out,
+          "jphyloref_requests_rejected_total",
+          "Requests rejected because every reasoning worker was busy and the queue was full.",
+          rejectedCount.get());
+      Metrics.writeCounter(
+          out,
+          "jphyloref_requests_coalesced_total",
+          "Requests that waited for an identical document that was already being reasoned over.",
+          coalescedCount.get());
+
+      // Report each cache's statistics with a 'cache' label.
+      Map<String, JSONObject> caches = new LinkedHashMap<>();
+      caches.put("memory", resultCache.getStatistics());
+      if (diskResultCache != null) caches.put("disk", diskResultCache.getStatistics());
+      writeCacheMetric(out, caches, "hits", "jphyloref_cache_hits_total", "counter", "Cache hits.");
+      writeCacheMetric(
+          out, caches, "misses", "jphyloref_cache_misses_total", "counter", "Cache misses.");
+      writeCacheMetric(
+          out,
+          caches,
+          "evictions",
+          "jphyloref_cache_evictions_total",
+          "counter",
+          "Results evicted from the cache.");
+      writeCacheMetric(
+          out, caches, "entries", "jphyloref_cache_entries", "gauge", "Results in the cache.");
+      writeCacheMetric(
+          out,
+          caches,
+          "bytes",
+          "jphyloref_cache_bytes",
+          "gauge",
+          "Size of the results in the cache, in bytes.");
+      Metrics.writeHeader(
+          out,
+          "jphyloref_cache_hit_ratio",
+          "The fraction of cache lookups that were hits, or 0 if there have been none.",
+          "gauge");
+      for (Map.Entry<String, JSONObject> cache : caches.entrySet()) {
+        long hits = cache.getValue().getLong("hits");
+        long lookups = hits + cache.getValue().getLong("misses");
+        Metrics.writeSample(
+            out,
+            "jphyloref_cache_hit_ratio",
+            Collections.singletonList("cache"),
+            Collections.singletonList(cache.getKey()),
+            (lookups == 0) ? 0 : (double) hits / lookups);
+      }
+
+      Metrics.writeJVMMetrics(out);
+      return out.toString();
+    }
+
+    /** Write out a statistic reported by each of our caches, labelled with the cache's name. */
+    private void writeCacheMetric(
+        StringBuilder out,
+        Map<String, JSONObject> caches,
+        String statistic,
+        String name,
+        String type,
+        String help) {
+      Metrics.writeHeader(out, name, help, type);
+      for (Map.Entry<String, JSONObject> cache : caches.entrySet()) {
+        Metrics.writeSample(
+            out,
+            name,
+            Collections.singletonList("cache"),
+            Collections.singletonList(cache.getKey()),
+            cache.getValue().optLong(statistic, 0));
+      }
+    }
+
+    /** Respond to a request for reasoning over a JSON-LD file (/reason). */
+    public JSONObject serveReason(File jsonldFile)
+        throws OWLOntologyCreationException, RDFParseException, IOException {
+      try (InputStream input = new FileInputStream(jsonldFile)) {
+        return serveReason(input);
+      }
+    }
+
+    /** Respond to a request for reasoning over a JSON-LD document read from an input stream. */
+    public JSONObject serveReason(InputStream jsonld)
+        throws OWLOntologyCreationException, RDFParseException, IOException {
+      return serveReason(jsonld, (phylorefCount, nodesProcessed, nodeCount) -> {});
+    }
+
+    /**
+     * Reason over a JSON-LD document as serveReason(), while reporting our progress to a listener.
+     * The document is read straight into the JSON-LD parser, without being copied into a string.
+     */
+    public JSONObject serveReason(InputStream jsonld, PhylorefHelper.ProgressListener listener)
+        throws OWLOntologyCreationException, RDFParseException, IOException {
+      return reason(jsonld, listener, null, true);
+    }
+
+    /**
+     * Reason over a JSON-LD document as serveReason(), but resolve the phyloreferences one at a
+     * time (see PhylorefHelper.resolvePhyloreferences()) and pass each of them to a consumer as
+     * soon as it has been resolved, so that the caller can tell how many have been resolved so far.
+     * The results are still included in the response.
+     */
+    public JSONObject serveReasonPerPhyloref(
+        InputStream jsonld, PhylorefHelper.PhylorefConsumer consumer)
+        throws OWLOntologyCreationException, RDFParseException, IOException {
+      return reason(jsonld, null, consumer, true);
+    }
+
+    /**
+     * Reason over a JSON-LD document as serveReason(). If a consumer is provided, the
+     * phyloreferences are resolved one at a time, and the nodes of each are passed to the consumer
+     * as soon as it has been resolved (see PhylorefHelper.resolvePhyloreferences()).
+     *
+     * @param jsonld The JSON-LD document to reason over.
+     * @param listener A listener to report our progress to, if no consumer is provided.
+     * @param consumer A consumer to pass the nodes of each phyloreference to, or null.
+     * @param includeResults Whether to include the results in the response. Streamed responses
+     *     leave them out, as they have already been written out by the consumer.
+     * @return The response, including the results if includeResults is set.
+     */
+    private JSONObject reason(
+        InputStream jsonld,
+        PhylorefHelper.ProgressListener listener,
+        PhylorefHelper.PhylorefConsumer consumer,
+        boolean includeResults)
+        throws OWLOntologyCreationException, RDFParseException, IOException {
+      JSONObject response = new JSONObject("{'status': 'ok'}");
+
+      // Setup ready; parse the document! If the default URI prefix appears in either node URIs
+      // or phyloref URIs, we will strip it later.
+      PhaseTimer timer = new PhaseTimer();
+      OWLOntology ontology;
+      try (PhaseTimer.Phase phase = timer.start("parse")) {
+        ontology = OntologyLoaderHelper.loadOntology(jsonld, "request", true, cmdLine);
+      }
+      response.put("ontology", ontology.toString());
+
+      // Set up and start the reasoner.
+      OWLReasonerFactory factory = ReasonerHelper.getReasonerFactoryFromCmdLine(cmdLine);
+      OWLReasoner reasoner;
+      try (PhaseTimer.Phase phase = timer.startMultiThreaded("createReasoner")) {
+        reasoner = ReasonerHelper.createReasoner(factory, ontology);
+      }
+
+      // Go through all the phyloreferences, identifying all the nodes that have
+      // matched to that phyloreference.
+      VerificationHelper.Resolution resolution;
+      long[] nodesProcessed = {0};
+      try {
+        try (PhaseTimer.Phase phase = timer.startMultiThreaded("classify")) {
+          ReasonerHelper.classify(reasoner);
+        }
+        try (PhaseTimer.Phase phase = timer.startMultiThreaded("resolve")) {
+          if (consumer != null) {
+            long start = System.currentTimeMillis();
+            resolution =
+                new VerificationHelper.Resolution(
+                    reasoner == null ? "No reasoner used" : reasoner.getReasonerName(),
+                    PhylorefHelper.resolvePhyloreferences(ontology, reasoner, consumer),
+                    System.currentTimeMillis() - start);
+          } else {
+            resolution =
+                VerificationHelper.resolve(
+                    ontology,
+                    reasoner,
+                    (phylorefCount, processed, nodeCount) -> {
+                      nodesProcessed[0] = processed;
+                      listener.progress(phylorefCount, processed, nodeCount);
+                    });
+          }
+        }
+      } finally {
+        if (reasoner != null) reasoner.dispose();
+      }
+      Map<OWLClass, Set<OWLNamedIndividual>> nodesPerPhyloref = resolution.getNodesPerPhyloref();
+
+      // We keep the results as strings, so that they can be returned or cached. Streamed results
+      // have already been written out by the consumer.
+      Map<String, Set<String>> nodesPerPhylorefAsString = new HashMap<>();
+      try (PhaseTimer.Phase phase = timer.start("extract")) {
+        if (includeResults) {
+          for (OWLClass phyloref : nodesPerPhyloref.keySet()) {
+            // Strip the default prefix on the phyloref and node URIs if present.
+            Set<String> nodes = new HashSet<>();
+            for (OWLNamedIndividual node : nodesPerPhyloref.get(phyloref)) {
+              nodes.add(
+                  PhylorefHelper.removeDefaultURIPrefix(
+                      node.getIRI(), OntologyLoaderHelper.DEFAULT_URI_PREFIX));
+            }
+            nodesPerPhylorefAsString.put(
+                PhylorefHelper.removeDefaultURIPrefix(
+                    phyloref.getIRI(), OntologyLoaderHelper.DEFAULT_URI_PREFIX),
+                nodes);
+          }
+        }
+      }
+      timer.log(logger, "axioms=" + ontology.getAxiomCount());
+      if (cmdLine.hasOption("timings")) response.put("timings", timer.toJSON());
+      recordReasoningMetrics(
+          timer, ontology.getAxiomCount(), nodesPerPhyloref.size(), nodesProcessed[0]);
+
+      // Check some of our results against the reference reasoner, if one was set.
+      if (shadowExecutor != null && ThreadLocalRandom.current().nextDouble() < sampleRate) {
+        submitShadowVerification(ontology, resolution);
+      }
+
+      if (!includeResults) {
+        logger.info("Streamed the results of {} phyloreferences", nodesPerPhyloref.size());
+        return response;
+      }
+
+      // Log reasoning results.
+      logger.info("Phyloreferencing reasoning results: {}", nodesPerPhylorefAsString);
+
+      // Record phyloreferences and matching nodes in JSON response.
+      response.put("phylorefs", nodesPerPhylorefAsString);
+      return response;
+    }
+
+    /**
+     * Record the metrics of a document we've reasoned over. The 'reason' phase includes creating
+     * the reasoner, classifying the ontology and resolving its phyloreferences.
+     *
+     * @param timer The timings of each phase of reasoning over the document.
+     * @param axiomCount The number of axioms in the document.
+     * @param phylorefCount The number of phyloreferences resolved.
+     * @param nodesProcessed The number of nodes processed while resolving them.
+     */
+    private void recordReasoningMetrics(
+        PhaseTimer timer, int axiomCount, int phylorefCount, long nodesProcessed) {
+      long reasonNanos = 0;
+      for (PhaseTimer.Phase phase : timer.getPhases()) {
+        if (phase.getName().equals("parse") || phase.getName().equals("extract")) {
+          phaseDurations.labels(phase.getName()).observe(phase.getWallNanos() / 1e9);
+        } else {
+          reasonNanos += phase.getWallNanos();
+        }
+      }
+      phaseDurations.labels("reason").observe(reasonNanos / 1e9);
+      axiomCounts.observe(axiomCount);
+      phylorefCounter.add(phylorefCount);
+      nodeCounter.add(nodesProcessed);
+    }
+
+    /**
+     * Resolve the phyloreferences in an ontology with the reference reasoner in the background, and
+     * log any differences from the resolution we've already returned.
+     *
+     * @param ontology The ontology whose phyloreferences were resolved.
+     * @param resolution The resolution we returned for this ontology.
+     */
+    private void submitShadowVerification(
+        OWLOntology ontology, VerificationHelper.Resolution resolution) {
+      shadowExecutor.execute(
+          () -> {
+            try {
+              OWLReasoner referenceReasoner =
+                  referenceFactory == null ? null : referenceFactory.createReasoner(ontology);
+              VerificationHelper.Resolution referenceResolution =
+                  VerificationHelper.resolve(ontology, referenceReasoner);
+              if (referenceReasoner != null) referenceReasoner.dispose();
+
+              VerificationHelper.Verification verification =
+                  new VerificationHelper.Verification(resolution, referenceResolution);
+              logger.info("Shadow verification of {}: {}", ontology, verification.getSummary());
+              for (Map.Entry<OWLClass, VerificationHelper.Disagreement> entry :
+                  verification.getDisagreements().entrySet()) {
+                logger.warn("Reasoners disagree on {}: {}", entry.getKey(), entry.getValue());
+              }
+            } catch (RuntimeException ex) {
+              // A failing shadow verification should never affect the webserver itself.
+              logger.error("Shadow verification of {} failed: {}", ontology, ex.toString());
+            }
+          });
+    }
+
+    /** @return The properties of a JSON object, to be written by ResultWriter.finish(). */
+    private Map<String, Object> toProperties(JSONObject json) {
+      Map<String, Object> properties = new LinkedHashMap<>();
+      for (String key : json.keySet()) properties.put(key, json.get(key));
+      return properties;
+    }
+
+    /**
+     * Get the format that a /reason request asks for in its 'format' parameter: 'json' (the
+     * default) or 'compact' (see ResultWriter).
+     *
+     * @param params The parameters of the request.
+     * @return The format of the result.
+     * @throws IllegalArgumentException If the format is not supported.
+     */
+    private String getResultFormat(Map<String, List<String>> params) {
+      List<String> formats = params.get("format");
+      if (formats == null || formats.isEmpty()) return "json";
+
+      String format = formats.get(0);
+      if (!REASON_FORMATS.contains(format)) {
+        throw new IllegalArgumentException(
+            "Unknown format '" + format + "'; supported formats are: " + REASON_FORMATS);
+      }
+      return format;
+    }
+
+    /**
+     * Create the response to a /reason request in the format it asked for. Results are reasoned
+     * over and cached as JSON, and only converted into the 'compact' format when they are sent.
+     *
+     * @param result The result, as a JSON string.
+     * @param format The format to send the result in, as returned by getResultFormat().
+     * @return The response.
+     * @throws IOException If the result could not be converted.
+     */
+    private Response createResultResponse(String result, String format) throws IOException {
+      if (format.equals("json")) return createResponse(Status.OK, result);
+
+      StringWriter buffer = new StringWriter();
+      writeResult(result, new ResultWriter(buffer, format, null));
+      return createResponse(Status.OK, buffer.toString());
+    }
+
+    /** @return True if a request's Accept header asks for a streamed (NDJSON) response. */
+    private boolean acceptsNDJSON(IHTTPSession session) {
+      String accept = session.getHeaders().get("accept");
+      return accept != null && accept.toLowerCase().contains(NDJSON_MIME_TYPE);
+    }
+
+    /**
+     * Respond to a /reason request that accepts NDJSON by streaming the result with chunked
+     * transfer encoding, rather than sending it once it is complete. A header record is sent
+     * straight away, followed by a record for each phyloreference as soon as it has been resolved,
+     * and finally a summary (see ResultWriter). As the status of the response has already been
+     * sent, errors are reported as an '{"error":...}' record; if the response can't be written, the
+     * connection is closed before the response is complete.
+     *
+     * <p>Streamed results are reasoned over by one of our reasoning workers, which writes them
+     * through a pipe to the connection's thread. Like other /reason requests, a streamed request
+     * for a document that is already being reasoned over waits for that result rather than
+     * reasoning over it again. The records are also kept in the document's Flight, so that streamed
+     * requests waiting for it can send them on as they are written, and the cached result is built
+     * from them once they are complete. If the client disconnects, we stop writing to it, and only
+     * stop reasoning if no other request is waiting for the result.
+     *
+     * @param cacheKey The key of the document, as calculated by ResultCache.getKey().
+     * @param document The JSON-LD document to reason over. The reasoning task holds its own
+     *     reference to it, so the caller may close it as soon as we return.
+     * @throws RejectedExecutionException If the document isn't already being reasoned over, and all
+     *     our workers are busy and our queue is full.
+     */
+    private Response streamReason(String cacheKey, SpooledDocument document) throws IOException {
+      Flight flight = new Flight();
+      Flight existingFlight = flights.putIfAbsent(cacheKey, flight);
+      if (existingFlight != null) {
+        return streamFlight(cacheKey, attachToFlight(cacheKey, existingFlight));
+      }
+
+      StreamInputStream input = new StreamInputStream(STREAM_BUFFER_SIZE);
+      ClientWriter writer =
+          new ClientWriter(
+              new BufferedWriter(
+                  new OutputStreamWriter(new PipedOutputStream(input), StandardCharsets.UTF_8)));
+      new ResultWriter(writer, "ndjson", null).writeRecord("header", createStreamHeader(false));
+      writer.flush();
+
+      // The records of the result are added to the flight as well as written to the client.
+      ResultWriter results =
+          new ResultWriter(
+              new FlightWriter(writer, flight), "ndjson", OntologyLoaderHelper.DEFAULT_URI_PREFIX);
+
+      // The request remains in progress until we have finished streaming the result.
+      synchronized (this) {
+        requestsInProgress++;
+      }
+      SpooledDocument taskDocument = document.retain();
+      try {
+        submitReasoningTask(
+            () -> {
+              try (SpooledDocument doc = taskDocument;
+                  InputStream jsonld = doc.openStream()) {
+                JSONObject response =
+                    reason(
+                        jsonld,
+                        null,
+                        (phyloref, nodes, phylorefsResolved, phylorefCount) -> {
+                          results.writePhyloref(phyloref, nodes);
+                          writer.flush();
+
+                          // If the client has disconnected and no other request is waiting for
+                          // the result, there's no point in resolving the rest.
+                          if (writer.getFailure() != null && flight.waiters.get() == 0) {
+                            throw writer.getFailure();
+                          }
+                        },
+                        false);
+                results.finish(toProperties(response));
+                writer.flush();
+                completeFlight(cacheKey, flight, toCachedResult(flight.getRecords()));
+              } catch (OWLOntologyCreationException | IOException | RuntimeException ex) {
+                logger.warn("Could not stream result: {}", ex.toString());
+                flight.completeExceptionally(ex);
+                new ResultWriter(writer, "ndjson", null)
+                    .writeRecord("error", "Exception thrown: " + ex.getMessage());
+              } finally {
+                flights.remove(cacheKey, flight);
+
+                // If we couldn't write part of the response, the client mustn't see it end
+                // normally. This includes the client disconnecting, in which case we can't
+                // report it.
+                if (writer.getFailure() != null) {
+                  logger.warn("Could not finish streaming result: {}", writer.getFailure());
+                  input.fail();
+                }
+                writer.close();
+                finishRequest();
+              }
+              return null;
+            });
+      } catch (RejectedExecutionException ex) {
+        taskDocument.close();
+        flights.remove(cacheKey, flight);
+        flight.completeExceptionally(ex);
+        writer.close();
+        finishRequest();
+        throw ex;
+      }
+
+      Response response = createStreamResponse(input);
+      input.setResponse(response);
+      return response;
+    }
+
+    /**
+     * Build the result that is cached for a streamed document from its NDJSON records: the nodes of
+     * each phyloreference, and the rest of the response from the summary.
+     *
+     * @param records The records of the streamed result, as written by ResultWriter.
+     * @return The result, as a JSON string in the same form as the response to /reason.
+     */
+    private String toCachedResult(List<String> records) {
+      JSONObject result = new JSONObject();
+      JSONObject phylorefs = new JSONObject();
+      for (String record : records) {
+        JSONObject json = new JSONObject(record);
+        if (json.has("phyloref")) {
+          phylorefs.put(json.getString("phyloref"), json.getJSONArray("nodes"));
+        } else if (json.has("summary")) {
+          JSONObject summary = json.getJSONObject("summary");
+
+          // The summary counts the phyloreferences and nodes, which aren't part of the response.
+          summary.remove("phylorefs");
+          summary.remove("nodes");
+          for (String key : summary.keySet()) result.put(key, summary.get(key));
+        }
+      }
+      result.put("phylorefs", phylorefs);
+      return result.toString();
+    }
+
+    /**
+     * Stream the result of a document that another request is already reasoning over. The header
+     * record is sent straight away. If that result is being streamed, each of its records is sent
+     * on as soon as it has been written; otherwise the rest of the result is written out once it is
+     * complete. The records are read by the connection's thread.
+     */
+    private Response streamFlight(String cacheKey, Flight flight) throws IOException {
+      InputStream header =
+          toStream(
+              writeRecords(
+                  results -> {
+                    results.writeRecord("header", createStreamHeader(false));
+                  }));
+      InputStream rest =
+          new InputStream() {
+            /** The part of the result we are currently reading. */
+            private InputStream chunk = toStream("");
+
+            /** The index of the next record of the flight to read. */
+            private int nextRecord = 0;
+
+            /** True once every record has been read. */
+            private boolean finished = false;
+
+            /**
+             * Move on to the next part of the result, waiting for it if necessary.
+             *
+             * @return False if there is nothing left to read.
+             */
+            private boolean nextChunk() throws IOException {
+              if (finished) return false;
+
+              String record;
+              try {
+                record = flight.awaitRecord(nextRecord);
+              } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for document " + cacheKey, ex);
+              }
+              if (record != null) {
+                nextRecord++;
+                chunk = toStream(record);
+                return true;
+              }
+
+              // The flight has completed, so every record it streamed has been read.
+              finished = true;
+              String result;
+              try {
+                result = flight.get();
+              } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for document " + cacheKey, ex);
+              } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                chunk =
+                    toStream(
+                        writeRecords(
+                            results ->
+                                results.writeRecord(
+                                    "error", "Exception thrown: " + cause.getMessage())));
+                return true;
+              }
+              if (nextRecord > 0) return false;
+
+              // The result wasn't streamed, so we write it out now that it is complete.
+              chunk = toStream(writeRecords(results -> writeResult(result, results)));
+              return true;
+            }
+
+            @Override
+            public int read() throws IOException {
+              int b;
+              while ((b = chunk.read()) == -1) {
+                if (!nextChunk()) return -1;
+              }
+              return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+              if (len == 0) return 0;
+              int count;
+              while ((count = chunk.read(b, off, len)) == -1) {
+                if (!nextChunk()) return -1;
+              }
+              return count;
+            }
+          };
+
+      return createStreamResponse(new SequenceInputStream(header, rest));
+    }
+
+    /** Write NDJSON records into a string. */
+    private String writeRecords(RecordsWriter recordsWriter) throws IOException {
+      StringWriter buffer = new StringWriter();
+      recordsWriter.write(new ResultWriter(buffer, "ndjson", null));
+      return buffer.toString();
+    }
+
+    /** @return An input stream that reads a string as UTF-8. */
+    private InputStream toStream(String str) {
+      return new ByteArrayInputStream(str.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Write a cached result with a ResultWriter, e.g. as the records of a streamed response
+     * (without its header) or in the 'compact' format.
+     *
+     * @param cachedResult The cached result, as a JSON string.
+     * @param results The ResultWriter to write the result to.
+     */
+    private void writeResult(String cachedResult, ResultWriter results) throws IOException {
+      JSONObject result = new JSONObject(cachedResult);
+      JSONObject phylorefs = (JSONObject) result.remove("phylorefs");
+      for (String phyloref : phylorefs.keySet()) {
+        JSONArray nodes = phylorefs.getJSONArray(phyloref);
+        List<String> nodeIRIs = new ArrayList<>(nodes.length());
+        for (int i = 0; i < nodes.length(); i++) nodeIRIs.add(nodes.getString(i));
+        results.writePhyloref(phyloref, nodeIRIs);
+      }
+      results.finish(toProperties(result));
+    }
+
+    /**
+     * Stream a cached result in the same form as streamReason(). As it is already complete, it is
+     * written out in full before being sent.
+     */
+    private Response streamCachedResult(String cachedResult) throws IOException {
+      return createStreamResponse(
+          toStream(
+              writeRecords(
+                  results -> {
+                    results.writeRecord("header", createStreamHeader(true));
+                    writeResult(cachedResult, results);
+                  })));
+    }
+
+    /** @return The header record of a streamed response. */
+    private JSONObject createStreamHeader(boolean cached) {
+      JSONObject header = new JSONObject("{'status': 'ok'}");
+      header.put("version", JPhyloRef.VERSION);
+      header.put("cached", cached);
+      return header;
+    }
+
+    /** Set up a streamed (NDJSON) response, which is sent with chunked transfer encoding. */
+    private Response createStreamResponse(InputStream records) {
+      Response response = newChunkedResponse(Status.OK, NDJSON_MIME_TYPE, records);
+
+      // Indicate that any resource can access this resource.
+      response.addHeader("Access-Control-Allow-Origin", "*");
+
+      // Whether we stream our response depends on the request's Accept header.
+      response.addHeader("Vary", "Accept");
+
+      // Ask proxies such as nginx to pass on each record as it is sent, rather than buffering them.
+      response.addHeader("X-Accel-Buffering", "no");
+
+      return response;
+    }
+
+    /** Respond to a request for the version (GET /version). */
+    public JSONObject serveVersion() {
+      JSONObject response = new JSONObject("{'status': 'ok'}");
+
+      // Report OWL API version.
+      String owlapiVersion = VersionInfo.getVersionInfo().getVersion();
+      response.put("owlapiVersion", owlapiVersion);
+
+      // Report reasoner version.
+      String reasonerVersion =
+          ReasonerHelper.getReasonerNameAndVersion(
+              ReasonerHelper.getReasonerFactoryFromCmdLine(cmdLine));
+      response.put("reasonerVersion", reasonerVersion);
+
+      // Report JPhyloRef version.
+      response.put(
+          "name",
+          "JPhyloRef/" + JPhyloRef.VERSION + " OWLAPI/" + owlapiVersion + " " + reasonerVersion);
+      response.put("version", JPhyloRef.VERSION);
+
+      return response;
+    }
+
+    /** Set up some common items when communicating with a browser. */
+    public Response createResponse(IStatus status, JSONObject result) {
+      return createResponse(status, result.toString());
+    }
+
+    /** Set up some common items when communicating with a browser, given a serialized result. */
+    public Response createResponse(IStatus status, String result) {
+      Response response = newFixedLengthResponse(status, "application/json", result);
+
+      // Indicate that any resource can access this resource.
+      response.addHeader("Access-Control-Allow-Origin", "*");
+
+      // JSON responses are compressed with gzip if the request's Accept-Encoding prefers it (see
+      // useGzipWhenAccepted()), so caches need to store responses separately for each
+      // Accept-Encoding.
+      response.addHeader("Vary", "Accept-Encoding");
+
+      return response;
+    }
+
+    /**
+     * Respond to a request sent to this webserver, and count it by its path and status for
+     * /metrics.
+     */
+    @Override
+    public Response serve(IHTTPSession session) {
+      gzipAccepted.set(acceptsGzip(session.getHeaders().get("accept-encoding")));
+      Response response = handle(session);
+      requestCounter
+          .labels(
+              getMetricPath(session.getUri()),
+              String.valueOf(response.getStatus().getRequestStatus()))
+          .increment();
+      return response;
+    }
+
+    /**
+     * Compress JSON and text responses with gzip only if the request's Accept-Encoding prefers it
+     * (see acceptsGzip()). NanoHTTPD only checks whether this header mentions gzip at all.
+     */
+    @Override
+    protected boolean useGzipWhenAccepted(Response response) {
+      return gzipAccepted.get() && super.useGzipWhenAccepted(response);
+    }
+
+    /**
+     * Return the path a request is reported under in /metrics. Job IDs are left out of the path,
+     * and unknown paths are all reported as 'other', so that clients can't create an unlimited
+     * number of metrics.
+     */
+    private String getMetricPath(String path) {
+      if (METRIC_PATHS.contains(path)) return path;
+      if (path.startsWith("/jobs/")) return (path.length() > 6) ? "/jobs/{id}" : "/jobs";
+      if (webhookHandler != null && path.equals(webhookPath)) return path;
+      return "other";
+    }
+
+    /**
+     * Respond to a request sent to this webserver. Health checks and metrics are answered
+     * immediately; other requests are counted while they are in progress, so that we can wait for
+     * them to complete when shutting down.
+     */
+    private Response handle(IHTTPSession session) {
+      String path = session.getUri();
+      if (path.equals("/health")) {
+        return createResponse(Status.OK, serveHealth());
+      } else if (path.equals("/ready")) {
+        return createResponse(isReady() ? Status.OK : Status.SERVICE_UNAVAILABLE, serveReady());
+      } else if (path.equals("/metrics")) {
+        Response response =
+            newFixedLengthResponse(
+                Status.OK, "text/plain; version=0.0.4; charset=utf-8", serveMetrics());
+        response.addHeader("Vary", "Accept-Encoding");
+        return response;
+      }
+
+      synchronized (this) {
+        if (draining) {
+          JSONObject response = new JSONObject("{'status': 'error'}");
+          response.put("error", "This webserver is shutting down.");
+          return createResponse(Status.SERVICE_UNAVAILABLE, response);
+        }
+        requestsInProgress++;
+      }
+
+      try {
+        return serveRequest(session);
+      } finally {
+        finishRequest();
+      }
+    }
+
+    /** Record that a request is no longer in progress. */
+    private synchronized void finishRequest() {
+      requestsInProgress--;
+      notifyAll();
+    }
+
+    /** Respond to a request whose body couldn't be read, and close its connection. */
+    private Response createBodyErrorResponse(Exception ex) {
+      JSONObject response = new JSONObject("{'status': 'error'}");
+      response.put("error", "Could not read request: " + ex.getMessage());
+      Response errorResponse =
+          createResponse(
+              (ex instanceof SpooledDocument.DocumentTooLargeException)
+                  ? Status.PAYLOAD_TOO_LARGE
+                  : Status.BAD_REQUEST,
+              response);
+
+      // We may not have read the whole body, so the connection can't be used for another request.
+      errorResponse.closeConnection(true);
+      return errorResponse;
+    }
+
+    /** Respond to a request other than a health check. */
+    private Response serveRequest(IHTTPSession session) {
+      // Webhook-compatible requests need their request body unparsed, so we handle them first.
+      if (webhookHandler != null && session.getUri().equals(webhookPath)) {
+        return webhookHandler.serve(session);
+      }
+
+      // Get path and parameters. Forms sent to /reason and /jobs are read as they arrive, so that
+      // the JSON-LD documents they contain don't need to be copied into memory more than once.
+      String path = session.getUri();
+      Map<String, List<String>> params = new HashMap<>();
+      SpooledDocument document = null;
+      if ((path.equals("/reason") || path.equals("/jobs") || path.equals("/jobs/"))
+          && !session.getMethod().equals(Method.OPTIONS)) {
+        String contentEncoding = session.getHeaders().get("content-encoding");
+        if (contentEncoding != null
+            && !RequestBodyReader.isSupportedContentEncoding(contentEncoding)) {
+          JSONObject response = new JSONObject("{'status': 'error'}");
+          response.put(
+              "error",
+              "Content-Encoding '"
+                  + contentEncoding
+                  + "' is not supported; request bodies may be compressed with gzip or deflate.");
+          Response unsupported = createResponse(Status.UNSUPPORTED_MEDIA_TYPE, response);
+          unsupported.closeConnection(true);
+          return unsupported;
+        }
+
+        try {
+          document = bodyReader.readJSONLD(session, params);
+        } catch (IOException | IllegalArgumentException ex) {
+          logger.warn("Could not read request to '{}': {}", path, ex.toString());
+          return createBodyErrorResponse(ex);
+        }
+      } else {
+        params.putAll(session.getParameters());
+      }
+
+      logger.info(">> Request received to '{}': {}", path, params);
+
+      try {
+        return routeRequest(session, params, document);
+      } finally {
+        if (document != null) {
+          try {
+            document.close();
+          } catch (IOException ex) {
+            logger.warn("Could not delete JSON-LD document: {}", ex.toString());
+          }
+        }
+      }
+    }
+
+    /**
+     * Respond to a request other than a health check or a Webhook-compatible request, once its form
+     * has been read.
+     *
+     * @param session The request.
+     * @param params The parameters of the request.
+     * @param document The JSON-LD document sent with the request, or null if it didn't contain one.
+     *     Tasks that outlive the request hold their own reference to it.
+     */
+    private Response routeRequest(
+        IHTTPSession session, Map<String, List<String>> params, SpooledDocument document) {
+      String path = session.getUri();
+
+      // Errors after this point respond with a JSON object.
+      JSONObject response = new JSONObject("{'status': 'ok'}");
+
+      if (path.equals("/reason")) {
+        // If it is an OPTIONS request, it's probably someone wanting a
+        // pre-flight CORS request. Let's give them that.
+        if (session.getMethod().equals(Method.OPTIONS)) {
+          Response preflightResponse =
+              newFixedLengthResponse(Response.Status.OK, MIME_PLAINTEXT, "Options");
+
+          // Indicate that any resource can access this resource.
+          preflightResponse.addHeader("Access-Control-Allow-Origin", "*");
+          preflightResponse.addHeader("Access-Control-Allow-Methods", "POST");
+          preflightResponse.addHeader("Access-Control-Allow-Headers", "x-hub-signature");
+
+          return preflightResponse;
+        }
+
+        try {
+          if (document == null) {
+            response.put("status", "error");
+            response.put("error", MISSING_JSONLD_ERROR);
+            return createResponse(Status.BAD_REQUEST, response);
+          }
+
+          // Clients can ask for the result to be streamed to them as it is produced, or for it
+          // in the compact format, but not both.
+          boolean stream = acceptsNDJSON(session);
+          String format;
+          try {
+            format = getResultFormat(params);
+          } catch (IllegalArgumentException ex) {
+            response.put("status", "error");
+            response.put("error", ex.getMessage());
+            return createResponse(Status.BAD_REQUEST, response);
+          }
+          if (stream && !format.equals("json")) {
+            response.put("status", "error");
+            response.put(
+                "error", "Results in the '" + format + "' format can't be streamed as NDJSON");
+            return createResponse(Status.BAD_REQUEST, response);
+          }
+
+          // If we've reasoned over this document before, we can return the same result without
+          // parsing it again.
+          String cacheKey;
+          try (InputStream input = document.openStream()) {
+            cacheKey = ResultCache.getKey(input, cacheVariant);
+          }
+          String cachedResult = resultCache.get(cacheKey);
+          if (cachedResult != null) {
+            logger.info("Returning cached result for document {}", cacheKey);
+            return stream
+                ? streamCachedResult(cachedResult)
+                : createResultResponse(cachedResult, format);
+          }
+
+          // Another replica sharing our result cache may have reasoned over it.
+          if (diskResultCache != null) {
+            cachedResult = diskResultCache.get(cacheKey);
+            if (cachedResult != null) {
+              logger.info("Returning result for document {} from result cache", cacheKey);
+              resultCache.put(cacheKey, cachedResult);
+              return stream
+                  ? streamCachedResult(cachedResult)
+                  : createResultResponse(cachedResult, format);
+            }
+          }
+
+          // Process JSON-LD file and return response.
+          if (stream) return streamReason(cacheKey, document);
+          return createResultResponse(reasonOnce(cacheKey, document), format);
+
+        } catch (RejectedExecutionException ex) {
+          response.put("status", "error");
+          response.put("error", "All reasoning workers are busy; please try again later.");
+          return withRetryAfter(createResponse(Status.SERVICE_UNAVAILABLE, response));
         } catch (OWLOntologyCreationException | RDFParseException | IOException ex) {
           response.put("status", "error");
           response.put("error", "Exception thrown: " + ex.getMessage());
@@ -356,6 +2158,8 @@ public class WebserverCommand implements Command {
           return createResponse(Status.INTERNAL_ERROR, response);
         }
 
+      } else if (path.equals("/jobs") || path.startsWith("/jobs/")) {
+        return jobManager.serve(session, document);
       } else if (path.equals("/version")) {
         return createResponse(Status.OK, serveVersion());
       } else {
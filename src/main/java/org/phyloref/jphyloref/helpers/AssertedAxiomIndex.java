@@ -0,0 +1,228 @@
+package org.phyloref.jphyloref.helpers;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import org.semanticweb.owlapi.model.AxiomType;
+import org.semanticweb.owlapi.model.OWLAxiom;
+import org.semanticweb.owlapi.model.OWLClass;
+import org.semanticweb.owlapi.model.OWLClassAssertionAxiom;
+import org.semanticweb.owlapi.model.OWLClassExpression;
+import org.semanticweb.owlapi.model.OWLDataFactory;
+import org.semanticweb.owlapi.model.OWLNamedIndividual;
+import org.semanticweb.owlapi.model.OWLObjectSomeValuesFrom;
+import org.semanticweb.owlapi.model.OWLOntology;
+import org.semanticweb.owlapi.model.OWLOntologyChange;
+import org.semanticweb.owlapi.model.OWLOntologyChangeListener;
+import org.semanticweb.owlapi.model.OWLOntologyManager;
+import org.semanticweb.owlapi.model.OWLSubClassOfAxiom;
+
+/**
+ * An index of the class assertions and subclass axioms asserted in an ontology, so that we can look
+ * up the members and subclasses of a class without a reasoner and without scanning every axiom in
+ * the ontology each time.
+ *
+ * <p>Indexes are built the first time they are requested for an ontology, and are then kept up to
+ * date as axioms are added to or removed from that ontology. As with
+ * OWLOntology.getAxioms(AxiomType), only the axioms in the ontology itself are indexed, and not
+ * those in its imports.
+ *
+ * <p>Each index is updated while holding the lock of the manager its ontology belongs to, so
+ * changes to ontologies in different managers (such as the documents being reasoned over by
+ * different webserver requests) don't wait for each other. Lookups don't lock at all, and return
+ * unmodifiable copies, so that results that have already been returned don't change along with the
+ * ontology.
+ *
+ * <p>Individuals are only indexed under the class expressions that they are asserted to belong to
+ * (see getAssertedTypes()), and not under every class mentioned in those class assertions, as
+ * earlier versions of JPhyloRef did. For example, a node asserted to be "OBI_0000312 some
+ * (OBI_0000293 some phyloref1)" -- i.e. expected to resolve to phyloref1 -- is not a member of
+ * phyloref1, and classes mentioned in unions, complements or universal restrictions aren't indexed
+ * at all.
+ */
+public final class AssertedAxiomIndex {
+  /**
+   * The indexes for the ontologies in each manager, which also keep those indexes up to date. As
+   * ontologies are compared by their ontology IDs, we look indexes up by identity instead. This map
+   * is only locked while looking up or adding an Updater.
+   */
+  private static final Map<OWLOntologyManager, Updater> updaters =
+      Collections.synchronizedMap(new WeakHashMap<>());
+
+  /**
+   * Keeps the indexes of the ontologies in a single manager up to date. Indexes are built and
+   * updated while holding the lock on their Updater.
+   */
+  private static class Updater implements OWLOntologyChangeListener {
+    private final List<AssertedAxiomIndex> indexes = new ArrayList<>();
+
+    /** Return the index for an ontology, building it if it hasn't been indexed yet. */
+    synchronized AssertedAxiomIndex getOrCreate(OWLOntology ontology) {
+      AssertedAxiomIndex index = get(ontology);
+      if (index == null) {
+        index = new AssertedAxiomIndex(ontology);
+        indexes.add(index);
+      }
+      return index;
+    }
+
+    /** Return the index for an ontology, or null if it hasn't been indexed. */
+    private AssertedAxiomIndex get(OWLOntology ontology) {
+      // Forget about any indexes whose ontologies have been garbage-collected.
+      indexes.removeIf(index -> index.ontology.get() == null);
+      for (AssertedAxiomIndex index : indexes) {
+        if (index.ontology.get() == ontology) return index;
+      }
+      return null;
+    }
+
+    @Override
+    public synchronized void ontologiesChanged(List<? extends OWLOntologyChange> changes) {
+      for (OWLOntologyChange change : changes) {
+        if (!change.isAxiomChange()) continue;
+
+        AssertedAxiomIndex index = get(change.getOntology());
+        if (index == null) continue;
+
+        if (change.isAddAxiom()) index.add(change.getAxiom(), 1);
+        else if (change.isRemoveAxiom()) index.add(change.getAxiom(), -1);
+      }
+    }
+  }
+
+  /** The ontology we index. */
+  private final WeakReference<OWLOntology> ontology;
+
+  /** The data factory used to build the class expressions we index individuals under. */
+  private final OWLDataFactory df;
+
+  /**
+   * The named individuals asserted to be members of each class expression, with the number of
+   * axioms that assert it, so that removing one of several such axioms leaves the individual in the
+   * class expression. These are concurrent maps so that they can be read while they are updated.
+   */
+  private final Map<OWLClassExpression, Map<OWLNamedIndividual, Integer>> individualsByType =
+      new ConcurrentHashMap<>();
+
+  /** The named classes asserted to be subclasses of each named class, with their axiom counts. */
+  private final Map<OWLClass, Map<OWLClass, Integer>> subClassesByClass = new ConcurrentHashMap<>();
+
+  /**
+   * Create an index of an ontology. Use getIndex() to get an index that will be kept up to date.
+   */
+  private AssertedAxiomIndex(OWLOntology ontology) {
+    this.ontology = new WeakReference<>(ontology);
+    this.df = ontology.getOWLOntologyManager().getOWLDataFactory();
+    for (OWLClassAssertionAxiom axiom : ontology.getAxioms(AxiomType.CLASS_ASSERTION)) {
+      add(axiom, 1);
+    }
+    for (OWLSubClassOfAxiom axiom : ontology.getAxioms(AxiomType.SUBCLASS_OF)) {
+      add(axiom, 1);
+    }
+  }
+
+  /**
+   * Return the index for an ontology, building it if necessary.
+   *
+   * @param ontology The ontology to index.
+   * @return An index of the ontology, which will be updated whenever the ontology changes.
+   */
+  public static AssertedAxiomIndex getIndex(OWLOntology ontology) {
+    OWLOntologyManager manager = ontology.getOWLOntologyManager();
+    Updater updater;
+    synchronized (updaters) {
+      updater = updaters.get(manager);
+      if (updater == null) {
+        updater = new Updater();
+        manager.addOntologyChangeListener(updater);
+        updaters.put(manager, updater);
+      }
+    }
+    return updater.getOrCreate(ontology);
+  }
+
+  /** Add (if count is 1) or remove (if count is -1) an axiom from this index. */
+  private void add(OWLAxiom axiom, int count) {
+    if (axiom instanceof OWLClassAssertionAxiom) {
+      OWLClassAssertionAxiom classAssertion = (OWLClassAssertionAxiom) axiom;
+      if (!classAssertion.getIndividual().isNamed()) return;
+
+      OWLNamedIndividual individual = classAssertion.getIndividual().asOWLNamedIndividual();
+      for (OWLClassExpression type : getAssertedTypes(classAssertion.getClassExpression())) {
+        update(individualsByType, type, individual, count);
+      }
+    } else if (axiom instanceof OWLSubClassOfAxiom) {
+      OWLSubClassOfAxiom subClassOf = (OWLSubClassOfAxiom) axiom;
+      if (subClassOf.getSubClass().isAnonymous() || subClassOf.getSuperClass().isAnonymous()) {
+        return;
+      }
+
+      update(
+          subClassesByClass,
+          subClassOf.getSuperClass().asOWLClass(),
+          subClassOf.getSubClass().asOWLClass(),
+          count);
+    }
+  }
+
+  /**
+   * Return the class expressions that an individual can be looked up under if it is asserted to
+   * belong to a class expression. These are the conjuncts of the class expression, together with
+   * every someValuesFrom restriction whose filler is one of the conjuncts of the original filler.
+   * For example, an individual of type "A and (p some (B and (q some C)))" can be looked up under
+   * "A", "p some (B and (q some C))", "p some B" and "p some (q some C)".
+   */
+  private Set<OWLClassExpression> getAssertedTypes(OWLClassExpression classExpression) {
+    Set<OWLClassExpression> types = new HashSet<>();
+    for (OWLClassExpression conjunct : classExpression.asConjunctSet()) {
+      types.add(conjunct);
+      if (conjunct instanceof OWLObjectSomeValuesFrom) {
+        OWLObjectSomeValuesFrom someValuesFrom = (OWLObjectSomeValuesFrom) conjunct;
+        for (OWLClassExpression fillerType : getAssertedTypes(someValuesFrom.getFiller())) {
+          types.add(df.getOWLObjectSomeValuesFrom(someValuesFrom.getProperty(), fillerType));
+        }
+      }
+    }
+    return types;
+  }
+
+  private static <K, T> void update(Map<K, Map<T, Integer>> map, K key, T value, int count) {
+    Map<T, Integer> values = map.computeIfAbsent(key, k -> new ConcurrentHashMap<>());
+    values.merge(value, count, (a, b) -> (a + b == 0) ? null : a + b);
+    if (values.isEmpty()) map.remove(key);
+  }
+
+  /**
+   * Return the named individuals asserted to be members of a class expression. An individual is
+   * included if it is asserted to be a member of this class expression, of an intersection that
+   * includes it, or (for a someValuesFrom restriction) of a restriction with a more specific filler
+   * in this way.
+   *
+   * @param classExpression The class expression whose members we need.
+   * @return An unmodifiable copy of the named individuals asserted to be members of this class
+   *     expression, which does not reflect later changes to the ontology.
+   */
+  public Set<OWLNamedIndividual> getIndividualsWithType(OWLClassExpression classExpression) {
+    return Collections.unmodifiableSet(
+        new HashSet<>(
+            individualsByType.getOrDefault(classExpression, Collections.emptyMap()).keySet()));
+  }
+
+  /**
+   * Return the named classes asserted to be direct subclasses of a class.
+   *
+   * @param owlClass The class whose subclasses we need.
+   * @return An unmodifiable copy of the named classes in SubClassOf axioms with this class as their
+   *     superclass, which does not reflect later changes to the ontology.
+   */
+  public Set<OWLClass> getSubClasses(OWLClass owlClass) {
+    return Collections.unmodifiableSet(
+        new HashSet<>(subClassesByClass.getOrDefault(owlClass, Collections.emptyMap()).keySet()));
+  }
+}
@@ -0,0 +1,496 @@
+package org.phyloref.jphyloref.helpers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.json.JSONObject;
+import org.json.JSONStringer;
+
+/**
+ * The DaemonHelper allows the resolve command to send its input to a JPhyloRef daemon that is
+ * already running (see DaemonCommand), rather than resolving it itself. This saves the time it
+ * takes to start a JVM and to load and warm up OWLAPI and the reasoner for every input.
+ *
+ * <p>Clients connect to the daemon over TCP on the loopback interface. A request consists of a
+ * single line of JSON containing the daemon's token ("token"), the input filename ("input"), the
+ * other command line options ("args", which may only contain FORWARDED_OPTIONS) and optionally the
+ * length of the input in bytes ("length"), followed by the contents of the input. If no length is
+ * provided, the input ends when the client closes its side of the connection.
+ *
+ * <p>The daemon writes a new random token to its token file (see getTokenFileFromCmdLine()) every
+ * time it starts. Only the user running the daemon can read this file, so that other users on the
+ * same machine can't send requests to it, even though they can connect to the loopback interface.
+ *
+ * <p>The daemon sends STDOUT and STDERR back as they are written, as a series of frames. Each frame
+ * is a line containing "out" or "err" and the number of bytes in the frame, followed by those
+ * bytes. Once the input has been resolved, the daemon sends a final line containing "exit" and the
+ * exit code, and closes the connection. This is simple enough to be read by a shell script (see
+ * webhook/exec_jphyloref.sh), so that clients don't need to start a JVM at all.
+ */
+public class DaemonHelper {
+  /** The port the daemon listens on if no port is provided. */
+  public static final int DEFAULT_PORT = 34215;
+
+  /** The number of requests that can wait for a thread if no queue size is provided. */
+  public static final int DEFAULT_QUEUE_SIZE = 16;
+
+  /** The number of random bytes in a daemon token. */
+  private static final int TOKEN_BYTES = 32;
+
+  /** The longest request or response line we accept, in bytes. */
+  public static final int MAX_LINE_LENGTH = 64 * 1024;
+
+  /** The largest frame of output the daemon sends, in bytes. */
+  public static final int MAX_FRAME_LENGTH = 64 * 1024;
+
+  /**
+   * The command line options that clients may send to the daemon. Options that configure the daemon
+   * itself, such as the result cache, can only be set on the daemon's command line.
+   */
+  public static final Set<String> FORWARDED_OPTIONS =
+      Collections.unmodifiableSet(
+          new HashSet<>(
+              Arrays.asList(
+                  "reasoner",
+                  "jsonld",
+                  "jsonld-loader",
+                  "errors-as-json",
+                  "timings",
+                  "format",
+                  "verify-against")));
+
+  /** The command line options of the daemon that it uses for every request it resolves. */
+  public static final Set<String> DAEMON_OPTIONS =
+      Collections.unmodifiableSet(
+          new HashSet<>(Arrays.asList("result-cache", "result-cache-megabytes")));
+
+  /** @return True if the command line asks us to resolve our input via a running daemon. */
+  public static boolean isViaDaemon(CommandLine cmdLine) {
+    return cmdLine.hasOption("via-daemon");
+  }
+
+  /** @return The port that the daemon listens on, as set on the command line. */
+  public static int getPortFromCmdLine(CommandLine cmdLine) {
+    String port = cmdLine.getOptionValue("daemon-port", String.valueOf(DEFAULT_PORT));
+    try {
+      return Integer.parseInt(port);
+    } catch (NumberFormatException ex) {
+      throw new IllegalArgumentException("Daemon port '" + port + "' is not a number");
+    }
+  }
+
+  /** @return The number of requests that can wait for a thread, as set on the command line. */
+  public static int getQueueSizeFromCmdLine(CommandLine cmdLine) {
+    String queueSize =
+        cmdLine.getOptionValue("daemon-queue-size", String.valueOf(DEFAULT_QUEUE_SIZE));
+    try {
+      int size = Integer.parseInt(queueSize);
+      if (size >= 0) return size;
+    } catch (NumberFormatException ex) {
+      // Reported below.
+    }
+    throw new IllegalArgumentException(
+        "Daemon queue size '" + queueSize + "' is not a number of at least zero");
+  }
+
+  /**
+   * @return The file containing the daemon's token, as set on the command line. By default, this is
+   *     ~/.jphyloref/daemon-[port].token, so that daemons on different ports don't share it.
+   */
+  public static File getTokenFileFromCmdLine(CommandLine cmdLine) {
+    if (cmdLine.hasOption("daemon-token-file")) {
+      return new File(cmdLine.getOptionValue("daemon-token-file"));
+    }
+    return new File(
+        new File(System.getProperty("user.home"), ".jphyloref"),
+        "daemon-" + getPortFromCmdLine(cmdLine) + ".token");
+  }
+
+  /**
+   * Write a new random token to a file that only the current user can read (on file systems that
+   * support POSIX permissions), replacing any token already in it.
+   *
+   * @param tokenFile The file to write the token to. Its directory is created if necessary.
+   * @return The token written.
+   * @throws IOException If the token could not be written.
+   */
+  public static String createToken(File tokenFile) throws IOException {
+    byte[] bytes = new byte[TOKEN_BYTES];
+    new SecureRandom().nextBytes(bytes);
+    StringBuilder token = new StringBuilder();
+    for (byte b : bytes) token.append(String.format("%02x", b));
+
+    Path path = tokenFile.getAbsoluteFile().toPath();
+    boolean posix = path.getFileSystem().supportedFileAttributeViews().contains("posix");
+    FileAttribute<?>[] directoryAttrs =
+        posix
+            ? new FileAttribute<?>[] {
+              PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------"))
+            }
+            : new FileAttribute<?>[0];
+    FileAttribute<?>[] fileAttrs =
+        posix
+            ? new FileAttribute<?>[] {
+              PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))
+            }
+            : new FileAttribute<?>[0];
+
+    // Write the token to a new file and move it into place, so that the token is never readable by
+    // other users, even if an existing token file was.
+    Files.createDirectories(path.getParent(), directoryAttrs);
+    Path temp = Files.createTempFile(path.getParent(), ".daemon-token", ".tmp", fileAttrs);
+    try {
+      Files.write(temp, (token + "\n").getBytes(StandardCharsets.UTF_8));
+      Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+    return token.toString();
+  }
+
+  /**
+   * Read the daemon's token from its token file.
+   *
+   * @param tokenFile The file written by the daemon when it started.
+   * @return The token in this file.
+   * @throws IOException If the token file could not be read.
+   */
+  public static String readToken(File tokenFile) throws IOException {
+    return new String(Files.readAllBytes(tokenFile.toPath()), StandardCharsets.UTF_8).trim();
+  }
+
+  /** @return The name of a command line option, as used in FORWARDED_OPTIONS. */
+  public static String getOptionName(Option opt) {
+    return (opt.getLongOpt() != null) ? opt.getLongOpt() : opt.getOpt();
+  }
+
+  /**
+   * Return some of the options on a command line as a list of arguments.
+   *
+   * @param cmdLine The command line to read options from.
+   * @param names The names of the options to include.
+   * @return A list of arguments that can be parsed into the same command line options.
+   */
+  private static List<String> getArgs(CommandLine cmdLine, Set<String> names) {
+    List<String> args = new ArrayList<>();
+    for (Option opt : cmdLine.getOptions()) {
+      if (!names.contains(getOptionName(opt))) continue;
+
+      args.add((opt.getLongOpt() != null) ? "--" + opt.getLongOpt() : "-" + opt.getOpt());
+      if (opt.hasArg()) {
+        for (String value : opt.getValues()) args.add(value);
+      }
+    }
+    return args;
+  }
+
+  /**
+   * Return the command line options that should be forwarded to the daemon, i.e. those in
+   * FORWARDED_OPTIONS.
+   *
+   * @param cmdLine The command line to forward.
+   * @return A list of arguments that can be parsed into the same command line options.
+   */
+  public static List<String> getForwardedArgs(CommandLine cmdLine) {
+    return getArgs(cmdLine, FORWARDED_OPTIONS);
+  }
+
+  /**
+   * Return the options on the daemon's command line that it should use for every request, i.e.
+   * those in DAEMON_OPTIONS.
+   *
+   * @param cmdLine The daemon's command line.
+   * @return A list of arguments that can be parsed into the same command line options.
+   */
+  public static List<String> getDaemonArgs(CommandLine cmdLine) {
+    return getArgs(cmdLine, DAEMON_OPTIONS);
+  }
+
+  /**
+   * Return an input stream that ends after a certain number of bytes have been read from another
+   * input stream, without closing it.
+   *
+   * @param in The input stream to read from.
+   * @param length The number of bytes to read.
+   * @return An input stream of at most this many bytes.
+   */
+  public static InputStream limit(InputStream in, long length) {
+    return new FilterInputStream(in) {
+      private long remaining = length;
+
+      @Override
+      public int read() throws IOException {
+        if (remaining <= 0) return -1;
+        int b = super.read();
+        if (b != -1) remaining--;
+        return b;
+      }
+
+      @Override
+      public int read(byte[] buffer, int offset, int count) throws IOException {
+        if (remaining <= 0) return -1;
+        int read = super.read(buffer, offset, (int) Math.min(count, remaining));
+        if (read != -1) remaining -= read;
+        return read;
+      }
+
+      @Override
+      public long skip(long count) throws IOException {
+        long skipped = super.skip(Math.min(count, remaining));
+        remaining -= skipped;
+        return skipped;
+      }
+
+      @Override
+      public int available() throws IOException {
+        return (int) Math.min(super.available(), remaining);
+      }
+
+      @Override
+      public void close() {}
+
+      @Override
+      public boolean markSupported() {
+        return false;
+      }
+    };
+  }
+
+  /**
+   * An output stream that sends everything written to it to a client as frames of STDOUT or STDERR
+   * output. Frames are sent whenever the stream is flushed or its buffer fills up. Several of these
+   * streams may share a single connection; closing them doesn't close it.
+   */
+  public static class FrameOutputStream extends OutputStream {
+    private final OutputStream connection;
+    private final String stream;
+    private final byte[] buffer = new byte[MAX_FRAME_LENGTH];
+    private int count = 0;
+
+    /**
+     * @param connection The output stream of the connection to the client. Writes to it are
+     *     synchronized on this stream.
+     * @param stream The name of the stream we're sending: "out" or "err".
+     */
+    public FrameOutputStream(OutputStream connection, String stream) {
+      this.connection = connection;
+      this.stream = stream;
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+      if (count == buffer.length) sendFrame();
+      buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+      while (length > 0) {
+        if (count == buffer.length) sendFrame();
+        int copied = Math.min(length, buffer.length - count);
+        System.arraycopy(bytes, offset, buffer, count, copied);
+        count += copied;
+        offset += copied;
+        length -= copied;
+      }
+    }
+
+    /** Send everything written so far as a frame, and flush the connection. */
+    @Override
+    public synchronized void flush() throws IOException {
+      sendFrame();
+      synchronized (connection) {
+        connection.flush();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+
+    private void sendFrame() throws IOException {
+      if (count == 0) return;
+      synchronized (connection) {
+        connection.write((stream + " " + count + "\n").getBytes(StandardCharsets.UTF_8));
+        connection.write(buffer, 0, count);
+      }
+      count = 0;
+    }
+  }
+
+  /**
+   * Read a single line terminated by '\n' from an input stream, without reading any further.
+   *
+   * @param in The input stream to read from.
+   * @return The line read, without its terminating '\n'.
+   * @throws IOException If the stream ended before the end of the line, or the line was longer than
+   *     MAX_LINE_LENGTH.
+   */
+  public static String readLine(InputStream in) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) != '\n') {
+      if (b == -1) throw new IOException("Connection closed before the end of the line");
+      if (line.size() >= MAX_LINE_LENGTH) {
+        throw new IOException("Line is longer than " + MAX_LINE_LENGTH + " bytes");
+      }
+      line.write(b);
+    }
+    return new String(line.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  /** Copy exactly `length` bytes from an input stream to an output stream. */
+  private static void copy(InputStream in, OutputStream out, long length) throws IOException {
+    byte[] buffer = new byte[8192];
+    while (length > 0) {
+      int count = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+      if (count == -1) throw new IOException("Connection closed before the end of the response");
+      out.write(buffer, 0, count);
+      length -= count;
+    }
+  }
+
+  /**
+   * Send an input ontology to a running daemon to be resolved, and write its results to the
+   * provided output streams. Errors are reported in the same way as the resolve command.
+   *
+   * @param cmdLine The command line options provided to the resolve command.
+   * @param inputFilename The name of the input, used by the daemon to determine its format.
+   * @param input The input ontology to send to the daemon.
+   * @param out The output stream to write the resulting JSON to (usually STDOUT).
+   * @param err The output stream to write errors to (usually STDERR).
+   * @return The exit code returned by the daemon, or the exit code for an error if we could not
+   *     communicate with the daemon.
+   */
+  public static int resolveViaDaemon(
+      CommandLine cmdLine,
+      String inputFilename,
+      InputStream input,
+      PrintStream out,
+      PrintStream err) {
+    int port = getPortFromCmdLine(cmdLine);
+    boolean wroteOutput = false;
+
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+      // Send the request header and the input to the daemon.
+      OutputStream request = new BufferedOutputStream(socket.getOutputStream());
+      JSONObject header = new JSONObject();
+      header.put("token", readToken(getTokenFileFromCmdLine(cmdLine)));
+      header.put("input", inputFilename);
+      header.put("args", getForwardedArgs(cmdLine));
+      request.write((header.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+
+      byte[] buffer = new byte[8192];
+      int count;
+      while ((count = input.read(buffer)) != -1) request.write(buffer, 0, count);
+      request.flush();
+      socket.shutdownOutput();
+
+      // Copy STDOUT and STDERR from the daemon as it sends them, until it sends its exit code.
+      InputStream response = new BufferedInputStream(socket.getInputStream());
+      while (true) {
+        String frame = readLine(response);
+        String[] fields = frame.split(" ");
+        if (fields.length != 2) {
+          throw new IOException("Unexpected response from daemon: '" + frame + "'");
+        }
+
+        if (fields[0].equals("out")) {
+          copy(response, out, Long.parseLong(fields[1]));
+          out.flush();
+          wroteOutput = true;
+        } else if (fields[0].equals("err")) {
+          copy(response, err, Long.parseLong(fields[1]));
+          err.flush();
+        } else if (fields[0].equals("exit")) {
+          return Integer.parseInt(fields[1]);
+        } else {
+          throw new IOException("Unexpected response from daemon: '" + frame + "'");
+        }
+      }
+    } catch (IOException | NumberFormatException ex) {
+      // If some of the output has already been written, adding an error to it would only make
+      // it harder to tell that it is incomplete.
+      if (cmdLine.hasOption("errors-as-json") && !wroteOutput) {
+        out.println(
+            new JSONStringer()
+                .object()
+                .key("error")
+                .value(
+                    "Could not resolve ontology via daemon (" + ex.getClass().getSimpleName() + ")")
+                .key("message")
+                .value(ex.toString())
+                .endObject()
+                .toString());
+        return 0;
+      } else {
+        err.println(
+            "Could not resolve '" + inputFilename + "' via daemon on port " + port + ": " + ex);
+        return 1;
+      }
+    }
+  }
+
+  /** Add command line options that can be read by the methods in this class. */
+  public static void addCommandLineOptions(Options opts) {
+    opts.addOption(
+        Option.builder()
+            .longOpt("via-daemon")
+            .desc(
+                "Send the input to a running daemon (started with the 'daemon' command) to be resolved there (resolve only)")
+            .build());
+    opts.addOption(
+        Option.builder()
+            .longOpt("daemon-port")
+            .hasArg()
+            .argName("port")
+            .desc(
+                "The port on the loopback interface that the daemon listens on (default: "
+                    + DEFAULT_PORT
+                    + ")")
+            .build());
+    opts.addOption(
+        Option.builder()
+            .longOpt("daemon-token-file")
+            .hasArg()
+            .argName("file")
+            .desc(
+                "The file the daemon writes its token to when it starts, and that clients read it from (default: ~/.jphyloref/daemon-[port].token)")
+            .build());
+    opts.addOption(
+        Option.builder()
+            .longOpt("daemon-queue-size")
+            .hasArg()
+            .argName("requests")
+            .desc(
+                "The number of requests that can wait for the daemon before it rejects them as busy (daemon only, default: "
+                    + DEFAULT_QUEUE_SIZE
+                    + ")")
+            .build());
+  }
+}
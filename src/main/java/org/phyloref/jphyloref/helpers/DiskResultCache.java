@@ -0,0 +1,520 @@
+package org.phyloref.jphyloref.helpers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A cache of the results of reasoning over documents, stored as files in a directory so that they
+ * persist between runs and can be shared by several processes (such as several webserver replicas
+ * sharing a volume). Results are keyed in the same way as ResultCache, and each result is stored in
+ * a file named after its key.
+ *
+ * <p>Results are written to a temporary file and then atomically renamed into place, so readers in
+ * any process either see a complete result or none at all. As a key always has the same result,
+ * processes that write the same result at the same time don't conflict. When the results take up
+ * more space than allowed, the least recently used results (by modification time, which is updated
+ * whenever a result is read) are deleted, whichever process stored them.
+ */
+public class DiskResultCache {
+  /** Set up a logger to use for providing logging. */
+  private static final Logger logger = LoggerFactory.getLogger(DiskResultCache.class);
+
+  /** The total size of the results we keep on disk by default, in megabytes. */
+  public static final long DEFAULT_MEGABYTES = 1024;
+
+  /** The extension of files containing results. */
+  private static final String RESULT_EXTENSION = ".json";
+
+  /** The extension of files that results are written to before being renamed into place. */
+  private static final String TEMPORARY_EXTENSION = ".tmp";
+
+  /** Temporary files older than this were abandoned by a process that stopped while writing. */
+  private static final long ABANDONED_TEMPORARY_FILE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  /** The caches opened in this JVM, so that every command using a directory shares its index. */
+  private static final Map<Path, DiskResultCache> openCaches = new HashMap<>();
+
+  /** The directory that results are stored in. */
+  private final Path directory;
+
+  /** The largest total size of the results to keep, in bytes. */
+  private final long maxBytes;
+
+  /**
+   * The size of every result we know about, by key. Other processes may add or delete results, so
+   * this is refreshed from the directory before we evict any results. Guarded by "this".
+   */
+  private final Map<String, Long> sizes = new HashMap<>();
+
+  // These counters are guarded by "this".
+  private long bytes = 0;
+  private long hits = 0;
+  private long misses = 0;
+  private long writes = 0;
+  private long evictions = 0;
+
+  /**
+   * Open a cache in a directory, creating the directory if necessary, and index the results already
+   * in it.
+   *
+   * @param directory The directory to store results in.
+   * @param maxBytes The largest total size of the results to keep, in bytes.
+   * @throws IOException If the directory could not be created or read.
+   */
+  public DiskResultCache(Path directory, long maxBytes) throws IOException {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+
+    Files.createDirectories(directory);
+    synchronized (this) {
+      loadIndex();
+    }
+    logger.info(
+        "Opened result cache in {} with {} results taking up {} bytes",
+        directory,
+        sizes.size(),
+        bytes);
+  }
+
+  /**
+   * Read the results in our directory into our index, and delete temporary files that have been
+   * abandoned.
+   *
+   * @return The last modification time of every result, by key.
+   */
+  private Map<String, FileTime> loadIndex() throws IOException {
+    Map<String, FileTime> modifiedTimes = new HashMap<>();
+    sizes.clear();
+    bytes = 0;
+
+    long now = System.currentTimeMillis();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+      for (Path file : files) {
+        String filename = file.getFileName().toString();
+        BasicFileAttributes attributes;
+        try {
+          attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException ex) {
+          // Deleted by another process while we were listing the directory.
+          continue;
+        }
+
+        if (filename.endsWith(RESULT_EXTENSION)) {
+          String key = filename.substring(0, filename.length() - RESULT_EXTENSION.length());
+          sizes.put(key, attributes.size());
+          modifiedTimes.put(key, attributes.lastModifiedTime());
+          bytes += attributes.size();
+        } else if (filename.endsWith(TEMPORARY_EXTENSION)
+            && now - attributes.lastModifiedTime().toMillis() > ABANDONED_TEMPORARY_FILE_MILLIS) {
+          Files.deleteIfExists(file);
+        }
+      }
+    }
+    return modifiedTimes;
+  }
+
+  /** @return The file that the result for a key is stored in. */
+  private Path getFile(String key) {
+    if (!key.matches("[0-9a-f]+")) {
+      throw new IllegalArgumentException("Result cache key '" + key + "' is not a hash");
+    }
+    return directory.resolve(key + RESULT_EXTENSION);
+  }
+
+  /**
+   * Look up a result, and mark it as recently used.
+   *
+   * @param key The key of the document, as calculated by ResultCache.getKey().
+   * @return The result for this document, or null if we don't have one.
+   */
+  public String get(String key) {
+    Path file = getFile(key);
+    String result;
+    try {
+      result = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    } catch (NoSuchFileException ex) {
+      synchronized (this) {
+        misses++;
+        Long size = sizes.remove(key);
+        if (size != null) bytes -= size;
+      }
+      return null;
+    } catch (IOException ex) {
+      logger.warn("Could not read cached result {}: {}", file, ex.toString());
+      synchronized (this) {
+        misses++;
+      }
+      return null;
+    }
+
+    try {
+      Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+    } catch (IOException ex) {
+      // The result may have been evicted by another process since we read it.
+    }
+
+    synchronized (this) {
+      hits++;
+      long size = result.getBytes(StandardCharsets.UTF_8).length;
+      Long previous = sizes.put(key, size);
+      bytes += size - ((previous == null) ? 0 : previous);
+    }
+    return result;
+  }
+
+  /**
+   * Store a result, evicting the least recently used results if necessary to keep within our size.
+   * Errors are logged rather than thrown, as a result that couldn't be cached can still be used.
+   *
+   * @param key The key of the document, as calculated by ResultCache.getKey().
+   * @param result The result of reasoning over this document.
+   */
+  public void put(String key, String result) {
+    Path file = getFile(key);
+    byte[] contents = result.getBytes(StandardCharsets.UTF_8);
+    if (contents.length > maxBytes) return;
+
+    Path temporaryFile = null;
+    try {
+      temporaryFile = Files.createTempFile(directory, key + ".", TEMPORARY_EXTENSION);
+      Files.write(temporaryFile, contents);
+    } catch (IOException ex) {
+      logger.warn("Could not write cached result {}: {}", file, ex.toString());
+      deleteTemporaryFile(temporaryFile);
+      return;
+    }
+    store(key, temporaryFile, contents.length);
+  }
+
+  /**
+   * Start storing a result that is written as it is produced, such as by a command that writes its
+   * results to STDOUT as it goes. The result is written to a temporary file, and is only stored
+   * once it is committed.
+   *
+   * @param key The key of the document, as calculated by ResultCache.getKey().
+   * @return The result being written, which must be closed.
+   */
+  public PendingResult startPut(String key) {
+    // Check that the key is valid before we create any files.
+    getFile(key);
+    return new PendingResult(key);
+  }
+
+  /**
+   * A result that is being written to a temporary file in the cache directory. Errors writing the
+   * temporary file are logged rather than thrown, and the result is then not stored, so that the
+   * result can still be written wherever else it is going.
+   */
+  public class PendingResult implements Closeable {
+    /** The key of the document this is the result for. */
+    private final String key;
+
+    /** The temporary file the result is written to, or null if it couldn't be created. */
+    private Path temporaryFile;
+
+    /** The writer for the temporary file, or null if we can no longer write to it. */
+    private Writer writer;
+
+    /** True once the result has been committed or discarded. */
+    private boolean closed = false;
+
+    private PendingResult(String key) {
+      this.key = key;
+      try {
+        temporaryFile = Files.createTempFile(directory, key + ".", TEMPORARY_EXTENSION);
+        writer = Files.newBufferedWriter(temporaryFile, StandardCharsets.UTF_8);
+      } catch (IOException ex) {
+        fail(ex);
+      }
+    }
+
+    /** Log an error writing the temporary file, and stop writing to it. */
+    private void fail(IOException ex) {
+      if (writer == null && temporaryFile == null) return;
+      logger.warn("Could not write cached result {}: {}", getFile(key), ex.toString());
+      try {
+        if (writer != null) writer.close();
+      } catch (IOException ex2) {
+        // We're about to delete it anyway.
+      }
+      writer = null;
+      deleteTemporaryFile(temporaryFile);
+      temporaryFile = null;
+    }
+
+    /**
+     * Create a writer that writes to another writer and to this result at the same time. Errors
+     * writing to the other writer are thrown as usual; errors writing to this result are logged,
+     * and only stop the result from being stored.
+     *
+     * @param out The other writer to write to.
+     * @return A writer that writes to both.
+     */
+    public Writer tee(Writer out) {
+      return new Writer() {
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+          out.write(cbuf, off, len);
+          if (writer != null) {
+            try {
+              writer.write(cbuf, off, len);
+            } catch (IOException ex) {
+              fail(ex);
+            }
+          }
+        }
+
+        @Override
+        public void flush() throws IOException {
+          out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+          out.close();
+        }
+      };
+    }
+
+    /**
+     * Store the result that has been written, evicting the least recently used results if necessary
+     * to keep within our size. This should only be called once the whole result has been written.
+     */
+    public void commit() {
+      if (closed) throw new IllegalStateException("Result has already been committed or closed");
+      closed = true;
+      if (writer == null) return;
+
+      long size;
+      try {
+        writer.close();
+        writer = null;
+        size = Files.size(temporaryFile);
+      } catch (IOException ex) {
+        fail(ex);
+        return;
+      }
+
+      if (size > maxBytes) {
+        deleteTemporaryFile(temporaryFile);
+      } else {
+        store(key, temporaryFile, size);
+      }
+      temporaryFile = null;
+    }
+
+    /** Discard the result unless it has been committed. */
+    @Override
+    public void close() {
+      if (closed) return;
+      closed = true;
+      try {
+        if (writer != null) writer.close();
+      } catch (IOException ex) {
+        // We're about to delete it anyway.
+      }
+      writer = null;
+      deleteTemporaryFile(temporaryFile);
+      temporaryFile = null;
+    }
+  }
+
+  /**
+   * Rename a temporary file containing a complete result into place, and evict the least recently
+   * used results if necessary to keep within our size.
+   *
+   * @param key The key of the document.
+   * @param temporaryFile The temporary file containing the result.
+   * @param size The size of the result in bytes.
+   */
+  private void store(String key, Path temporaryFile, long size) {
+    Path file = getFile(key);
+    try {
+      try {
+        Files.move(
+            temporaryFile,
+            file,
+            StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException ex) {
+        Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } catch (IOException ex) {
+      logger.warn("Could not write cached result {}: {}", file, ex.toString());
+      deleteTemporaryFile(temporaryFile);
+      return;
+    }
+
+    synchronized (this) {
+      writes++;
+      Long previous = sizes.put(key, size);
+      bytes += size - ((previous == null) ? 0 : previous);
+      if (bytes > maxBytes) evict();
+    }
+  }
+
+  /** Delete a temporary file that won't be stored, if there is one. */
+  private static void deleteTemporaryFile(Path temporaryFile) {
+    try {
+      if (temporaryFile != null) Files.deleteIfExists(temporaryFile);
+    } catch (IOException ex) {
+      // We'll delete it when it's been abandoned for long enough.
+    }
+  }
+
+  /**
+   * Delete the least recently used results until they take up no more than our size. Guarded by
+   * "this".
+   */
+  private void evict() {
+    List<Map.Entry<String, FileTime>> results;
+    try {
+      // Other processes may have added or deleted results, so start from what's on disk.
+      results = new ArrayList<>(loadIndex().entrySet());
+    } catch (IOException ex) {
+      logger.warn("Could not read result cache in {}: {}", directory, ex.toString());
+      return;
+    }
+
+    results.sort(Comparator.comparing(Map.Entry::getValue));
+    for (Map.Entry<String, FileTime> entry : results) {
+      if (bytes <= maxBytes) break;
+
+      String key = entry.getKey();
+      try {
+        Files.deleteIfExists(getFile(key));
+      } catch (IOException ex) {
+        logger.warn("Could not evict cached result {}: {}", key, ex.toString());
+        continue;
+      }
+      bytes -= sizes.remove(key);
+      evictions++;
+    }
+  }
+
+  /** @return The number of results in this cache, as of the last time we looked. */
+  public synchronized int size() {
+    return sizes.size();
+  }
+
+  /**
+   * @return The total size of the results in this cache in bytes, as of the last time we looked.
+   */
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  /** @return The number of lookups that found a result. */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /** @return The number of lookups that didn't find a result. */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /** @return The number of results we evicted to keep within our size. */
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * @return The size of this cache and the number of hits, misses, writes and evictions as JSON.
+   */
+  public synchronized JSONObject getStatistics() {
+    JSONObject statistics = new JSONObject();
+    statistics.put("directory", directory.toString());
+    statistics.put("entries", sizes.size());
+    statistics.put("bytes", bytes);
+    statistics.put("maxBytes", maxBytes);
+    statistics.put("hits", hits);
+    statistics.put("misses", misses);
+    statistics.put("writes", writes);
+    statistics.put("evictions", evictions);
+    return statistics;
+  }
+
+  /**
+   * Open the cache set on the command line. Commands that open the same directory share a single
+   * cache, so that its index is only loaded once per JVM.
+   *
+   * @param cmdLine The command line options.
+   * @return The cache, or null if no cache directory was set.
+   * @throws IllegalArgumentException If the cache directory could not be opened.
+   */
+  public static DiskResultCache getFromCmdLine(CommandLine cmdLine) {
+    String directoryName = cmdLine.getOptionValue("result-cache");
+    if (directoryName == null) return null;
+
+    String megabytes =
+        cmdLine.getOptionValue("result-cache-megabytes", String.valueOf(DEFAULT_MEGABYTES));
+    long maxBytes;
+    try {
+      maxBytes = Long.parseLong(megabytes) * 1024 * 1024;
+    } catch (NumberFormatException ex) {
+      throw new IllegalArgumentException(
+          "Result cache size '" + megabytes + "' is not a number of megabytes");
+    }
+
+    Path directory = Paths.get(directoryName).toAbsolutePath().normalize();
+    synchronized (openCaches) {
+      DiskResultCache cache = openCaches.get(directory);
+      if (cache == null || cache.maxBytes != maxBytes) {
+        try {
+          cache = new DiskResultCache(directory, maxBytes);
+        } catch (IOException ex) {
+          throw new IllegalArgumentException(
+              "Could not open result cache in '" + directory + "': " + ex);
+        }
+        openCaches.put(directory, cache);
+      }
+      return cache;
+    }
+  }
+
+  /** Add command line options that can be read by the methods in this class. */
+  public static void addCommandLineOptions(Options opts) {
+    opts.addOption(
+        Option.builder()
+            .longOpt("result-cache")
+            .hasArg()
+            .argName("directory")
+            .desc(
+                "Store the results of reasoning in this directory, and reuse them for documents that have been reasoned over before (resolve and webserver only)")
+            .build());
+    opts.addOption(
+        Option.builder()
+            .longOpt("result-cache-megabytes")
+            .hasArg()
+            .argName("megabytes")
+            .desc(
+                "The total size of the results to keep in the result cache (default: "
+                    + DEFAULT_MEGABYTES
+                    + ")")
+            .build());
+  }
+}
@@ -0,0 +1,214 @@
+package org.phyloref.jphyloref.helpers;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The Java Flight Recorder events recorded by JPhyloRef. This is the only class that refers to the
+ * jdk.jfr package, which isn't available on every Java 8 runtime; it should only be used through
+ * FlightRecorderHelper, which checks that JFR is available before loading it.
+ *
+ * <p>Each begin method returns null if its event isn't enabled (e.g. because no recording is
+ * running). When JFR hasn't been started, isEnabled() always returns false, so the JIT compiler can
+ * remove the event entirely.
+ */
+final class FlightRecorderEvents {
+  private FlightRecorderEvents() {}
+
+  @Name("org.phyloref.jphyloref.DocumentParse")
+  @Label("Document Parse")
+  @Description("Parsing an ontology or JSON-LD document into OWL axioms.")
+  @Category("JPhyloRef")
+  @StackTrace(false)
+  static class DocumentParseEvent extends Event {
+    @Label("Source")
+    @Description("The file the document was read from, or 'request' for webserver requests.")
+    String source;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Axioms")
+    int axioms;
+  }
+
+  @Name("org.phyloref.jphyloref.ReasonerCreation")
+  @Label("Reasoner Creation")
+  @Description("Creating a reasoner for an ontology.")
+  @Category("JPhyloRef")
+  @StackTrace(false)
+  static class ReasonerCreationEvent extends Event {
+    @Label("Reasoner")
+    String reasoner;
+
+    @Label("Axioms")
+    int axioms;
+  }
+
+  @Name("org.phyloref.jphyloref.Classification")
+  @Label("Classification")
+  @Description("Classifying an ontology and determining the types of its individuals.")
+  @Category("JPhyloRef")
+  @StackTrace(false)
+  static class ClassificationEvent extends Event {
+    @Label("Reasoner")
+    String reasoner;
+  }
+
+  @Name("org.phyloref.jphyloref.NodesInClass")
+  @Label("Nodes In Phyloreference")
+  @Description("Looking up the nodes a single phyloreference resolves to.")
+  @Category("JPhyloRef")
+  @StackTrace(false)
+  static class NodesInClassEvent extends Event {
+    @Label("Phyloreference")
+    String phyloref;
+
+    @Label("Node Count")
+    int nodeCount;
+  }
+
+  @Name("org.phyloref.jphyloref.NodesPerPhyloreference")
+  @Label("Nodes Per Phyloreference")
+  @Description("Looking up the nodes every phyloreference resolves to in a single pass.")
+  @Category("JPhyloRef")
+  @StackTrace(false)
+  static class NodesPerPhyloreferenceEvent extends Event {
+    @Label("Phyloreference Count")
+    int phylorefCount;
+
+    @Label("Node Count")
+    int nodeCount;
+  }
+
+  @Name("org.phyloref.jphyloref.PhylorefStatuses")
+  @Label("Phyloreference Statuses")
+  @Description("Looking up the statuses of a single phyloreference.")
+  @Category("JPhyloRef")
+  @StackTrace(false)
+  static class PhylorefStatusesEvent extends Event {
+    @Label("Phyloreference")
+    String phyloref;
+
+    @Label("Status Count")
+    int statusCount;
+  }
+
+  @Name("org.phyloref.jphyloref.Serialization")
+  @Label("Serialization")
+  @Description("Writing out the results of resolving or testing phyloreferences.")
+  @Category("JPhyloRef")
+  @StackTrace(false)
+  static class SerializationEvent extends Event {
+    @Label("Format")
+    String format;
+
+    @Label("Length")
+    @Description("The length of the serialized results, in characters.")
+    long length;
+  }
+
+  /** Begin an event, returning it if it is enabled or null otherwise. */
+  private static <T extends Event> T begin(T event) {
+    if (!event.isEnabled()) return null;
+    event.begin();
+    return event;
+  }
+
+  static Object beginDocumentParse() {
+    return begin(new DocumentParseEvent());
+  }
+
+  static void endDocumentParse(Object handle, String source, long bytes, int axioms) {
+    DocumentParseEvent event = (DocumentParseEvent) handle;
+    event.end();
+    if (!event.shouldCommit()) return;
+    event.source = source;
+    event.bytes = bytes;
+    event.axioms = axioms;
+    event.commit();
+  }
+
+  static Object beginReasonerCreation() {
+    return begin(new ReasonerCreationEvent());
+  }
+
+  static void endReasonerCreation(Object handle, String reasoner, int axioms) {
+    ReasonerCreationEvent event = (ReasonerCreationEvent) handle;
+    event.end();
+    if (!event.shouldCommit()) return;
+    event.reasoner = reasoner;
+    event.axioms = axioms;
+    event.commit();
+  }
+
+  static Object beginClassification() {
+    return begin(new ClassificationEvent());
+  }
+
+  static void endClassification(Object handle, String reasoner) {
+    ClassificationEvent event = (ClassificationEvent) handle;
+    event.end();
+    if (!event.shouldCommit()) return;
+    event.reasoner = reasoner;
+    event.commit();
+  }
+
+  static Object beginNodesInClass() {
+    return begin(new NodesInClassEvent());
+  }
+
+  static void endNodesInClass(Object handle, String phyloref, int nodeCount) {
+    NodesInClassEvent event = (NodesInClassEvent) handle;
+    event.end();
+    if (!event.shouldCommit()) return;
+    event.phyloref = phyloref;
+    event.nodeCount = nodeCount;
+    event.commit();
+  }
+
+  static Object beginNodesPerPhyloreference() {
+    return begin(new NodesPerPhyloreferenceEvent());
+  }
+
+  static void endNodesPerPhyloreference(Object handle, int phylorefCount, int nodeCount) {
+    NodesPerPhyloreferenceEvent event = (NodesPerPhyloreferenceEvent) handle;
+    event.end();
+    if (!event.shouldCommit()) return;
+    event.phylorefCount = phylorefCount;
+    event.nodeCount = nodeCount;
+    event.commit();
+  }
+
+  static Object beginPhylorefStatuses() {
+    return begin(new PhylorefStatusesEvent());
+  }
+
+  static void endPhylorefStatuses(Object handle, String phyloref, int statusCount) {
+    PhylorefStatusesEvent event = (PhylorefStatusesEvent) handle;
+    event.end();
+    if (!event.shouldCommit()) return;
+    event.phyloref = phyloref;
+    event.statusCount = statusCount;
+    event.commit();
+  }
+
+  static Object beginSerialization() {
+    return begin(new SerializationEvent());
+  }
+
+  static void endSerialization(Object handle, String format, long length) {
+    SerializationEvent event = (SerializationEvent) handle;
+    event.end();
+    if (!event.shouldCommit()) return;
+    event.format = format;
+    event.length = length;
+    event.commit();
+  }
+}
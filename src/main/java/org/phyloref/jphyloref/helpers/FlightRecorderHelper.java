@@ -0,0 +1,210 @@
+package org.phyloref.jphyloref.helpers;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import org.semanticweb.owlapi.model.OWLClass;
+
+/**
+ * The FlightRecorderHelper records Java Flight Recorder (JFR) events for the phases of resolving
+ * and testing phyloreferences, so that a JFR recording of a slow request shows which phase (or
+ * which phyloreference) it spent its time on. The events are in the 'JPhyloRef' category, and can
+ * be recorded with e.g. "java -XX:StartFlightRecording=filename=jphyloref.jfr -jar jphyloref.jar
+ * ..." or by starting a recording in a running webserver with "jcmd [pid] JFR.start".
+ *
+ * <p>Events are recorded in pairs of calls:
+ *
+ * <pre>
+ * Object event = FlightRecorderHelper.beginClassification();
+ * // Classify the ontology.
+ * FlightRecorderHelper.endClassification(event, reasonerName);
+ * </pre>
+ *
+ * <p>As JPhyloRef still supports Java 8, on which JFR may not be available, the events themselves
+ * (in FlightRecorderEvents) are only loaded if the jdk.jfr package is available. Each begin method
+ * returns null if JFR isn't available or the event isn't being recorded, in which case the end
+ * method does nothing; this costs no more than a null check when nothing is being recorded.
+ */
+public class FlightRecorderHelper {
+  /** True if this JVM includes JFR's event API (Java 11 or later, or Java 8u262 or later). */
+  private static final boolean available = isFlightRecorderAvailable();
+
+  /** @return True if this JVM includes JFR's event API. */
+  public static boolean isFlightRecorderAvailable() {
+    try {
+      Class.forName("jdk.jfr.Event", false, FlightRecorderHelper.class.getClassLoader());
+      return true;
+    } catch (ClassNotFoundException | LinkageError ex) {
+      return false;
+    }
+  }
+
+  /** Begin a DocumentParse event, which should be ended with endDocumentParse(). */
+  public static Object beginDocumentParse() {
+    return available ? FlightRecorderEvents.beginDocumentParse() : null;
+  }
+
+  /**
+   * Count the bytes read from the document being parsed, if a DocumentParse event is being
+   * recorded.
+   *
+   * @param event The event returned by beginDocumentParse().
+   * @param in The input stream the document will be read from.
+   * @return An input stream to read the document from instead, which should be passed to
+   *     endDocumentParse().
+   */
+  public static InputStream countBytes(Object event, InputStream in) {
+    return (event == null) ? in : new CountingInputStream(in);
+  }
+
+  /**
+   * End a DocumentParse event.
+   *
+   * @param event The event returned by beginDocumentParse().
+   * @param source The file the document was read from, or 'request' for a webserver request.
+   * @param in The input stream returned by countBytes(), from which the size of the document is
+   *     read.
+   * @param axioms The number of axioms in the parsed document.
+   */
+  public static void endDocumentParse(Object event, String source, InputStream in, int axioms) {
+    if (event == null) return;
+    long bytes = (in instanceof CountingInputStream) ? ((CountingInputStream) in).count : -1;
+    FlightRecorderEvents.endDocumentParse(event, source, bytes, axioms);
+  }
+
+  /** Begin a ReasonerCreation event, which should be ended with endReasonerCreation(). */
+  public static Object beginReasonerCreation() {
+    return available ? FlightRecorderEvents.beginReasonerCreation() : null;
+  }
+
+  /**
+   * End a ReasonerCreation event.
+   *
+   * @param event The event returned by beginReasonerCreation().
+   * @param reasoner The name of the reasoner.
+   * @param axioms The number of axioms in the ontology the reasoner was created for.
+   */
+  public static void endReasonerCreation(Object event, String reasoner, int axioms) {
+    if (event != null) FlightRecorderEvents.endReasonerCreation(event, reasoner, axioms);
+  }
+
+  /** Begin a Classification event, which should be ended with endClassification(). */
+  public static Object beginClassification() {
+    return available ? FlightRecorderEvents.beginClassification() : null;
+  }
+
+  /**
+   * End a Classification event.
+   *
+   * @param event The event returned by beginClassification().
+   * @param reasoner The name of the reasoner.
+   */
+  public static void endClassification(Object event, String reasoner) {
+    if (event != null) FlightRecorderEvents.endClassification(event, reasoner);
+  }
+
+  /** Begin a NodesInClass event, which should be ended with endNodesInClass(). */
+  public static Object beginNodesInClass() {
+    return available ? FlightRecorderEvents.beginNodesInClass() : null;
+  }
+
+  /**
+   * End a NodesInClass event.
+   *
+   * @param event The event returned by beginNodesInClass().
+   * @param phyloref The phyloreference whose nodes were looked up.
+   * @param nodeCount The number of nodes it resolved to.
+   */
+  public static void endNodesInClass(Object event, OWLClass phyloref, int nodeCount) {
+    if (event == null) return;
+    FlightRecorderEvents.endNodesInClass(event, phyloref.getIRI().toString(), nodeCount);
+  }
+
+  /**
+   * Begin a NodesPerPhyloreference event, which should be ended with endNodesPerPhyloreference().
+   */
+  public static Object beginNodesPerPhyloreference() {
+    return available ? FlightRecorderEvents.beginNodesPerPhyloreference() : null;
+  }
+
+  /**
+   * End a NodesPerPhyloreference event.
+   *
+   * @param event The event returned by beginNodesPerPhyloreference().
+   * @param phylorefCount The number of phyloreferences resolved.
+   * @param nodeCount The number of nodes processed.
+   */
+  public static void endNodesPerPhyloreference(Object event, int phylorefCount, int nodeCount) {
+    if (event != null) {
+      FlightRecorderEvents.endNodesPerPhyloreference(event, phylorefCount, nodeCount);
+    }
+  }
+
+  /** Begin a PhylorefStatuses event, which should be ended with endPhylorefStatuses(). */
+  public static Object beginPhylorefStatuses() {
+    return available ? FlightRecorderEvents.beginPhylorefStatuses() : null;
+  }
+
+  /**
+   * End a PhylorefStatuses event.
+   *
+   * @param event The event returned by beginPhylorefStatuses().
+   * @param phyloref The phyloreference whose statuses were looked up.
+   * @param statusCount The number of statuses found.
+   */
+  public static void endPhylorefStatuses(Object event, OWLClass phyloref, int statusCount) {
+    if (event == null) return;
+    FlightRecorderEvents.endPhylorefStatuses(event, phyloref.getIRI().toString(), statusCount);
+  }
+
+  /** Begin a Serialization event, which should be ended with endSerialization(). */
+  public static Object beginSerialization() {
+    return available ? FlightRecorderEvents.beginSerialization() : null;
+  }
+
+  /**
+   * End a Serialization event.
+   *
+   * @param event The event returned by beginSerialization().
+   * @param format The format the results were written in, such as 'json' or 'tap'.
+   * @param length The length of the serialized results, in characters.
+   */
+  public static void endSerialization(Object event, String format, long length) {
+    if (event != null) FlightRecorderEvents.endSerialization(event, format, length);
+  }
+
+  /** An input stream that counts the bytes read from it. */
+  private static class CountingInputStream extends FilterInputStream {
+    private long count = 0;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) count++;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int read = super.read(buffer, offset, length);
+      if (read > 0) count += read;
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      count += skipped;
+      return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,351 @@
+package org.phyloref.jphyloref.helpers;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The FormReader reads the fields of a form sent in the body of an HTTP request, either URL-encoded
+ * (application/x-www-form-urlencoded) or as a multipart form (multipart/form-data). Unlike
+ * NanoHTTPD's parseBody(), which reads the entire body into memory or a temporary file before
+ * decoding it, the value of each field is decoded as it is read from the request and passed on as a
+ * stream, so that large values (such as JSON-LD documents) can be read straight into wherever they
+ * are needed.
+ */
+public class FormReader {
+  /** The longest field name, field value read by readString() or multipart header we accept. */
+  public static final int MAX_FIELD_LENGTH = 64 * 1024;
+
+  /** Handles the fields of a form as they are read. */
+  public interface FieldHandler {
+    /**
+     * Handle a single field of the form. Any part of the value that isn't read by this method will
+     * be skipped once it returns.
+     *
+     * @param name The name of the field.
+     * @param value The decoded value of the field, which ends at the end of the field.
+     * @throws IOException If the value could not be read or handled.
+     */
+    void handleField(String name, InputStream value) throws IOException;
+  }
+
+  /**
+   * Return a stream that reads the body of a request from its connection, and ends at the end of
+   * the body rather than at the end of the connection.
+   *
+   * @param connection The stream to read the body from, positioned at the start of the body.
+   * @param length The length of the body, in bytes (from its Content-Length header); we don't read
+   *     any further than this, so that the next request on the same connection can be read.
+   * @return A stream that ends after the body.
+   */
+  public static InputStream limit(InputStream connection, long length) {
+    return new LimitedInputStream(connection, length);
+  }
+
+  /**
+   * Read a form from the body of a request, and pass each field to a handler as it is read.
+   *
+   * @param body The body of the request (see limit()). It will not be closed.
+   * @param contentType The Content-Type of the request, or null if none was provided.
+   * @param handler The handler to pass each field to.
+   * @throws IllegalArgumentException If the content type isn't a form, or the form is malformed.
+   * @throws IOException If the body could not be read, or the handler could not handle a field.
+   */
+  public static void read(InputStream body, String contentType, FieldHandler handler)
+      throws IOException {
+    InputStream in = new BufferedInputStream(body);
+    String mimeType =
+        (contentType == null) ? "" : contentType.split(";", 2)[0].trim().toLowerCase();
+
+    if (mimeType.isEmpty() || mimeType.equals("application/x-www-form-urlencoded")) {
+      readURLEncoded(in, handler);
+    } else if (mimeType.equals("multipart/form-data")) {
+      readMultipart(in, getBoundary(contentType), handler);
+    } else {
+      throw new IllegalArgumentException(
+          "Expected a URL-encoded or multipart form, but got content of type '"
+              + contentType
+              + "'");
+    }
+
+    // Skip anything after the end of the form (such as a multipart epilogue).
+    skip(in);
+  }
+
+  /**
+   * Read the value of a field as a UTF-8 string.
+   *
+   * @param value The value of the field.
+   * @return The value as a string.
+   * @throws IllegalArgumentException If the value is longer than MAX_FIELD_LENGTH bytes.
+   * @throws IOException If the value could not be read.
+   */
+  public static String readString(InputStream value) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int count;
+    while ((count = value.read(buffer)) != -1) {
+      if (bytes.size() + count > MAX_FIELD_LENGTH) {
+        throw new IllegalArgumentException(
+            "Form field is longer than " + MAX_FIELD_LENGTH + " bytes");
+      }
+      bytes.write(buffer, 0, count);
+    }
+    return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Read an input stream to its end, discarding its contents.
+   *
+   * @param in The input stream to read. It will not be closed.
+   * @throws IOException If the input stream could not be read.
+   */
+  public static void skip(InputStream in) throws IOException {
+    byte[] buffer = new byte[8192];
+    while (in.read(buffer) != -1) {}
+  }
+
+  /** Read a URL-encoded form, in which fields are written as 'name=value' separated by '&'. */
+  private static void readURLEncoded(InputStream in, FieldHandler handler) throws IOException {
+    while (true) {
+      ByteArrayOutputStream name = new ByteArrayOutputStream();
+      int b;
+      while ((b = in.read()) != -1 && b != '=' && b != '&') {
+        if (name.size() >= MAX_FIELD_LENGTH) {
+          throw new IllegalArgumentException(
+              "Form field name is longer than " + MAX_FIELD_LENGTH + " bytes");
+        }
+        name.write(b);
+      }
+      if (b == -1 && name.size() == 0) return;
+
+      URLEncodedValueStream value = new URLEncodedValueStream(in, b != '=');
+      if (name.size() > 0) {
+        try {
+          handler.handleField(URLDecoder.decode(name.toString("UTF-8"), "UTF-8"), value);
+        } catch (UnsupportedEncodingException ex) {
+          throw new IllegalStateException("'UTF-8' is not supported as an encoding: " + ex);
+        }
+      }
+      skip(value);
+      if (b == -1 || value.isEndOfForm()) return;
+    }
+  }
+
+  /** Read a multipart form, in which each field is a part separated by a boundary. */
+  private static void readMultipart(InputStream body, String boundary, FieldHandler handler)
+      throws IOException {
+    // Every boundary is preceded by a CRLF, except for the first one if there is no preamble. By
+    // adding a CRLF before the body, we can treat the preamble as a part to be skipped.
+    byte[] delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.UTF_8);
+    InputStream in =
+        new BufferedInputStream(
+            new SequenceInputStream(
+                new ByteArrayInputStream("\r\n".getBytes(StandardCharsets.UTF_8)), body));
+    skip(new PartStream(in, delimiter));
+
+    while (true) {
+      // The boundary is followed by '--' after the last part, or by the end of its line.
+      String rest = readLine(in);
+      if (rest.startsWith("--")) return;
+
+      // Read the headers of this part, looking for the name in its Content-Disposition.
+      String name = null;
+      String header;
+      while (!(header = readLine(in)).isEmpty()) {
+        String[] nameAndValue = header.split(":", 2);
+        if (nameAndValue.length == 2
+            && nameAndValue[0].trim().equalsIgnoreCase("Content-Disposition")) {
+          name = getHeaderParameter(nameAndValue[1], "name");
+        }
+      }
+
+      PartStream value = new PartStream(in, delimiter);
+      if (name != null) handler.handleField(name, value);
+      skip(value);
+    }
+  }
+
+  /** @return The boundary set in the Content-Type of a multipart form. */
+  private static String getBoundary(String contentType) {
+    String boundary = getHeaderParameter(contentType, "boundary");
+    if (boundary == null || boundary.isEmpty()) {
+      throw new IllegalArgumentException(
+          "Expected a boundary in multipart content type '" + contentType + "'");
+    }
+    return boundary;
+  }
+
+  /**
+   * Return the value of a parameter in a header value such as 'form-data; name="jsonld"'.
+   *
+   * @return The value of the parameter, without any quotes, or null if there is no such parameter.
+   */
+  private static String getHeaderParameter(String headerValue, String parameter) {
+    for (String part : headerValue.split(";")) {
+      String[] nameAndValue = part.split("=", 2);
+      if (nameAndValue.length == 2 && nameAndValue[0].trim().equalsIgnoreCase(parameter)) {
+        String value = nameAndValue[1].trim();
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+          value = value.substring(1, value.length() - 1);
+        }
+        return value;
+      }
+    }
+    return null;
+  }
+
+  /** Read a line terminated by CRLF, returning it without its terminator. */
+  private static String readLine(InputStream in) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) != '\n') {
+      if (b == -1) throw new IllegalArgumentException("Multipart form ended unexpectedly");
+      if (line.size() >= MAX_FIELD_LENGTH) {
+        throw new IllegalArgumentException(
+            "Multipart header is longer than " + MAX_FIELD_LENGTH + " bytes");
+      }
+      line.write(b);
+    }
+    String result = new String(line.toByteArray(), StandardCharsets.UTF_8);
+    return result.endsWith("\r") ? result.substring(0, result.length() - 1) : result;
+  }
+
+  /** An input stream that ends after a set number of bytes. */
+  private static class LimitedInputStream extends InputStream {
+    private final InputStream in;
+    private long remaining;
+
+    LimitedInputStream(InputStream in, long length) {
+      this.in = in;
+      this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (remaining <= 0) return -1;
+      int b = in.read();
+      if (b == -1) throw new IOException("Request body ended before its Content-Length");
+      remaining--;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      if (remaining <= 0) return -1;
+      int count = in.read(buffer, offset, (int) Math.min(length, remaining));
+      if (count == -1) throw new IOException("Request body ended before its Content-Length");
+      remaining -= count;
+      return count;
+    }
+  }
+
+  /** The value of a field in a URL-encoded form, which is decoded as it is read. */
+  private static class URLEncodedValueStream extends InputStream {
+    private final InputStream in;
+    private boolean ended;
+    private boolean endOfForm = false;
+
+    /**
+     * @param in The form, positioned at the start of the value.
+     * @param empty True if the field has no value (i.e. its name wasn't followed by '=').
+     */
+    URLEncodedValueStream(InputStream in, boolean empty) {
+      this.in = in;
+      this.ended = empty;
+    }
+
+    /** @return True if this value was the last one in the form. */
+    boolean isEndOfForm() {
+      return endOfForm;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (ended) return -1;
+
+      int b = in.read();
+      if (b == -1 || b == '&') {
+        ended = true;
+        endOfForm = (b == -1);
+        return -1;
+      }
+      if (b == '+') return ' ';
+      if (b == '%') {
+        int high = Character.digit(in.read(), 16);
+        int low = Character.digit(in.read(), 16);
+        if (high == -1 || low == -1) {
+          throw new IllegalArgumentException("Form contains an invalid percent-encoded byte");
+        }
+        return (high << 4) | low;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      return readBytes(this, buffer, offset, length);
+    }
+  }
+
+  /** A part of a multipart form, which ends at the next boundary delimiter. */
+  private static class PartStream extends InputStream {
+    private final InputStream in;
+    private final byte[] delimiter;
+    private boolean ended = false;
+
+    /**
+     * @param in The form, which must support mark() and reset(), positioned at the start of the
+     *     part.
+     * @param delimiter The delimiter that ends the part (CRLF, '--' and the boundary).
+     */
+    PartStream(InputStream in, byte[] delimiter) {
+      this.in = in;
+      this.delimiter = delimiter;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (ended) return -1;
+
+      int b = in.read();
+      if (b == -1) throw new IllegalArgumentException("Multipart form ended unexpectedly");
+      if (b != delimiter[0]) return b;
+
+      // This might be the start of the delimiter; if it isn't, we go back to the next byte.
+      in.mark(delimiter.length);
+      for (int i = 1; i < delimiter.length; i++) {
+        if (in.read() != delimiter[i]) {
+          in.reset();
+          return b;
+        }
+      }
+      ended = true;
+      return -1;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      return readBytes(this, buffer, offset, length);
+    }
+  }
+
+  /** Fill a buffer from a stream that decodes its input one byte at a time. */
+  private static int readBytes(InputStream in, byte[] buffer, int offset, int length)
+      throws IOException {
+    if (length == 0) return 0;
+    int count = 0;
+    while (count < length) {
+      int b = in.read();
+      if (b == -1) break;
+      buffer[offset + count++] = (byte) b;
+    }
+    return (count == 0) ? -1 : count;
+  }
+}
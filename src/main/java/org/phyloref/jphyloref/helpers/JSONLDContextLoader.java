@@ -0,0 +1,230 @@
+package org.phyloref.jphyloref.helpers;
+
+import com.github.jsonldjava.core.DocumentLoader;
+import com.github.jsonldjava.core.JsonLdError;
+import com.github.jsonldjava.core.RemoteDocument;
+import com.github.jsonldjava.utils.JsonUtils;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A JSON-LD document loader that serves JSON-LD contexts (such as the Phyx context at
+ * http://www.phyloref.org/phyx.js/context/v0.2.0/phyx.json) from a local cache, so that we don't
+ * need to download them every time we parse a JSON-LD file.
+ *
+ * <p>When a context is requested, we look for it in the following places, in order:
+ *
+ * <ol>
+ *   <li>Contexts that have already been loaded and parsed by this JVM.
+ *   <li>If a context cache directory has been set (with '--context-cache'), a file in that
+ *       directory named after the host and path of the context URL (e.g.
+ *       'www.phyloref.org/phyx.js/context/v0.2.0/phyx.json').
+ *   <li>A resource bundled in the JAR file under the 'contexts/' folder (e.g.
+ *       '/contexts/www.phyloref.org/phyx.js/context/v0.2.0/phyx.json').
+ *   <li>The context URL itself, which is downloaded using jsonld-java's default document loader.
+ *       You can prevent this by setting the system property
+ *       'com.github.jsonldjava.disallowRemoteContextLoading' to 'true'. If a context cache
+ *       directory has been set, downloaded contexts are saved there, so that later runs of
+ *       JPhyloRef can use them offline. Otherwise, nothing is written to disk.
+ * </ol>
+ *
+ * <p>Whichever way a context is loaded, it is only parsed once per JVM, and is then reused for
+ * every subsequent request. Parsed contexts are shared between threads and must not be modified.
+ */
+public class JSONLDContextLoader extends DocumentLoader {
+  /** Set up a logger to use for providing logging. */
+  private static final Logger logger = LoggerFactory.getLogger(JSONLDContextLoader.class);
+
+  /** The folder in the JAR file in which we look for bundled contexts. */
+  public static final String CONTEXTS_DIRECTORY = "contexts";
+
+  /**
+   * The folder in which we look for cached contexts and save downloaded ones, or null if contexts
+   * should not be cached on disk.
+   */
+  private volatile File contextsDirectory = null;
+
+  /** The single instance of this class shared by all the parsers in this JVM. */
+  private static final JSONLDContextLoader instance = new JSONLDContextLoader();
+
+  /** Parsed contexts, keyed by the URL they were requested with. */
+  private final Map<String, Object> contextsByURL = new ConcurrentHashMap<>();
+
+  /** The number of requests answered from previously parsed contexts. */
+  private final AtomicLong hits = new AtomicLong();
+
+  /** The number of requests that required a context to be read and parsed. */
+  private final AtomicLong misses = new AtomicLong();
+
+  /** @return The context loader shared by all the JSON-LD parsers in this JVM. */
+  public static JSONLDContextLoader getInstance() {
+    return instance;
+  }
+
+  /**
+   * Load a JSON-LD document, either from the cache or from one of the locations listed in the class
+   * description.
+   *
+   * @param url The URL of the document to load.
+   * @return A RemoteDocument containing the parsed document.
+   * @throws JsonLdError If the document could not be loaded or parsed.
+   */
+  @Override
+  public RemoteDocument loadDocument(String url) throws JsonLdError {
+    Object context = contextsByURL.get(url);
+    if (context != null) {
+      hits.incrementAndGet();
+      return new RemoteDocument(url, context);
+    }
+
+    // We haven't seen this context before, so we need to load it.
+    misses.incrementAndGet();
+    context = loadLocalContext(url);
+    if (context == null) {
+      logger.info("JSON-LD context <{}> not found locally, downloading it", url);
+      context = super.loadDocument(url).getDocument();
+      saveLocalContext(url, context);
+    }
+
+    // If another thread loaded the same context at the same time, use the copy it stored.
+    Object previous = contextsByURL.putIfAbsent(url, context);
+    if (previous != null) context = previous;
+
+    return new RemoteDocument(url, context);
+  }
+
+  /**
+   * Look for a context in the context cache directory or among the resources bundled with
+   * JPhyloRef.
+   *
+   * @param url The URL of the context to look for.
+   * @return The parsed context, or null if no local copy could be found.
+   * @throws JsonLdError If a local copy was found but could not be read.
+   */
+  private Object loadLocalContext(String url) throws JsonLdError {
+    String path = getLocalPath(url);
+    if (path == null) return null;
+
+    try {
+      // Look for a file in the context cache directory.
+      File directory = contextsDirectory;
+      File file = (directory == null) ? null : new File(directory, path);
+      if (file != null && file.isFile()) {
+        logger.info("Loading JSON-LD context <{}> from '{}'", url, file);
+        try (InputStream stream = new FileInputStream(file)) {
+          return JsonUtils.fromInputStream(stream);
+        }
+      }
+
+      // Look for a resource bundled with JPhyloRef.
+      try (InputStream stream =
+          JSONLDContextLoader.class.getResourceAsStream("/" + CONTEXTS_DIRECTORY + "/" + path)) {
+        if (stream != null) {
+          logger.info("Loading JSON-LD context <{}> from bundled resources", url);
+          return JsonUtils.fromInputStream(stream);
+        }
+      }
+    } catch (IOException ex) {
+      throw new JsonLdError(JsonLdError.Error.LOADING_REMOTE_CONTEXT_FAILED, url, ex);
+    }
+
+    return null;
+  }
+
+  /**
+   * Save a downloaded context in the context cache directory (if one has been set), so that we
+   * don't need to download it again the next time JPhyloRef is run. We write it to a temporary file
+   * first, so that other processes never see a partly-written context. Failing to save a context
+   * isn't an error, since we have already downloaded it.
+   *
+   * @param url The URL the context was downloaded from.
+   * @param context The parsed context.
+   */
+  private void saveLocalContext(String url, Object context) {
+    File directory = contextsDirectory;
+    String path = getLocalPath(url);
+    if (directory == null || path == null) return;
+
+    Path file = new File(directory, path).toPath();
+    try {
+      Files.createDirectories(file.getParent());
+      Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+      try {
+        Files.write(temp, JsonUtils.toPrettyString(context).getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+      logger.info("Saved JSON-LD context <{}> to '{}'", url, file);
+    } catch (IOException | RuntimeException ex) {
+      logger.warn("Could not save JSON-LD context <{}> to '{}': {}", url, file, ex.toString());
+    }
+  }
+
+  /**
+   * Set the folder in which we look for cached contexts and save downloaded ones. By default,
+   * contexts are not cached on disk.
+   *
+   * @param directory The folder to use, or null to stop caching contexts on disk.
+   */
+  public void setContextsDirectory(File directory) {
+    contextsDirectory = directory;
+  }
+
+  /**
+   * Determine where a local copy of a context would be stored. We use the host and path of the URL,
+   * so 'http://www.phyloref.org/phyx.js/context/v0.2.0/phyx.json' is stored as
+   * 'www.phyloref.org/phyx.js/context/v0.2.0/phyx.json'.
+   *
+   * @param url The URL of the context.
+   * @return A relative path, or null if this URL can't be stored locally.
+   */
+  static String getLocalPath(String url) {
+    int schemeEnd = url.indexOf("://");
+    if (schemeEnd < 0) return null;
+
+    String path = url.substring(schemeEnd + 3);
+
+    // Remove any query or fragment.
+    int queryStart = path.indexOf('?');
+    if (queryStart >= 0) path = path.substring(0, queryStart);
+    int fragmentStart = path.indexOf('#');
+    if (fragmentStart >= 0) path = path.substring(0, fragmentStart);
+
+    // Don't allow paths to escape the contexts folder.
+    if (path.isEmpty() || path.endsWith("/") || path.contains("..")) return null;
+
+    return path;
+  }
+
+  /** @return The number of requests answered from previously parsed contexts. */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /** @return The number of requests that required a context to be read and parsed. */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /** @return The number of contexts currently cached. */
+  public int size() {
+    return contextsByURL.size();
+  }
+
+  /** Remove all cached contexts, forcing them to be reloaded when they are next requested. */
+  public void clear() {
+    contextsByURL.clear();
+  }
+}
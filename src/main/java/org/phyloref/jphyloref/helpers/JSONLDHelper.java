@@ -1,14 +1,38 @@
 package org.phyloref.jphyloref.helpers;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.github.jsonldjava.core.JsonLdError;
+import com.github.jsonldjava.core.JsonLdOptions;
+import com.github.jsonldjava.core.JsonLdProcessor;
+import com.github.jsonldjava.core.RDFDataset;
+import com.github.jsonldjava.utils.JsonUtils;
+import java.io.CharArrayReader;
+import java.io.CharArrayWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.Map;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.Value;
 import org.eclipse.rdf4j.rio.RDFFormat;
+import org.eclipse.rdf4j.rio.RDFHandler;
+import org.eclipse.rdf4j.rio.RDFHandlerException;
+import org.eclipse.rdf4j.rio.RDFParseException;
 import org.eclipse.rdf4j.rio.RDFParser;
-import org.eclipse.rdf4j.rio.Rio;
+import org.eclipse.rdf4j.rio.helpers.AbstractRDFParser;
 import org.semanticweb.owlapi.formats.RDFJsonLDDocumentFormat;
 import org.semanticweb.owlapi.model.IRI;
 import org.semanticweb.owlapi.model.OWLOntology;
 import org.semanticweb.owlapi.model.OWLOntologyLoaderConfiguration;
 import org.semanticweb.owlapi.rio.RioOWLRDFConsumerAdapter;
 import org.semanticweb.owlapi.util.AnonymousNodeChecker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * JSONLDHelper provides methods to help read and process JSON-LD files.
@@ -16,9 +40,154 @@ import org.semanticweb.owlapi.util.AnonymousNodeChecker;
  * @author Gaurav Vaidya
  */
 public class JSONLDHelper {
+  /** Set up a logger to use for providing logging. */
+  private static final Logger logger = LoggerFactory.getLogger(JSONLDHelper.class);
+
+  /**
+   * The size up to which documents being loaded with the Phyx loader are kept in memory in case
+   * they need to be loaded again with the rdf4j loader, in bytes. Larger documents are spooled to a
+   * temporary file.
+   */
+  private static final long FALLBACK_MEMORY_THRESHOLD_BYTES = 64L * 1024 * 1024;
+
+  /** The JSON-LD loader that converts JSON-LD into RDF, and then RDF into OWL. */
+  public static final String LOADER_RDF4J = "rdf4j";
+
+  /** The JSON-LD loader that reads Phyx documents directly into OWL (see {@link PhyxLoader}). */
+  public static final String LOADER_PHYX = "phyx";
+
+  /**
+   * Load a JSON-LD file into an ontology, using the JSON-LD loader chosen on the command line.
+   *
+   * <p>If the Phyx loader is chosen but can't load the document, the document is loaded with the
+   * rdf4j loader instead. The document is spooled as it is read (see {@link SpooledDocument}) so
+   * that it can be read again.
+   *
+   * @param in The input stream to read the JSON-LD file from.
+   * @param baseURI The base URI to resolve relative URIs against.
+   * @param ontology The ontology to add the contents of the JSON-LD file to.
+   * @param cmdLine The command line options, which may include '--jsonld-loader'.
+   * @throws IOException If the JSON-LD file could not be read.
+   * @throws RDFParseException If the JSON-LD file could not be parsed.
+   */
+  public static void loadJSONLD(
+      InputStream in, String baseURI, OWLOntology ontology, CommandLine cmdLine)
+      throws IOException, RDFParseException {
+    if (!getLoaderFromCmdLine(cmdLine).equals(LOADER_PHYX)) {
+      createRDFParserForOntology(ontology).parse(in, baseURI);
+      return;
+    }
+
+    try (SpooledDocument document =
+        new SpooledDocument(FALLBACK_MEMORY_THRESHOLD_BYTES, Long.MAX_VALUE, null)) {
+      document.readFrom(in);
+      try (InputStream input = document.openStream()) {
+        new PhyxLoader(ontology).load(input, baseURI);
+        return;
+      } catch (RDFParseException ex) {
+        logger.warn(
+            "Could not load document with the Phyx loader, using rdf4j instead: {}",
+            ex.getMessage());
+      }
+      try (InputStream input = document.openStream()) {
+        createRDFParserForOntology(ontology).parse(input, baseURI);
+      }
+    }
+  }
+
+  /**
+   * Load a JSON-LD file into an ontology, using the JSON-LD loader chosen on the command line.
+   *
+   * <p>If the Phyx loader is chosen but can't load the document, the document is loaded with the
+   * rdf4j loader instead. The document is read into memory first so that it can be read again.
+   *
+   * @param reader The reader to read the JSON-LD file from.
+   * @param baseURI The base URI to resolve relative URIs against.
+   * @param ontology The ontology to add the contents of the JSON-LD file to.
+   * @param cmdLine The command line options, which may include '--jsonld-loader'.
+   * @throws IOException If the JSON-LD file could not be read.
+   * @throws RDFParseException If the JSON-LD file could not be parsed.
+   */
+  public static void loadJSONLD(
+      Reader reader, String baseURI, OWLOntology ontology, CommandLine cmdLine)
+      throws IOException, RDFParseException {
+    if (!getLoaderFromCmdLine(cmdLine).equals(LOADER_PHYX)) {
+      createRDFParserForOntology(ontology).parse(reader, baseURI);
+      return;
+    }
+
+    CharArrayWriter document = new CharArrayWriter();
+    char[] buffer = new char[8192];
+    for (int count = reader.read(buffer); count != -1; count = reader.read(buffer)) {
+      document.write(buffer, 0, count);
+    }
+    try {
+      new PhyxLoader(ontology).load(new CharArrayReader(document.toCharArray()), baseURI);
+    } catch (RDFParseException ex) {
+      logger.warn(
+          "Could not load document with the Phyx loader, using rdf4j instead: {}", ex.getMessage());
+      createRDFParserForOntology(ontology)
+          .parse(new CharArrayReader(document.toCharArray()), baseURI);
+    }
+  }
+
+  /**
+   * Return the name of the JSON-LD loader chosen on the command line with '--jsonld-loader',
+   * defaulting to the rdf4j loader.
+   */
+  public static String getLoaderFromCmdLine(CommandLine cmdLine) {
+    String loader = cmdLine.getOptionValue("jsonld-loader", LOADER_RDF4J);
+    if (!loader.equals(LOADER_RDF4J) && !loader.equals(LOADER_PHYX)) {
+      throw new IllegalArgumentException(
+          "No JSON-LD loader named '"
+              + loader
+              + "'; must be one of: ["
+              + LOADER_RDF4J
+              + ", "
+              + LOADER_PHYX
+              + "]");
+    }
+    return loader;
+  }
+
+  /** Add command line options that can be read by getLoaderFromCmdLine() */
+  public static void addCommandLineOptions(Options opts) {
+    opts.addOption(
+        "l",
+        "jsonld-loader",
+        true,
+        "How JSON-LD files should be loaded: '"
+            + LOADER_RDF4J
+            + "' (default) converts them into RDF and then into OWL, while '"
+            + LOADER_PHYX
+            + "' reads Phyx documents directly into OWL, falling back to '"
+            + LOADER_RDF4J
+            + "' for documents it can't read");
+    opts.addOption(
+        Option.builder()
+            .longOpt("context-cache")
+            .hasArg()
+            .argName("directory")
+            .desc(
+                "Save downloaded JSON-LD contexts in this directory, and look for them there before downloading them (by default, contexts are not saved)")
+            .build());
+  }
+
+  /**
+   * Configure the shared {@link JSONLDContextLoader} with the context cache directory chosen on the
+   * command line with '--context-cache'. If no directory is chosen, contexts are not cached on
+   * disk.
+   */
+  public static void configureContextCache(CommandLine cmdLine) {
+    String directory = cmdLine.getOptionValue("context-cache");
+    JSONLDContextLoader.getInstance()
+        .setContextsDirectory(directory == null ? null : new File(directory));
+  }
+
   /**
    * Create an RDFParser for JSON-LD files. When the parser's <code>parse()</code> method is called,
-   * its contents will be added to the OWLOntology passed to this method.
+   * its contents will be added to the OWLOntology passed to this method. Any JSON-LD contexts
+   * referred to by the file will be loaded using the {@link JSONLDContextLoader}.
    *
    * @param ontology The ontology to create an RDF parser for.
    * @return An RDF Parser that can be used to read an OWL ontology from JSON-LD.
@@ -50,16 +219,121 @@ public class JSONLDHelper {
           }
         };
 
-    // Create a RioOWLRDFConsumerAdapter, and use it as an RDFHandler.
-    OWLOntologyLoaderConfiguration config = new OWLOntologyLoaderConfiguration();
+    // Create a RioOWLRDFConsumerAdapter, and use it as an RDFHandler. Imports are loaded with the
+    // ontology manager's loader configuration.
+    OWLOntologyLoaderConfiguration config =
+        ontology.getOWLOntologyManager().getOntologyLoaderConfiguration();
     RioOWLRDFConsumerAdapter rdfHandler =
         new RioOWLRDFConsumerAdapter(ontology, anonymousNodeChecker, config);
     rdfHandler.setOntologyFormat(new RDFJsonLDDocumentFormat());
 
     // Set up an RDF parser to read the JSON-LD file.
-    RDFParser parser = Rio.createParser(RDFFormat.JSONLD);
+    RDFParser parser = new ContextCachingJSONLDParser();
     parser.setRDFHandler(rdfHandler);
 
     return parser;
   }
+
+  /**
+   * An RDF parser for JSON-LD files that loads JSON-LD contexts using the shared {@link
+   * JSONLDContextLoader}, so that contexts are only ever downloaded and parsed once per JVM.
+   *
+   * <p>This is based on rdf4j's JSONLDParser, which doesn't allow us to change the document loader
+   * used by jsonld-java.
+   */
+  private static class ContextCachingJSONLDParser extends AbstractRDFParser {
+    @Override
+    public RDFFormat getRDFFormat() {
+      return RDFFormat.JSONLD;
+    }
+
+    @Override
+    public void parse(InputStream in, String baseURI)
+        throws IOException, RDFParseException, RDFHandlerException {
+      try {
+        parseJSON(JsonUtils.fromInputStream(in), baseURI);
+      } catch (JsonProcessingException ex) {
+        throw new RDFParseException("Could not parse JSONLD", ex);
+      }
+    }
+
+    @Override
+    public void parse(Reader reader, String baseURI)
+        throws IOException, RDFParseException, RDFHandlerException {
+      try {
+        parseJSON(JsonUtils.fromReader(reader), baseURI);
+      } catch (JsonProcessingException ex) {
+        throw new RDFParseException("Could not parse JSONLD", ex);
+      }
+    }
+
+    /**
+     * Convert a JSON document into RDF, and send the resulting statements to the RDF handler.
+     *
+     * @param json The JSON document, as read by jsonld-java's JsonUtils.
+     * @param baseURI The base URI to resolve relative URIs against.
+     */
+    private void parseJSON(Object json, String baseURI)
+        throws RDFParseException, RDFHandlerException {
+      clear();
+      try {
+        JsonLdOptions options = new JsonLdOptions(baseURI);
+        options.useNamespaces = true;
+        options.setDocumentLoader(JSONLDContextLoader.getInstance());
+
+        RDFDataset dataset = (RDFDataset) JsonLdProcessor.toRDF(json, options);
+
+        RDFHandler handler = getRDFHandler();
+        handler.startRDF();
+        for (Map.Entry<String, String> namespace : dataset.getNamespaces().entrySet()) {
+          handler.handleNamespace(namespace.getKey(), namespace.getValue());
+        }
+
+        for (String graphName : dataset.graphNames()) {
+          Resource context = graphName.equals("@default") ? null : createResource(graphName);
+          for (RDFDataset.Quad quad : dataset.getQuads(graphName)) {
+            Resource subject = createResource(quad.getSubject().getValue());
+            org.eclipse.rdf4j.model.IRI predicate =
+                valueFactory.createIRI(quad.getPredicate().getValue());
+
+            RDFDataset.Node objectNode = quad.getObject();
+            Value object;
+            if (objectNode.isLiteral()) {
+              String datatype = objectNode.getDatatype();
+              object =
+                  createLiteral(
+                      objectNode.getValue(),
+                      objectNode.getLanguage(),
+                      datatype == null ? null : valueFactory.createIRI(datatype));
+            } else {
+              object = createResource(objectNode.getValue());
+            }
+
+            Statement statement =
+                (context == null)
+                    ? valueFactory.createStatement(subject, predicate, object)
+                    : valueFactory.createStatement(subject, predicate, object, context);
+            handler.handleStatement(statement);
+          }
+        }
+        handler.endRDF();
+      } catch (JsonLdError ex) {
+        throw new RDFParseException("Could not parse JSONLD", ex);
+      } finally {
+        clear();
+      }
+    }
+
+    /**
+     * Create an RDF resource for an IRI or blank node produced by jsonld-java.
+     *
+     * @param value An IRI, or a blank node identifier starting with '_:'.
+     * @return An IRI or blank node.
+     */
+    private Resource createResource(String value) throws RDFParseException {
+      if (value.equals("_:")) return createNode();
+      if (value.startsWith("_:")) return createNode(value.substring(2));
+      return valueFactory.createIRI(value);
+    }
+  }
 }
@@ -0,0 +1,387 @@
+package org.phyloref.jphyloref.helpers;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A set of counters and histograms that can be written out in the Prometheus text exposition format
+ * (see https://prometheus.io/docs/instrumenting/exposition_formats/), for the webserver's /metrics
+ * endpoint.
+ *
+ * <p>Counters and histograms are recorded with LongAdders and DoubleAdders, which are striped
+ * across threads, so recording a value never takes a lock or contends with other threads recording
+ * the same metric. Metrics with labels keep one child per combination of label values in a
+ * ConcurrentHashMap; once a child has been created, looking it up is a lock-free read. Values that
+ * can be read directly when the metrics are written out (such as the depth of a queue) should be
+ * written as gauges by the caller with writeGauge(), rather than being tracked here.
+ */
+public class Metrics {
+  /** The default histogram buckets for durations, in seconds. */
+  public static final double[] DURATION_BUCKETS = {
+    0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300
+  };
+
+  /** A counter, which only ever goes up. */
+  public static class Counter {
+    private final LongAdder value = new LongAdder();
+
+    /** Add one to this counter. */
+    public void increment() {
+      value.increment();
+    }
+
+    /** Add an amount to this counter. */
+    public void add(long amount) {
+      value.add(amount);
+    }
+
+    /** @return The current value of this counter. */
+    public long get() {
+      return value.sum();
+    }
+  }
+
+  /** A histogram, which counts the values observed in each of a set of buckets. */
+  public static class Histogram {
+    private final double[] upperBounds;
+    private final LongAdder[] buckets;
+    private final LongAdder count = new LongAdder();
+    private final DoubleAdder sum = new DoubleAdder();
+
+    private Histogram(double[] upperBounds) {
+      this.upperBounds = upperBounds;
+      this.buckets = new LongAdder[upperBounds.length];
+      for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+    }
+
+    /** Record a value in this histogram. */
+    public void observe(double value) {
+      // Each value is only counted in its own bucket; buckets are made cumulative when written.
+      int bucket = Arrays.binarySearch(upperBounds, value);
+      if (bucket < 0) bucket = -bucket - 1;
+      if (bucket < buckets.length) buckets[bucket].increment();
+      count.increment();
+      sum.add(value);
+    }
+
+    /** @return The number of values recorded in this histogram. */
+    public long getCount() {
+      return count.sum();
+    }
+
+    /** @return The sum of the values recorded in this histogram. */
+    public double getSum() {
+      return sum.sum();
+    }
+  }
+
+  /**
+   * A metric, with a child (a Counter or a Histogram) for each combination of values of its labels.
+   */
+  public abstract static class Family<T> {
+    private final String name;
+    private final String help;
+    private final List<String> labelNames;
+    private final Map<List<String>, T> children = new ConcurrentHashMap<>();
+
+    private Family(String name, String help, String... labelNames) {
+      this.name = name;
+      this.help = help;
+      this.labelNames = Arrays.asList(labelNames);
+    }
+
+    /**
+     * Return the child of this metric with a set of label values, creating it if necessary.
+     *
+     * @param labelValues The value of each label, in the order in which they were named.
+     * @return The child for these label values.
+     * @throws IllegalArgumentException If the wrong number of label values was provided.
+     */
+    public T labels(String... labelValues) {
+      if (labelValues.length != labelNames.size()) {
+        throw new IllegalArgumentException(
+            "Metric '"
+                + name
+                + "' expects labels "
+                + labelNames
+                + ", but got "
+                + labelValues.length);
+      }
+      List<String> key = Arrays.asList(labelValues);
+      T child = children.get(key);
+      if (child != null) return child;
+      return children.computeIfAbsent(key, k -> create());
+    }
+
+    /** Create a new child for a combination of label values. */
+    abstract T create();
+
+    /** Write out the samples of a single child. */
+    abstract void writeSamples(StringBuilder out, List<String> labelValues, T child);
+
+    /** Write out this metric and all its children. */
+    void write(StringBuilder out, String type) {
+      writeHeader(out, name, help, type);
+      for (Map.Entry<List<String>, T> entry : children.entrySet()) {
+        writeSamples(out, entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  /** A counter with labels. */
+  public static class CounterFamily extends Family<Counter> {
+    private CounterFamily(String name, String help, String... labelNames) {
+      super(name, help, labelNames);
+    }
+
+    @Override
+    Counter create() {
+      return new Counter();
+    }
+
+    @Override
+    void writeSamples(StringBuilder out, List<String> labelValues, Counter counter) {
+      writeSample(out, super.name, super.labelNames, labelValues, counter.get());
+    }
+  }
+
+  /** A histogram with labels. */
+  public static class HistogramFamily extends Family<Histogram> {
+    private final double[] upperBounds;
+
+    private HistogramFamily(String name, String help, double[] upperBounds, String... labelNames) {
+      super(name, help, labelNames);
+      this.upperBounds = upperBounds.clone();
+      Arrays.sort(this.upperBounds);
+    }
+
+    @Override
+    Histogram create() {
+      return new Histogram(upperBounds);
+    }
+
+    @Override
+    void writeSamples(StringBuilder out, List<String> labelValues, Histogram histogram) {
+      List<String> bucketLabelNames = new ArrayList<>(super.labelNames);
+      bucketLabelNames.add("le");
+
+      // Values may be recorded while we write them out. We read the count first and cap the
+      // buckets at it, so that the buckets never add up to more than the count.
+      long count = histogram.getCount();
+      double sum = histogram.getSum();
+      long cumulative = 0;
+      for (int i = 0; i < upperBounds.length; i++) {
+        cumulative += histogram.buckets[i].sum();
+        List<String> bucketLabelValues = new ArrayList<>(labelValues);
+        bucketLabelValues.add(formatValue(upperBounds[i]));
+        writeSample(
+            out,
+            super.name + "_bucket",
+            bucketLabelNames,
+            bucketLabelValues,
+            Math.min(cumulative, count));
+      }
+      List<String> infLabelValues = new ArrayList<>(labelValues);
+      infLabelValues.add("+Inf");
+      writeSample(out, super.name + "_bucket", bucketLabelNames, infLabelValues, count);
+      writeSample(out, super.name + "_sum", super.labelNames, labelValues, sum);
+      writeSample(out, super.name + "_count", super.labelNames, labelValues, count);
+    }
+  }
+
+  /** The counters registered with this set of metrics, in the order in which they were added. */
+  private final List<CounterFamily> counters = new CopyOnWriteArrayList<>();
+
+  /** The histograms registered with this set of metrics, in the order in which they were added. */
+  private final List<HistogramFamily> histograms = new CopyOnWriteArrayList<>();
+
+  /**
+   * Add a counter to this set of metrics.
+   *
+   * @param name The name of the counter, which should end in '_total'.
+   * @param help A description of the counter.
+   * @param labelNames The names of the labels the counter is broken down by, if any.
+   * @return The counter. Use labels() to look up the counter for a set of label values.
+   */
+  public CounterFamily counter(String name, String help, String... labelNames) {
+    CounterFamily counter = new CounterFamily(name, help, labelNames);
+    counters.add(counter);
+    return counter;
+  }
+
+  /**
+   * Add a histogram to this set of metrics.
+   *
+   * @param name The name of the histogram.
+   * @param help A description of the histogram.
+   * @param upperBounds The upper bound of each bucket (an additional bucket for all values is added
+   *     automatically).
+   * @param labelNames The names of the labels the histogram is broken down by, if any.
+   * @return The histogram. Use labels() to look up the histogram for a set of label values.
+   */
+  public HistogramFamily histogram(
+      String name, String help, double[] upperBounds, String... labelNames) {
+    HistogramFamily histogram = new HistogramFamily(name, help, upperBounds, labelNames);
+    histograms.add(histogram);
+    return histogram;
+  }
+
+  /**
+   * Write out every counter and histogram in this set of metrics.
+   *
+   * @param out The StringBuilder to write the metrics to.
+   */
+  public void write(StringBuilder out) {
+    for (CounterFamily counter : counters) counter.write(out, "counter");
+    for (HistogramFamily histogram : histograms) histogram.write(out, "histogram");
+  }
+
+  /**
+   * Write out the heap and non-heap memory usage and the garbage collector statistics of this JVM.
+   *
+   * @param out The StringBuilder to write the metrics to.
+   */
+  public static void writeJVMMetrics(StringBuilder out) {
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    List<String> area = Collections.singletonList("area");
+    MemoryUsage heap = memory.getHeapMemoryUsage();
+    MemoryUsage nonHeap = memory.getNonHeapMemoryUsage();
+
+    writeHeader(out, "jvm_memory_bytes_used", "Memory used by the JVM, in bytes.", "gauge");
+    writeSample(out, "jvm_memory_bytes_used", area, Arrays.asList("heap"), heap.getUsed());
+    writeSample(out, "jvm_memory_bytes_used", area, Arrays.asList("nonheap"), nonHeap.getUsed());
+    writeHeader(
+        out, "jvm_memory_bytes_committed", "Memory committed by the JVM, in bytes.", "gauge");
+    writeSample(
+        out, "jvm_memory_bytes_committed", area, Arrays.asList("heap"), heap.getCommitted());
+    writeSample(
+        out, "jvm_memory_bytes_committed", area, Arrays.asList("nonheap"), nonHeap.getCommitted());
+    writeGauge(
+        out,
+        "jvm_memory_bytes_max",
+        "The maximum heap the JVM may use, in bytes, or -1 if it isn't limited.",
+        heap.getMax());
+
+    List<String> gc = Collections.singletonList("gc");
+    List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+    writeHeader(
+        out, "jvm_gc_collections_total", "Collections run by each garbage collector.", "counter");
+    for (GarbageCollectorMXBean collector : collectors) {
+      writeSample(
+          out,
+          "jvm_gc_collections_total",
+          gc,
+          Arrays.asList(collector.getName()),
+          Math.max(0, collector.getCollectionCount()));
+    }
+    writeHeader(
+        out,
+        "jvm_gc_collection_seconds_total",
+        "Time spent by each garbage collector, in seconds.",
+        "counter");
+    for (GarbageCollectorMXBean collector : collectors) {
+      writeSample(
+          out,
+          "jvm_gc_collection_seconds_total",
+          gc,
+          Arrays.asList(collector.getName()),
+          Math.max(0, collector.getCollectionTime()) / 1000.0);
+    }
+
+    writeGauge(
+        out,
+        "jvm_threads_live",
+        "The number of live platform threads.",
+        ManagementFactory.getThreadMXBean().getThreadCount());
+  }
+
+  /**
+   * Write out a gauge without labels, whose value is read when the metrics are written out.
+   *
+   * @param out The StringBuilder to write the gauge to.
+   * @param name The name of the gauge.
+   * @param help A description of the gauge.
+   * @param value The current value of the gauge.
+   */
+  public static void writeGauge(StringBuilder out, String name, String help, double value) {
+    writeHeader(out, name, help, "gauge");
+    writeSample(out, name, Collections.emptyList(), Collections.emptyList(), value);
+  }
+
+  /**
+   * Write out a counter without labels, whose value is tracked elsewhere and read when the metrics
+   * are written out.
+   *
+   * @param out The StringBuilder to write the counter to.
+   * @param name The name of the counter, which should end in '_total'.
+   * @param help A description of the counter.
+   * @param value The current value of the counter.
+   */
+  public static void writeCounter(StringBuilder out, String name, String help, long value) {
+    writeHeader(out, name, help, "counter");
+    writeSample(out, name, Collections.emptyList(), Collections.emptyList(), value);
+  }
+
+  /**
+   * Write out the HELP and TYPE lines that precede the samples of a metric.
+   *
+   * @param out The StringBuilder to write to.
+   * @param name The name of the metric.
+   * @param help A description of the metric.
+   * @param type The type of the metric: 'counter', 'gauge' or 'histogram'.
+   */
+  public static void writeHeader(StringBuilder out, String name, String help, String type) {
+    out.append("# HELP ").append(name).append(' ');
+    out.append(help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  /**
+   * Write out a single sample of a metric.
+   *
+   * @param out The StringBuilder to write to.
+   * @param name The name of the sample.
+   * @param labelNames The names of its labels.
+   * @param labelValues The values of its labels, in the same order as their names.
+   * @param value The value of the sample.
+   */
+  public static void writeSample(
+      StringBuilder out,
+      String name,
+      List<String> labelNames,
+      List<String> labelValues,
+      double value) {
+    out.append(name);
+    if (!labelNames.isEmpty()) {
+      out.append('{');
+      for (int i = 0; i < labelNames.size(); i++) {
+        if (i > 0) out.append(',');
+        out.append(labelNames.get(i)).append("=\"");
+        out.append(
+            labelValues.get(i).replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"));
+        out.append('"');
+      }
+      out.append('}');
+    }
+    out.append(' ').append(formatValue(value)).append('\n');
+  }
+
+  /** Format a value as Prometheus expects, writing integers without a decimal point. */
+  private static String formatValue(double value) {
+    if (Double.isNaN(value)) return "NaN";
+    if (Double.isInfinite(value)) return (value > 0) ? "+Inf" : "-Inf";
+    if (value == Math.rint(value) && Math.abs(value) < 1e15) return String.valueOf((long) value);
+    return String.valueOf(value);
+  }
+}
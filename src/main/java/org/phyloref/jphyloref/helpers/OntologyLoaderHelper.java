@@ -0,0 +1,134 @@
+package org.phyloref.jphyloref.helpers;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import org.apache.commons.cli.CommandLine;
+import org.semanticweb.owlapi.apibinding.OWLManager;
+import org.semanticweb.owlapi.model.OWLOntology;
+import org.semanticweb.owlapi.model.OWLOntologyCreationException;
+import org.semanticweb.owlapi.model.OWLOntologyManager;
+import org.semanticweb.owlapi.util.AutoIRIMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * OntologyLoaderHelper loads input ontologies for the commands, so that they all read JSON-LD with
+ * the loader chosen on the command line, use local copies of imported ontologies and record the
+ * same Flight Recorder events.
+ */
+public class OntologyLoaderHelper {
+  /** Set up a logger to use for providing logging. */
+  private static final Logger logger = LoggerFactory.getLogger(OntologyLoaderHelper.class);
+
+  /**
+   * The base URI used to read JSON-LD files. The input JSON-LD ontology will usually provide one in
+   * the '@id' field, but if not, we use this prefix, and strip it from node and phyloref URIs in
+   * our results -- that way, a JSON-LD ontology without a base URI (i.e. all of whose URIs are
+   * local to the document itself) will produce results with local URIs as well.
+   */
+  public static final String DEFAULT_URI_PREFIX = "http://example.org/jphyloref";
+
+  /**
+   * Get the name of the input ontology from the command line, either from '--input' or from the
+   * first argument after the command name.
+   *
+   * @param cmdLine The command line options provided to the command.
+   * @return The name of the input file, or '-' to read from STDIN.
+   * @throws IllegalArgumentException If no input ontology was specified.
+   */
+  public static String getInputFilenameFromCmdLine(CommandLine cmdLine) {
+    String inputFilename = cmdLine.getOptionValue("input");
+
+    if (inputFilename == null && cmdLine.getArgList().size() > 1) {
+      // No 'input'? Maybe it's just provided as a left-over option?
+      inputFilename = cmdLine.getArgList().get(1);
+    }
+
+    if (inputFilename == null) {
+      throw new IllegalArgumentException("Error: no input ontology specified (use '-i input.owl')");
+    }
+    return inputFilename;
+  }
+
+  /**
+   * Open an input file for reading.
+   *
+   * @param inputFilename The name of the input file, or '-' to read from STDIN.
+   * @return An input stream to read the input file from.
+   * @throws FileNotFoundException If the input file could not be opened.
+   */
+  public static InputStream openInput(String inputFilename) throws FileNotFoundException {
+    if (inputFilename.equals("-")) return System.in;
+    return new FileInputStream(inputFilename);
+  }
+
+  /**
+   * Check whether an input file should be read as JSON-LD: either '--jsonld' was set, or it has a
+   * '.json' or '.jsonld' extension.
+   *
+   * @param cmdLine The command line options provided to the command.
+   * @param inputFilename The name of the input file.
+   * @return True if the input file should be read as JSON-LD rather than as an ontology.
+   */
+  public static boolean isJSONLD(CommandLine cmdLine, String inputFilename) {
+    String inputFileLowercase = inputFilename.toLowerCase();
+    return cmdLine.hasOption("jsonld")
+        || inputFileLowercase.endsWith(".json")
+        || inputFileLowercase.endsWith(".jsonld");
+  }
+
+  /**
+   * Create an OWL Ontology Manager that loads imported ontologies from the 'ontologies/' folder
+   * when it can.
+   *
+   * @return A new OWL Ontology Manager.
+   */
+  public static OWLOntologyManager createOntologyManager() {
+    OWLOntologyManager manager = OWLManager.createOWLOntologyManager();
+
+    // Is purl.obolibrary.org down? No worries, you can access local copies
+    // of your ontologies in the 'ontologies/' folder.
+    AutoIRIMapper mapper = new AutoIRIMapper(new File("ontologies"), true);
+    logger.info("Found local ontologies: {}", mapper.getOntologyIRIs());
+    manager.addIRIMapper(mapper);
+
+    return manager;
+  }
+
+  /**
+   * Load an input ontology into a new OWL Ontology Manager, recording a DocumentParse event if
+   * Flight Recorder is available. JSON-LD files are read with the loader chosen with
+   * '--jsonld-loader', using {@link #DEFAULT_URI_PREFIX} as their base URI.
+   *
+   * @param in The input stream to read the ontology from. It will not be closed.
+   * @param source The name of the input file, or 'request' for a webserver request.
+   * @param flagJSONLD Whether the input should be read as JSON-LD rather than as an ontology.
+   * @param cmdLine The command line options, which may include '--jsonld-loader'.
+   * @return The loaded ontology.
+   * @throws OWLOntologyCreationException If the ontology could not be created or loaded.
+   * @throws IOException If the input could not be read.
+   */
+  public static OWLOntology loadOntology(
+      InputStream in, String source, boolean flagJSONLD, CommandLine cmdLine)
+      throws OWLOntologyCreationException, IOException {
+    OWLOntologyManager manager = createOntologyManager();
+
+    Object parseEvent = FlightRecorderHelper.beginDocumentParse();
+    InputStream input = FlightRecorderHelper.countBytes(parseEvent, in);
+    OWLOntology ontology;
+    if (flagJSONLD) {
+      // Use the JSONLD Helper to load the ontology.
+      ontology = manager.createOntology();
+      JSONLDHelper.loadJSONLD(input, DEFAULT_URI_PREFIX, ontology, cmdLine);
+    } else {
+      // Load the ontology using OWLManager.
+      ontology = manager.loadOntologyFromOntologyDocument(input);
+    }
+    FlightRecorderHelper.endDocumentParse(parseEvent, source, input, ontology.getAxiomCount());
+
+    return ontology;
+  }
+}
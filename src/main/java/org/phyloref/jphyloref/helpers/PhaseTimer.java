@@ -0,0 +1,262 @@
+package org.phyloref.jphyloref.helpers;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+
+/**
+ * Records how long each phase of resolving a document (such as parsing it, creating the reasoner,
+ * or resolving its phyloreferences) took. For each phase, we record its wall time, and, where the
+ * JVM supports it, the CPU time used and the bytes allocated by the current thread. Phases are
+ * timed on the thread that runs them, so work done by other threads (such as a reference reasoner
+ * during verification) isn't included in their CPU time or allocations.
+ *
+ * <p>Some phases (such as classification with ELK) do most of their work on other threads, so the
+ * CPU time of the current thread would badly understate their cost. These phases should be started
+ * with {@link #startMultiThreaded(String)}, which records the CPU time used by the whole process
+ * instead (as 'processCpuMillis', which includes any other work the process was doing at the same
+ * time). We can't attribute allocations on other threads to a phase -- ELK's worker threads may
+ * have exited by the time it ends -- so they aren't recorded for these phases.
+ *
+ * <p>Phases are timed with try-with-resources:
+ *
+ * <pre>
+ * try (PhaseTimer.Phase phase = timer.start("parse")) {
+ *   // Parse the document.
+ * }
+ * </pre>
+ */
+public class PhaseTimer {
+  /** Used to read the CPU time of the current thread. */
+  private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+  /**
+   * Used to read the bytes allocated by the current thread, or null if the JVM doesn't support
+   * this. This is a HotSpot (and OpenJ9) extension to ThreadMXBean.
+   */
+  private static final com.sun.management.ThreadMXBean allocationMXBean =
+      (threadMXBean instanceof com.sun.management.ThreadMXBean
+              && ((com.sun.management.ThreadMXBean) threadMXBean)
+                  .isThreadAllocatedMemorySupported())
+          ? (com.sun.management.ThreadMXBean) threadMXBean
+          : null;
+
+  /**
+   * Used to read the CPU time of the whole process, or null if the JVM doesn't support this. This
+   * is a HotSpot (and OpenJ9) extension to OperatingSystemMXBean.
+   */
+  private static final com.sun.management.OperatingSystemMXBean processMXBean;
+
+  static {
+    OperatingSystemMXBean osMXBean = ManagementFactory.getOperatingSystemMXBean();
+    processMXBean =
+        (osMXBean instanceof com.sun.management.OperatingSystemMXBean)
+            ? (com.sun.management.OperatingSystemMXBean) osMXBean
+            : null;
+  }
+
+  /** A phase that is being (or has been) timed. */
+  public class Phase implements AutoCloseable {
+    private final String name;
+    private final boolean multiThreaded;
+    private final long startNanos;
+    private final long startCPUNanos;
+    private final long startAllocatedBytes;
+
+    private long wallNanos = -1;
+    private long cpuNanos = -1;
+    private long allocatedBytes = -1;
+
+    private Phase(String name, boolean multiThreaded) {
+      this.name = name;
+      this.multiThreaded = multiThreaded;
+      this.startAllocatedBytes = multiThreaded ? -1 : getCurrentThreadAllocatedBytes();
+      this.startCPUNanos = readCPUNanos();
+      this.startNanos = System.nanoTime();
+    }
+
+    /** @return The name of this phase. */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return True if this phase's CPU time is that of the whole process, and false if it is that
+     *     of the thread that ran it.
+     */
+    public boolean isMultiThreaded() {
+      return multiThreaded;
+    }
+
+    /** @return The wall time taken by this phase in nanoseconds, or -1 if it hasn't ended. */
+    public long getWallNanos() {
+      return wallNanos;
+    }
+
+    /** @return The CPU time used by this phase in nanoseconds, or -1 if this isn't available. */
+    public long getCPUNanos() {
+      return cpuNanos;
+    }
+
+    /** @return The bytes allocated during this phase, or -1 if this isn't available. */
+    public long getAllocatedBytes() {
+      return allocatedBytes;
+    }
+
+    /** End this phase, and record its timings. Ending a phase more than once has no effect. */
+    @Override
+    public void close() {
+      if (wallNanos != -1) return;
+
+      wallNanos = System.nanoTime() - startNanos;
+      long endCPUNanos = readCPUNanos();
+      if (startCPUNanos != -1 && endCPUNanos != -1) cpuNanos = endCPUNanos - startCPUNanos;
+      long endAllocatedBytes = getCurrentThreadAllocatedBytes();
+      if (startAllocatedBytes != -1 && endAllocatedBytes != -1) {
+        allocatedBytes = endAllocatedBytes - startAllocatedBytes;
+      }
+      phases.add(this);
+    }
+
+    /** @return The CPU time used so far by this phase's thread or process, or -1. */
+    private long readCPUNanos() {
+      return multiThreaded ? getProcessCPUNanos() : getCurrentThreadCPUNanos();
+    }
+
+    /** @return The name of the field in which we report this phase's CPU time. */
+    private String getCPUField() {
+      return multiThreaded ? "processCpuMillis" : "cpuMillis";
+    }
+
+    /** @return The timings of this phase as a JSON object. */
+    public JSONObject toJSON() {
+      JSONObject json = new JSONObject();
+      json.put("wallMillis", toMillis(wallNanos));
+      if (cpuNanos != -1) json.put(getCPUField(), toMillis(cpuNanos));
+      if (allocatedBytes != -1) json.put("allocatedBytes", allocatedBytes);
+      return json;
+    }
+
+    /** @return The timings of this phase as 'key=value' pairs, for logging. */
+    @Override
+    public String toString() {
+      StringBuilder fields = new StringBuilder();
+      fields.append("phase=").append(name);
+      fields.append(" wallMillis=").append(toMillis(wallNanos));
+      if (cpuNanos != -1) {
+        fields.append(' ').append(getCPUField()).append('=').append(toMillis(cpuNanos));
+      }
+      if (allocatedBytes != -1) fields.append(" allocatedBytes=").append(allocatedBytes);
+      return fields.toString();
+    }
+  }
+
+  /** The phases that have ended, in the order in which they ended. */
+  private final List<Phase> phases = Collections.synchronizedList(new ArrayList<>());
+
+  /**
+   * Start timing a phase on the current thread. The phase ends when it is closed.
+   *
+   * @param name The name of the phase.
+   * @return The phase, which should be closed (on the same thread) once it ends.
+   */
+  public Phase start(String name) {
+    return new Phase(name, false);
+  }
+
+  /**
+   * Start timing a phase that does its work on several threads, such as classification. We record
+   * the CPU time of the whole process during this phase, and don't record its allocations.
+   *
+   * @param name The name of the phase.
+   * @return The phase, which should be closed (on the same thread) once it ends.
+   */
+  public Phase startMultiThreaded(String name) {
+    return new Phase(name, true);
+  }
+
+  /** @return The phases that have ended, in the order in which they ended. */
+  public List<Phase> getPhases() {
+    synchronized (phases) {
+      return new ArrayList<>(phases);
+    }
+  }
+
+  /**
+   * @return The timings of every phase that has ended as a JSON object, with a property for each
+   *     phase as well as the total across all phases.
+   */
+  public JSONObject toJSON() {
+    JSONObject json = new JSONObject();
+    long wallNanos = 0;
+    long cpuNanos = 0;
+    long allocatedBytes = 0;
+    for (Phase phase : getPhases()) {
+      json.put(phase.getName(), phase.toJSON());
+      wallNanos += phase.getWallNanos();
+      // If any phase is missing its CPU time or allocations, so is the total. Process-wide CPU
+      // times can't be added to those of a single thread, so they leave the total out as well.
+      if (cpuNanos != -1) {
+        cpuNanos =
+            (phase.getCPUNanos() == -1 || phase.isMultiThreaded())
+                ? -1
+                : cpuNanos + phase.getCPUNanos();
+      }
+      if (allocatedBytes != -1) {
+        allocatedBytes =
+            (phase.getAllocatedBytes() == -1) ? -1 : allocatedBytes + phase.getAllocatedBytes();
+      }
+    }
+
+    JSONObject total = new JSONObject();
+    total.put("wallMillis", toMillis(wallNanos));
+    if (cpuNanos != -1) total.put("cpuMillis", toMillis(cpuNanos));
+    if (allocatedBytes != -1) total.put("allocatedBytes", allocatedBytes);
+    json.put("total", total);
+    return json;
+  }
+
+  /**
+   * Log the timings of every phase that has ended, with one line of 'key=value' pairs per phase.
+   *
+   * @param logger The logger to log to.
+   * @param fields 'key=value' pairs describing the document that was resolved, such as
+   *     "input=phylorefs.json", which are added to every line.
+   */
+  public void log(Logger logger, String fields) {
+    for (Phase phase : getPhases()) logger.info("Timing: {} {}", fields, phase);
+  }
+
+  /** Convert nanoseconds into milliseconds, keeping three decimal places. */
+  private static double toMillis(long nanos) {
+    return Math.round(nanos / 1000.0) / 1000.0;
+  }
+
+  /** @return The CPU time used by the current thread in nanoseconds, or -1 if unavailable. */
+  private static long getCurrentThreadCPUNanos() {
+    if (!threadMXBean.isCurrentThreadCpuTimeSupported()) return -1;
+    try {
+      return threadMXBean.getCurrentThreadCpuTime();
+    } catch (UnsupportedOperationException ex) {
+      return -1;
+    }
+  }
+
+  /** @return The CPU time used by the whole process in nanoseconds, or -1 if unavailable. */
+  private static long getProcessCPUNanos() {
+    if (processMXBean == null) return -1;
+    long nanos = processMXBean.getProcessCpuTime();
+    return (nanos < 0) ? -1 : nanos;
+  }
+
+  /** @return The bytes allocated by the current thread so far, or -1 if unavailable. */
+  private static long getCurrentThreadAllocatedBytes() {
+    if (allocationMXBean == null || !allocationMXBean.isThreadAllocatedMemoryEnabled()) return -1;
+    return allocationMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}
@@ -1,27 +1,31 @@
 package org.phyloref.jphyloref.helpers;
 
+import java.io.IOException;
 import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
-import org.semanticweb.owlapi.model.AxiomType;
 import org.semanticweb.owlapi.model.IRI;
 import org.semanticweb.owlapi.model.OWLAnnotation;
 import org.semanticweb.owlapi.model.OWLAnnotationAssertionAxiom;
 import org.semanticweb.owlapi.model.OWLAnnotationProperty;
 import org.semanticweb.owlapi.model.OWLAnonymousIndividual;
+import org.semanticweb.owlapi.model.OWLAxiom;
 import org.semanticweb.owlapi.model.OWLClass;
 import org.semanticweb.owlapi.model.OWLClassAssertionAxiom;
+import org.semanticweb.owlapi.model.OWLClassExpression;
 import org.semanticweb.owlapi.model.OWLDataFactory;
 import org.semanticweb.owlapi.model.OWLEntity;
 import org.semanticweb.owlapi.model.OWLNamedIndividual;
 import org.semanticweb.owlapi.model.OWLOntology;
-import org.semanticweb.owlapi.model.OWLSubClassOfAxiom;
 import org.semanticweb.owlapi.reasoner.OWLReasoner;
 import org.semanticweb.owlapi.search.EntitySearcher;
 
@@ -40,6 +44,39 @@ public class PhylorefHelper {
   /** IRI for OWL class Phylogeny */
   public static final IRI IRI_CDAO_NODE = IRI.create("http://purl.obolibrary.org/obo/CDAO_0000140");
 
+  /** IRI for the CDAO has_Child object property, which connects a node to its children. */
+  public static final IRI IRI_CDAO_HAS_CHILD =
+      IRI.create("http://purl.obolibrary.org/obo/CDAO_0000149");
+
+  /** IRI for the CDAO has_Parent object property, which connects a node to its parent. */
+  public static final IRI IRI_CDAO_HAS_PARENT =
+      IRI.create("http://purl.obolibrary.org/obo/CDAO_0000179");
+
+  /** IRI for the CDAO has_Descendant object property, the transitive form of has_Child. */
+  public static final IRI IRI_CDAO_HAS_DESCENDANT =
+      IRI.create("http://purl.obolibrary.org/obo/CDAO_0000174");
+
+  /**
+   * IRI for the CDAO represents_TU object property, which connects a node to its taxonomic unit.
+   */
+  public static final IRI IRI_CDAO_REPRESENTS_TU =
+      IRI.create("http://purl.obolibrary.org/obo/CDAO_0000187");
+
+  /** IRI for the object property that connects a node to the other children of its parent. */
+  public static final IRI IRI_PHYLOREF_HAS_SIBLING =
+      IRI.create("http://ontology.phyloref.org/phyloref.owl#has_Sibling");
+
+  /** IRI for the object property that connects a node to the taxonomic units in its clade. */
+  public static final IRI IRI_PHYLOREF_INCLUDES_TU =
+      IRI.create("http://ontology.phyloref.org/phyloref.owl#includes_TU");
+
+  /**
+   * IRI for the object property that connects a node to the taxonomic units in the same phylogeny
+   * but outside its clade.
+   */
+  public static final IRI IRI_PHYLOREF_EXCLUDES_TU =
+      IRI.create("http://ontology.phyloref.org/phyloref.owl#excludes_TU");
+
   /** IRI for OWL class Phyloreference */
   public static final IRI IRI_PHYLOREFERENCE =
       IRI.create("http://ontology.phyloref.org/phyloref.owl#Phyloreference");
@@ -108,18 +145,9 @@ public class PhylorefHelper {
     }
 
     OWLClass phyloref_Phyloreference = set_phyloref_Phyloreference.iterator().next().asOWLClass();
-    Set<OWLClass> phylorefs = new HashSet<>();
-    Set<OWLSubClassOfAxiom> subClassOfAxioms = ontology.getAxioms(AxiomType.SUBCLASS_OF);
-
-    for (OWLSubClassOfAxiom subClassOfAxiom : subClassOfAxioms) {
-      // Is the superclass phyloref:Phyloreference?
-      if (subClassOfAxiom.getSuperClass().equals(phyloref_Phyloreference.asOWLClass())) {
-        // If so, then the subclass is a phyloreference!
-        phylorefs.add(subClassOfAxiom.getSubClass().asOWLClass());
-      }
-    }
 
-    return phylorefs;
+    // Every class asserted to be a subclass of phyloref:Phyloreference is a phyloreference!
+    return AssertedAxiomIndex.getIndex(ontology).getSubClasses(phyloref_Phyloreference);
   }
 
   /**
@@ -180,7 +208,10 @@ public class PhylorefHelper {
   /**
    * Get the set of named individuals in a particular OWL class. If `reasoner` is set to null, this
    * will return all individuals asserted as belonging to the provided class, allowing it to be used
-   * on precomputed OWL ontologies.
+   * on precomputed OWL ontologies. An individual only counts as asserted to belong to the class if
+   * the class is its type or one of the conjuncts of its type; class assertions that only mention
+   * the class further inside a class expression (such as the assertions of the nodes that a
+   * phyloreference is expected to resolve to) don't count (see AssertedAxiomIndex).
    *
    * @param owlClass The OWL class to retrieve instances from.
    * @param ontology The ontology containing the OWL class and its instances.
@@ -190,6 +221,15 @@ public class PhylorefHelper {
    */
   public static Set<OWLNamedIndividual> getNodesInClass(
       OWLClass owlClass, OWLOntology ontology, OWLReasoner reasoner) {
+    Object event = FlightRecorderHelper.beginNodesInClass();
+    Set<OWLNamedIndividual> nodes = findNodesInClass(owlClass, ontology, reasoner);
+    FlightRecorderHelper.endNodesInClass(event, owlClass, nodes.size());
+    return nodes;
+  }
+
+  /** Get the set of named individuals in a particular OWL class, as getNodesInClass(). */
+  private static Set<OWLNamedIndividual> findNodesInClass(
+      OWLClass owlClass, OWLOntology ontology, OWLReasoner reasoner) {
     if (reasoner != null) {
       // Return nodes that the reasoner has determined are instances of the provided phyloref.
       return reasoner
@@ -202,20 +242,250 @@ public class PhylorefHelper {
 
     // No reasoner? We can also determine which nodes have been directly stated to
     // be members of this phyloref as a class. This allows us to read a pre-reasoned
-    // OWL file and test whether phyloreferences resolved as expected.
-    Set<OWLNamedIndividual> nodes = new HashSet<>();
-    Set<OWLClassAssertionAxiom> classAssertions = ontology.getAxioms(AxiomType.CLASS_ASSERTION);
-
-    for (OWLClassAssertionAxiom classAssertion : classAssertions) {
-      // Does this assertion involve this phyloreference as a class and a named individual?
-      if (classAssertion.getIndividual().isNamed()
-          && classAssertion.getClassesInSignature().contains(owlClass)) {
-        // If so, then the individual is a node that is included in this phyloreference.
-        nodes.add(classAssertion.getIndividual().asOWLNamedIndividual());
+    // OWL file and test whether phyloreferences resolved as expected. We look these
+    // up in an index of the class assertions in this ontology, so that we don't need
+    // to go through every class assertion for every phyloreference.
+    return AssertedAxiomIndex.getIndex(ontology).getIndividualsWithType(owlClass);
+  }
+
+  /**
+   * Return a class expression for the nodes that a phyloreference is expected to resolve to, i.e.
+   * those nodes that are the specified output of (OBI_0000312) something that has the
+   * phyloreference as its specified input (OBI_0000293).
+   *
+   * @param dataFactory The data factory to use to build the class expression.
+   * @param phyloref The phyloreference whose expected nodes we need.
+   * @return The class expression "OBI_0000312 some (OBI_0000293 some phyloref)".
+   */
+  public static OWLClassExpression getExpectedNodesExpression(
+      OWLDataFactory dataFactory, OWLClass phyloref) {
+    return dataFactory.getOWLObjectSomeValuesFrom(
+        dataFactory.getOWLObjectProperty(IRI_OBI_IS_SPECIFIED_OUTPUT_OF),
+        dataFactory.getOWLObjectSomeValuesFrom(
+            dataFactory.getOWLObjectProperty(IRI_OBI_HAS_SPECIFIED_INPUT), phyloref));
+  }
+
+  /**
+   * Get the nodes that a phyloreference is expected to resolve to. If `reasoner` is null, we only
+   * return nodes asserted to belong to the expected nodes expression (or to a more specific
+   * expression, such as the "OBI_0000312 some (OBI_0302910 and OBI_0000293 some phyloref)" used in
+   * Phyx files), so that pre-reasoned ontologies can be tested without a reasoner.
+   *
+   * @param phyloref The phyloreference whose expected nodes we need.
+   * @param ontology The ontology containing the phyloreference and its nodes.
+   * @param reasoner The reasoner to use. May be set to null if no reasoner is available.
+   * @return The nodes that this phyloreference is expected to resolve to.
+   */
+  public static Set<OWLNamedIndividual> getExpectedNodes(
+      OWLClass phyloref, OWLOntology ontology, OWLReasoner reasoner) {
+    OWLClassExpression expectedNodesExpr =
+        getExpectedNodesExpression(ontology.getOWLOntologyManager().getOWLDataFactory(), phyloref);
+
+    if (reasoner != null) return reasoner.getInstances(expectedNodesExpr, false).getFlattened();
+    return AssertedAxiomIndex.getIndex(ontology).getIndividualsWithType(expectedNodesExpr);
+  }
+
+  /**
+   * Get class assertions stating which nodes every phyloreference in an ontology is expected to
+   * resolve to, as worked out by a reasoner. Adding these to an ontology allows getExpectedNodes()
+   * to find the same nodes without a reasoner.
+   *
+   * @param ontology The ontology containing the phyloreferences and their nodes.
+   * @param reasoner The reasoner to use.
+   * @return A class assertion of the expected nodes expression for every expected node.
+   */
+  public static Set<OWLClassAssertionAxiom> getExpectedNodeAssertions(
+      OWLOntology ontology, OWLReasoner reasoner) {
+    OWLDataFactory dataFactory = ontology.getOWLOntologyManager().getOWLDataFactory();
+    Set<OWLClassAssertionAxiom> assertions = new HashSet<>();
+    for (OWLClass phyloref : getPhyloreferences(ontology, reasoner)) {
+      OWLClassExpression expectedNodesExpr = getExpectedNodesExpression(dataFactory, phyloref);
+      for (OWLNamedIndividual node : getExpectedNodes(phyloref, ontology, reasoner)) {
+        assertions.add(dataFactory.getOWLClassAssertionAxiom(expectedNodesExpr, node));
       }
     }
+    return assertions;
+  }
 
-    return nodes;
+  /**
+   * Get the axioms needed to look up the results of reasoning over an ontology without a reasoner:
+   * that every phyloreference is a subclass of phyloref:Phyloreference, that every node it resolves
+   * to is a member of it, and which nodes it is expected to resolve to. Adding these axioms to the
+   * ontology allows the methods in this class to give the same results with a null reasoner.
+   *
+   * @param ontology The ontology containing the phyloreferences and their nodes.
+   * @param reasoner The reasoner to use.
+   * @return The axioms to add to the ontology.
+   */
+  public static Set<OWLAxiom> getMaterializedAxioms(OWLOntology ontology, OWLReasoner reasoner) {
+    OWLDataFactory dataFactory = ontology.getOWLOntologyManager().getOWLDataFactory();
+    OWLClass phyloreferenceClass = dataFactory.getOWLClass(IRI_PHYLOREFERENCE);
+
+    Set<OWLAxiom> axioms = new HashSet<>();
+    Map<OWLClass, Set<OWLNamedIndividual>> nodesPerPhyloref =
+        getNodesPerPhyloreference(ontology, reasoner);
+    for (OWLClass phyloref : nodesPerPhyloref.keySet()) {
+      axioms.add(dataFactory.getOWLSubClassOfAxiom(phyloref, phyloreferenceClass));
+      for (OWLNamedIndividual node : nodesPerPhyloref.get(phyloref)) {
+        axioms.add(dataFactory.getOWLClassAssertionAxiom(phyloref, node));
+      }
+    }
+    axioms.addAll(getExpectedNodeAssertions(ontology, reasoner));
+    return axioms;
+  }
+
+  /**
+   * Get the nodes in every phyloreference in an ontology at once. Rather than asking the reasoner
+   * for the instances of each phyloreference in turn, we ask it for the types of every node
+   * (CDAO_0000140) and invert them, so that the ontology is only realized once however many
+   * phyloreferences it contains. This only finds the instances of a phyloreference that are typed
+   * as nodes, so we only use it for phyloreferences that the reasoner entails to be subclasses of
+   * CDAO_0000140; for any other phyloreference, we ask the reasoner for its instances as
+   * getNodesInClass() does, so that we always return the same nodes as getNodesInClass(). If
+   * `reasoner` is null, we look up the individuals asserted to belong to each phyloreference
+   * instead, in the same way as getNodesInClass().
+   *
+   * @param ontology The ontology containing the phyloreferences and their nodes.
+   * @param reasoner The reasoner to use. May be set to null if no reasoner is available.
+   * @return A map of every phyloreference to the nodes it includes (which may be empty).
+   */
+  public static Map<OWLClass, Set<OWLNamedIndividual>> getNodesPerPhyloreference(
+      OWLOntology ontology, OWLReasoner reasoner) {
+    return getNodesPerPhyloreference(ontology, reasoner, (phylorefs, processed, nodes) -> {});
+  }
+
+  /**
+   * A listener that is told how far getNodesPerPhyloreference() has progressed. As every node is
+   * only visited once, no phyloreference is fully resolved until every node has been processed.
+   */
+  public interface ProgressListener {
+    /**
+     * Called after the phyloreferences have been found, and again after each node is processed.
+     *
+     * @param phylorefCount The number of phyloreferences being resolved.
+     * @param nodesProcessed The number of nodes processed so far.
+     * @param nodeCount The number of nodes to process in total.
+     */
+    void progress(int phylorefCount, int nodesProcessed, int nodeCount);
+  }
+
+  /**
+   * Get the nodes in every phyloreference in an ontology at once, as getNodesPerPhyloreference(),
+   * while reporting our progress to a listener.
+   *
+   * @param ontology The ontology containing the phyloreferences and their nodes.
+   * @param reasoner The reasoner to use. May be set to null if no reasoner is available.
+   * @param listener A listener to report our progress to.
+   * @return A map of every phyloreference to the nodes it includes (which may be empty).
+   */
+  public static Map<OWLClass, Set<OWLNamedIndividual>> getNodesPerPhyloreference(
+      OWLOntology ontology, OWLReasoner reasoner, ProgressListener listener) {
+    Object event = FlightRecorderHelper.beginNodesPerPhyloreference();
+    Map<OWLClass, Set<OWLNamedIndividual>> nodesPerPhyloref = new HashMap<>();
+    for (OWLClass phyloref : getPhyloreferences(ontology, reasoner)) {
+      nodesPerPhyloref.put(phyloref, new HashSet<>());
+    }
+
+    if (reasoner != null) {
+      OWLClass classCDAONode =
+          ontology.getOWLOntologyManager().getOWLDataFactory().getOWLClass(IRI_CDAO_NODE);
+      Set<OWLNamedIndividual> allNodes = reasoner.getInstances(classCDAONode, false).getFlattened();
+
+      // Individuals that aren't typed as nodes can still be instances of a phyloreference, unless
+      // the reasoner can tell that every instance of the phyloreference is a node.
+      Set<OWLClass> nodeClasses = new HashSet<>();
+      nodeClasses.addAll(reasoner.getEquivalentClasses(classCDAONode).getEntities());
+      nodeClasses.addAll(reasoner.getSubClasses(classCDAONode, false).getFlattened());
+      for (OWLClass phyloref : nodesPerPhyloref.keySet()) {
+        if (!nodeClasses.contains(phyloref)) {
+          nodesPerPhyloref.put(
+              phyloref, new HashSet<>(reasoner.getInstances(phyloref, false).getFlattened()));
+        }
+      }
+
+      int nodesProcessed = 0;
+      listener.progress(nodesPerPhyloref.size(), nodesProcessed, allNodes.size());
+      for (OWLNamedIndividual node : allNodes) {
+        for (OWLClass type : reasoner.getTypes(node, false).getFlattened()) {
+          Set<OWLNamedIndividual> nodes = nodesPerPhyloref.get(type);
+          if (nodes != null && nodeClasses.contains(type)) nodes.add(node);
+        }
+        listener.progress(nodesPerPhyloref.size(), ++nodesProcessed, allNodes.size());
+      }
+      FlightRecorderHelper.endNodesPerPhyloreference(
+          event, nodesPerPhyloref.size(), allNodes.size());
+      return nodesPerPhyloref;
+    }
+
+    // No reasoner? Look for individuals that have been directly stated to be members
+    // of each phyloreference.
+    AssertedAxiomIndex index = AssertedAxiomIndex.getIndex(ontology);
+    int nodeCount = 0;
+    for (OWLClass phyloref : nodesPerPhyloref.keySet()) {
+      Set<OWLNamedIndividual> nodes = index.getIndividualsWithType(phyloref);
+      nodesPerPhyloref.put(phyloref, nodes);
+      nodeCount += nodes.size();
+    }
+    FlightRecorderHelper.endNodesPerPhyloreference(event, nodesPerPhyloref.size(), nodeCount);
+    return nodesPerPhyloref;
+  }
+
+  /**
+   * Receives the nodes of each phyloreference as soon as resolvePhyloreferences() has resolved it.
+   */
+  public interface PhylorefConsumer {
+    /**
+     * Called once a phyloreference has been resolved, before the next one is resolved.
+     *
+     * @param phyloref The phyloreference.
+     * @param nodes The nodes it resolved to.
+     * @param phylorefsResolved The number of phyloreferences resolved so far, including this one.
+     * @param phylorefCount The number of phyloreferences being resolved.
+     * @throws IOException If the result could not be written, which stops resolution.
+     */
+    void accept(
+        OWLClass phyloref, Set<OWLNamedIndividual> nodes, int phylorefsResolved, int phylorefCount)
+        throws IOException;
+  }
+
+  /**
+   * Resolve the phyloreferences in an ontology one at a time, passing the nodes of each to a
+   * consumer as soon as it has been resolved, so that they can be written out while the remaining
+   * phyloreferences are resolved. Unlike getNodesPerPhyloreference(), this asks the reasoner for
+   * the instances of each phyloreference in turn, as getNodesInClass() does.
+   *
+   * @param ontology The ontology containing the phyloreferences and their nodes.
+   * @param reasoner The reasoner to use. May be set to null if no reasoner is available.
+   * @param consumer The consumer to pass the nodes of each phyloreference to.
+   * @return A map of every phyloreference to the nodes it includes, in the order they were
+   *     resolved.
+   * @throws IOException If the consumer could not write a result.
+   */
+  public static Map<OWLClass, Set<OWLNamedIndividual>> resolvePhyloreferences(
+      OWLOntology ontology, OWLReasoner reasoner, PhylorefConsumer consumer) throws IOException {
+    Set<OWLClass> phylorefs = getPhyloreferences(ontology, reasoner);
+    Map<OWLClass, Set<OWLNamedIndividual>> nodesPerPhyloref = new LinkedHashMap<>();
+    for (OWLClass phyloref : phylorefs) {
+      Set<OWLNamedIndividual> nodes = getNodesInClass(phyloref, ontology, reasoner);
+      nodesPerPhyloref.put(phyloref, nodes);
+      consumer.accept(phyloref, nodes, nodesPerPhyloref.size(), phylorefs.size());
+    }
+    return nodesPerPhyloref;
+  }
+
+  /**
+   * Remove a default URI prefix from an IRI, so that IRIs that were local to a JSON-LD document are
+   * reported as local IRIs.
+   *
+   * @param iri The IRI to shorten.
+   * @param defaultURIPrefix The prefix to remove. May be null, in which case nothing is removed.
+   * @return The IRI as a string without the default URI prefix.
+   */
+  public static String removeDefaultURIPrefix(IRI iri, String defaultURIPrefix) {
+    String iriString = iri.toString();
+    if (defaultURIPrefix != null && iriString.startsWith(defaultURIPrefix))
+      return iriString.substring(defaultURIPrefix.length());
+    return iriString;
   }
 
   /** A wrapper for a phyloref status at a particular point in time. */
@@ -296,6 +566,15 @@ public class PhylorefHelper {
    */
   public static List<PhylorefStatus> getStatusesForPhyloref(
       OWLClass phyloref, OWLOntology ontology) {
+    Object event = FlightRecorderHelper.beginPhylorefStatuses();
+    List<PhylorefStatus> statuses = findStatusesForPhyloref(phyloref, ontology);
+    FlightRecorderHelper.endPhylorefStatuses(event, phyloref, statuses.size());
+    return statuses;
+  }
+
+  /** Return a list of the PhylorefStatuses of a phyloreference, as getStatusesForPhyloref(). */
+  private static List<PhylorefStatus> findStatusesForPhyloref(
+      OWLClass phyloref, OWLOntology ontology) {
     List<PhylorefStatus> statuses = new ArrayList<>();
 
     // Set up the OWL annotation properties we need to look up the phyloref statuses.
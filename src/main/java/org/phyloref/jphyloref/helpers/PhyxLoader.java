@@ -0,0 +1,776 @@
+package org.phyloref.jphyloref.helpers;
+
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.jsonldjava.core.Context;
+import com.github.jsonldjava.core.JsonLdApi;
+import com.github.jsonldjava.core.JsonLdConsts;
+import com.github.jsonldjava.core.JsonLdError;
+import com.github.jsonldjava.core.JsonLdOptions;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import org.eclipse.rdf4j.rio.RDFParseException;
+import org.semanticweb.owlapi.model.AddImport;
+import org.semanticweb.owlapi.model.AddOntologyAnnotation;
+import org.semanticweb.owlapi.model.IRI;
+import org.semanticweb.owlapi.model.OWLAnnotation;
+import org.semanticweb.owlapi.model.OWLAnnotationObject;
+import org.semanticweb.owlapi.model.OWLAnnotationSubject;
+import org.semanticweb.owlapi.model.OWLAnnotationValue;
+import org.semanticweb.owlapi.model.OWLAnonymousIndividual;
+import org.semanticweb.owlapi.model.OWLAxiom;
+import org.semanticweb.owlapi.model.OWLClass;
+import org.semanticweb.owlapi.model.OWLClassExpression;
+import org.semanticweb.owlapi.model.OWLDataFactory;
+import org.semanticweb.owlapi.model.OWLImportsDeclaration;
+import org.semanticweb.owlapi.model.OWLIndividual;
+import org.semanticweb.owlapi.model.OWLLiteral;
+import org.semanticweb.owlapi.model.OWLOntology;
+import org.semanticweb.owlapi.model.OWLOntologyChange;
+import org.semanticweb.owlapi.model.OWLOntologyID;
+import org.semanticweb.owlapi.model.OWLOntologyManager;
+import org.semanticweb.owlapi.model.SetOntologyID;
+import org.semanticweb.owlapi.vocab.OWL2Datatype;
+import org.semanticweb.owlapi.vocab.OWLRDFVocabulary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * PhyxLoader reads Phyx documents (JSON-LD files describing phylogenies and phyloreferences)
+ * directly into an OWL ontology.
+ *
+ * <p>The JSON-LD loader in {@link JSONLDHelper} converts the entire document into RDF triples, and
+ * then asks the OWL API to turn those triples back into OWL axioms. For large phylogenies, this
+ * round trip takes up most of the time we spend loading a file. PhyxLoader instead reads the parts
+ * of a Phyx document that get large -- the <code>phylogenies</code> in the document and the <code>
+ * nodes</code> in each phylogeny -- one at a time. Each of these records (and the rest of the
+ * document, including its phyloreferences) is expanded by jsonld-java using the document's context,
+ * and then translated into the OWL axioms that the OWL API would have created from its triples:
+ *
+ * <ul>
+ *   <li>Values of <code>@type</code> and <code>rdf:type</code> become class assertions, except for
+ *       OWL entity types (such as <code>owl:Class</code>), which become declarations.
+ *   <li>Blank nodes typed <code>owl:Restriction</code>, or which have <code>owl:intersectionOf
+ *       </code>, <code>owl:unionOf</code> or <code>owl:complementOf</code>, become class
+ *       expressions, which can be used in <code>rdf:type</code>, <code>rdfs:subClassOf</code> and
+ *       <code>owl:equivalentClass</code>.
+ *   <li>The node typed <code>owl:Ontology</code> provides ontology annotations and imports.
+ *   <li>All other properties become object or data property assertions if the property has been
+ *       declared as such, either in this document or in one of its imports, and annotation
+ *       assertions otherwise.
+ * </ul>
+ *
+ * <p>If a document uses a JSON-LD or OWL feature that PhyxLoader can't translate exactly (such as
+ * named graphs, reverse properties or cardinality restrictions), it throws an RDFParseException
+ * before adding anything to the ontology, and {@link JSONLDHelper#loadJSONLD} loads the document
+ * with the RDF-based loader instead.
+ *
+ * <p>Each PhyxLoader can be used to load any number of documents, but should not be used by more
+ * than one thread at a time.
+ */
+public class PhyxLoader {
+  /** Set up a logger to use for providing logging. */
+  private static final Logger logger = LoggerFactory.getLogger(PhyxLoader.class);
+
+  /** An ObjectMapper for reading JSON. We never close the streams we're given. */
+  private static final ObjectMapper mapper =
+      new ObjectMapper().configure(JsonParser.Feature.AUTO_CLOSE_SOURCE, false);
+
+  /**
+   * The keys whose values are read one item at a time: the phylogenies in a document, and the nodes
+   * in each phylogeny.
+   */
+  private static final List<String> STREAMED_KEYS = Arrays.asList("phylogenies", "nodes");
+
+  /** The keywords that can appear in the expanded records we translate. */
+  private static final Set<String> SUPPORTED_KEYWORDS =
+      new HashSet<>(Arrays.asList("@id", "@type", "@value", "@language", "@list"));
+
+  /* IRIs with special meanings in OWL documents. */
+  private static final String RDF_TYPE = OWLRDFVocabulary.RDF_TYPE.toString();
+  private static final String RDFS_SUBCLASS_OF = OWLRDFVocabulary.RDFS_SUBCLASS_OF.toString();
+  private static final String RDFS_DATATYPE = OWLRDFVocabulary.RDFS_DATATYPE.toString();
+  private static final String OWL_ONTOLOGY = OWLRDFVocabulary.OWL_ONTOLOGY.toString();
+  private static final String OWL_IMPORTS = OWLRDFVocabulary.OWL_IMPORTS.toString();
+  private static final String OWL_CLASS = OWLRDFVocabulary.OWL_CLASS.toString();
+  private static final String OWL_THING = OWLRDFVocabulary.OWL_THING.toString();
+  private static final String OWL_RESTRICTION = OWLRDFVocabulary.OWL_RESTRICTION.toString();
+  private static final String OWL_OBJECT_PROPERTY = OWLRDFVocabulary.OWL_OBJECT_PROPERTY.toString();
+  private static final String OWL_DATATYPE_PROPERTY = OWLRDFVocabulary.OWL_DATA_PROPERTY.toString();
+  private static final String OWL_ANNOTATION_PROPERTY =
+      OWLRDFVocabulary.OWL_ANNOTATION_PROPERTY.toString();
+  private static final String OWL_NAMED_INDIVIDUAL =
+      OWLRDFVocabulary.OWL_NAMED_INDIVIDUAL.toString();
+  private static final String OWL_EQUIVALENT_CLASS =
+      OWLRDFVocabulary.OWL_EQUIVALENT_CLASS.toString();
+  private static final String OWL_DISJOINT_WITH = OWLRDFVocabulary.OWL_DISJOINT_WITH.toString();
+  private static final String OWL_INTERSECTION_OF = OWLRDFVocabulary.OWL_INTERSECTION_OF.toString();
+  private static final String OWL_UNION_OF = OWLRDFVocabulary.OWL_UNION_OF.toString();
+  private static final String OWL_COMPLEMENT_OF = OWLRDFVocabulary.OWL_COMPLEMENT_OF.toString();
+  private static final String OWL_ON_PROPERTY = OWLRDFVocabulary.OWL_ON_PROPERTY.toString();
+  private static final String OWL_SOME_VALUES_FROM =
+      OWLRDFVocabulary.OWL_SOME_VALUES_FROM.toString();
+  private static final String OWL_ALL_VALUES_FROM = OWLRDFVocabulary.OWL_ALL_VALUES_FROM.toString();
+  private static final String OWL_HAS_VALUE = OWLRDFVocabulary.OWL_HAS_VALUE.toString();
+
+  /** The prefixes of the vocabularies whose terms OWL gives special meanings to. */
+  private static final String[] RESERVED_NAMESPACES = {
+    "http://www.w3.org/1999/02/22-rdf-syntax-ns#",
+    "http://www.w3.org/2000/01/rdf-schema#",
+    "http://www.w3.org/2002/07/owl#"
+  };
+
+  /** The ontology we are loading documents into. */
+  private final OWLOntology ontology;
+
+  /** The manager of the ontology we are loading documents into. */
+  private final OWLOntologyManager manager;
+
+  /** The data factory used to create OWL objects. */
+  private final OWLDataFactory df;
+
+  /* The following fields are reset every time a document is loaded. */
+
+  /** The jsonld-java API used to expand records. */
+  private JsonLdApi api;
+
+  /** The document's JSON-LD context. */
+  private Context context;
+
+  /** Anonymous individuals for each blank node identifier used in this document. */
+  private Map<String, OWLAnonymousIndividual> blankNodes;
+
+  /** The axioms to be added to the ontology. */
+  private Set<OWLAxiom> axioms;
+
+  /** Property values, which are turned into axioms once we know what the properties are. */
+  private List<PropertyValue> propertyValues;
+
+  /** Properties declared in this document. */
+  private Set<IRI> objectProperties, dataProperties, annotationProperties;
+
+  /** Annotations on the ontology node. */
+  private List<OWLAnnotation> ontologyAnnotations;
+
+  /** Ontologies imported by the ontology node. */
+  private Set<IRI> imports;
+
+  /** The IRI of the ontology node, or null if it doesn't have one. */
+  private IRI ontologyIRI;
+
+  /** The parser currently being read, used to report where errors occurred. */
+  private JsonParser currentParser;
+
+  /**
+   * Create a PhyxLoader that adds axioms to an ontology.
+   *
+   * @param ontology The ontology that documents will be loaded into.
+   */
+  public PhyxLoader(OWLOntology ontology) {
+    this.ontology = ontology;
+    this.manager = ontology.getOWLOntologyManager();
+    this.df = manager.getOWLDataFactory();
+  }
+
+  /**
+   * Load a Phyx document into the ontology.
+   *
+   * @param in An input stream to read the document from. It will not be closed.
+   * @param baseURI The base URI to resolve relative URIs against.
+   * @throws IOException If the document could not be read.
+   * @throws RDFParseException If the document is not valid JSON-LD, or uses features that this
+   *     loader does not support. Nothing will have been added to the ontology.
+   */
+  public void load(InputStream in, String baseURI) throws IOException, RDFParseException {
+    try (JsonParser parser = mapper.getFactory().createParser(in)) {
+      load(parser, baseURI);
+    }
+  }
+
+  /**
+   * Load a Phyx document into the ontology.
+   *
+   * @param reader A reader to read the document from. It will not be closed.
+   * @param baseURI The base URI to resolve relative URIs against.
+   * @throws IOException If the document could not be read.
+   * @throws RDFParseException If the document is not valid JSON-LD, or uses features that this
+   *     loader does not support. Nothing will have been added to the ontology.
+   */
+  public void load(Reader reader, String baseURI) throws IOException, RDFParseException {
+    try (JsonParser parser = mapper.getFactory().createParser(reader)) {
+      load(parser, baseURI);
+    }
+  }
+
+  /** Read a document from a JSON parser, then add everything we found to the ontology. */
+  private void load(JsonParser parser, String baseURI) throws IOException, RDFParseException {
+    JsonLdOptions options = new JsonLdOptions(baseURI);
+    options.setDocumentLoader(JSONLDContextLoader.getInstance());
+    api = new JsonLdApi(options);
+    context = new Context(options);
+    blankNodes = new HashMap<>();
+    axioms = new LinkedHashSet<>();
+    propertyValues = new ArrayList<>();
+    objectProperties = new HashSet<>();
+    dataProperties = new HashSet<>();
+    annotationProperties = new HashSet<>();
+    ontologyAnnotations = new ArrayList<>();
+    imports = new LinkedHashSet<>();
+    ontologyIRI = null;
+
+    try {
+      currentParser = parser;
+      if (parser.nextToken() != JsonToken.START_OBJECT)
+        throw unsupported("documents that are not a single JSON object");
+      readDocument(parser);
+    } catch (JsonProcessingException ex) {
+      throw new RDFParseException("Could not parse JSONLD", ex);
+    } catch (JsonLdError ex) {
+      throw error("Could not expand JSONLD: " + ex.getMessage());
+    } finally {
+      currentParser = null;
+    }
+
+    addToOntology();
+  }
+
+  /**
+   * Read the document, starting with its JSON-LD context. The context is usually the first key,
+   * which lets us read the rest of the document as a stream. If it isn't, we need to read the whole
+   * document into memory to find it first.
+   *
+   * @param parser A JSON parser whose current token starts the document.
+   */
+  private void readDocument(JsonParser parser) throws IOException, JsonLdError {
+    JsonToken token = parser.nextToken();
+    if (token == JsonToken.FIELD_NAME && parser.getCurrentName().equals("@context")) {
+      parser.nextToken();
+      context = context.parse(parser.readValueAs(Object.class));
+      parser.nextToken();
+      readRecord(parser, null, 0);
+    } else if (token == JsonToken.FIELD_NAME) {
+      logger.debug("'@context' is not the first key in this document, so it can't be streamed");
+      ObjectNode tree = mapper.readTree(parser);
+      JsonNode localContext = tree.remove("@context");
+      if (localContext != null) {
+        context = context.parse(mapper.treeToValue(localContext, Object.class));
+      }
+
+      JsonParser previousParser = currentParser;
+      try (JsonParser treeParser = mapper.treeAsTokens(tree)) {
+        currentParser = treeParser;
+        treeParser.nextToken();
+        treeParser.nextToken();
+        readRecord(treeParser, null, 0);
+      } finally {
+        currentParser = previousParser;
+      }
+    }
+  }
+
+  /*
+   * Reading records.
+   */
+
+  /**
+   * Read a JSON object and translate it into OWL. If the object has an array of objects under the
+   * streamed key for this depth, each of those objects is read and translated as a record of its
+   * own, and only a reference to it is kept. Everything else is read into memory and expanded along
+   * with the object.
+   *
+   * @param parser A JSON parser whose current token is the first key of the object (or its end).
+   * @param key The key whose value this object is, or null for the document itself.
+   * @param depth The number of streamed keys this object is nested inside.
+   * @return The value this object represents, or null if expanding it left nothing to translate.
+   */
+  private Object readRecord(JsonParser parser, String key, int depth)
+      throws IOException, JsonLdError {
+    String streamedKey = (depth < STREAMED_KEYS.size()) ? STREAMED_KEYS.get(depth) : null;
+    Map<String, Object> record = new LinkedHashMap<>();
+
+    for (JsonToken token = parser.getCurrentToken();
+        token != JsonToken.END_OBJECT;
+        token = parser.nextToken()) {
+      String field = parser.getCurrentName();
+      token = parser.nextToken();
+      if (field.equals(streamedKey) && token == JsonToken.START_ARRAY && isProperty(field)) {
+        List<Object> references = new ArrayList<>();
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+          parser.nextToken();
+          Object item = readRecord(parser, field, depth + 1);
+          if (!(item instanceof OWLAnnotationSubject))
+            throw unsupported("'" + field + "' values that are not nodes");
+          references.add(reference((OWLAnnotationSubject) item));
+        }
+        if (parser.getCurrentToken() != JsonToken.END_ARRAY)
+          throw unsupported("'" + field + "' values that are not JSON objects");
+        record.put(field, references);
+      } else {
+        record.put(field, parser.readValueAs(Object.class));
+      }
+    }
+
+    Object expanded =
+        (key == null) ? api.expand(context, record) : api.expand(context, key, record);
+    if (expanded == null) return null;
+    if (!(expanded instanceof Map)) throw unsupported("'@graph'");
+    return translate(expanded);
+  }
+
+  /** @return True if values of this key are kept when a record is expanded. */
+  private boolean isProperty(String key) throws JsonLdError {
+    Map<String, Object> probe =
+        Collections.singletonMap(key, Collections.singletonMap("@id", "_:probe"));
+    return api.expand(context, probe) != null;
+  }
+
+  /**
+   * Create a JSON-LD reference to a record we have already translated, so that it can be included
+   * in the record that contains it.
+   */
+  private Map<String, Object> reference(OWLAnnotationSubject subject) {
+    if (subject instanceof IRI) return Collections.singletonMap("@id", subject.toString());
+
+    String label = "_:phyx-record-" + blankNodes.size();
+    blankNodes.put(label, (OWLAnonymousIndividual) subject);
+    return Collections.singletonMap("@id", label);
+  }
+
+  /*
+   * Translating expanded records into OWL.
+   */
+
+  /** An RDF list of values, as read from a '@list' object or a term with a '@list' container. */
+  private static class RDFList {
+    final List<Object> items;
+
+    RDFList(List<Object> items) {
+      this.items = items;
+    }
+  }
+
+  /** A property value that will be turned into an axiom once all imports have been loaded. */
+  private static class PropertyValue {
+    final OWLAnnotationSubject subject;
+    final IRI property;
+    final OWLAnnotationValue value;
+
+    PropertyValue(OWLAnnotationSubject subject, IRI property, OWLAnnotationValue value) {
+      this.subject = subject;
+      this.property = property;
+      this.value = value;
+    }
+  }
+
+  /** Translate every value in an expanded JSON-LD array. */
+  @SuppressWarnings("unchecked")
+  private List<Object> translateAll(Object values) {
+    List<Object> results = new ArrayList<>();
+    for (Object value : (List<Object>) values) {
+      results.add(translate(value));
+    }
+    return results;
+  }
+
+  /**
+   * Translate an expanded JSON-LD object into OWL.
+   *
+   * @return The value this object represents: an IRI or anonymous individual for nodes, a literal
+   *     for value objects, a class expression for anonymous class expressions, or an RDFList for
+   *     list objects.
+   */
+  @SuppressWarnings("unchecked")
+  private Object translate(Object expanded) {
+    Map<String, Object> object = (Map<String, Object>) expanded;
+    for (String key : object.keySet()) {
+      if (key.startsWith("@") && !SUPPORTED_KEYWORDS.contains(key))
+        throw unsupported("'" + key + "'");
+      if (key.startsWith("_:")) throw unsupported("blank node properties");
+    }
+
+    if (object.containsKey("@value")) {
+      return createLiteral(
+          object.get("@value"), (String) object.get("@type"), (String) object.get("@language"));
+    }
+    if (object.containsKey("@list")) return new RDFList(translateAll(object.get("@list")));
+
+    String id = (String) object.get("@id");
+    List<String> types = (List<String>) object.getOrDefault("@type", Collections.emptyList());
+    Map<String, List<Object>> properties = new LinkedHashMap<>();
+    for (Map.Entry<String, Object> entry : object.entrySet()) {
+      if (!entry.getKey().startsWith("@"))
+        properties.put(entry.getKey(), translateAll(entry.getValue()));
+    }
+
+    if (isClassExpression(id, types, properties)) {
+      return createClassExpression(types, properties);
+    }
+
+    OWLAnnotationObject subjectObject =
+        (id == null) ? df.getOWLAnonymousIndividual() : createResource(id);
+    OWLAnnotationSubject subject = (OWLAnnotationSubject) subjectObject;
+    boolean isOntology = types.contains(OWL_ONTOLOGY);
+    if (isOntology && subject instanceof IRI) ontologyIRI = (IRI) subject;
+
+    for (String type : types) {
+      if (!type.equals(OWL_ONTOLOGY)) addType(subject, type);
+    }
+
+    for (Map.Entry<String, List<Object>> entry : properties.entrySet()) {
+      String property = entry.getKey();
+      for (Object value : entry.getValue()) {
+        if (property.equals(RDF_TYPE)) {
+          if (value instanceof IRI) {
+            addType(subject, value.toString());
+          } else if (value instanceof OWLClassExpression) {
+            axioms.add(
+                df.getOWLClassAssertionAxiom((OWLClassExpression) value, individual(subject)));
+          } else {
+            throw unsupported("rdf:type value " + value);
+          }
+        } else if (property.equals(RDFS_SUBCLASS_OF)) {
+          axioms.add(df.getOWLSubClassOfAxiom(namedClass(subject), classExpression(value)));
+        } else if (property.equals(OWL_EQUIVALENT_CLASS)) {
+          axioms.add(df.getOWLEquivalentClassesAxiom(namedClass(subject), classExpression(value)));
+        } else if (property.equals(OWL_DISJOINT_WITH)) {
+          axioms.add(df.getOWLDisjointClassesAxiom(namedClass(subject), classExpression(value)));
+        } else if (property.equals(OWL_INTERSECTION_OF)
+            || property.equals(OWL_UNION_OF)
+            || property.equals(OWL_COMPLEMENT_OF)) {
+          // A named class defined by a boolean class expression.
+          OWLClassExpression definition =
+              createClassExpression(
+                  Collections.emptyList(),
+                  Collections.singletonMap(property, Collections.singletonList(value)));
+          axioms.add(df.getOWLEquivalentClassesAxiom(namedClass(subject), definition));
+        } else if (value instanceof OWLClassExpression || value instanceof RDFList) {
+          throw unsupported("<" + property + "> with a class expression or list value");
+        } else if (isOntology && property.equals(OWL_IMPORTS) && value instanceof IRI) {
+          imports.add((IRI) value);
+        } else if (isOntology) {
+          ontologyAnnotations.add(
+              df.getOWLAnnotation(
+                  df.getOWLAnnotationProperty(IRI.create(property)), (OWLAnnotationValue) value));
+        } else {
+          propertyValues.add(
+              new PropertyValue(subject, IRI.create(property), (OWLAnnotationValue) value));
+        }
+      }
+    }
+
+    return subject;
+  }
+
+  /** Format doubles in the canonical form used by jsonld-java. */
+  private static final ThreadLocal<DecimalFormat> doubleFormat =
+      ThreadLocal.withInitial(
+          () -> new DecimalFormat("0.0###############E0", new DecimalFormatSymbols(Locale.US)));
+
+  /**
+   * Create an OWL literal for an expanded value in the same way that jsonld-java would.
+   *
+   * @param value The value, as a string, number or boolean.
+   * @param datatype The datatype IRI to use, or null to use the default for this kind of value.
+   * @param language The language tag to use, or null.
+   */
+  private OWLLiteral createLiteral(Object value, String datatype, String language) {
+    String text;
+    if (value instanceof Boolean) {
+      text = value.toString();
+      if (datatype == null) datatype = JsonLdConsts.XSD_BOOLEAN;
+    } else if (value instanceof Double
+        || value instanceof Float
+        || (value instanceof Number && JsonLdConsts.XSD_DOUBLE.equals(datatype))) {
+      text = doubleFormat.get().format(value);
+      if (datatype == null) datatype = JsonLdConsts.XSD_DOUBLE;
+    } else if (value instanceof Number) {
+      text = value.toString();
+      if (datatype == null) datatype = JsonLdConsts.XSD_INTEGER;
+    } else if (language != null) {
+      return df.getOWLLiteral(value.toString(), language);
+    } else {
+      text = value.toString();
+    }
+
+    if (datatype == null) return df.getOWLLiteral(text, OWL2Datatype.XSD_STRING);
+    return df.getOWLLiteral(text, df.getOWLDatatype(IRI.create(datatype)));
+  }
+
+  /** Create an IRI or anonymous individual for an expanded IRI or blank node identifier. */
+  private OWLAnnotationObject createResource(String iri) {
+    if (iri.startsWith("_:")) {
+      OWLAnonymousIndividual individual = blankNodes.get(iri);
+      if (individual == null) {
+        individual = df.getOWLAnonymousIndividual();
+        blankNodes.put(iri, individual);
+      }
+      return individual;
+    }
+    return IRI.create(iri);
+  }
+
+  /** Add a declaration or class assertion for a type of a node. */
+  private void addType(OWLAnnotationSubject subject, String type) {
+    if (type.equals(OWL_CLASS)) {
+      axioms.add(df.getOWLDeclarationAxiom(namedClass(subject)));
+    } else if (type.equals(OWL_OBJECT_PROPERTY)) {
+      IRI iri = namedIRI(subject);
+      objectProperties.add(iri);
+      axioms.add(df.getOWLDeclarationAxiom(df.getOWLObjectProperty(iri)));
+    } else if (type.equals(OWL_DATATYPE_PROPERTY)) {
+      IRI iri = namedIRI(subject);
+      dataProperties.add(iri);
+      axioms.add(df.getOWLDeclarationAxiom(df.getOWLDataProperty(iri)));
+    } else if (type.equals(OWL_ANNOTATION_PROPERTY)) {
+      IRI iri = namedIRI(subject);
+      annotationProperties.add(iri);
+      axioms.add(df.getOWLDeclarationAxiom(df.getOWLAnnotationProperty(iri)));
+    } else if (type.equals(OWL_NAMED_INDIVIDUAL)) {
+      axioms.add(df.getOWLDeclarationAxiom(df.getOWLNamedIndividual(namedIRI(subject))));
+    } else if (type.equals(RDFS_DATATYPE)) {
+      axioms.add(df.getOWLDeclarationAxiom(df.getOWLDatatype(namedIRI(subject))));
+    } else if (!type.equals(OWL_THING) && isReserved(type)) {
+      throw unsupported("nodes of type <" + type + ">");
+    } else if (type.startsWith("_:")) {
+      throw unsupported("blank node types");
+    } else {
+      axioms.add(
+          df.getOWLClassAssertionAxiom(df.getOWLClass(IRI.create(type)), individual(subject)));
+    }
+  }
+
+  /** @return True if this IRI is in a vocabulary that OWL gives special meaning to. */
+  private static boolean isReserved(String iri) {
+    for (String namespace : RESERVED_NAMESPACES) {
+      if (iri.startsWith(namespace)) return true;
+    }
+    return false;
+  }
+
+  /** @return True if this node should be translated into an anonymous class expression. */
+  private static boolean isClassExpression(
+      String id, List<String> types, Map<String, List<Object>> properties) {
+    if (id != null && !id.startsWith("_:")) return false;
+    return types.contains(OWL_RESTRICTION)
+        || properties.containsKey(OWL_ON_PROPERTY)
+        || properties.containsKey(OWL_INTERSECTION_OF)
+        || properties.containsKey(OWL_UNION_OF)
+        || properties.containsKey(OWL_COMPLEMENT_OF);
+  }
+
+  /** Translate the types and properties of a node into an anonymous class expression. */
+  private OWLClassExpression createClassExpression(
+      List<String> types, Map<String, List<Object>> properties) {
+    for (String type : types) {
+      if (!type.equals(OWL_RESTRICTION) && !type.equals(OWL_CLASS))
+        throw unsupported("class expressions of type <" + type + ">");
+    }
+
+    List<Object> empty = Collections.emptyList();
+    List<Object> onProperty = properties.getOrDefault(OWL_ON_PROPERTY, empty);
+    List<Object> someValuesFrom = properties.getOrDefault(OWL_SOME_VALUES_FROM, empty);
+    List<Object> allValuesFrom = properties.getOrDefault(OWL_ALL_VALUES_FROM, empty);
+    List<Object> hasValue = properties.getOrDefault(OWL_HAS_VALUE, empty);
+    List<Object> intersectionOf = properties.getOrDefault(OWL_INTERSECTION_OF, empty);
+    List<Object> unionOf = properties.getOrDefault(OWL_UNION_OF, empty);
+    List<Object> complementOf = properties.getOrDefault(OWL_COMPLEMENT_OF, empty);
+
+    int propertiesUsed =
+        onProperty.size()
+            + someValuesFrom.size()
+            + allValuesFrom.size()
+            + hasValue.size()
+            + intersectionOf.size()
+            + unionOf.size()
+            + complementOf.size();
+    int expectedProperties = onProperty.isEmpty() ? 1 : 2;
+    if (properties.values().stream().mapToInt(List::size).sum() != propertiesUsed
+        || propertiesUsed != expectedProperties) {
+      throw unsupported("class expression with properties " + properties.keySet());
+    }
+
+    if (!onProperty.isEmpty()) {
+      if (!(onProperty.get(0) instanceof IRI)) throw unsupported("owl:onProperty without an IRI");
+      IRI property = (IRI) onProperty.get(0);
+
+      if (!someValuesFrom.isEmpty()) {
+        Object filler = someValuesFrom.get(0);
+        if (isDatatype(filler)) {
+          return df.getOWLDataSomeValuesFrom(
+              df.getOWLDataProperty(property), df.getOWLDatatype((IRI) filler));
+        }
+        return df.getOWLObjectSomeValuesFrom(
+            df.getOWLObjectProperty(property), classExpression(filler));
+      } else if (!allValuesFrom.isEmpty()) {
+        Object filler = allValuesFrom.get(0);
+        if (isDatatype(filler)) {
+          return df.getOWLDataAllValuesFrom(
+              df.getOWLDataProperty(property), df.getOWLDatatype((IRI) filler));
+        }
+        return df.getOWLObjectAllValuesFrom(
+            df.getOWLObjectProperty(property), classExpression(filler));
+      } else if (!hasValue.isEmpty()) {
+        Object value = hasValue.get(0);
+        if (value instanceof OWLLiteral) {
+          return df.getOWLDataHasValue(df.getOWLDataProperty(property), (OWLLiteral) value);
+        } else if (value instanceof OWLAnnotationSubject) {
+          return df.getOWLObjectHasValue(
+              df.getOWLObjectProperty(property), individual((OWLAnnotationSubject) value));
+        }
+      }
+      throw unsupported("restriction on <" + property + ">");
+    }
+
+    if (!complementOf.isEmpty()) {
+      return df.getOWLObjectComplementOf(classExpression(complementOf.get(0)));
+    }
+
+    List<Object> operands = intersectionOf.isEmpty() ? unionOf : intersectionOf;
+    if (!(operands.get(0) instanceof RDFList))
+      throw unsupported("owl:intersectionOf or owl:unionOf without a list");
+
+    Set<OWLClassExpression> classExpressions = new HashSet<>();
+    for (Object item : ((RDFList) operands.get(0)).items) {
+      classExpressions.add(classExpression(item));
+    }
+    return intersectionOf.isEmpty()
+        ? df.getOWLObjectUnionOf(classExpressions)
+        : df.getOWLObjectIntersectionOf(classExpressions);
+  }
+
+  /** @return True if this value is the IRI of a built-in datatype. */
+  private static boolean isDatatype(Object value) {
+    return (value instanceof IRI) && OWL2Datatype.isBuiltIn((IRI) value);
+  }
+
+  /** Interpret a value as a class expression. */
+  private OWLClassExpression classExpression(Object value) {
+    if (value instanceof IRI) return df.getOWLClass((IRI) value);
+    if (value instanceof OWLClassExpression) return (OWLClassExpression) value;
+    throw unsupported("class expression " + value);
+  }
+
+  /** Interpret a subject as a named entity. */
+  private IRI namedIRI(OWLAnnotationSubject subject) {
+    if (subject instanceof IRI) return (IRI) subject;
+    throw unsupported("anonymous classes or properties without a class expression");
+  }
+
+  /** Interpret a subject as a named class. */
+  private OWLClass namedClass(OWLAnnotationSubject subject) {
+    return df.getOWLClass(namedIRI(subject));
+  }
+
+  /** Interpret a subject as an individual. */
+  private OWLIndividual individual(OWLAnnotationSubject subject) {
+    if (subject instanceof IRI) return df.getOWLNamedIndividual((IRI) subject);
+    return (OWLAnonymousIndividual) subject;
+  }
+
+  /*
+   * Adding everything to the ontology.
+   */
+
+  /**
+   * Load this document's imports, decide which kind of axiom each property value should become, and
+   * add all the axioms and ontology annotations we've found to the ontology. Imports are loaded
+   * with the ontology manager's loader configuration.
+   */
+  private void addToOntology() {
+    List<OWLOntologyChange> changes = new ArrayList<>();
+
+    if (ontologyIRI != null && ontology.getOntologyID().isAnonymous()) {
+      manager.applyChange(new SetOntologyID(ontology, new OWLOntologyID(ontologyIRI)));
+    }
+
+    // Load imports first, so we know which properties they declare.
+    for (IRI importIRI : imports) {
+      OWLImportsDeclaration declaration = df.getOWLImportsDeclaration(importIRI);
+      manager.applyChange(new AddImport(ontology, declaration));
+      manager.makeLoadImportRequest(declaration, manager.getOntologyLoaderConfiguration());
+    }
+
+    for (OWLOntology imported : ontology.getImportsClosure()) {
+      if (imported == ontology) continue;
+      imported.getObjectPropertiesInSignature().forEach(p -> objectProperties.add(p.getIRI()));
+      imported.getDataPropertiesInSignature().forEach(p -> dataProperties.add(p.getIRI()));
+      imported
+          .getAnnotationPropertiesInSignature()
+          .forEach(p -> annotationProperties.add(p.getIRI()));
+    }
+
+    for (OWLAnnotation annotation : ontologyAnnotations) {
+      changes.add(new AddOntologyAnnotation(ontology, annotation));
+    }
+
+    for (PropertyValue pv : propertyValues) {
+      boolean isLiteral = pv.value instanceof OWLLiteral;
+      if (!isLiteral
+          && objectProperties.contains(pv.property)
+          && !annotationProperties.contains(pv.property)) {
+        axioms.add(
+            df.getOWLObjectPropertyAssertionAxiom(
+                df.getOWLObjectProperty(pv.property),
+                individual(pv.subject),
+                individual((OWLAnnotationSubject) pv.value)));
+      } else if (isLiteral
+          && dataProperties.contains(pv.property)
+          && !annotationProperties.contains(pv.property)) {
+        axioms.add(
+            df.getOWLDataPropertyAssertionAxiom(
+                df.getOWLDataProperty(pv.property), individual(pv.subject), (OWLLiteral) pv.value));
+      } else {
+        axioms.add(
+            df.getOWLAnnotationAssertionAxiom(
+                df.getOWLAnnotationProperty(pv.property), pv.subject, pv.value));
+      }
+    }
+
+    manager.applyChanges(changes);
+    manager.addAxioms(ontology, axioms);
+    logger.info("Loaded {} axioms directly from a Phyx document", axioms.size());
+
+    // Release memory we no longer need.
+    axioms = null;
+    propertyValues = null;
+    blankNodes = null;
+    context = null;
+    api = null;
+  }
+
+  /*
+   * Errors.
+   */
+
+  /** Create an exception describing an error at the current location in the document. */
+  private RDFParseException error(String message) {
+    if (currentParser == null) return new RDFParseException(message);
+
+    JsonLocation location = currentParser.getCurrentLocation();
+    return new RDFParseException(message, location.getLineNr(), location.getColumnNr());
+  }
+
+  /** Create an exception describing a feature that this loader does not support. */
+  private RDFParseException unsupported(String feature) {
+    return error("The Phyx loader does not support " + feature);
+  }
+}
@@ -1,12 +1,17 @@
 package org.phyloref.jphyloref.helpers;
 
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Options;
+import org.phyloref.jphyloref.reasoner.TreeReasonerFactory;
 import org.semanticweb.elk.owlapi.ElkReasonerFactory;
 import org.semanticweb.owlapi.apibinding.OWLManager;
+import org.semanticweb.owlapi.model.OWLOntology;
 import org.semanticweb.owlapi.model.OWLOntologyCreationException;
+import org.semanticweb.owlapi.reasoner.InferenceType;
 import org.semanticweb.owlapi.reasoner.OWLReasoner;
 import org.semanticweb.owlapi.reasoner.OWLReasonerFactory;
 import org.semanticweb.owlapi.util.Version;
@@ -27,6 +32,7 @@ public class ReasonerHelper {
      */
     reasonerFactories.put("null", null);
     reasonerFactories.put("elk", new ElkReasonerFactory());
+    reasonerFactories.put("tree", new TreeReasonerFactory());
   }
 
   /** Get reasoner factory by name. */
@@ -107,6 +113,43 @@ public class ReasonerHelper {
     }
   }
 
+  /**
+   * Classify an ontology with a reasoner, and determine the classes of its individuals, as far as
+   * the reasoner supports this. Reasoners such as ELK otherwise do this when they are first
+   * queried; doing this first allows us to tell how long it takes separately from the queries
+   * themselves. The tree reasoner works out the types of individuals from the phylogenies, and only
+   * asks its fallback reasoner to realize the ontology if it can't.
+   *
+   * @param reasoner The reasoner to classify with, or null if no reasoner is being used.
+   */
+  public static void classify(OWLReasoner reasoner) {
+    if (reasoner == null) return;
+
+    Object event = FlightRecorderHelper.beginClassification();
+    Set<InferenceType> inferenceTypes =
+        EnumSet.of(InferenceType.CLASS_HIERARCHY, InferenceType.CLASS_ASSERTIONS);
+    inferenceTypes.retainAll(reasoner.getPrecomputableInferenceTypes());
+    reasoner.precomputeInferences(inferenceTypes.toArray(new InferenceType[inferenceTypes.size()]));
+    FlightRecorderHelper.endClassification(event, reasoner.getReasonerName());
+  }
+
+  /**
+   * Create a reasoner for an ontology, recording how long this took for Java Flight Recorder.
+   *
+   * @param factory The factory to create the reasoner with, or null if no reasoner is being used.
+   * @param ontology The ontology to reason over.
+   * @return The reasoner, or null if the factory is null.
+   */
+  public static OWLReasoner createReasoner(OWLReasonerFactory factory, OWLOntology ontology) {
+    if (factory == null) return null;
+
+    Object event = FlightRecorderHelper.beginReasonerCreation();
+    OWLReasoner reasoner = factory.createReasoner(ontology);
+    FlightRecorderHelper.endReasonerCreation(
+        event, factory.getReasonerName(), ontology.getAxiomCount());
+    return reasoner;
+  }
+
   /** Add command line options that can be read by getReasonerFromCmdLine() */
   public static void addCommandLineOptions(Options opts) {
     opts.addOption(
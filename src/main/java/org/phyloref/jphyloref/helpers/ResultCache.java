@@ -0,0 +1,160 @@
+package org.phyloref.jphyloref.helpers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.json.JSONObject;
+
+/**
+ * A cache of the results of reasoning over documents, so that a document that is sent to us again
+ * (such as when a page is reloaded) doesn't need to be parsed and reasoned over again. Results are
+ * keyed by a hash of the document together with a description of how it was reasoned over (such as
+ * the name and version of the reasoner). The cache is bounded both by the number of results and by
+ * their total size, and evicts the least recently used results first.
+ */
+public class ResultCache {
+  /** The algorithm used to hash documents. */
+  private static final String HASH_ALGORITHM = "SHA-256";
+
+  /** The largest number of results we keep. */
+  private final int maxEntries;
+
+  /** The largest total size of the results we keep, in bytes. */
+  private final long maxBytes;
+
+  /** Our results by key, in order of access (least recently used first). */
+  private final LinkedHashMap<String, String> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  // These counters are guarded by "this".
+  private long bytes = 0;
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  /**
+   * Create an empty cache.
+   *
+   * @param maxEntries The largest number of results to keep. If zero, nothing will be cached.
+   * @param maxBytes The largest total size of the results to keep, in bytes.
+   */
+  public ResultCache(int maxEntries, long maxBytes) {
+    this.maxEntries = maxEntries;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Calculate the key for a document.
+   *
+   * @param document The document to be reasoned over. It will be read to its end, but not closed.
+   * @param variant A description of how the document is reasoned over, such as the name and version
+   *     of the reasoner; the same document reasoned over differently has a different key.
+   * @return The key for this document and variant.
+   * @throws IOException If the document could not be read.
+   */
+  public static String getKey(InputStream document, String variant) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance(HASH_ALGORITHM);
+    } catch (NoSuchAlgorithmException ex) {
+      // Every Java implementation is required to support SHA-256.
+      throw new IllegalStateException("Could not calculate " + HASH_ALGORITHM + ": " + ex);
+    }
+
+    digest.update(variant.getBytes(StandardCharsets.UTF_8));
+    digest.update((byte) 0);
+
+    byte[] buffer = new byte[8192];
+    int count;
+    while ((count = document.read(buffer)) != -1) digest.update(buffer, 0, count);
+
+    StringBuilder key = new StringBuilder();
+    for (byte b : digest.digest()) key.append(String.format("%02x", b));
+    return key.toString();
+  }
+
+  /** @return An estimate of the memory used by a result, in bytes. */
+  private static long getSize(String key, String result) {
+    // Java strings use (at most) two bytes per character.
+    return 2L * (key.length() + result.length());
+  }
+
+  /**
+   * Look up a result.
+   *
+   * @param key The key of the document, as calculated by getKey().
+   * @return The result for this document, or null if we don't have one.
+   */
+  public synchronized String get(String key) {
+    String result = entries.get(key);
+    if (result == null) misses++;
+    else hits++;
+    return result;
+  }
+
+  /**
+   * Store a result, evicting the least recently used results if necessary to keep within our
+   * bounds. Results that are larger than our total size are not stored.
+   *
+   * @param key The key of the document, as calculated by getKey().
+   * @param result The result of reasoning over this document.
+   */
+  public synchronized void put(String key, String result) {
+    long size = getSize(key, result);
+    if (maxEntries <= 0 || size > maxBytes) return;
+
+    String previous = entries.put(key, result);
+    if (previous != null) bytes -= getSize(key, previous);
+    bytes += size;
+
+    Iterator<Map.Entry<String, String>> iterator = entries.entrySet().iterator();
+    while ((entries.size() > maxEntries || bytes > maxBytes) && iterator.hasNext()) {
+      Map.Entry<String, String> eldest = iterator.next();
+      bytes -= getSize(eldest.getKey(), eldest.getValue());
+      iterator.remove();
+      evictions++;
+    }
+  }
+
+  /** @return The number of results in this cache. */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /** @return The estimated total size of the results in this cache, in bytes. */
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  /** @return The number of lookups that found a result. */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /** @return The number of lookups that didn't find a result. */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /** @return The number of results evicted to keep within our bounds. */
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  /** @return The size of this cache and the number of hits, misses and evictions as JSON. */
+  public synchronized JSONObject getStatistics() {
+    JSONObject statistics = new JSONObject();
+    statistics.put("entries", entries.size());
+    statistics.put("maxEntries", maxEntries);
+    statistics.put("bytes", bytes);
+    statistics.put("maxBytes", maxBytes);
+    statistics.put("hits", hits);
+    statistics.put("misses", misses);
+    statistics.put("evictions", evictions);
+    return statistics;
+  }
+}
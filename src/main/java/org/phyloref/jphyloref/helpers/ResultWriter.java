@@ -0,0 +1,390 @@
+package org.phyloref.jphyloref.helpers;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.json.JSONObject;
+import org.semanticweb.owlapi.model.OWLClass;
+import org.semanticweb.owlapi.model.OWLNamedIndividual;
+
+/**
+ * The ResultWriter writes the nodes that each phyloreference resolved to as they are passed to it,
+ * rather than building the entire result in memory first. Three formats are supported:
+ *
+ * <ul>
+ *   <li>'json' writes a single JSON object, with the nodes of each phyloreference in its
+ *       'phylorefs' property, e.g. '{"phylorefs":{"#phyloref1":["#node1"]}}', followed by a
+ *       newline. Any additional properties (such as 'verification') follow 'phylorefs'.
+ *   <li>'ndjson' writes newline-delimited JSON: a line for each phyloreference, e.g.
+ *       '{"phyloref":"#phyloref1","nodes":["#node1"]}', followed by a summary line, e.g.
+ *       '{"summary":{"phylorefs":1,"nodes":1}}', which also contains any additional properties.
+ *   <li>'compact' writes a single JSON object with a dictionary of every node in its 'nodes'
+ *       property, followed by the nodes of each phyloreference in its 'phylorefs' property as
+ *       ranges of positions in that dictionary, e.g. '{"nodes":["#node1","#node2"],
+ *       "phylorefs":{"#phyloref1":[0,2]}}'. Each range is a pair of numbers: the number of
+ *       positions skipped since the end of the previous range (or the start of the dictionary), and
+ *       the number of nodes in the range. The nodes are ordered so that each clade in a phylogeny
+ *       forms a single range (see getCompactIds()), so a phyloreference usually takes two numbers,
+ *       however many nodes it resolved to, and each node IRI is written out only once. As the
+ *       dictionary must be complete before any phyloreference is written, this format is buffered
+ *       until finish() is called.
+ * </ul>
+ *
+ * <p>NDJSON may also contain other records, such as '{"progress":{...}}', written with
+ * writeRecord().
+ *
+ * <p>In every format, the default URI prefix is removed from phyloreference and node IRIs as they
+ * are written. The writer is not flushed or closed; this is left to the caller.
+ */
+public class ResultWriter {
+  /** The formats that results can be written in. */
+  public static final List<String> FORMATS =
+      Collections.unmodifiableList(Arrays.asList("json", "ndjson", "compact"));
+
+  /** The writer we write results to. */
+  private final Writer out;
+
+  /** True if we write NDJSON, false if we write a single JSON object. */
+  private final boolean ndjson;
+
+  /** True if we write the 'compact' format, with a dictionary of nodes. */
+  private final boolean compact;
+
+  /** The default URI prefix to remove from IRIs, or null if none should be removed. */
+  private final String defaultURIPrefix;
+
+  /** The number of phyloreferences written so far. */
+  private int phylorefCount = 0;
+
+  /** The total number of nodes written so far, across all phyloreferences. */
+  private long nodeCount = 0;
+
+  /** The number of characters written so far. */
+  private long length = 0;
+
+  /**
+   * In the 'compact' format, the ID of every node written so far, keyed by its OWLNamedIndividual
+   * (or by its IRI, if it was written as a string). IDs are assigned in the order in which nodes
+   * are first written, and are only rearranged when the results are finished.
+   */
+  private final Map<Object, Integer> nodeIds = new HashMap<>();
+
+  /** In the 'compact' format, the IRI of every node written so far, indexed by its ID. */
+  private final List<String> nodeIRIs = new ArrayList<>();
+
+  /** In the 'compact' format, the IRI of every phyloreference written so far. */
+  private final List<String> phylorefIRIs = new ArrayList<>();
+
+  /** In the 'compact' format, the IDs of the nodes of every phyloreference written so far. */
+  private final List<int[]> phylorefNodeIds = new ArrayList<>();
+
+  /**
+   * Create a ResultWriter.
+   *
+   * @param out The writer to write results to.
+   * @param format The format to write results in: one of FORMATS.
+   * @param defaultURIPrefix The default URI prefix to remove from IRIs, or null if none should be
+   *     removed.
+   * @throws IllegalArgumentException If the format is not supported.
+   */
+  public ResultWriter(Writer out, String format, String defaultURIPrefix) {
+    if (!FORMATS.contains(format)) {
+      throw new IllegalArgumentException(
+          "Unknown output format '" + format + "'; supported formats are: " + FORMATS);
+    }
+    this.out = out;
+    this.ndjson = format.equals("ndjson");
+    this.compact = format.equals("compact");
+    this.defaultURIPrefix = defaultURIPrefix;
+  }
+
+  /** @return The number of phyloreferences written so far. */
+  public int getPhylorefCount() {
+    return phylorefCount;
+  }
+
+  /** @return The number of characters written so far. */
+  public long getLength() {
+    return length;
+  }
+
+  /**
+   * Write the nodes that a phyloreference resolved to.
+   *
+   * @param phyloref The phyloreference.
+   * @param nodes The nodes it resolved to.
+   * @throws IOException If the result could not be written.
+   */
+  public void writePhyloref(OWLClass phyloref, Set<OWLNamedIndividual> nodes) throws IOException {
+    if (compact) {
+      addCompactPhyloref(
+          PhylorefHelper.removeDefaultURIPrefix(phyloref.getIRI(), defaultURIPrefix), nodes);
+      return;
+    }
+
+    writePhylorefStart(PhylorefHelper.removeDefaultURIPrefix(phyloref.getIRI(), defaultURIPrefix));
+    boolean first = true;
+    for (OWLNamedIndividual node : nodes) {
+      if (!first) write(',');
+      write(
+          JSONObject.quote(PhylorefHelper.removeDefaultURIPrefix(node.getIRI(), defaultURIPrefix)));
+      first = false;
+    }
+    writePhylorefEnd(nodes.size());
+  }
+
+  /**
+   * Write the nodes that a phyloreference resolved to, given as IRIs that the default URI prefix
+   * has already been removed from (such as those in a cached result).
+   *
+   * @param phyloref The IRI of the phyloreference.
+   * @param nodes The IRIs of the nodes it resolved to.
+   * @throws IOException If the result could not be written.
+   */
+  public void writePhyloref(String phyloref, Collection<String> nodes) throws IOException {
+    if (compact) {
+      addCompactPhyloref(phyloref, nodes);
+      return;
+    }
+
+    writePhylorefStart(phyloref);
+    boolean first = true;
+    for (String node : nodes) {
+      if (!first) write(',');
+      write(JSONObject.quote(node));
+      first = false;
+    }
+    writePhylorefEnd(nodes.size());
+  }
+
+  /** Start writing a phyloreference, up to the opening bracket of its list of nodes. */
+  private void writePhylorefStart(String phylorefIRI) throws IOException {
+    if (ndjson) {
+      write("{\"phyloref\":");
+      write(JSONObject.quote(phylorefIRI));
+      write(",\"nodes\":");
+    } else {
+      write((phylorefCount == 0) ? "{\"phylorefs\":{" : ",");
+      write(JSONObject.quote(phylorefIRI));
+      write(':');
+    }
+    write('[');
+  }
+
+  /** Finish writing a phyloreference, after its list of nodes. */
+  private void writePhylorefEnd(int nodeCount) throws IOException {
+    write(']');
+    if (ndjson) write("}\n");
+    phylorefCount++;
+    this.nodeCount += nodeCount;
+  }
+
+  /**
+   * Add a phyloreference to the results to be written in the 'compact' format, giving each of its
+   * nodes an ID if it doesn't have one yet. The default URI prefix is only removed from the IRI of
+   * each node once, however many phyloreferences it is in.
+   *
+   * @param phylorefIRI The IRI of the phyloreference.
+   * @param nodes The nodes it resolved to, as OWLNamedIndividuals or IRIs.
+   */
+  private void addCompactPhyloref(String phylorefIRI, Collection<?> nodes) {
+    int[] ids = new int[nodes.size()];
+    int index = 0;
+    for (Object node : nodes) {
+      Integer id = nodeIds.get(node);
+      if (id == null) {
+        id = nodeIRIs.size();
+        nodeIds.put(node, id);
+        nodeIRIs.add(
+            (node instanceof OWLNamedIndividual)
+                ? PhylorefHelper.removeDefaultURIPrefix(
+                    ((OWLNamedIndividual) node).getIRI(), defaultURIPrefix)
+                : (String) node);
+      }
+      ids[index++] = id;
+    }
+
+    phylorefIRIs.add(phylorefIRI);
+    phylorefNodeIds.add(ids);
+    phylorefCount++;
+    nodeCount += nodes.size();
+  }
+
+  /**
+   * Choose the final ID of every node in the 'compact' format, so that the nodes of each
+   * phyloreference have consecutive IDs wherever possible. We rank the phyloreferences from the
+   * largest to the smallest, and sort the nodes by the ranks of the phyloreferences they are in.
+   * Nodes that are in a phyloreference then share a prefix of ranks, and so are sorted next to each
+   * other, as long as any two phyloreferences are either nested or disjoint -- as clades on the
+   * same phylogeny are. Other phyloreferences are still written correctly, but may take more than
+   * one range.
+   *
+   * @return The final ID of each node, indexed by the ID it was given when it was first written.
+   */
+  private int[] getCompactIds() {
+    int dictionarySize = nodeIRIs.size();
+
+    // Rank phyloreferences from the largest to the smallest.
+    Integer[] phylorefsBySize = new Integer[phylorefNodeIds.size()];
+    for (int i = 0; i < phylorefsBySize.length; i++) phylorefsBySize[i] = i;
+    Arrays.sort(
+        phylorefsBySize, (a, b) -> phylorefNodeIds.get(b).length - phylorefNodeIds.get(a).length);
+
+    // List the ranks of the phyloreferences that each node is in, in increasing order.
+    int[] membershipCounts = new int[dictionarySize];
+    for (int[] ids : phylorefNodeIds) {
+      for (int id : ids) membershipCounts[id]++;
+    }
+    int[][] ranks = new int[dictionarySize][];
+    for (int id = 0; id < dictionarySize; id++) ranks[id] = new int[membershipCounts[id]];
+    int[] filled = new int[dictionarySize];
+    for (int rank = 0; rank < phylorefsBySize.length; rank++) {
+      for (int id : phylorefNodeIds.get(phylorefsBySize[rank])) ranks[id][filled[id]++] = rank;
+    }
+
+    // Sort the nodes by those ranks, as if they were words.
+    Integer[] nodesInOrder = new Integer[dictionarySize];
+    for (int id = 0; id < dictionarySize; id++) nodesInOrder[id] = id;
+    Arrays.sort(
+        nodesInOrder,
+        (a, b) -> {
+          int[] ranksA = ranks[a];
+          int[] ranksB = ranks[b];
+          for (int i = 0; i < ranksA.length && i < ranksB.length; i++) {
+            if (ranksA[i] != ranksB[i]) return Integer.compare(ranksA[i], ranksB[i]);
+          }
+          return Integer.compare(ranksA.length, ranksB.length);
+        });
+
+    int[] compactIds = new int[dictionarySize];
+    for (int position = 0; position < dictionarySize; position++) {
+      compactIds[nodesInOrder[position]] = position;
+    }
+    return compactIds;
+  }
+
+  /**
+   * Write the dictionary of nodes and the nodes of every phyloreference in the 'compact' format.
+   */
+  private void writeCompactPhylorefs() throws IOException {
+    int[] compactIds = getCompactIds();
+    String[] dictionary = new String[compactIds.length];
+    for (int id = 0; id < compactIds.length; id++) dictionary[compactIds[id]] = nodeIRIs.get(id);
+
+    write("{\"nodes\":[");
+    for (int position = 0; position < dictionary.length; position++) {
+      if (position > 0) write(',');
+      write(JSONObject.quote(dictionary[position]));
+    }
+    write("],\"phylorefs\":{");
+
+    for (int index = 0; index < phylorefIRIs.size(); index++) {
+      if (index > 0) write(',');
+      write(JSONObject.quote(phylorefIRIs.get(index)));
+      write(":[");
+
+      int[] ids = phylorefNodeIds.get(index);
+      int[] positions = new int[ids.length];
+      for (int i = 0; i < ids.length; i++) positions[i] = compactIds[ids[i]];
+      Arrays.sort(positions);
+
+      // Write each run of consecutive positions as a range.
+      int previousEnd = 0;
+      int i = 0;
+      while (i < positions.length) {
+        int start = positions[i];
+        int end = start;
+        while (i < positions.length && positions[i] <= end) {
+          if (positions[i] == end) end++;
+          i++;
+        }
+        if (start != positions[0]) write(',');
+        write(String.valueOf(start - previousEnd));
+        write(',');
+        write(String.valueOf(end - start));
+        previousEnd = end;
+      }
+      write(']');
+    }
+    write('}');
+  }
+
+  /**
+   * Write a line containing some other kind of record, such as '{"progress":{...}}', in NDJSON.
+   * These can be written before, between or after phyloreferences.
+   *
+   * @param type The type of record, which is used as its only key.
+   * @param value The value of the record, such as a JSONObject or a string.
+   * @throws IOException If the record could not be written.
+   * @throws IllegalStateException If we are writing a single JSON object rather than NDJSON.
+   */
+  public void writeRecord(String type, Object value) throws IOException {
+    if (!ndjson) throw new IllegalStateException("Records can only be written in NDJSON");
+    write('{');
+    write(JSONObject.quote(type));
+    write(':');
+    write(JSONObject.valueToString(value));
+    write("}\n");
+  }
+
+  /**
+   * Write the nodes that every phyloreference in a map resolved to.
+   *
+   * @param nodesPerPhyloref The nodes that each phyloreference resolved to.
+   * @throws IOException If the results could not be written.
+   */
+  public void writePhylorefs(Map<OWLClass, Set<OWLNamedIndividual>> nodesPerPhyloref)
+      throws IOException {
+    for (Map.Entry<OWLClass, Set<OWLNamedIndividual>> entry : nodesPerPhyloref.entrySet()) {
+      writePhyloref(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * Finish writing the results, once every phyloreference has been written.
+   *
+   * @param properties Additional properties to write (such as 'verification' or 'timings'): at the
+   *     top level of the JSON object, or in the summary line of NDJSON.
+   * @throws IOException If the results could not be written.
+   */
+  public void finish(Map<String, Object> properties) throws IOException {
+    if (compact) {
+      writeCompactPhylorefs();
+    } else if (ndjson) {
+      write("{\"summary\":{\"phylorefs\":");
+      write(String.valueOf(phylorefCount));
+      write(",\"nodes\":");
+      write(String.valueOf(nodeCount));
+    } else {
+      write((phylorefCount == 0) ? "{\"phylorefs\":{}" : "}");
+    }
+
+    for (Map.Entry<String, Object> property : properties.entrySet()) {
+      write(',');
+      write(JSONObject.quote(property.getKey()));
+      write(':');
+      write(JSONObject.valueToString(property.getValue()));
+    }
+
+    write(ndjson ? "}}\n" : "}\n");
+  }
+
+  /** Write a string to our writer, counting its length. */
+  private void write(String str) throws IOException {
+    out.write(str);
+    length += str.length();
+  }
+
+  /** Write a character to our writer, counting its length. */
+  private void write(char c) throws IOException {
+    out.write(c);
+    length++;
+  }
+}
@@ -0,0 +1,164 @@
+package org.phyloref.jphyloref.helpers;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+/**
+ * A document read from a stream (such as the body of a request), which is kept in memory while it
+ * is small and spooled to a temporary file once it grows beyond a threshold. This allows a document
+ * to be read as it arrives, and then read again (e.g. once to calculate its cache key and once to
+ * parse it) without a large document using up our memory. Documents larger than a maximum size are
+ * rejected while they are being read.
+ *
+ * <p>A document may be read by more than one thread, such as a request and the background task that
+ * reasons over it. Each of them holds a reference to the document: the creator of a document holds
+ * its first reference, retain() adds another, and close() releases one. Once every reference has
+ * been released, the document is discarded and its temporary file (if any) is deleted.
+ */
+public class SpooledDocument implements Closeable {
+  /** Thrown when a document is larger than the maximum size we accept. */
+  public static class DocumentTooLargeException extends IOException {
+    public DocumentTooLargeException(long maxBytes) {
+      super("Document is larger than the maximum of " + maxBytes + " bytes");
+    }
+  }
+
+  /** A ByteArrayOutputStream whose contents can be read without copying them. */
+  private static class Buffer extends ByteArrayOutputStream {
+    InputStream openStream() {
+      return new ByteArrayInputStream(buf, 0, count);
+    }
+  }
+
+  /** The size up to which we keep the document in memory, in bytes. */
+  private final long memoryThreshold;
+
+  /** The largest document we accept, in bytes. */
+  private final long maxBytes;
+
+  /** The directory to write temporary files to, or null for the default temporary directory. */
+  private final File directory;
+
+  /** The contents of the document while it is kept in memory, or null once it has been spooled. */
+  private Buffer buffer = new Buffer();
+
+  /** The temporary file the document has been spooled to, or null if it is kept in memory. */
+  private File file = null;
+
+  /** The size of the document, in bytes. */
+  private long size = 0;
+
+  /** The number of references to this document that haven't been released yet. */
+  private int references = 1;
+
+  /**
+   * Create an empty document.
+   *
+   * @param memoryThreshold The size up to which the document is kept in memory, in bytes.
+   * @param maxBytes The largest document to accept, in bytes.
+   * @param directory The directory to write temporary files to, or null to use the default
+   *     temporary directory.
+   */
+  public SpooledDocument(long memoryThreshold, long maxBytes, File directory) {
+    this.memoryThreshold = memoryThreshold;
+    this.maxBytes = maxBytes;
+    this.directory = directory;
+  }
+
+  /**
+   * Read an input stream to its end, and add its contents to this document.
+   *
+   * @param in The input stream to read. It will not be closed.
+   * @throws DocumentTooLargeException If the document grows larger than the maximum size.
+   * @throws IOException If the input stream could not be read, or the temporary file could not be
+   *     written.
+   */
+  public synchronized void readFrom(InputStream in) throws IOException {
+    if (buffer == null && file == null) throw new IOException("Document has been closed");
+
+    OutputStream out = (file == null) ? null : new FileOutputStream(file, true);
+    try {
+      byte[] chunk = new byte[8192];
+      int count;
+      while ((count = in.read(chunk)) != -1) {
+        if (size + count > maxBytes) throw new DocumentTooLargeException(maxBytes);
+
+        // Once we grow beyond the threshold, move what we have so far into a temporary file.
+        if (out == null && size + count > memoryThreshold) {
+          file =
+              (directory == null)
+                  ? File.createTempFile("jphyloref", ".jsonld")
+                  : File.createTempFile("jphyloref", ".jsonld", directory);
+          out = new FileOutputStream(file);
+          buffer.writeTo(out);
+          buffer = null;
+        }
+
+        if (out == null) buffer.write(chunk, 0, count);
+        else out.write(chunk, 0, count);
+        size += count;
+      }
+    } finally {
+      if (out != null) out.close();
+    }
+  }
+
+  /**
+   * Open a new stream to read this document from its beginning.
+   *
+   * @return An input stream, which should be closed once it has been read.
+   * @throws IOException If the document has been closed, or its temporary file could not be read.
+   */
+  public synchronized InputStream openStream() throws IOException {
+    if (buffer != null) return buffer.openStream();
+    if (file != null) return new FileInputStream(file);
+    throw new IOException("Document has been closed");
+  }
+
+  /**
+   * Add a reference to this document, which must be released with close() once it is no longer
+   * needed.
+   *
+   * @return This document.
+   * @throws IllegalStateException If every reference to this document has already been released.
+   */
+  public synchronized SpooledDocument retain() {
+    if (references == 0) throw new IllegalStateException("Document has been closed");
+    references++;
+    return this;
+  }
+
+  /** @return The size of this document, in bytes. */
+  public synchronized long getSize() {
+    return size;
+  }
+
+  /** @return True if this document has been spooled to a temporary file. */
+  public synchronized boolean isSpooled() {
+    return file != null;
+  }
+
+  /**
+   * Release a reference to this document. Once every reference has been released, the document is
+   * discarded and its temporary file (if any) is deleted.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (references == 0 || --references > 0) return;
+
+    buffer = null;
+    if (file != null) {
+      File spooledFile = file;
+      file = null;
+      Files.deleteIfExists(spooledFile.toPath());
+    }
+  }
+}
@@ -0,0 +1,76 @@
+package org.phyloref.jphyloref.helpers;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The ThreadHelper creates executors for tasks that mostly wait, such as handling HTTP connections.
+ * On Java 21 and later, these run every task on its own virtual thread, so that thousands of idle
+ * or slow connections need almost no memory and no platform threads. As JPhyloRef still supports
+ * Java 8, we look up virtual threads by reflection, and fall back to platform threads if they
+ * aren't available.
+ */
+public class ThreadHelper {
+  /** Set up a logger to use for providing logging. */
+  private static final Logger logger = LoggerFactory.getLogger(ThreadHelper.class);
+
+  /**
+   * Create an executor that runs every task on a new virtual thread if possible, or on a (reused)
+   * daemon platform thread otherwise.
+   *
+   * @param namePrefix The prefix of the names of the threads created, e.g. "jphyloref-http-".
+   * @return An executor that does not limit the number of tasks running at once.
+   */
+  public static ExecutorService newThreadPerTaskExecutor(String namePrefix) {
+    ExecutorService executor = newVirtualThreadPerTaskExecutor(namePrefix);
+    if (executor != null) return executor;
+
+    AtomicInteger threadCount = new AtomicInteger();
+    return Executors.newCachedThreadPool(
+        runnable -> {
+          Thread thread = new Thread(runnable, namePrefix + threadCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+
+  /** @return True if this JVM supports virtual threads. */
+  public static boolean areVirtualThreadsAvailable() {
+    try {
+      Thread.class.getMethod("ofVirtual");
+      return true;
+    } catch (NoSuchMethodException ex) {
+      return false;
+    }
+  }
+
+  /**
+   * Create an executor that runs every task on a new virtual thread, using the equivalent of
+   * "Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(namePrefix, 1).factory())".
+   *
+   * @return The executor, or null if virtual threads are not available.
+   */
+  private static ExecutorService newVirtualThreadPerTaskExecutor(String namePrefix) {
+    if (!areVirtualThreadsAvailable()) return null;
+
+    try {
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder =
+          builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 1L);
+      ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+
+      Method newThreadPerTaskExecutor =
+          Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+      return (ExecutorService) newThreadPerTaskExecutor.invoke(null, factory);
+    } catch (ReflectiveOperationException | RuntimeException ex) {
+      logger.warn("Could not create virtual threads, using platform threads instead: {}", ex);
+      return null;
+    }
+  }
+}
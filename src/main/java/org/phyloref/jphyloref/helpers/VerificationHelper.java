@@ -0,0 +1,318 @@
+package org.phyloref.jphyloref.helpers;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.json.JSONObject;
+import org.semanticweb.owlapi.model.OWLClass;
+import org.semanticweb.owlapi.model.OWLNamedIndividual;
+import org.semanticweb.owlapi.model.OWLOntology;
+import org.semanticweb.owlapi.reasoner.OWLReasoner;
+import org.semanticweb.owlapi.reasoner.OWLReasonerFactory;
+
+/**
+ * The VerificationHelper compares the phyloreference resolution produced by one reasoner against
+ * that produced by a reference reasoner (usually Elk), so that we can check that a faster way of
+ * resolving phyloreferences gives the same answers before relying on it.
+ */
+public class VerificationHelper {
+  /** The fraction of webserver requests to verify if no sample rate is provided. */
+  public static final double DEFAULT_SAMPLE_RATE = 0.1;
+
+  /** The phyloreferences in an ontology and their nodes as determined by a single reasoner. */
+  public static class Resolution {
+    private final String reasonerName;
+    private final Map<OWLClass, Set<OWLNamedIndividual>> nodesPerPhyloref;
+    private final long elapsedMillis;
+
+    public Resolution(
+        String reasonerName,
+        Map<OWLClass, Set<OWLNamedIndividual>> nodesPerPhyloref,
+        long elapsedMillis) {
+      this.reasonerName = reasonerName;
+      this.nodesPerPhyloref = nodesPerPhyloref;
+      this.elapsedMillis = elapsedMillis;
+    }
+
+    /** @return The name of the reasoner that carried out this resolution. */
+    public String getReasonerName() {
+      return reasonerName;
+    }
+
+    /** @return The nodes resolved by every phyloreference. */
+    public Map<OWLClass, Set<OWLNamedIndividual>> getNodesPerPhyloref() {
+      return nodesPerPhyloref;
+    }
+
+    /** @return The wall-clock time taken to resolve every phyloreference, in milliseconds. */
+    public long getElapsedMillis() {
+      return elapsedMillis;
+    }
+  }
+
+  /** The nodes a phyloreference resolved to with one reasoner but not the other. */
+  public static class Disagreement {
+    private final Set<OWLNamedIndividual> primaryOnly;
+    private final Set<OWLNamedIndividual> referenceOnly;
+
+    public Disagreement(
+        Set<OWLNamedIndividual> primaryOnly, Set<OWLNamedIndividual> referenceOnly) {
+      this.primaryOnly = primaryOnly;
+      this.referenceOnly = referenceOnly;
+    }
+
+    /** @return The nodes that were only resolved by the primary reasoner. */
+    public Set<OWLNamedIndividual> getPrimaryOnly() {
+      return primaryOnly;
+    }
+
+    /** @return The nodes that were only resolved by the reference reasoner. */
+    public Set<OWLNamedIndividual> getReferenceOnly() {
+      return referenceOnly;
+    }
+
+    @Override
+    public String toString() {
+      return "only resolved by primary reasoner: "
+          + primaryOnly
+          + "; only resolved by reference reasoner: "
+          + referenceOnly;
+    }
+  }
+
+  /** The result of comparing a primary resolution against a reference resolution. */
+  public static class Verification {
+    private final Resolution primary;
+    private final Resolution reference;
+    private final Map<OWLClass, Disagreement> disagreements;
+
+    public Verification(Resolution primary, Resolution reference) {
+      this.primary = primary;
+      this.reference = reference;
+
+      // Compare every phyloreference found by either reasoner; a phyloreference found by only one
+      // of them is treated as resolving to no nodes in the other.
+      Set<OWLClass> phylorefs = new HashSet<>(primary.getNodesPerPhyloref().keySet());
+      phylorefs.addAll(reference.getNodesPerPhyloref().keySet());
+
+      disagreements = new TreeMap<>();
+      for (OWLClass phyloref : phylorefs) {
+        Set<OWLNamedIndividual> primaryNodes =
+            primary.getNodesPerPhyloref().getOrDefault(phyloref, Collections.emptySet());
+        Set<OWLNamedIndividual> referenceNodes =
+            reference.getNodesPerPhyloref().getOrDefault(phyloref, Collections.emptySet());
+        if (primaryNodes.equals(referenceNodes)) continue;
+
+        Set<OWLNamedIndividual> primaryOnly = new HashSet<>(primaryNodes);
+        primaryOnly.removeAll(referenceNodes);
+        Set<OWLNamedIndividual> referenceOnly = new HashSet<>(referenceNodes);
+        referenceOnly.removeAll(primaryNodes);
+        disagreements.put(phyloref, new Disagreement(primaryOnly, referenceOnly));
+      }
+    }
+
+    /** @return The resolution produced by the primary reasoner. */
+    public Resolution getPrimary() {
+      return primary;
+    }
+
+    /** @return The resolution produced by the reference reasoner. */
+    public Resolution getReference() {
+      return reference;
+    }
+
+    /** @return The phyloreferences that the two reasoners resolved differently. */
+    public Map<OWLClass, Disagreement> getDisagreements() {
+      return disagreements;
+    }
+
+    /** @return A one-line summary of this verification, suitable for logging. */
+    public String getSummary() {
+      return primary.getReasonerName()
+          + " took "
+          + primary.getElapsedMillis()
+          + " ms and "
+          + reference.getReasonerName()
+          + " took "
+          + reference.getElapsedMillis()
+          + " ms to resolve "
+          + primary.getNodesPerPhyloref().size()
+          + " phyloreferences; they disagreed on "
+          + disagreements.size()
+          + " phyloreferences.";
+    }
+
+    /**
+     * Describe this verification as a JSON object.
+     *
+     * @param defaultURIPrefix A prefix to remove from phyloreference and node IRIs, or null.
+     * @return A JSON object with the timings of both reasoners and every disagreement.
+     */
+    public JSONObject toJSON(String defaultURIPrefix) {
+      JSONObject json = new JSONObject();
+      json.put("primary", resolutionToJSON(primary));
+      json.put("reference", resolutionToJSON(reference));
+
+      Map<String, JSONObject> disagreementsAsJSON = new HashMap<>();
+      for (OWLClass phyloref : disagreements.keySet()) {
+        Disagreement disagreement = disagreements.get(phyloref);
+        JSONObject disagreementAsJSON = new JSONObject();
+        disagreementAsJSON.put(
+            "primaryOnly",
+            removeDefaultURIPrefixes(disagreement.getPrimaryOnly(), defaultURIPrefix));
+        disagreementAsJSON.put(
+            "referenceOnly",
+            removeDefaultURIPrefixes(disagreement.getReferenceOnly(), defaultURIPrefix));
+        disagreementsAsJSON.put(
+            PhylorefHelper.removeDefaultURIPrefix(phyloref.getIRI(), defaultURIPrefix),
+            disagreementAsJSON);
+      }
+      json.put("disagreements", disagreementsAsJSON);
+      return json;
+    }
+
+    private static JSONObject resolutionToJSON(Resolution resolution) {
+      JSONObject json = new JSONObject();
+      json.put("reasoner", resolution.getReasonerName());
+      json.put("elapsedMillis", resolution.getElapsedMillis());
+      return json;
+    }
+
+    private static List<String> removeDefaultURIPrefixes(
+        Set<OWLNamedIndividual> indivs, String defaultURIPrefix) {
+      return indivs
+          .stream()
+          .map(indiv -> PhylorefHelper.removeDefaultURIPrefix(indiv.getIRI(), defaultURIPrefix))
+          .sorted()
+          .collect(Collectors.toList());
+    }
+  }
+
+  /**
+   * Resolve every phyloreference in an ontology with a single reasoner, and time how long this
+   * takes. If the reasoner has not been used before, this includes the time it takes to load and
+   * classify the ontology.
+   *
+   * @param ontology The ontology containing the phyloreferences.
+   * @param reasoner The reasoner to use. May be null, in which case we only use asserted axioms.
+   * @return The nodes resolved by each phyloreference and the time it took to resolve them.
+   */
+  public static Resolution resolve(OWLOntology ontology, OWLReasoner reasoner) {
+    return resolve(ontology, reasoner, (phylorefs, processed, nodes) -> {});
+  }
+
+  /**
+   * Resolve every phyloreference in an ontology with a single reasoner as resolve(), while
+   * reporting our progress to a listener.
+   *
+   * @param ontology The ontology containing the phyloreferences.
+   * @param reasoner The reasoner to use. May be null, in which case we only use asserted axioms.
+   * @param listener A listener to report our progress to.
+   * @return The nodes resolved by each phyloreference and the time it took to resolve them.
+   */
+  public static Resolution resolve(
+      OWLOntology ontology, OWLReasoner reasoner, PhylorefHelper.ProgressListener listener) {
+    long start = System.currentTimeMillis();
+
+    Map<OWLClass, Set<OWLNamedIndividual>> nodesPerPhyloref =
+        PhylorefHelper.getNodesPerPhyloreference(ontology, reasoner, listener);
+
+    return new Resolution(
+        reasoner == null ? "No reasoner used" : reasoner.getReasonerName(),
+        nodesPerPhyloref,
+        System.currentTimeMillis() - start);
+  }
+
+  /**
+   * Resolve every phyloreference in an ontology with two reasoners at the same time, and compare
+   * their results. Neither reasoner is disposed of.
+   *
+   * @param ontology The ontology containing the phyloreferences.
+   * @param primary The reasoner being verified.
+   * @param reference The reasoner whose results we trust.
+   * @return A comparison of the results of both reasoners.
+   * @throws InterruptedException If we were interrupted while waiting for either reasoner.
+   */
+  public static Verification verify(
+      OWLOntology ontology, OWLReasoner primary, OWLReasoner reference)
+      throws InterruptedException {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<Resolution> primaryResolution = executor.submit(() -> resolve(ontology, primary));
+      Future<Resolution> referenceResolution = executor.submit(() -> resolve(ontology, reference));
+      return new Verification(primaryResolution.get(), referenceResolution.get());
+    } catch (ExecutionException ex) {
+      // Rethrow whatever the reasoner threw, so that it can be reported like any other failure.
+      if (ex.getCause() instanceof RuntimeException) throw (RuntimeException) ex.getCause();
+      throw new RuntimeException(ex.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Return the factory for the reference reasoner set on the command line.
+   *
+   * @return The reference reasoner factory, or null if no verification was requested. As the "null"
+   *     reasoner also has a null factory, check <code>isVerificationRequested()</code> to tell
+   *     these apart.
+   */
+  public static OWLReasonerFactory getReferenceReasonerFactoryFromCmdLine(CommandLine cmdLine) {
+    if (!isVerificationRequested(cmdLine)) return null;
+    return ReasonerHelper.getReasonerFactory(cmdLine.getOptionValue("verify-against"));
+  }
+
+  /** @return True if the command line asks us to verify results against a reference reasoner. */
+  public static boolean isVerificationRequested(CommandLine cmdLine) {
+    return cmdLine.hasOption("verify-against");
+  }
+
+  /** @return The fraction of webserver requests to verify, as set on the command line. */
+  public static double getSampleRateFromCmdLine(CommandLine cmdLine) {
+    if (!cmdLine.hasOption("verify-sample-rate")) return DEFAULT_SAMPLE_RATE;
+
+    String sampleRate = cmdLine.getOptionValue("verify-sample-rate");
+    try {
+      double rate = Double.parseDouble(sampleRate);
+      if (rate >= 0 && rate <= 1) return rate;
+    } catch (NumberFormatException ex) {
+      // Fall through to the exception below.
+    }
+    throw new IllegalArgumentException(
+        "Sample rate '" + sampleRate + "' must be a number between 0 and 1");
+  }
+
+  /** Add command line options that can be read by the methods in this class. */
+  public static void addCommandLineOptions(Options opts) {
+    opts.addOption(
+        Option.builder()
+            .longOpt("verify-against")
+            .hasArg()
+            .argName("reasonerName")
+            .desc(
+                "Resolve phyloreferences with this reasoner as well, and report any phyloreferences that it resolves differently")
+            .build());
+    opts.addOption(
+        Option.builder()
+            .longOpt("verify-sample-rate")
+            .hasArg()
+            .argName("fraction")
+            .desc(
+                "The fraction of webserver requests to verify against the reasoner set by --verify-against (default: "
+                    + DEFAULT_SAMPLE_RATE
+                    + ")")
+            .build());
+  }
+}
@@ -0,0 +1,99 @@
+package org.phyloref.jphyloref.helpers;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The WebhookHelper provides methods for accepting requests in the same form as the Webhook
+ * configuration in the webhook/ folder (see webhook/hooks.json), so that the webserver can replace
+ * Webhook without any changes to its clients. These requests contain a Base64-encoded, gzipped
+ * JSON-LD document in their 'jsonldGzipped' field, and are signed with an HMAC-SHA1 of the request
+ * body (using a secret shared with the client) in their X-Hub-Signature header.
+ */
+public class WebhookHelper {
+  /** The algorithm used to sign requests, as in Webhook's "payload-hash-sha1" rule. */
+  private static final String HMAC_ALGORITHM = "HmacSHA1";
+
+  /**
+   * Calculate the signature of a request body.
+   *
+   * @param payload The request body.
+   * @param secret The secret shared with the client.
+   * @return The signature, in the form "sha1=[hex digest]" used in the X-Hub-Signature header.
+   */
+  public static String sign(byte[] payload, String secret) {
+    try {
+      Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+      mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM));
+
+      StringBuilder signature = new StringBuilder("sha1=");
+      for (byte b : mac.doFinal(payload)) signature.append(String.format("%02x", b));
+      return signature.toString();
+    } catch (NoSuchAlgorithmException | InvalidKeyException ex) {
+      // Every Java implementation is required to support HmacSHA1.
+      throw new IllegalStateException("Could not calculate " + HMAC_ALGORITHM + ": " + ex);
+    }
+  }
+
+  /**
+   * Check whether a request body was signed with the shared secret. As with Webhook, the "sha1="
+   * prefix on the signature is optional.
+   *
+   * @param payload The request body.
+   * @param secret The secret shared with the client.
+   * @param signature The signature provided with the request, or null if none was provided.
+   * @return True if the signature matches the request body.
+   */
+  public static boolean isSignatureValid(byte[] payload, String secret, String signature) {
+    if (signature == null) return false;
+    if (!signature.startsWith("sha1=")) signature = "sha1=" + signature;
+
+    // Compare signatures in constant time, so that their timing doesn't reveal the correct one.
+    return MessageDigest.isEqual(
+        sign(payload, secret).getBytes(StandardCharsets.UTF_8),
+        signature.toLowerCase().getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Read a field from a request body, which may be either a JSON object or a URL-encoded form.
+   *
+   * @param payload The request body.
+   * @param contentType The Content-Type of the request, or null if none was provided.
+   * @param field The name of the field to read.
+   * @return The value of the field, or null if the request does not contain this field.
+   * @throws IllegalArgumentException If the request body could not be parsed.
+   */
+  public static String getPayloadField(byte[] payload, String contentType, String field) {
+    String body = new String(payload, StandardCharsets.UTF_8);
+
+    if (contentType != null && contentType.toLowerCase().startsWith("application/json")) {
+      try {
+        return new JSONObject(body).optString(field, null);
+      } catch (JSONException ex) {
+        throw new IllegalArgumentException("Could not parse request as JSON: " + ex.getMessage());
+      }
+    }
+
+    // Otherwise, treat the body as a URL-encoded form.
+    try {
+      for (String pair : body.split("&")) {
+        int equals = pair.indexOf('=');
+        String name = (equals == -1) ? pair : pair.substring(0, equals);
+        if (URLDecoder.decode(name, "UTF-8").equals(field)) {
+          return (equals == -1) ? "" : URLDecoder.decode(pair.substring(equals + 1), "UTF-8");
+        }
+      }
+    } catch (UnsupportedEncodingException ex) {
+      throw new IllegalStateException("'UTF-8' is not supported as an encoding: " + ex);
+    }
+    return null;
+  }
+}
@@ -0,0 +1,187 @@
+package org.phyloref.jphyloref.reasoner;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+
+/**
+ * An index over the phylogenies in an ontology, used to answer clade membership questions in linear
+ * time.
+ *
+ * <p>Individuals are identified by integers between 0 and <code>size - 1</code>; some of these
+ * individuals are phylogeny nodes, which are connected to their parents by the <code>parent</code>
+ * array. We list every node in pre-order, so that a single pass over this list in one direction
+ * visits parents before their children, and in the other direction visits children before their
+ * parents; every question we need to answer can then be answered by counting along such a pass.
+ */
+final class PhylogenyIndex {
+  /** The number of individuals in the universe, not all of which are nodes. */
+  private final int size;
+
+  /** The parent of every individual, or -1 if it is not a node or is the root of a phylogeny. */
+  private final int[] parent;
+
+  /** The individuals that are nodes in a phylogeny. */
+  private final BitSet nodes;
+
+  /** The nodes of every phylogeny in pre-order. */
+  private final int[] order;
+
+  /** The position of every node in <code>order</code>, or -1 if it is not a node. */
+  private final int[] pre;
+
+  /**
+   * Build an index for a forest of phylogenies.
+   *
+   * @param size The number of individuals in the universe.
+   * @param nodes The individuals that are nodes in a phylogeny.
+   * @param parent The parent of every individual, or -1 if it has no parent.
+   * @throws IllegalArgumentException If the parent relationships contain a cycle.
+   */
+  PhylogenyIndex(int size, BitSet nodes, int[] parent) {
+    this.size = size;
+    this.nodes = nodes;
+    this.parent = parent;
+
+    // Count every node's children, so that we can store them contiguously.
+    int[] childStart = new int[size + 1];
+    for (int node = nodes.nextSetBit(0); node >= 0; node = nodes.nextSetBit(node + 1)) {
+      if (parent[node] >= 0) childStart[parent[node] + 1]++;
+    }
+    for (int i = 0; i < size; i++) childStart[i + 1] += childStart[i];
+    int[] children = new int[childStart[size]];
+    int[] filled = new int[size];
+    for (int node = nodes.nextSetBit(0); node >= 0; node = nodes.nextSetBit(node + 1)) {
+      int p = parent[node];
+      if (p >= 0) children[childStart[p] + filled[p]++] = node;
+    }
+
+    // Walk each phylogeny from its root, numbering its nodes in pre-order. We use an explicit
+    // stack, as real phylogenies are often deep enough to overflow the call stack.
+    order = new int[nodes.cardinality()];
+    pre = new int[size];
+    Arrays.fill(pre, -1);
+    int position = 0;
+    Deque<Integer> stack = new ArrayDeque<>();
+    for (int root = nodes.nextSetBit(0); root >= 0; root = nodes.nextSetBit(root + 1)) {
+      if (parent[root] >= 0) continue;
+      stack.push(root);
+      while (!stack.isEmpty()) {
+        int node = stack.pop();
+        pre[node] = position;
+        order[position++] = node;
+        for (int i = childStart[node + 1] - 1; i >= childStart[node]; i--) {
+          stack.push(children[i]);
+        }
+      }
+    }
+
+    // Any node we didn't reach is part of a cycle, and so isn't part of a phylogeny at all.
+    if (position != order.length) {
+      throw new IllegalArgumentException(
+          (order.length - position) + " nodes are connected to their own descendants");
+    }
+  }
+
+  /** @return the individuals that are nodes in a phylogeny. */
+  BitSet getNodes() {
+    return nodes;
+  }
+
+  /** @return the nodes that have at least one child in <code>set</code>. */
+  BitSet parentsOf(BitSet set) {
+    BitSet result = new BitSet(size);
+    for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+      if (parent[i] >= 0) result.set(parent[i]);
+    }
+    return result;
+  }
+
+  /** @return the nodes whose parent is in <code>set</code>. */
+  BitSet childrenOf(BitSet set) {
+    BitSet result = new BitSet(size);
+    for (int node = nodes.nextSetBit(0); node >= 0; node = nodes.nextSetBit(node + 1)) {
+      if (parent[node] >= 0 && set.get(parent[node])) result.set(node);
+    }
+    return result;
+  }
+
+  /** @return the nodes that have at least one sibling (another child of its parent) in set. */
+  BitSet siblingsOf(BitSet set) {
+    int[] childrenInSet = new int[size];
+    for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+      if (parent[i] >= 0) childrenInSet[parent[i]]++;
+    }
+    BitSet result = new BitSet(size);
+    for (int node = nodes.nextSetBit(0); node >= 0; node = nodes.nextSetBit(node + 1)) {
+      int p = parent[node];
+      if (p >= 0 && childrenInSet[p] - (set.get(node) ? 1 : 0) > 0) result.set(node);
+    }
+    return result;
+  }
+
+  /**
+   * Return the individuals in a set together with all their ancestors. Individuals that are not
+   * nodes have no ancestors, but are still included in the result.
+   *
+   * @param set The individuals whose ancestors we need.
+   * @return The individuals in the set and their ancestors.
+   */
+  BitSet ancestorsOrSelf(BitSet set) {
+    BitSet result = (BitSet) set.clone();
+    for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+      // Stop as soon as we reach an ancestor we've already marked, so that every node is only
+      // visited once however many members of the set are below it.
+      for (int p = parent[i]; p >= 0 && !result.get(p); p = parent[p]) {
+        result.set(p);
+      }
+    }
+    return result;
+  }
+
+  /** @return the nodes that have at least one descendant in <code>set</code>. */
+  BitSet properAncestorsOf(BitSet set) {
+    return ancestorsOrSelf(parentsOf(set));
+  }
+
+  /**
+   * Return the nodes that exclude at least one node in a set: that is, the nodes for which some
+   * node in the set is in the same phylogeny, but is neither in its clade nor one of its ancestors.
+   * This is the case exactly when the node in the set is in the clade of a sibling of the node or
+   * of one of its ancestors.
+   *
+   * @param set The nodes to be excluded.
+   * @return The nodes that exclude at least one of them.
+   */
+  BitSet excluding(BitSet set) {
+    int[] inClade = new int[order.length];
+    int[] inAncestors = new int[order.length];
+    int[] rootPosition = new int[order.length];
+
+    // Count the members of the set in each clade, visiting children before parents.
+    for (int i = order.length - 1; i >= 0; i--) {
+      int node = order[i];
+      if (set.get(node)) inClade[i]++;
+      if (parent[node] >= 0) inClade[pre[parent[node]]] += inClade[i];
+    }
+
+    // Count the members of the set among each node's ancestors, visiting parents before children.
+    for (int i = 0; i < order.length; i++) {
+      int p = parent[order[i]];
+      if (p < 0) {
+        rootPosition[i] = i;
+      } else {
+        rootPosition[i] = rootPosition[pre[p]];
+        inAncestors[i] = inAncestors[pre[p]] + (set.get(p) ? 1 : 0);
+      }
+    }
+
+    BitSet result = new BitSet(size);
+    for (int i = 0; i < order.length; i++) {
+      int inPhylogeny = inClade[rootPosition[i]];
+      if (inPhylogeny - inClade[i] - inAncestors[i] > 0) result.set(order[i]);
+    }
+    return result;
+  }
+}
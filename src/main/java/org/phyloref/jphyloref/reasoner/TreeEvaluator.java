@@ -0,0 +1,900 @@
+package org.phyloref.jphyloref.reasoner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.phyloref.jphyloref.helpers.PhylorefHelper;
+import org.semanticweb.owlapi.model.IRI;
+import org.semanticweb.owlapi.model.OWLAxiom;
+import org.semanticweb.owlapi.model.OWLClass;
+import org.semanticweb.owlapi.model.OWLClassAssertionAxiom;
+import org.semanticweb.owlapi.model.OWLClassExpression;
+import org.semanticweb.owlapi.model.OWLDataFactory;
+import org.semanticweb.owlapi.model.OWLDataHasValue;
+import org.semanticweb.owlapi.model.OWLDataProperty;
+import org.semanticweb.owlapi.model.OWLDataPropertyAssertionAxiom;
+import org.semanticweb.owlapi.model.OWLDataPropertyDomainAxiom;
+import org.semanticweb.owlapi.model.OWLDataSomeValuesFrom;
+import org.semanticweb.owlapi.model.OWLEquivalentClassesAxiom;
+import org.semanticweb.owlapi.model.OWLEquivalentDataPropertiesAxiom;
+import org.semanticweb.owlapi.model.OWLEquivalentObjectPropertiesAxiom;
+import org.semanticweb.owlapi.model.OWLIndividual;
+import org.semanticweb.owlapi.model.OWLLiteral;
+import org.semanticweb.owlapi.model.OWLNamedIndividual;
+import org.semanticweb.owlapi.model.OWLObjectHasValue;
+import org.semanticweb.owlapi.model.OWLObjectProperty;
+import org.semanticweb.owlapi.model.OWLObjectPropertyAssertionAxiom;
+import org.semanticweb.owlapi.model.OWLObjectPropertyDomainAxiom;
+import org.semanticweb.owlapi.model.OWLObjectPropertyExpression;
+import org.semanticweb.owlapi.model.OWLObjectPropertyRangeAxiom;
+import org.semanticweb.owlapi.model.OWLObjectSomeValuesFrom;
+import org.semanticweb.owlapi.model.OWLOntology;
+import org.semanticweb.owlapi.model.OWLPropertyExpression;
+import org.semanticweb.owlapi.model.OWLReflexiveObjectPropertyAxiom;
+import org.semanticweb.owlapi.model.OWLSameIndividualAxiom;
+import org.semanticweb.owlapi.model.OWLSubClassOfAxiom;
+import org.semanticweb.owlapi.model.OWLSubDataPropertyOfAxiom;
+import org.semanticweb.owlapi.model.OWLSubObjectPropertyOfAxiom;
+import org.semanticweb.owlapi.model.OWLSubPropertyAxiom;
+import org.semanticweb.owlapi.model.OWLSubPropertyChainOfAxiom;
+import org.semanticweb.owlapi.model.OWLTransitiveObjectPropertyAxiom;
+import org.semanticweb.owlapi.model.parameters.Imports;
+
+/**
+ * Works out which individuals belong to a class expression directly from the assertions in an
+ * ontology, without saturating the whole ontology the way a general-purpose reasoner does.
+ *
+ * <p>Class assertions on individuals are unfolded into property assertions on fresh anonymous
+ * individuals (so that a node of type "represents_TU some (hasName some (nameComplete value 'Ee
+ * e'))" is given a taxonomic unit with a name), and class expressions are then evaluated bottom-up
+ * as sets of individuals. The properties used to define phyloreferences are interpreted using a
+ * {@link PhylogenyIndex} rather than their property chains:
+ *
+ * <ul>
+ *   <li>A node includes a taxonomic unit if it or one of its descendants represents it.
+ *   <li>A node excludes a taxonomic unit if a node in the clade of one of its siblings, or of one
+ *       of its ancestors' siblings, represents it.
+ * </ul>
+ *
+ * <p>This only works if the ontology defines these properties in the way the Phyloref ontology does
+ * (see {@link #getExpectedPropertyAxioms()}) and nothing else, if the phylogenies are described
+ * completely by their has_Child, has_Parent and has_Sibling assertions, and if the rest of the
+ * ontology only uses the parts of OWL 2 EL we can evaluate this way. Anything else results in an
+ * {@link UnsupportedExpressionException}, and the question should be passed on to a general-purpose
+ * reasoner instead.
+ */
+final class TreeEvaluator {
+  /** Properties whose meaning is determined by the shape of the phylogenies. */
+  private static final Set<IRI> PHYLOGENY_PROPERTIES =
+      new HashSet<>(
+          Arrays.asList(
+              PhylorefHelper.IRI_CDAO_HAS_CHILD,
+              PhylorefHelper.IRI_CDAO_HAS_PARENT,
+              PhylorefHelper.IRI_CDAO_HAS_DESCENDANT,
+              PhylorefHelper.IRI_PHYLOREF_HAS_SIBLING,
+              PhylorefHelper.IRI_PHYLOREF_INCLUDES_TU,
+              PhylorefHelper.IRI_PHYLOREF_EXCLUDES_TU));
+
+  /** Thrown when a class expression can't be evaluated from the assertions alone. */
+  static class UnsupportedExpressionException extends Exception {
+    UnsupportedExpressionException(String message) {
+      super(message);
+    }
+  }
+
+  /** A list of property assertions, stored as pairs of individual identifiers. */
+  private static class Edges {
+    int[] from = new int[8];
+    int[] to = new int[8];
+    int size = 0;
+
+    void add(int subject, int object) {
+      if (size == from.length) {
+        from = Arrays.copyOf(from, size * 2);
+        to = Arrays.copyOf(to, size * 2);
+      }
+      from[size] = subject;
+      to[size] = object;
+      size++;
+    }
+  }
+
+  /**
+   * A property value that every instance of a class expression has, because of an axiom such as
+   * "SubClassOf(C, p some D)" or "SubClassOf(C, p value v)".
+   */
+  private static class ImpliedValue {
+    final OWLClassExpression subClass;
+
+    /** The individual (possibly a fresh one) or literal that is the value of the property. */
+    final Object value;
+
+    ImpliedValue(OWLClassExpression subClass, Object value) {
+      this.subClass = subClass;
+      this.value = value;
+    }
+  }
+
+  /**
+   * The key used in dataValues for individuals that have some value for a data property, but whose
+   * value we don't know.
+   */
+  private static final OWLLiteral UNKNOWN_VALUE = null;
+
+  private final OWLDataFactory df;
+
+  /** Every individual we know about; fresh individuals created by unfolding are null. */
+  private final List<OWLIndividual> individuals = new ArrayList<>();
+
+  private final Map<OWLIndividual, Integer> ids = new HashMap<>();
+
+  /** Individuals asserted to be members of each named class. */
+  private final Map<OWLClass, BitSet> classMembers = new HashMap<>();
+
+  /** Object property assertions, by property. */
+  private final Map<OWLObjectProperty, Edges> edges = new HashMap<>();
+
+  /** Data property assertions, by property and value. */
+  private final Map<OWLDataProperty, Map<OWLLiteral, BitSet>> dataValues = new HashMap<>();
+
+  /** Class expressions that are subclasses of each named class. */
+  private final Map<OWLClass, List<OWLClassExpression>> subClassExpressions = new HashMap<>();
+
+  /** Object properties whose ranges include each named class. */
+  private final Map<OWLClass, List<OWLObjectProperty>> rangeOf = new HashMap<>();
+
+  /** Property values implied by class axioms, by property. */
+  private final Map<OWLPropertyExpression, List<ImpliedValue>> impliedValues = new HashMap<>();
+
+  private final Map<OWLPropertyExpression, Set<OWLPropertyExpression>> subProperties =
+      new HashMap<>();
+
+  /**
+   * The property axioms whose superproperty is one of the PHYLOGENY_PROPERTIES, without their
+   * annotations. These must be exactly the expected property axioms for us to interpret these
+   * properties using the phylogenies.
+   */
+  private final Set<OWLAxiom> phylogenyPropertyAxioms = new HashSet<>();
+
+  /** Properties that have values we can't work out, such as properties with property chains. */
+  private final Set<OWLPropertyExpression> unsupportedProperties = new HashSet<>();
+
+  /** If not null, the reason why nothing in this ontology can be evaluated. */
+  private String unsupportedReason = null;
+
+  /** If not null, the reason why the phylogenies in this ontology can't be indexed. */
+  private String unsupportedPhylogenyReason = null;
+
+  /** The number of individuals, including fresh individuals. */
+  private final int size;
+
+  /** The phylogeny index, or null if the phylogenies can't be indexed. */
+  private final PhylogenyIndex index;
+
+  /** The individuals in every class expression we have evaluated so far. */
+  private final Map<OWLClassExpression, BitSet> evaluated = new HashMap<>();
+
+  /** Class expressions currently being evaluated, used to detect circular definitions. */
+  private final Set<OWLClassExpression> evaluating = new HashSet<>();
+
+  /** The named classes in the ontology and its imports closure. */
+  private final Set<OWLClass> namedClasses;
+
+  /** The named classes each individual belongs to, or null if they haven't been worked out yet. */
+  private Map<Integer, Set<OWLClass>> types;
+
+  /**
+   * Read the axioms in an ontology and its imports closure, and index the phylogenies in it.
+   *
+   * @param ontology The ontology to evaluate class expressions against.
+   */
+  TreeEvaluator(OWLOntology ontology) {
+    df = ontology.getOWLOntologyManager().getOWLDataFactory();
+    for (OWLOntology o : ontology.getImportsClosure()) {
+      for (OWLAxiom axiom : o.getAxioms()) {
+        addAxiom(axiom);
+      }
+    }
+    size = individuals.size();
+    index = buildPhylogenyIndex();
+    namedClasses = ontology.getClassesInSignature(Imports.INCLUDED);
+  }
+
+  /**
+   * Return the named individuals that are instances of a class expression.
+   *
+   * @param ce The class expression to evaluate.
+   * @return The named individuals that are instances of this class expression.
+   * @throws UnsupportedExpressionException If this class expression can't be evaluated against this
+   *     ontology.
+   */
+  Set<OWLNamedIndividual> getInstances(OWLClassExpression ce)
+      throws UnsupportedExpressionException {
+    if (unsupportedReason != null) throw new UnsupportedExpressionException(unsupportedReason);
+
+    Set<OWLNamedIndividual> instances = new HashSet<>();
+    BitSet members = evaluate(ce);
+    for (int i = members.nextSetBit(0); i >= 0; i = members.nextSetBit(i + 1)) {
+      OWLIndividual individual = individuals.get(i);
+      if (individual != null && individual.isNamed()) {
+        instances.add(individual.asOWLNamedIndividual());
+      }
+    }
+    return instances;
+  }
+
+  /**
+   * Return the named classes that a named individual belongs to, including owl:Thing. The first
+   * call works out the types of every individual (see computeTypes()), so that the types of every
+   * other individual can then be looked up without any further evaluation.
+   *
+   * @param individual The individual whose types we need.
+   * @return The named classes this individual belongs to.
+   * @throws UnsupportedExpressionException If any named class in this ontology can't be evaluated.
+   */
+  Set<OWLClass> getTypes(OWLNamedIndividual individual) throws UnsupportedExpressionException {
+    computeTypes();
+
+    Set<OWLClass> result = new HashSet<>();
+    result.add(df.getOWLThing());
+    Integer id = ids.get(individual);
+    if (id != null) result.addAll(types.getOrDefault(id, Collections.emptySet()));
+    return result;
+  }
+
+  /**
+   * Work out the named classes that every individual belongs to, by evaluating every named class in
+   * the ontology. This only needs to be done once.
+   *
+   * @throws UnsupportedExpressionException If any named class in this ontology can't be evaluated.
+   */
+  void computeTypes() throws UnsupportedExpressionException {
+    if (unsupportedReason != null) throw new UnsupportedExpressionException(unsupportedReason);
+    if (types != null) return;
+
+    Map<Integer, Set<OWLClass>> typesById = new HashMap<>();
+    for (OWLClass namedClass : namedClasses) {
+      if (namedClass.isOWLThing() || namedClass.isOWLNothing()) continue;
+      BitSet members = evaluate(namedClass);
+      for (int i = members.nextSetBit(0); i >= 0; i = members.nextSetBit(i + 1)) {
+        typesById.computeIfAbsent(i, id -> new HashSet<>()).add(namedClass);
+      }
+    }
+    types = typesById;
+  }
+
+  /** @return True if the types of every individual have been worked out by computeTypes(). */
+  boolean hasComputedTypes() {
+    return types != null;
+  }
+
+  /*
+   * Reading the ontology.
+   */
+
+  private int getId(OWLIndividual individual) {
+    Integer id = ids.get(individual);
+    if (id == null) {
+      id = individuals.size();
+      individuals.add(individual);
+      ids.put(individual, id);
+    }
+    return id;
+  }
+
+  private int createFreshIndividual() {
+    individuals.add(null);
+    return individuals.size() - 1;
+  }
+
+  private void addEdge(OWLObjectProperty property, int subject, int object) {
+    edges.computeIfAbsent(property, p -> new Edges()).add(subject, object);
+  }
+
+  private void addDataValue(OWLDataProperty property, int subject, OWLLiteral value) {
+    dataValues
+        .computeIfAbsent(property, p -> new HashMap<>())
+        .computeIfAbsent(value, v -> new BitSet())
+        .set(subject);
+  }
+
+  private void addAxiom(OWLAxiom axiom) {
+    if (axiom instanceof OWLClassAssertionAxiom) {
+      OWLClassAssertionAxiom classAssertion = (OWLClassAssertionAxiom) axiom;
+      addClassAssertion(classAssertion.getClassExpression(), getId(classAssertion.getIndividual()));
+
+    } else if (axiom instanceof OWLObjectPropertyAssertionAxiom) {
+      OWLObjectPropertyAssertionAxiom assertion =
+          ((OWLObjectPropertyAssertionAxiom) axiom).getSimplified();
+      addEdge(
+          assertion.getProperty().asOWLObjectProperty(),
+          getId(assertion.getSubject()),
+          getId(assertion.getObject()));
+
+    } else if (axiom instanceof OWLDataPropertyAssertionAxiom) {
+      OWLDataPropertyAssertionAxiom assertion = (OWLDataPropertyAssertionAxiom) axiom;
+      addDataValue(
+          assertion.getProperty().asOWLDataProperty(),
+          getId(assertion.getSubject()),
+          assertion.getObject());
+
+    } else if (axiom instanceof OWLSameIndividualAxiom) {
+      unsupportedReason = "some individuals are asserted to be the same as other individuals";
+
+    } else if (axiom instanceof OWLSubClassOfAxiom) {
+      OWLSubClassOfAxiom subClassOf = (OWLSubClassOfAxiom) axiom;
+      addSubClassOf(subClassOf.getSubClass(), subClassOf.getSuperClass());
+
+    } else if (axiom instanceof OWLEquivalentClassesAxiom) {
+      for (OWLSubClassOfAxiom subClassOf :
+          ((OWLEquivalentClassesAxiom) axiom).asOWLSubClassOfAxioms()) {
+        addSubClassOf(subClassOf.getSubClass(), subClassOf.getSuperClass());
+      }
+
+    } else if (axiom instanceof OWLObjectPropertyDomainAxiom) {
+      OWLObjectPropertyDomainAxiom domain = (OWLObjectPropertyDomainAxiom) axiom;
+      addSubClassOf(
+          df.getOWLObjectSomeValuesFrom(domain.getProperty(), df.getOWLThing()),
+          domain.getDomain());
+
+    } else if (axiom instanceof OWLDataPropertyDomainAxiom) {
+      OWLDataPropertyDomainAxiom domain = (OWLDataPropertyDomainAxiom) axiom;
+      addSubClassOf(
+          df.getOWLDataSomeValuesFrom(domain.getProperty(), df.getTopDatatype()),
+          domain.getDomain());
+
+    } else if (axiom instanceof OWLObjectPropertyRangeAxiom) {
+      OWLObjectPropertyRangeAxiom range = (OWLObjectPropertyRangeAxiom) axiom;
+      for (OWLClassExpression rangeClass : range.getRange().asConjunctSet()) {
+        if (rangeClass.isOWLThing()) continue;
+        if (range.getProperty().isAnonymous() || rangeClass.isAnonymous()) {
+          unsupportedReason = "some property ranges are not named classes";
+        } else {
+          rangeOf
+              .computeIfAbsent(rangeClass.asOWLClass(), c -> new ArrayList<>())
+              .add(range.getProperty().asOWLObjectProperty());
+        }
+      }
+
+    } else if (axiom instanceof OWLSubPropertyAxiom) {
+      OWLSubPropertyAxiom<?> subPropertyOf = (OWLSubPropertyAxiom<?>) axiom;
+      addSubPropertyOf(subPropertyOf.getSubProperty(), subPropertyOf.getSuperProperty());
+
+    } else if (axiom instanceof OWLEquivalentObjectPropertiesAxiom) {
+      for (OWLSubObjectPropertyOfAxiom subPropertyOf :
+          ((OWLEquivalentObjectPropertiesAxiom) axiom).asSubObjectPropertyOfAxioms()) {
+        addSubPropertyOf(subPropertyOf.getSubProperty(), subPropertyOf.getSuperProperty());
+      }
+
+    } else if (axiom instanceof OWLEquivalentDataPropertiesAxiom) {
+      for (OWLSubDataPropertyOfAxiom subPropertyOf :
+          ((OWLEquivalentDataPropertiesAxiom) axiom).asSubDataPropertyOfAxioms()) {
+        addSubPropertyOf(subPropertyOf.getSubProperty(), subPropertyOf.getSuperProperty());
+      }
+
+    } else if (axiom instanceof OWLSubPropertyChainOfAxiom) {
+      OWLObjectPropertyExpression superProperty =
+          ((OWLSubPropertyChainOfAxiom) axiom).getSuperProperty();
+      unsupportedProperties.add(superProperty);
+      if (isPhylogenyProperty(superProperty)) {
+        phylogenyPropertyAxioms.add(axiom.getAxiomWithoutAnnotations());
+      }
+
+    } else if (axiom instanceof OWLTransitiveObjectPropertyAxiom) {
+      OWLObjectPropertyExpression property =
+          ((OWLTransitiveObjectPropertyAxiom) axiom).getProperty();
+      unsupportedProperties.add(property);
+      if (isPhylogenyProperty(property)) {
+        phylogenyPropertyAxioms.add(axiom.getAxiomWithoutAnnotations());
+      }
+
+    } else if (axiom instanceof OWLReflexiveObjectPropertyAxiom) {
+      OWLObjectPropertyExpression property =
+          ((OWLReflexiveObjectPropertyAxiom) axiom).getProperty();
+      unsupportedProperties.add(property);
+      if (isPhylogenyProperty(property)) {
+        phylogenyPropertyAxioms.add(axiom.getAxiomWithoutAnnotations());
+      }
+    }
+
+    // Everything else (declarations, annotations, disjointness and so on) doesn't change which
+    // individuals are instances of which classes in OWL 2 EL, or is ignored by ELK.
+  }
+
+  /**
+   * Unfold a class assertion into named class memberships and property values.
+   *
+   * @param ce The class the individual is asserted to belong to.
+   * @param id The individual.
+   */
+  private void addClassAssertion(OWLClassExpression ce, int id) {
+    switch (ce.getClassExpressionType()) {
+      case OWL_CLASS:
+        if (!ce.isOWLThing()) {
+          classMembers.computeIfAbsent(ce.asOWLClass(), c -> new BitSet()).set(id);
+        }
+        break;
+
+      case OBJECT_INTERSECTION_OF:
+        for (OWLClassExpression conjunct : ce.asConjunctSet()) {
+          addClassAssertion(conjunct, id);
+        }
+        break;
+
+      case OBJECT_SOME_VALUES_FROM:
+        OWLObjectSomeValuesFrom someValuesFrom = (OWLObjectSomeValuesFrom) ce;
+        if (someValuesFrom.getProperty().isAnonymous()) {
+          unsupportedReason = "some individuals are asserted to have inverse property values";
+          break;
+        }
+        int fresh = createFreshIndividual();
+        addEdge(someValuesFrom.getProperty().asOWLObjectProperty(), id, fresh);
+        addClassAssertion(someValuesFrom.getFiller(), fresh);
+        break;
+
+      case OBJECT_HAS_VALUE:
+        OWLObjectHasValue hasValue = (OWLObjectHasValue) ce;
+        if (hasValue.getProperty().isAnonymous()) {
+          unsupportedReason = "some individuals are asserted to have inverse property values";
+          break;
+        }
+        addEdge(hasValue.getProperty().asOWLObjectProperty(), id, getId(hasValue.getFiller()));
+        break;
+
+      case DATA_HAS_VALUE:
+        OWLDataHasValue dataHasValue = (OWLDataHasValue) ce;
+        addDataValue(dataHasValue.getProperty().asOWLDataProperty(), id, dataHasValue.getFiller());
+        break;
+
+      case DATA_SOME_VALUES_FROM:
+        OWLDataSomeValuesFrom dataSomeValuesFrom = (OWLDataSomeValuesFrom) ce;
+        addDataValue(dataSomeValuesFrom.getProperty().asOWLDataProperty(), id, UNKNOWN_VALUE);
+        break;
+
+      default:
+        unsupportedReason = "some individuals are asserted to be " + ce.getClassExpressionType();
+    }
+  }
+
+  /**
+   * Record that the instances of one class expression are instances of another.
+   *
+   * @param subClass The subclass.
+   * @param superClass The superclass.
+   */
+  private void addSubClassOf(OWLClassExpression subClass, OWLClassExpression superClass) {
+    for (OWLClassExpression conjunct : superClass.asConjunctSet()) {
+      switch (conjunct.getClassExpressionType()) {
+        case OWL_CLASS:
+          if (!conjunct.isOWLThing()) {
+            subClassExpressions
+                .computeIfAbsent(conjunct.asOWLClass(), c -> new ArrayList<>())
+                .add(subClass);
+          }
+          break;
+
+        case OBJECT_SOME_VALUES_FROM:
+          // Instances of the subclass have a value for this property that isn't in the
+          // assertions, so we create a fresh individual to stand in for all of them. Every
+          // phyloreference is defined this way in terms of the properties we interpret using the
+          // phylogeny index, but their values are already in the phylogenies.
+          OWLObjectSomeValuesFrom someValuesFrom = (OWLObjectSomeValuesFrom) conjunct;
+          if (someValuesFrom.getProperty().isAnonymous()) {
+            unsupportedReason = "some classes are defined in terms of inverse properties";
+          } else if (!isPhylogenyProperty(someValuesFrom.getProperty())) {
+            int fresh = createFreshIndividual();
+            addClassAssertion(someValuesFrom.getFiller(), fresh);
+            addImpliedValue(someValuesFrom.getProperty(), subClass, fresh);
+          }
+          break;
+
+        case OBJECT_HAS_VALUE:
+          OWLObjectHasValue hasValue = (OWLObjectHasValue) conjunct;
+          if (hasValue.getProperty().isAnonymous()) {
+            unsupportedReason = "some classes are defined in terms of inverse properties";
+          } else if (!isPhylogenyProperty(hasValue.getProperty())) {
+            addImpliedValue(hasValue.getProperty(), subClass, getId(hasValue.getFiller()));
+          }
+          break;
+
+        case DATA_HAS_VALUE:
+          OWLDataHasValue dataHasValue = (OWLDataHasValue) conjunct;
+          addImpliedValue(dataHasValue.getProperty(), subClass, dataHasValue.getFiller());
+          break;
+
+        case DATA_SOME_VALUES_FROM:
+          OWLDataSomeValuesFrom dataSomeValuesFrom = (OWLDataSomeValuesFrom) conjunct;
+          addImpliedValue(dataSomeValuesFrom.getProperty(), subClass, UNKNOWN_VALUE);
+          break;
+
+        default:
+          // ELK ignores superclasses outside OWL 2 EL, and so do we.
+          break;
+      }
+    }
+  }
+
+  private void addImpliedValue(
+      OWLPropertyExpression property, OWLClassExpression subClass, Object value) {
+    impliedValues
+        .computeIfAbsent(property, p -> new ArrayList<>())
+        .add(new ImpliedValue(subClass, value));
+  }
+
+  private void addSubPropertyOf(
+      OWLPropertyExpression subProperty, OWLPropertyExpression superProperty) {
+    if (superProperty instanceof OWLObjectPropertyExpression
+        && isPhylogenyProperty((OWLObjectPropertyExpression) superProperty)) {
+      phylogenyPropertyAxioms.add(
+          df.getOWLSubObjectPropertyOfAxiom(
+              (OWLObjectPropertyExpression) subProperty,
+              (OWLObjectPropertyExpression) superProperty));
+    } else if (subProperty instanceof OWLObjectPropertyExpression
+        && isPhylogenyProperty((OWLObjectPropertyExpression) subProperty)) {
+      // The values of the phylogeny properties aren't in the assertions, so we can't work out the
+      // values of their superproperties either.
+      unsupportedProperties.add(superProperty);
+    }
+
+    if (subProperty.isAnonymous() || superProperty.isAnonymous()) {
+      // Inverse properties have values that aren't in the assertions.
+      if (superProperty.isAnonymous()) {
+        unsupportedProperties.add(((OWLObjectPropertyExpression) superProperty).getNamedProperty());
+      } else {
+        unsupportedProperties.add(superProperty);
+      }
+    } else {
+      subProperties.computeIfAbsent(superProperty, p -> new HashSet<>()).add(subProperty);
+    }
+  }
+
+  private static boolean isPhylogenyProperty(OWLObjectPropertyExpression property) {
+    return PHYLOGENY_PROPERTIES.contains(property.getNamedProperty().getIRI());
+  }
+
+  /*
+   * Indexing the phylogenies.
+   */
+
+  /**
+   * Return the property axioms that give the phylogeny properties the meaning we interpret them
+   * with, as they are defined in the Phyloref ontology:
+   *
+   * <ul>
+   *   <li>has_Child is a subproperty of has_Descendant, which is transitive.
+   *   <li>A node includes a taxonomic unit if it or one of its descendants represents it.
+   *   <li>A node excludes a taxonomic unit if one of its siblings includes it, or if its parent
+   *       excludes it.
+   * </ul>
+   */
+  private Set<OWLAxiom> getExpectedPropertyAxioms() {
+    OWLObjectProperty hasChild = df.getOWLObjectProperty(PhylorefHelper.IRI_CDAO_HAS_CHILD);
+    OWLObjectProperty hasParent = df.getOWLObjectProperty(PhylorefHelper.IRI_CDAO_HAS_PARENT);
+    OWLObjectProperty hasDescendant =
+        df.getOWLObjectProperty(PhylorefHelper.IRI_CDAO_HAS_DESCENDANT);
+    OWLObjectProperty hasSibling = df.getOWLObjectProperty(PhylorefHelper.IRI_PHYLOREF_HAS_SIBLING);
+    OWLObjectProperty representsTU = df.getOWLObjectProperty(PhylorefHelper.IRI_CDAO_REPRESENTS_TU);
+    OWLObjectProperty includesTU = df.getOWLObjectProperty(PhylorefHelper.IRI_PHYLOREF_INCLUDES_TU);
+    OWLObjectProperty excludesTU = df.getOWLObjectProperty(PhylorefHelper.IRI_PHYLOREF_EXCLUDES_TU);
+
+    return new HashSet<>(
+        Arrays.asList(
+            df.getOWLSubObjectPropertyOfAxiom(hasChild, hasDescendant),
+            df.getOWLTransitiveObjectPropertyAxiom(hasDescendant),
+            df.getOWLSubObjectPropertyOfAxiom(representsTU, includesTU),
+            df.getOWLSubPropertyChainOfAxiom(
+                Arrays.asList(hasDescendant, representsTU), includesTU),
+            df.getOWLSubPropertyChainOfAxiom(Arrays.asList(hasSibling, includesTU), excludesTU),
+            df.getOWLSubPropertyChainOfAxiom(Arrays.asList(hasParent, excludesTU), excludesTU)));
+  }
+
+  private Edges getEdges(IRI propertyIRI) {
+    Edges found = edges.get(df.getOWLObjectProperty(propertyIRI));
+    return (found == null) ? new Edges() : found;
+  }
+
+  private static long pair(int a, int b) {
+    return ((long) a << 32) | (b & 0xffffffffL);
+  }
+
+  /**
+   * Build a phylogeny index from the has_Child assertions, and check that the has_Parent and
+   * has_Sibling assertions describe the same phylogenies. If they don't, or if the phylogeny
+   * properties aren't defined exactly as we expect, we record why in unsupportedPhylogenyReason and
+   * return null.
+   */
+  private PhylogenyIndex buildPhylogenyIndex() {
+    // We only know what the phylogeny properties mean if the ontology (usually by importing the
+    // Phyloref ontology) defines them as we expect. Any other subproperties, property chains or
+    // characteristics would change their values.
+    Set<OWLAxiom> expectedPropertyAxioms = getExpectedPropertyAxioms();
+    for (OWLAxiom axiom : expectedPropertyAxioms) {
+      if (!phylogenyPropertyAxioms.contains(axiom)) {
+        unsupportedPhylogenyReason = "the ontology does not contain the property axiom " + axiom;
+        return null;
+      }
+    }
+    for (OWLAxiom axiom : phylogenyPropertyAxioms) {
+      if (!expectedPropertyAxioms.contains(axiom)) {
+        unsupportedPhylogenyReason = "the ontology contains the unexpected property axiom " + axiom;
+        return null;
+      }
+    }
+
+    // We work out has_Child, has_Parent and has_Sibling values from the phylogenies, so their
+    // values can't come from anywhere else; has_Descendant, includes_TU and excludes_TU are
+    // calculated entirely from the phylogenies.
+    for (IRI propertyIRI :
+        Arrays.asList(
+            PhylorefHelper.IRI_CDAO_HAS_DESCENDANT,
+            PhylorefHelper.IRI_PHYLOREF_INCLUDES_TU,
+            PhylorefHelper.IRI_PHYLOREF_EXCLUDES_TU)) {
+      if (getEdges(propertyIRI).size > 0) {
+        unsupportedPhylogenyReason = "values are asserted for " + propertyIRI;
+        return null;
+      }
+    }
+
+    // Every node may have at most one parent, and nodes must be named or blank nodes in the
+    // document rather than fresh individuals created from a class assertion.
+    BitSet nodes = new BitSet(size);
+    int[] parent = new int[size];
+    Arrays.fill(parent, -1);
+    Set<Long> childPairs = new HashSet<>();
+    Edges children = getEdges(PhylorefHelper.IRI_CDAO_HAS_CHILD);
+    for (int i = 0; i < children.size; i++) {
+      int p = children.from[i];
+      int c = children.to[i];
+      if (individuals.get(p) == null || individuals.get(c) == null) {
+        unsupportedPhylogenyReason = "some nodes have children that are not individuals";
+        return null;
+      }
+      if (parent[c] >= 0 && parent[c] != p) {
+        unsupportedPhylogenyReason = individuals.get(c) + " has more than one parent";
+        return null;
+      }
+      nodes.set(p);
+      nodes.set(c);
+      parent[c] = p;
+      childPairs.add(pair(c, p));
+    }
+
+    // ELK doesn't know that has_Parent and has_Sibling are determined by has_Child, so we can
+    // only interpret them using the phylogenies if they have been asserted for every node.
+    Set<Long> parentPairs = new HashSet<>();
+    Edges parents = getEdges(PhylorefHelper.IRI_CDAO_HAS_PARENT);
+    for (int i = 0; i < parents.size; i++) {
+      parentPairs.add(pair(parents.from[i], parents.to[i]));
+    }
+    if (!parentPairs.equals(childPairs)) {
+      unsupportedPhylogenyReason = "has_Parent assertions do not match has_Child assertions";
+      return null;
+    }
+
+    int[] childCount = new int[size];
+    for (int node = nodes.nextSetBit(0); node >= 0; node = nodes.nextSetBit(node + 1)) {
+      if (parent[node] >= 0) childCount[parent[node]]++;
+    }
+    long expectedSiblingPairs = 0;
+    for (int node = nodes.nextSetBit(0); node >= 0; node = nodes.nextSetBit(node + 1)) {
+      expectedSiblingPairs += (long) childCount[node] * (childCount[node] - 1);
+    }
+    Set<Long> siblingPairs = new HashSet<>();
+    Edges siblings = getEdges(PhylorefHelper.IRI_PHYLOREF_HAS_SIBLING);
+    for (int i = 0; i < siblings.size; i++) {
+      int a = siblings.from[i];
+      int b = siblings.to[i];
+      if (a == b || parent[a] < 0 || parent[a] != parent[b]) {
+        unsupportedPhylogenyReason = "has_Sibling assertions do not match has_Child assertions";
+        return null;
+      }
+      siblingPairs.add(pair(a, b));
+    }
+    if (siblingPairs.size() != expectedSiblingPairs) {
+      unsupportedPhylogenyReason = "has_Sibling assertions do not match has_Child assertions";
+      return null;
+    }
+
+    try {
+      return new PhylogenyIndex(size, nodes, parent);
+    } catch (IllegalArgumentException ex) {
+      unsupportedPhylogenyReason = ex.getMessage();
+      return null;
+    }
+  }
+
+  /*
+   * Evaluating class expressions.
+   */
+
+  /**
+   * Return the individuals that are instances of a class expression. The returned set may be
+   * shared, and must not be modified.
+   */
+  private BitSet evaluate(OWLClassExpression ce) throws UnsupportedExpressionException {
+    BitSet result = evaluated.get(ce);
+    if (result != null) return result;
+
+    if (!evaluating.add(ce)) {
+      throw new UnsupportedExpressionException(ce + " is defined in terms of itself");
+    }
+    try {
+      result = evaluateUncached(ce);
+    } finally {
+      evaluating.remove(ce);
+    }
+
+    evaluated.put(ce, result);
+    return result;
+  }
+
+  private BitSet evaluateUncached(OWLClassExpression ce) throws UnsupportedExpressionException {
+    BitSet result = new BitSet(size);
+    switch (ce.getClassExpressionType()) {
+      case OWL_CLASS:
+        if (ce.isOWLThing()) {
+          result.set(0, size);
+        } else if (!ce.isOWLNothing()) {
+          BitSet members = classMembers.get(ce.asOWLClass());
+          if (members != null) result.or(members);
+          for (OWLClassExpression subClass :
+              subClassExpressions.getOrDefault(ce.asOWLClass(), Collections.emptyList())) {
+            result.or(evaluate(subClass));
+          }
+          for (OWLObjectProperty property :
+              rangeOf.getOrDefault(ce.asOWLClass(), Collections.emptyList())) {
+            for (OWLPropertyExpression subProperty : getSubPropertyClosure(property)) {
+              Edges propertyEdges = edges.get(subProperty);
+              if (propertyEdges == null) continue;
+              for (int i = 0; i < propertyEdges.size; i++) result.set(propertyEdges.to[i]);
+            }
+          }
+        }
+        return result;
+
+      case OBJECT_INTERSECTION_OF:
+        result.set(0, size);
+        for (OWLClassExpression conjunct : ce.asConjunctSet()) {
+          result.and(evaluate(conjunct));
+        }
+        return result;
+
+      case OBJECT_SOME_VALUES_FROM:
+        OWLObjectSomeValuesFrom someValuesFrom = (OWLObjectSomeValuesFrom) ce;
+        return evaluateSomeValuesFrom(
+            getNamedProperty(someValuesFrom.getProperty()), evaluate(someValuesFrom.getFiller()));
+
+      case OBJECT_HAS_VALUE:
+        OWLObjectHasValue hasValue = (OWLObjectHasValue) ce;
+        BitSet filler = new BitSet(size);
+        Integer fillerId = ids.get(hasValue.getFiller());
+        if (fillerId != null) filler.set(fillerId);
+        return evaluateSomeValuesFrom(getNamedProperty(hasValue.getProperty()), filler);
+
+      case DATA_HAS_VALUE:
+        OWLDataHasValue dataHasValue = (OWLDataHasValue) ce;
+        for (OWLPropertyExpression property : getSubPropertyClosure(dataHasValue.getProperty())) {
+          BitSet withValue =
+              dataValues
+                  .getOrDefault(property, Collections.emptyMap())
+                  .get(dataHasValue.getFiller());
+          if (withValue != null) result.or(withValue);
+          for (ImpliedValue implied :
+              impliedValues.getOrDefault(property, Collections.emptyList())) {
+            if (dataHasValue.getFiller().equals(implied.value)) {
+              result.or(evaluate(implied.subClass));
+            }
+          }
+        }
+        return result;
+
+      case DATA_SOME_VALUES_FROM:
+        OWLDataSomeValuesFrom dataSomeValuesFrom = (OWLDataSomeValuesFrom) ce;
+        if (!dataSomeValuesFrom.getFiller().isTopDatatype()) {
+          throw new UnsupportedExpressionException(
+              "data ranges other than rdfs:Literal are not supported");
+        }
+        for (OWLPropertyExpression property :
+            getSubPropertyClosure(dataSomeValuesFrom.getProperty())) {
+          for (BitSet withValue :
+              dataValues.getOrDefault(property, Collections.emptyMap()).values()) {
+            result.or(withValue);
+          }
+          for (ImpliedValue implied :
+              impliedValues.getOrDefault(property, Collections.emptyList())) {
+            result.or(evaluate(implied.subClass));
+          }
+        }
+        return result;
+
+      default:
+        throw new UnsupportedExpressionException(
+            ce.getClassExpressionType() + " class expressions are not supported");
+    }
+  }
+
+  private OWLObjectProperty getNamedProperty(OWLObjectPropertyExpression property)
+      throws UnsupportedExpressionException {
+    if (property.isAnonymous()) {
+      throw new UnsupportedExpressionException("inverse properties are not supported");
+    }
+    return property.asOWLObjectProperty();
+  }
+
+  /**
+   * Return the individuals that have a value for a property that is in a set of fillers. The
+   * properties used to define phyloreferences are answered from the phylogeny index.
+   */
+  private BitSet evaluateSomeValuesFrom(OWLObjectProperty property, BitSet fillers)
+      throws UnsupportedExpressionException {
+    IRI propertyIRI = property.getIRI();
+    if (!PHYLOGENY_PROPERTIES.contains(propertyIRI)) {
+      BitSet result = new BitSet(size);
+      for (OWLPropertyExpression subProperty : getSubPropertyClosure(property)) {
+        Edges propertyEdges = edges.get(subProperty);
+        if (propertyEdges != null) {
+          for (int i = 0; i < propertyEdges.size; i++) {
+            if (fillers.get(propertyEdges.to[i])) result.set(propertyEdges.from[i]);
+          }
+        }
+        for (ImpliedValue implied :
+            impliedValues.getOrDefault(subProperty, Collections.emptyList())) {
+          if (fillers.get((Integer) implied.value)) result.or(evaluate(implied.subClass));
+        }
+      }
+      return result;
+    }
+
+    if (index == null) throw new UnsupportedExpressionException(unsupportedPhylogenyReason);
+    if (propertyIRI.equals(PhylorefHelper.IRI_CDAO_HAS_CHILD)) {
+      return index.parentsOf(fillers);
+    } else if (propertyIRI.equals(PhylorefHelper.IRI_CDAO_HAS_PARENT)) {
+      return index.childrenOf(fillers);
+    } else if (propertyIRI.equals(PhylorefHelper.IRI_PHYLOREF_HAS_SIBLING)) {
+      return index.siblingsOf(fillers);
+    } else if (propertyIRI.equals(PhylorefHelper.IRI_CDAO_HAS_DESCENDANT)) {
+      return index.properAncestorsOf(fillers);
+    }
+
+    // For includes_TU and excludes_TU, we first find the individuals that represent these
+    // taxonomic units, and then look for the nodes that include or exclude them.
+    BitSet representing =
+        evaluateSomeValuesFrom(
+            df.getOWLObjectProperty(PhylorefHelper.IRI_CDAO_REPRESENTS_TU), fillers);
+    if (propertyIRI.equals(PhylorefHelper.IRI_PHYLOREF_INCLUDES_TU)) {
+      return index.ancestorsOrSelf(representing);
+    } else {
+      representing.and(index.getNodes());
+      return index.excluding(representing);
+    }
+  }
+
+  /**
+   * Return a property and all its subproperties.
+   *
+   * @throws UnsupportedExpressionException If any of these properties have values that we can't
+   *     work out.
+   */
+  private Set<OWLPropertyExpression> getSubPropertyClosure(OWLPropertyExpression property)
+      throws UnsupportedExpressionException {
+    Set<OWLPropertyExpression> closure = new HashSet<>();
+    List<OWLPropertyExpression> toVisit = new ArrayList<>();
+    toVisit.add(property);
+    while (!toVisit.isEmpty()) {
+      OWLPropertyExpression next = toVisit.remove(toVisit.size() - 1);
+      if (!closure.add(next)) continue;
+      if (unsupportedProperties.contains(next)) {
+        throw new UnsupportedExpressionException(
+            "the values of " + next + " depend on property axioms that are not supported");
+      }
+      toVisit.addAll(subProperties.getOrDefault(next, Collections.emptySet()));
+    }
+    return closure;
+  }
+}
@@ -0,0 +1,431 @@
+package org.phyloref.jphyloref.reasoner;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import org.semanticweb.owlapi.model.AxiomType;
+import org.semanticweb.owlapi.model.OWLAxiom;
+import org.semanticweb.owlapi.model.OWLClass;
+import org.semanticweb.owlapi.model.OWLClassExpression;
+import org.semanticweb.owlapi.model.OWLDataProperty;
+import org.semanticweb.owlapi.model.OWLDataPropertyExpression;
+import org.semanticweb.owlapi.model.OWLLiteral;
+import org.semanticweb.owlapi.model.OWLNamedIndividual;
+import org.semanticweb.owlapi.model.OWLObjectPropertyExpression;
+import org.semanticweb.owlapi.model.OWLOntology;
+import org.semanticweb.owlapi.model.OWLOntologyChange;
+import org.semanticweb.owlapi.model.OWLOntologyChangeListener;
+import org.semanticweb.owlapi.reasoner.BufferingMode;
+import org.semanticweb.owlapi.reasoner.FreshEntityPolicy;
+import org.semanticweb.owlapi.reasoner.IndividualNodeSetPolicy;
+import org.semanticweb.owlapi.reasoner.InferenceType;
+import org.semanticweb.owlapi.reasoner.Node;
+import org.semanticweb.owlapi.reasoner.NodeSet;
+import org.semanticweb.owlapi.reasoner.OWLReasoner;
+import org.semanticweb.owlapi.reasoner.impl.OWLClassNodeSet;
+import org.semanticweb.owlapi.reasoner.impl.OWLNamedIndividualNodeSet;
+import org.semanticweb.owlapi.util.Version;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An OWL reasoner that resolves phyloreferences using tree algorithms on the phylogenies in an
+ * ontology, instead of by saturating the entire ontology.
+ *
+ * <p>Instances of class expressions and the types of individuals are worked out by a {@link
+ * TreeEvaluator}. Whenever it can't evaluate a class expression, and for every other kind of
+ * question, we ask a fallback reasoner (usually ELK) instead.
+ */
+public class TreeReasoner implements OWLReasoner {
+  private static final Logger logger = LoggerFactory.getLogger(TreeReasoner.class);
+
+  private final OWLOntology ontology;
+  private final OWLReasoner fallback;
+  private final BufferingMode bufferingMode;
+
+  /** The evaluator for the ontology as it currently is, or null if it needs to be rebuilt. */
+  private TreeEvaluator evaluator;
+
+  /** Discards the evaluator whenever the ontology changes, for non-buffering reasoners. */
+  private final OWLOntologyChangeListener changeListener = changes -> invalidate();
+
+  /**
+   * Create a tree reasoner.
+   *
+   * @param ontology The ontology to reason over.
+   * @param fallback The reasoner to use for questions we can't answer ourselves. It should have
+   *     been created for the same ontology with the same buffering mode.
+   * @param bufferingMode The buffering mode of this reasoner.
+   */
+  public TreeReasoner(OWLOntology ontology, OWLReasoner fallback, BufferingMode bufferingMode) {
+    this.ontology = ontology;
+    this.fallback = fallback;
+    this.bufferingMode = bufferingMode;
+
+    if (bufferingMode == BufferingMode.NON_BUFFERING) {
+      ontology.getOWLOntologyManager().addOntologyChangeListener(changeListener);
+    }
+  }
+
+  /** @return the reasoner we use for questions we can't answer ourselves. */
+  public OWLReasoner getFallbackReasoner() {
+    return fallback;
+  }
+
+  private synchronized void invalidate() {
+    evaluator = null;
+  }
+
+  private synchronized TreeEvaluator getEvaluator() {
+    if (evaluator == null) {
+      long start = System.currentTimeMillis();
+      evaluator = new TreeEvaluator(ontology);
+      logger.debug("Indexed ontology in {} ms", System.currentTimeMillis() - start);
+    }
+    return evaluator;
+  }
+
+  @Override
+  public NodeSet<OWLNamedIndividual> getInstances(OWLClassExpression ce, boolean direct) {
+    // We can't tell direct instances apart from indirect ones, and a buffering reasoner with
+    // pending changes needs to answer questions about the ontology as it was before those changes.
+    if (!direct && getPendingChanges().isEmpty()) {
+      try {
+        Set<OWLNamedIndividual> instances;
+        synchronized (this) {
+          instances = getEvaluator().getInstances(ce);
+        }
+        OWLNamedIndividualNodeSet result = new OWLNamedIndividualNodeSet();
+        instances.forEach(result::addEntity);
+        return result;
+      } catch (TreeEvaluator.UnsupportedExpressionException ex) {
+        logger.info(
+            "Using {} to find instances of {}, as {}",
+            fallback.getReasonerName(),
+            ce,
+            ex.getMessage());
+      }
+    }
+    return fallback.getInstances(ce, direct);
+  }
+
+  @Override
+  public NodeSet<OWLClass> getTypes(OWLNamedIndividual ind, boolean direct) {
+    // As with getInstances(), we can only answer this question for indirect types.
+    if (!direct && getPendingChanges().isEmpty()) {
+      try {
+        Set<OWLClass> types;
+        synchronized (this) {
+          types = getEvaluator().getTypes(ind);
+        }
+        OWLClassNodeSet result = new OWLClassNodeSet();
+        types.forEach(result::addEntity);
+        return result;
+      } catch (TreeEvaluator.UnsupportedExpressionException ex) {
+        // This is usually asked once for every node, so don't log the same message every time.
+        logger.debug(
+            "Using {} to find types of {}, as {}",
+            fallback.getReasonerName(),
+            ind,
+            ex.getMessage());
+      }
+    }
+    return fallback.getTypes(ind, direct);
+  }
+
+  /**
+   * Precompute inferences. We work out the types of individuals (CLASS_ASSERTIONS) ourselves, so
+   * that the fallback reasoner doesn't need to realize the entire ontology; it is only asked to if
+   * we can't. Every other inference type is precomputed by the fallback reasoner.
+   */
+  @Override
+  public void precomputeInferences(InferenceType... inferenceTypes) {
+    List<InferenceType> fallbackTypes = new ArrayList<>();
+    for (InferenceType inferenceType : inferenceTypes) {
+      if (inferenceType == InferenceType.CLASS_ASSERTIONS && precomputeTypes()) continue;
+      fallbackTypes.add(inferenceType);
+    }
+    if (!fallbackTypes.isEmpty()) {
+      fallback.precomputeInferences(fallbackTypes.toArray(new InferenceType[fallbackTypes.size()]));
+    }
+  }
+
+  /**
+   * Work out the types of every individual with our evaluator.
+   *
+   * @return False if we can't, in which case the fallback reasoner needs to.
+   */
+  private boolean precomputeTypes() {
+    if (!getPendingChanges().isEmpty()) return false;
+    try {
+      synchronized (this) {
+        getEvaluator().computeTypes();
+      }
+      return true;
+    } catch (TreeEvaluator.UnsupportedExpressionException ex) {
+      logger.info(
+          "Using {} to find the types of individuals, as {}",
+          fallback.getReasonerName(),
+          ex.getMessage());
+      return false;
+    }
+  }
+
+  @Override
+  public boolean isPrecomputed(InferenceType inferenceType) {
+    if (inferenceType == InferenceType.CLASS_ASSERTIONS) {
+      synchronized (this) {
+        if (evaluator != null && evaluator.hasComputedTypes()) return true;
+      }
+    }
+    return fallback.isPrecomputed(inferenceType);
+  }
+
+  @Override
+  public Set<InferenceType> getPrecomputableInferenceTypes() {
+    Set<InferenceType> inferenceTypes = EnumSet.noneOf(InferenceType.class);
+    inferenceTypes.addAll(fallback.getPrecomputableInferenceTypes());
+    inferenceTypes.add(InferenceType.CLASS_ASSERTIONS);
+    return inferenceTypes;
+  }
+
+  @Override
+  public void flush() {
+    fallback.flush();
+    invalidate();
+  }
+
+  @Override
+  public void dispose() {
+    ontology.getOWLOntologyManager().removeOntologyChangeListener(changeListener);
+    invalidate();
+    fallback.dispose();
+  }
+
+  @Override
+  public String getReasonerName() {
+    return TreeReasonerFactory.getReasonerName(fallback.getReasonerName());
+  }
+
+  @Override
+  public BufferingMode getBufferingMode() {
+    return bufferingMode;
+  }
+
+  @Override
+  public OWLOntology getRootOntology() {
+    return ontology;
+  }
+
+  /*
+   * Everything else is answered by the fallback reasoner.
+   */
+
+  @Override
+  public Version getReasonerVersion() {
+    return fallback.getReasonerVersion();
+  }
+
+  @Override
+  public List<OWLOntologyChange> getPendingChanges() {
+    return fallback.getPendingChanges();
+  }
+
+  @Override
+  public Set<OWLAxiom> getPendingAxiomAdditions() {
+    return fallback.getPendingAxiomAdditions();
+  }
+
+  @Override
+  public Set<OWLAxiom> getPendingAxiomRemovals() {
+    return fallback.getPendingAxiomRemovals();
+  }
+
+  @Override
+  public void interrupt() {
+    fallback.interrupt();
+  }
+
+  @Override
+  public boolean isConsistent() {
+    return fallback.isConsistent();
+  }
+
+  @Override
+  public boolean isSatisfiable(OWLClassExpression classExpression) {
+    return fallback.isSatisfiable(classExpression);
+  }
+
+  @Override
+  public Node<OWLClass> getUnsatisfiableClasses() {
+    return fallback.getUnsatisfiableClasses();
+  }
+
+  @Override
+  public boolean isEntailed(OWLAxiom axiom) {
+    return fallback.isEntailed(axiom);
+  }
+
+  @Override
+  public boolean isEntailed(Set<? extends OWLAxiom> axioms) {
+    return fallback.isEntailed(axioms);
+  }
+
+  @Override
+  public boolean isEntailmentCheckingSupported(AxiomType<?> axiomType) {
+    return fallback.isEntailmentCheckingSupported(axiomType);
+  }
+
+  @Override
+  public Node<OWLClass> getTopClassNode() {
+    return fallback.getTopClassNode();
+  }
+
+  @Override
+  public Node<OWLClass> getBottomClassNode() {
+    return fallback.getBottomClassNode();
+  }
+
+  @Override
+  public NodeSet<OWLClass> getSubClasses(OWLClassExpression ce, boolean direct) {
+    return fallback.getSubClasses(ce, direct);
+  }
+
+  @Override
+  public NodeSet<OWLClass> getSuperClasses(OWLClassExpression ce, boolean direct) {
+    return fallback.getSuperClasses(ce, direct);
+  }
+
+  @Override
+  public Node<OWLClass> getEquivalentClasses(OWLClassExpression ce) {
+    return fallback.getEquivalentClasses(ce);
+  }
+
+  @Override
+  public NodeSet<OWLClass> getDisjointClasses(OWLClassExpression ce) {
+    return fallback.getDisjointClasses(ce);
+  }
+
+  @Override
+  public Node<OWLObjectPropertyExpression> getTopObjectPropertyNode() {
+    return fallback.getTopObjectPropertyNode();
+  }
+
+  @Override
+  public Node<OWLObjectPropertyExpression> getBottomObjectPropertyNode() {
+    return fallback.getBottomObjectPropertyNode();
+  }
+
+  @Override
+  public NodeSet<OWLObjectPropertyExpression> getSubObjectProperties(
+      OWLObjectPropertyExpression pe, boolean direct) {
+    return fallback.getSubObjectProperties(pe, direct);
+  }
+
+  @Override
+  public NodeSet<OWLObjectPropertyExpression> getSuperObjectProperties(
+      OWLObjectPropertyExpression pe, boolean direct) {
+    return fallback.getSuperObjectProperties(pe, direct);
+  }
+
+  @Override
+  public Node<OWLObjectPropertyExpression> getEquivalentObjectProperties(
+      OWLObjectPropertyExpression pe) {
+    return fallback.getEquivalentObjectProperties(pe);
+  }
+
+  @Override
+  public NodeSet<OWLObjectPropertyExpression> getDisjointObjectProperties(
+      OWLObjectPropertyExpression pe) {
+    return fallback.getDisjointObjectProperties(pe);
+  }
+
+  @Override
+  public Node<OWLObjectPropertyExpression> getInverseObjectProperties(
+      OWLObjectPropertyExpression pe) {
+    return fallback.getInverseObjectProperties(pe);
+  }
+
+  @Override
+  public NodeSet<OWLClass> getObjectPropertyDomains(
+      OWLObjectPropertyExpression pe, boolean direct) {
+    return fallback.getObjectPropertyDomains(pe, direct);
+  }
+
+  @Override
+  public NodeSet<OWLClass> getObjectPropertyRanges(OWLObjectPropertyExpression pe, boolean direct) {
+    return fallback.getObjectPropertyRanges(pe, direct);
+  }
+
+  @Override
+  public Node<OWLDataProperty> getTopDataPropertyNode() {
+    return fallback.getTopDataPropertyNode();
+  }
+
+  @Override
+  public Node<OWLDataProperty> getBottomDataPropertyNode() {
+    return fallback.getBottomDataPropertyNode();
+  }
+
+  @Override
+  public NodeSet<OWLDataProperty> getSubDataProperties(OWLDataProperty pe, boolean direct) {
+    return fallback.getSubDataProperties(pe, direct);
+  }
+
+  @Override
+  public NodeSet<OWLDataProperty> getSuperDataProperties(OWLDataProperty pe, boolean direct) {
+    return fallback.getSuperDataProperties(pe, direct);
+  }
+
+  @Override
+  public Node<OWLDataProperty> getEquivalentDataProperties(OWLDataProperty pe) {
+    return fallback.getEquivalentDataProperties(pe);
+  }
+
+  @Override
+  public NodeSet<OWLDataProperty> getDisjointDataProperties(OWLDataPropertyExpression pe) {
+    return fallback.getDisjointDataProperties(pe);
+  }
+
+  @Override
+  public NodeSet<OWLClass> getDataPropertyDomains(OWLDataProperty pe, boolean direct) {
+    return fallback.getDataPropertyDomains(pe, direct);
+  }
+
+  @Override
+  public NodeSet<OWLNamedIndividual> getObjectPropertyValues(
+      OWLNamedIndividual ind, OWLObjectPropertyExpression pe) {
+    return fallback.getObjectPropertyValues(ind, pe);
+  }
+
+  @Override
+  public Set<OWLLiteral> getDataPropertyValues(OWLNamedIndividual ind, OWLDataProperty pe) {
+    return fallback.getDataPropertyValues(ind, pe);
+  }
+
+  @Override
+  public Node<OWLNamedIndividual> getSameIndividuals(OWLNamedIndividual ind) {
+    return fallback.getSameIndividuals(ind);
+  }
+
+  @Override
+  public NodeSet<OWLNamedIndividual> getDifferentIndividuals(OWLNamedIndividual ind) {
+    return fallback.getDifferentIndividuals(ind);
+  }
+
+  @Override
+  public long getTimeOut() {
+    return fallback.getTimeOut();
+  }
+
+  @Override
+  public FreshEntityPolicy getFreshEntityPolicy() {
+    return fallback.getFreshEntityPolicy();
+  }
+
+  @Override
+  public IndividualNodeSetPolicy getIndividualNodeSetPolicy() {
+    return fallback.getIndividualNodeSetPolicy();
+  }
+}
@@ -0,0 +1,70 @@
+package org.phyloref.jphyloref.reasoner;
+
+import org.semanticweb.elk.owlapi.ElkReasonerFactory;
+import org.semanticweb.owlapi.model.OWLOntology;
+import org.semanticweb.owlapi.reasoner.BufferingMode;
+import org.semanticweb.owlapi.reasoner.OWLReasoner;
+import org.semanticweb.owlapi.reasoner.OWLReasonerConfiguration;
+import org.semanticweb.owlapi.reasoner.OWLReasonerFactory;
+
+/**
+ * A factory for {@link TreeReasoner}s. Each tree reasoner is backed by a fallback reasoner created
+ * by another reasoner factory, which defaults to ELK.
+ */
+public class TreeReasonerFactory implements OWLReasonerFactory {
+  private final OWLReasonerFactory fallbackFactory;
+
+  /** Create a factory for tree reasoners that fall back to ELK. */
+  public TreeReasonerFactory() {
+    this(new ElkReasonerFactory());
+  }
+
+  /**
+   * Create a factory for tree reasoners.
+   *
+   * @param fallbackFactory The factory used to create the reasoners that answer any questions the
+   *     tree reasoners can't.
+   */
+  public TreeReasonerFactory(OWLReasonerFactory fallbackFactory) {
+    this.fallbackFactory = fallbackFactory;
+  }
+
+  /** Return the name of a tree reasoner that falls back to a particular reasoner. */
+  static String getReasonerName(String fallbackName) {
+    return "Tree+" + fallbackName;
+  }
+
+  @Override
+  public String getReasonerName() {
+    return getReasonerName(fallbackFactory.getReasonerName());
+  }
+
+  @Override
+  public OWLReasoner createNonBufferingReasoner(OWLOntology ontology) {
+    return new TreeReasoner(
+        ontology,
+        fallbackFactory.createNonBufferingReasoner(ontology),
+        BufferingMode.NON_BUFFERING);
+  }
+
+  @Override
+  public OWLReasoner createReasoner(OWLOntology ontology) {
+    return new TreeReasoner(
+        ontology, fallbackFactory.createReasoner(ontology), BufferingMode.BUFFERING);
+  }
+
+  @Override
+  public OWLReasoner createNonBufferingReasoner(
+      OWLOntology ontology, OWLReasonerConfiguration config) {
+    return new TreeReasoner(
+        ontology,
+        fallbackFactory.createNonBufferingReasoner(ontology, config),
+        BufferingMode.NON_BUFFERING);
+  }
+
+  @Override
+  public OWLReasoner createReasoner(OWLOntology ontology, OWLReasonerConfiguration config) {
+    return new TreeReasoner(
+        ontology, fallbackFactory.createReasoner(ontology, config), BufferingMode.BUFFERING);
+  }
+}
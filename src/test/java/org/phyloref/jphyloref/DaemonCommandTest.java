@@ -0,0 +1,370 @@
+package org.phyloref.jphyloref;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.phyloref.jphyloref.commands.DaemonCommand;
+import org.phyloref.jphyloref.helpers.DaemonHelper;
+import org.phyloref.jphyloref.helpers.PhylorefHelper;
+import org.semanticweb.owlapi.apibinding.OWLManager;
+import org.semanticweb.owlapi.formats.FunctionalSyntaxDocumentFormat;
+import org.semanticweb.owlapi.model.IRI;
+import org.semanticweb.owlapi.model.OWLAxiom;
+import org.semanticweb.owlapi.model.OWLClass;
+import org.semanticweb.owlapi.model.OWLDataFactory;
+import org.semanticweb.owlapi.model.OWLNamedIndividual;
+import org.semanticweb.owlapi.model.OWLOntologyManager;
+
+/** A unit test for the DaemonCommand class and the "resolve --via-daemon" client. */
+@DisplayName("DaemonCommandTest")
+class DaemonCommandTest {
+  static JPhyloRef jphyloref = new JPhyloRef();
+  static ByteArrayOutputStream output = new ByteArrayOutputStream();
+  static ByteArrayOutputStream error = new ByteArrayOutputStream();
+
+  private static final String EX = "http://example.org/jphyloref";
+
+  File inputFile;
+  File tokenFile;
+  String token;
+  DaemonCommand.Daemon daemon;
+
+  /** Set up input and output streams */
+  @BeforeAll
+  static void setupIO() {
+    System.setOut(new PrintStream(output));
+    System.setErr(new PrintStream(error));
+  }
+
+  /** Write out an ontology in which phyloref2 (a subclass of phyloref1) resolves to node1. */
+  @BeforeEach
+  void setupDaemon() throws Exception {
+    output.reset();
+    error.reset();
+
+    OWLOntologyManager manager = OWLManager.createOWLOntologyManager();
+    OWLDataFactory df = manager.getOWLDataFactory();
+
+    OWLClass phyloref1 = df.getOWLClass(IRI.create(EX + "#phyloref1"));
+    OWLClass phyloref2 = df.getOWLClass(IRI.create(EX + "#phyloref2"));
+    OWLNamedIndividual node1 = df.getOWLNamedIndividual(IRI.create(EX + "#node1"));
+
+    Set<OWLAxiom> axioms = new HashSet<>();
+    axioms.add(
+        df.getOWLSubClassOfAxiom(phyloref1, df.getOWLClass(PhylorefHelper.IRI_PHYLOREFERENCE)));
+    axioms.add(df.getOWLSubClassOfAxiom(phyloref2, phyloref1));
+    axioms.add(df.getOWLClassAssertionAxiom(df.getOWLClass(PhylorefHelper.IRI_CDAO_NODE), node1));
+    axioms.add(df.getOWLClassAssertionAxiom(phyloref2, node1));
+
+    inputFile = File.createTempFile("jphyloref-input", ".ofn");
+    manager.saveOntology(
+        manager.createOntology(axioms),
+        new FunctionalSyntaxDocumentFormat(),
+        IRI.create(inputFile.toURI()));
+
+    // Start a daemon on any free port.
+    tokenFile = new File(inputFile.getPath() + ".token");
+    token = DaemonHelper.createToken(tokenFile);
+    daemon = new DaemonCommand.Daemon(0, Collections.emptyList(), token, 2, 4);
+    start(daemon);
+  }
+
+  /** Run a daemon on a background thread until it is closed. */
+  private static void start(DaemonCommand.Daemon daemon) {
+    Thread thread =
+        new Thread(
+            () -> {
+              try {
+                daemon.run();
+              } catch (IOException ex) {
+                throw new RuntimeException(ex);
+              }
+            });
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** Stop the daemon and delete the files we wrote out. */
+  @AfterEach
+  void stopDaemon() throws IOException {
+    daemon.close();
+    inputFile.delete();
+    tokenFile.delete();
+  }
+
+  private String getOutput() {
+    try {
+      return output.toString("UTF-8");
+    } catch (UnsupportedEncodingException ex) {
+      throw new RuntimeException("'UTF-8' is not supported as an encoding: " + ex);
+    }
+  }
+
+  @Test
+  @DisplayName("resolves phylorefs sent to it in the same way as the resolve command")
+  void resolvesViaDaemon() {
+    int exitCode =
+        jphyloref.execute(
+            new String[] {
+              "resolve",
+              inputFile.getPath(),
+              "--reasoner",
+              "elk",
+              "--via-daemon",
+              "--daemon-port",
+              String.valueOf(daemon.getPort()),
+              "--daemon-token-file",
+              tokenFile.getPath()
+            });
+    assertEquals(0, exitCode);
+    String outputViaDaemon = getOutput();
+
+    JSONObject phylorefs = new JSONObject(outputViaDaemon).getJSONObject("phylorefs");
+    assertEquals(new HashSet<>(Arrays.asList("#phyloref1", "#phyloref2")), phylorefs.keySet());
+    assertEquals("[\"#node1\"]", phylorefs.getJSONArray("#phyloref1").toString());
+
+    // The options we forward should be used by the daemon: without a reasoner, we only find
+    // phyloref1, which has no asserted members.
+    output.reset();
+    exitCode =
+        jphyloref.execute(
+            new String[] {
+              "resolve",
+              inputFile.getPath(),
+              "--reasoner",
+              "null",
+              "--via-daemon",
+              "--daemon-port",
+              String.valueOf(daemon.getPort()),
+              "--daemon-token-file",
+              tokenFile.getPath()
+            });
+    assertEquals(0, exitCode);
+    assertEquals("{\"phylorefs\":{\"#phyloref1\":[]}}\n", getOutput());
+  }
+
+  @Test
+  @DisplayName("reports errors in the same way as the resolve command")
+  void reportsErrors() throws IOException {
+    // Find a port that no daemon is listening on.
+    int unusedPort;
+    try (ServerSocket socket = new ServerSocket(0)) {
+      unusedPort = socket.getLocalPort();
+    }
+
+    int exitCode =
+        jphyloref.execute(
+            new String[] {
+              "resolve",
+              inputFile.getPath(),
+              "--errors-as-json",
+              "--via-daemon",
+              "--daemon-port",
+              String.valueOf(unusedPort)
+            });
+    assertEquals(0, exitCode);
+    assertTrue(new JSONObject(getOutput()).has("error"));
+
+    // Errors from the daemon itself are passed on to the client.
+    output.reset();
+    exitCode =
+        jphyloref.execute(
+            new String[] {
+              "resolve",
+              inputFile.getPath(),
+              "--reasoner",
+              "unknown",
+              "--via-daemon",
+              "--daemon-port",
+              String.valueOf(daemon.getPort()),
+              "--daemon-token-file",
+              tokenFile.getPath()
+            });
+    assertEquals(1, exitCode);
+  }
+
+  /**
+   * Send a request to the daemon in the same way as a shell script would, with the length of the
+   * input rather than closing our side of the connection, and return the frames it sends back.
+   */
+  private String sendRequest(String... args) throws IOException {
+    return sendRequest(daemon.getPort(), token, args);
+  }
+
+  /** Send a request with a particular token to the daemon on a particular port. */
+  private String sendRequest(int port, String token, String... args) throws IOException {
+    byte[] input = Files.readAllBytes(inputFile.toPath());
+    JSONObject header = new JSONObject();
+    header.put("token", token);
+    header.put("input", inputFile.getName());
+    header.put("args", Arrays.asList(args));
+    header.put("length", input.length);
+
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+      OutputStream request = socket.getOutputStream();
+      request.write((header.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+      request.write(input);
+      request.flush();
+
+      StringBuilder frames = new StringBuilder();
+      InputStream response = new BufferedInputStream(socket.getInputStream());
+      while (true) {
+        String line = DaemonHelper.readLine(response);
+        frames.append(line).append('\n');
+        String[] fields = line.split(" ");
+        if (fields[0].equals("exit")) return frames.toString();
+
+        byte[] frame = new byte[Integer.parseInt(fields[1])];
+        int read = 0;
+        while (read < frame.length) read += response.read(frame, read, frame.length - read);
+        frames.append(new String(frame, StandardCharsets.UTF_8));
+      }
+    }
+  }
+
+  @Test
+  @DisplayName("sends output back in frames, followed by the exit code")
+  void sendsFrames() throws IOException {
+    String frames = sendRequest("--reasoner", "elk");
+    assertTrue(frames.startsWith("err "), frames);
+    assertTrue(frames.contains("Loaded ontology"), frames);
+    assertTrue(frames.contains("\nout "), frames);
+    assertTrue(frames.contains("{\"phylorefs\":{"), frames);
+    assertTrue(frames.endsWith("exit 0\n"), frames);
+  }
+
+  @Test
+  @DisplayName("only uses the result cache set on the daemon's command line")
+  void ignoresForwardedCacheOptions() throws IOException {
+    File cacheDirectory = new File(inputFile.getPath() + ".cache");
+
+    // The resolve command doesn't forward the cache options to the daemon...
+    int exitCode =
+        jphyloref.execute(
+            new String[] {
+              "resolve",
+              inputFile.getPath(),
+              "--result-cache",
+              cacheDirectory.getPath(),
+              "--via-daemon",
+              "--daemon-port",
+              String.valueOf(daemon.getPort()),
+              "--daemon-token-file",
+              tokenFile.getPath()
+            });
+    assertEquals(0, exitCode);
+    assertTrue(new JSONObject(getOutput()).has("phylorefs"));
+    assertFalse(cacheDirectory.exists());
+
+    // ...and the daemon refuses requests that set them anyway.
+    String frames = sendRequest("--result-cache", cacheDirectory.getPath());
+    assertTrue(frames.contains("Option 'result-cache' can't be sent to the daemon"), frames);
+    assertTrue(frames.endsWith("exit 1\n"), frames);
+    assertFalse(cacheDirectory.exists());
+  }
+
+  @Test
+  @DisplayName("writes its token to a file that only the current user can read")
+  void writesPrivateTokenFile() throws IOException {
+    assertEquals(token, DaemonHelper.readToken(tokenFile));
+    assertEquals(
+        "rw-------",
+        PosixFilePermissions.toString(Files.getPosixFilePermissions(tokenFile.toPath())));
+
+    // Every daemon gets a new token.
+    String previousToken = token;
+    token = DaemonHelper.createToken(tokenFile);
+    assertNotEquals(previousToken, token);
+    assertEquals(token, DaemonHelper.readToken(tokenFile));
+  }
+
+  @Test
+  @DisplayName("rejects requests without its token")
+  void rejectsRequestsWithoutToken() throws IOException {
+    String frames = sendRequest(daemon.getPort(), "not-the-token", "--reasoner", "elk");
+    assertTrue(frames.startsWith("err "), frames);
+    assertTrue(frames.contains("Invalid daemon token"), frames);
+    assertFalse(frames.contains("phylorefs"), frames);
+    assertTrue(frames.endsWith("exit 1\n"), frames);
+
+    frames = sendRequest(daemon.getPort(), "", "--errors-as-json");
+    assertTrue(frames.startsWith("out "), frames);
+    assertTrue(frames.contains("{\"error\":\"Invalid daemon token\""), frames);
+    assertTrue(frames.endsWith("exit 0\n"), frames);
+
+    // The client reports a missing token file as an error.
+    tokenFile.delete();
+    int exitCode =
+        jphyloref.execute(
+            new String[] {
+              "resolve",
+              inputFile.getPath(),
+              "--errors-as-json",
+              "--via-daemon",
+              "--daemon-port",
+              String.valueOf(daemon.getPort()),
+              "--daemon-token-file",
+              tokenFile.getPath()
+            });
+    assertEquals(0, exitCode);
+    assertTrue(new JSONObject(getOutput()).has("error"));
+  }
+
+  @Test
+  @DisplayName("rejects requests once every thread is busy and its queue is full")
+  void rejectsRequestsWhenBusy() throws IOException {
+    try (DaemonCommand.Daemon busyDaemon =
+            new DaemonCommand.Daemon(0, Collections.emptyList(), token, 1, 0);
+        Socket idleClient = new Socket()) {
+      start(busyDaemon);
+
+      // Keep the only thread busy waiting for a request header that never arrives.
+      idleClient.connect(
+          new InetSocketAddress(InetAddress.getLoopbackAddress(), busyDaemon.getPort()));
+
+      String frames = sendRequest(busyDaemon.getPort(), token, "--reasoner", "elk");
+      assertTrue(frames.contains("Daemon is busy"), frames);
+      assertTrue(frames.endsWith("exit 1\n"), frames);
+
+      frames = sendRequest(busyDaemon.getPort(), token, "--errors-as-json");
+      assertTrue(frames.startsWith("out "), frames);
+      assertTrue(frames.contains("{\"error\":\"Daemon is busy\""), frames);
+      assertTrue(frames.endsWith("exit 0\n"), frames);
+    }
+  }
+
+  @Test
+  @DisplayName("rejects an invalid queue size")
+  void rejectsInvalidQueueSize() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> new DaemonCommand.Daemon(0, Collections.emptyList(), token, 1, -1));
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> new DaemonCommand.Daemon(0, Collections.emptyList(), "", 1, 0));
+  }
+}
@@ -0,0 +1,173 @@
+package org.phyloref.jphyloref;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.phyloref.jphyloref.helpers.PhylorefHelper;
+import org.semanticweb.owlapi.apibinding.OWLManager;
+import org.semanticweb.owlapi.formats.FunctionalSyntaxDocumentFormat;
+import org.semanticweb.owlapi.model.IRI;
+import org.semanticweb.owlapi.model.OWLAxiom;
+import org.semanticweb.owlapi.model.OWLClass;
+import org.semanticweb.owlapi.model.OWLDataFactory;
+import org.semanticweb.owlapi.model.OWLNamedIndividual;
+import org.semanticweb.owlapi.model.OWLOntology;
+import org.semanticweb.owlapi.model.OWLOntologyManager;
+
+/** A unit test for the MaterializeCommand class */
+@DisplayName("MaterializeCommandTest")
+class MaterializeCommandTest {
+  static JPhyloRef jphyloref = new JPhyloRef();
+  static ByteArrayOutputStream output = new ByteArrayOutputStream();
+  static ByteArrayOutputStream error = new ByteArrayOutputStream();
+
+  private static final String EX = "http://example.org/jphyloref";
+
+  File inputFile;
+  File materializedFile;
+
+  /** Set up input and output streams */
+  @BeforeAll
+  static void setupIO() {
+    System.setOut(new PrintStream(output));
+    System.setErr(new PrintStream(error));
+  }
+
+  /**
+   * Write out an ontology in which phyloref2 (a subclass of phyloref1) resolves to node1, which is
+   * expected to resolve to phyloref1. Without a reasoner, we can't tell that phyloref2 is a
+   * phyloreference, or that node1 is a member of phyloref1.
+   */
+  @BeforeEach
+  void setupOntology() throws Exception {
+    output.reset();
+    error.reset();
+
+    OWLOntologyManager manager = OWLManager.createOWLOntologyManager();
+    OWLDataFactory df = manager.getOWLDataFactory();
+
+    OWLClass phyloref1 = df.getOWLClass(IRI.create(EX + "#phyloref1"));
+    OWLClass phyloref2 = df.getOWLClass(IRI.create(EX + "#phyloref2"));
+    OWLNamedIndividual node1 = df.getOWLNamedIndividual(IRI.create(EX + "#node1"));
+
+    Set<OWLAxiom> axioms = new HashSet<>();
+    axioms.add(
+        df.getOWLSubClassOfAxiom(phyloref1, df.getOWLClass(PhylorefHelper.IRI_PHYLOREFERENCE)));
+    axioms.add(df.getOWLSubClassOfAxiom(phyloref2, phyloref1));
+    axioms.add(df.getOWLClassAssertionAxiom(df.getOWLClass(PhylorefHelper.IRI_CDAO_NODE), node1));
+    axioms.add(df.getOWLClassAssertionAxiom(phyloref2, node1));
+    axioms.add(
+        df.getOWLClassAssertionAxiom(
+            df.getOWLObjectSomeValuesFrom(
+                df.getOWLObjectProperty(PhylorefHelper.IRI_OBI_IS_SPECIFIED_OUTPUT_OF),
+                df.getOWLObjectIntersectionOf(
+                    df.getOWLClass(IRI.create("http://purl.obolibrary.org/obo/OBI_0302910")),
+                    df.getOWLObjectSomeValuesFrom(
+                        df.getOWLObjectProperty(PhylorefHelper.IRI_OBI_HAS_SPECIFIED_INPUT),
+                        phyloref1))),
+            node1));
+
+    OWLOntology ontology = manager.createOntology(axioms);
+    inputFile = File.createTempFile("jphyloref-input", ".ofn");
+    materializedFile = File.createTempFile("jphyloref-materialized", ".ofn");
+    manager.saveOntology(
+        ontology, new FunctionalSyntaxDocumentFormat(), IRI.create(inputFile.toURI()));
+  }
+
+  /** Delete the files we wrote out. */
+  @AfterEach
+  void deleteFiles() {
+    inputFile.delete();
+    materializedFile.delete();
+  }
+
+  private String getOutput() {
+    try {
+      return output.toString("UTF-8");
+    } catch (UnsupportedEncodingException ex) {
+      throw new RuntimeException("'UTF-8' is not supported as an encoding: " + ex);
+    }
+  }
+
+  @Test
+  @DisplayName("writes an ontology that can be resolved and tested without a reasoner")
+  void materializesOntology() throws IOException {
+    int exitCode =
+        jphyloref.execute(
+            new String[] {
+              "materialize",
+              inputFile.getPath(),
+              "-o",
+              materializedFile.getPath(),
+              "--reasoner",
+              "elk"
+            });
+    assertEquals(0, exitCode);
+    assertTrue(
+        new String(Files.readAllBytes(materializedFile.toPath()), "UTF-8").contains("#phyloref2"));
+
+    // Resolving the materialized ontology without a reasoner should find both phyloreferences.
+    output.reset();
+    exitCode =
+        jphyloref.execute(
+            new String[] {"resolve", materializedFile.getPath(), "--reasoner", "null"});
+    assertEquals(0, exitCode);
+    JSONObject phylorefs = new JSONObject(getOutput()).getJSONObject("phylorefs");
+    assertEquals(new HashSet<>(Arrays.asList("#phyloref1", "#phyloref2")), phylorefs.keySet());
+    assertEquals("[\"#node1\"]", phylorefs.getJSONArray("#phyloref1").toString());
+    assertEquals("[\"#node1\"]", phylorefs.getJSONArray("#phyloref2").toString());
+
+    // Testing it without a reasoner should find that phyloref1 resolved as expected.
+    output.reset();
+    exitCode =
+        jphyloref.execute(new String[] {"test", materializedFile.getPath(), "--reasoner", "null"});
+    assertEquals(0, exitCode);
+    assertTrue(
+        getOutput().contains("\nok 1 Phyloreference '" + EX + "#phyloref1'"),
+        "phyloref1 should resolve as expected");
+  }
+
+  @Test
+  @DisplayName("writes the output format chosen with --output-format")
+  void writesChosenFormat() throws IOException {
+    int exitCode =
+        jphyloref.execute(
+            new String[] {
+              "materialize",
+              inputFile.getPath(),
+              "-o",
+              materializedFile.getPath(),
+              "--output-format",
+              "turtle",
+              "--reasoner",
+              "elk"
+            });
+    assertEquals(0, exitCode);
+    assertTrue(
+        new String(Files.readAllBytes(materializedFile.toPath()), "UTF-8").contains("@prefix"));
+  }
+
+  @Test
+  @DisplayName("rejects unknown output formats")
+  void rejectsUnknownFormats() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            jphyloref.execute(
+                new String[] {"materialize", inputFile.getPath(), "--output-format", "unknown"}));
+  }
+}
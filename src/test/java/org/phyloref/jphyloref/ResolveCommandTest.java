@@ -4,17 +4,44 @@ import static org.junit.jupiter.api.Assertions.*;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Options;
+import org.json.JSONObject;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
+import org.phyloref.jphyloref.commands.ResolveCommand;
+import org.phyloref.jphyloref.helpers.JSONLDHelper;
+import org.phyloref.jphyloref.helpers.PhylorefHelper;
+import org.phyloref.jphyloref.helpers.ReasonerHelper;
+import org.semanticweb.owlapi.apibinding.OWLManager;
+import org.semanticweb.owlapi.formats.FunctionalSyntaxDocumentFormat;
+import org.semanticweb.owlapi.model.IRI;
+import org.semanticweb.owlapi.model.OWLAxiom;
+import org.semanticweb.owlapi.model.OWLClass;
+import org.semanticweb.owlapi.model.OWLDataFactory;
+import org.semanticweb.owlapi.model.OWLNamedIndividual;
+import org.semanticweb.owlapi.model.OWLOntologyManager;
 
 /** A unit test for the ResolveCommand class */
 @DisplayName("ResolveCommandTest")
@@ -148,4 +175,182 @@ class ResolveCommandTest {
       }
     }
   }
+
+  @Nested
+  @DisplayName("can write results in different formats")
+  class TestingFormats {
+    private static final String EX = "http://example.org/jphyloref";
+
+    /** Write out an ontology in which node1 is asserted to be a member of phyloref1. */
+    private File writeOntology() throws Exception {
+      return writeOntology(1);
+    }
+
+    /**
+     * Write out an ontology with a number of phyloreferences, in which node1 is asserted to be a
+     * member of phyloref1, node2 of phyloref2, and so on.
+     */
+    private File writeOntology(int phylorefCount) throws Exception {
+      OWLOntologyManager manager = OWLManager.createOWLOntologyManager();
+      OWLDataFactory df = manager.getOWLDataFactory();
+
+      Set<OWLAxiom> axioms = new HashSet<>();
+      for (int i = 1; i <= phylorefCount; i++) {
+        OWLClass phyloref = df.getOWLClass(IRI.create(EX + "#phyloref" + i));
+        OWLNamedIndividual node = df.getOWLNamedIndividual(IRI.create(EX + "#node" + i));
+        axioms.add(
+            df.getOWLSubClassOfAxiom(phyloref, df.getOWLClass(PhylorefHelper.IRI_PHYLOREFERENCE)));
+        axioms.add(df.getOWLClassAssertionAxiom(phyloref, node));
+      }
+
+      File file = File.createTempFile("jphyloref-input", ".ofn");
+      manager.saveOntology(
+          manager.createOntology(axioms),
+          new FunctionalSyntaxDocumentFormat(),
+          IRI.create(file.toURI()));
+      return file;
+    }
+
+    @Test
+    @DisplayName("writes a line of JSON per phyloref and a summary with '--format ndjson'")
+    void writesNDJSON() throws Exception {
+      File input = writeOntology();
+      try {
+        int exitCode =
+            jphyloref.execute(
+                new String[] {
+                  "resolve", input.getPath(), "--reasoner", "null", "--format", "ndjson"
+                });
+        assertEquals(0, exitCode);
+
+        String[] lines = output.toString("UTF-8").split("\n");
+        assertEquals(2, lines.length);
+        assertEquals("{\"phyloref\":\"#phyloref1\",\"nodes\":[\"#node1\"]}", lines[0]);
+        JSONObject summary = new JSONObject(lines[1]).getJSONObject("summary");
+        assertEquals(1, summary.getInt("phylorefs"));
+        assertEquals(1, summary.getInt("nodes"));
+      } finally {
+        input.delete();
+      }
+    }
+
+    @Test
+    @DisplayName("writes out each phyloref in NDJSON before resolving the next one")
+    void streamsNDJSON() throws Exception {
+      File input = writeOntology(3);
+      try {
+        // Record what had been written out every time the output was flushed.
+        List<String> flushed = new ArrayList<>();
+        ByteArrayOutputStream streamed =
+            new ByteArrayOutputStream() {
+              @Override
+              public void flush() {
+                flushed.add(new String(toByteArray(), StandardCharsets.UTF_8));
+              }
+            };
+
+        ResolveCommand command = new ResolveCommand();
+        Options opts = new Options();
+        ReasonerHelper.addCommandLineOptions(opts);
+        JSONLDHelper.addCommandLineOptions(opts);
+        command.addCommandLineOptions(opts);
+        CommandLine cmdLine =
+            new DefaultParser()
+                .parse(
+                    opts,
+                    new String[] {input.getPath(), "--reasoner", "null", "--format", "ndjson"});
+        int exitCode =
+            command.resolve(
+                cmdLine,
+                input.getPath(),
+                new FileInputStream(input),
+                new PrintStream(streamed),
+                new PrintStream(error));
+        assertEquals(0, exitCode);
+        assertEquals(4, streamed.toString("UTF-8").split("\n").length);
+
+        // The first phyloreference should have been flushed on its own, before the others had
+        // been written out.
+        assertTrue(
+            flushed.stream().anyMatch(str -> str.matches("\\{\"phyloref\":[^\n]*\n")),
+            "The first phyloref was flushed before the others were written: " + flushed);
+      } finally {
+        input.delete();
+      }
+    }
+
+    @Test
+    @DisplayName(
+        "writes a single JSON object by default or in compact format, and rejects unknown formats")
+    void writesJSON() throws Exception {
+      File input = writeOntology();
+      try {
+        int exitCode =
+            jphyloref.execute(new String[] {"resolve", input.getPath(), "--reasoner", "null"});
+        assertEquals(0, exitCode);
+        assertEquals("{\"phylorefs\":{\"#phyloref1\":[\"#node1\"]}}\n", output.toString("UTF-8"));
+
+        resetIO();
+        exitCode =
+            jphyloref.execute(
+                new String[] {
+                  "resolve", input.getPath(), "--reasoner", "null", "--format", "compact"
+                });
+        assertEquals(0, exitCode);
+        assertEquals(
+            "{\"nodes\":[\"#node1\"],\"phylorefs\":{\"#phyloref1\":[0,1]}}\n",
+            output.toString("UTF-8"));
+
+        resetIO();
+        exitCode =
+            jphyloref.execute(
+                new String[] {"resolve", input.getPath(), "--reasoner", "null", "--format", "xml"});
+        assertEquals(1, exitCode);
+        assertEquals("", output.toString("UTF-8"));
+      } finally {
+        input.delete();
+      }
+    }
+
+    @Test
+    @DisplayName("stores results in '--result-cache' as they are written, and reuses them")
+    void cachesResults() throws Exception {
+      File input = writeOntology();
+      Path cacheDirectory = Files.createTempDirectory("jphyloref-result-cache");
+      try {
+        String[] args =
+            new String[] {
+              "resolve",
+              input.getPath(),
+              "--reasoner",
+              "null",
+              "--result-cache",
+              cacheDirectory.toString()
+            };
+        assertEquals(0, jphyloref.execute(args));
+        String result = output.toString("UTF-8");
+        assertEquals("{\"phylorefs\":{\"#phyloref1\":[\"#node1\"]}}\n", result);
+
+        // Only the complete result should be left in the cache, without temporary files.
+        try (Stream<Path> files = Files.list(cacheDirectory)) {
+          assertEquals(
+              Collections.singletonList(".json"),
+              files
+                  .map(file -> file.getFileName().toString().replaceAll("^[0-9a-f]+", ""))
+                  .collect(Collectors.toList()));
+        }
+
+        resetIO();
+        assertEquals(0, jphyloref.execute(args));
+        assertEquals(result, output.toString("UTF-8"));
+        assertTrue(error.toString("UTF-8").contains("Using cached result"));
+      } finally {
+        input.delete();
+        try (Stream<Path> files = Files.list(cacheDirectory)) {
+          files.forEach(file -> file.toFile().delete());
+        }
+        Files.delete(cacheDirectory);
+      }
+    }
+  }
 }
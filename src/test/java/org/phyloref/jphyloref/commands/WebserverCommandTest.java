@@ -0,0 +1,869 @@
+package org.phyloref.jphyloref.commands;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Options;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.phyloref.jphyloref.helpers.JSONLDHelper;
+import org.phyloref.jphyloref.helpers.PhylorefHelper;
+import org.phyloref.jphyloref.helpers.ReasonerHelper;
+import org.phyloref.jphyloref.helpers.VerificationHelper;
+import org.phyloref.jphyloref.helpers.WebhookHelper;
+
+/** A unit test for the WebserverCommand class */
+@DisplayName("WebserverCommandTest")
+class WebserverCommandTest {
+  private static final String EX = "http://example.org/jphyloref";
+  private static final String SECRET = "secret";
+
+  /**
+   * A JSON-LD document in which node1 is asserted to be a member of phyloref1. It uses full IRIs
+   * rather than a remote context, so that it can be read without a network connection.
+   */
+  private static final String JSONLD =
+      "[{'@id': '"
+          + EX
+          + "#phyloref1', '@type': 'http://www.w3.org/2002/07/owl#Class', "
+          + "'http://www.w3.org/2000/01/rdf-schema#subClassOf': {'@id': '"
+          + PhylorefHelper.IRI_PHYLOREFERENCE
+          + "'}}, {'@id': '"
+          + EX
+          + "#node1', '@type': ['"
+          + PhylorefHelper.IRI_CDAO_NODE
+          + "', '"
+          + EX
+          + "#phyloref1']}]";
+
+  WebserverCommand.Webserver webserver;
+
+  /** Start a webserver on any free port that accepts Webhook-compatible requests. */
+  @BeforeEach
+  void startWebserver() throws Exception {
+    webserver = createWebserver();
+  }
+
+  /** Create a webserver with some additional command line options. */
+  private static WebserverCommand.Webserver createWebserver(String... args) throws Exception {
+    WebserverCommand cmd = new WebserverCommand();
+    Options options = new Options();
+    ReasonerHelper.addCommandLineOptions(options);
+    JSONLDHelper.addCommandLineOptions(options);
+    VerificationHelper.addCommandLineOptions(options);
+    cmd.addCommandLineOptions(options);
+
+    List<String> allArgs =
+        new ArrayList<>(Arrays.asList("--webhook-secret", SECRET, "--reasoner", "elk"));
+    allArgs.addAll(Arrays.asList(args));
+    return cmd
+    .new Webserver(
+        cmd,
+        "localhost",
+        0,
+        new DefaultParser().parse(options, allArgs.toArray(new String[allArgs.size()])));
+  }
+
+  /** Stop the webserver. */
+  @AfterEach
+  void stopWebserver() {
+    webserver.stop();
+  }
+
+  /** Post a request body to the webhook path, and return the connection to read a response from. */
+  private HttpURLConnection post(byte[] payload, String signature) throws IOException {
+    return post(WebserverCommand.DEFAULT_WEBHOOK_PATH, payload, signature);
+  }
+
+  /** Post a request body to a path, and return the connection to read a response from. */
+  private HttpURLConnection post(String path, byte[] payload, String signature) throws IOException {
+    HttpURLConnection connection =
+        (HttpURLConnection)
+            new URL("http://localhost:" + webserver.getListeningPort() + path).openConnection();
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+    if (signature != null) connection.setRequestProperty("X-Hub-Signature", signature);
+    try (OutputStream out = connection.getOutputStream()) {
+      out.write(payload);
+    }
+    return connection;
+  }
+
+  /** Send a GET request to a path on the webserver. */
+  private HttpURLConnection get(String path) throws IOException {
+    return (HttpURLConnection)
+        new URL("http://localhost:" + webserver.getListeningPort() + path).openConnection();
+  }
+
+  /** Encode a JSON-LD document as a form with a 'jsonldGzipped' field, as Klados does. */
+  private static byte[] createPayload(String jsonld) throws IOException {
+    ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+    try (GZIPOutputStream out = new GZIPOutputStream(gzipped)) {
+      out.write(jsonld.replace('\'', '"').getBytes(StandardCharsets.UTF_8));
+    }
+    return ("jsonldGzipped="
+            + URLEncoder.encode(Base64.getEncoder().encodeToString(gzipped.toByteArray()), "UTF-8"))
+        .getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String readResponse(HttpURLConnection connection) throws IOException {
+    ByteArrayOutputStream response = new ByteArrayOutputStream();
+    try (InputStream in = connection.getInputStream()) {
+      byte[] buffer = new byte[8192];
+      int count;
+      while ((count = in.read(buffer)) != -1) response.write(buffer, 0, count);
+    }
+    return new String(response.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  @DisplayName("resolves signed requests in the same way as the resolve command")
+  void resolvesSignedRequests() throws IOException {
+    byte[] payload = createPayload(JSONLD);
+    HttpURLConnection connection = post(payload, WebhookHelper.sign(payload, SECRET));
+    assertEquals(200, connection.getResponseCode());
+    assertEquals("*", connection.getHeaderField("Access-Control-Allow-Origin"));
+
+    JSONObject phylorefs = new JSONObject(readResponse(connection)).getJSONObject("phylorefs");
+    assertEquals("[\"#node1\"]", phylorefs.getJSONArray("#phyloref1").toString());
+  }
+
+  @Test
+  @DisplayName("reports unreadable requests as JSON errors")
+  void reportsErrorsAsJSON() throws IOException {
+    byte[] payload = "jsonldGzipped=not-base64".getBytes(StandardCharsets.UTF_8);
+    HttpURLConnection connection = post(payload, WebhookHelper.sign(payload, SECRET));
+    assertEquals(200, connection.getResponseCode());
+    assertTrue(new JSONObject(readResponse(connection)).has("error"));
+  }
+
+  @Test
+  @DisplayName("rejects requests without a valid signature")
+  void rejectsUnsignedRequests() throws IOException {
+    byte[] payload = createPayload(JSONLD);
+    assertEquals(403, post(payload, null).getResponseCode());
+    assertEquals(
+        403, post(payload, WebhookHelper.sign(payload, "another secret")).getResponseCode());
+  }
+
+  @Test
+  @DisplayName("refuses to accept Webhook-compatible requests without a secret or at a used path")
+  void rejectsInvalidWebhookOptions() throws Exception {
+    WebserverCommand cmd = new WebserverCommand();
+    Options options = new Options();
+    ReasonerHelper.addCommandLineOptions(options);
+    JSONLDHelper.addCommandLineOptions(options);
+    VerificationHelper.addCommandLineOptions(options);
+    cmd.addCommandLineOptions(options);
+
+    CommandLine emptySecret =
+        new DefaultParser().parse(options, new String[] {"--webhook-secret", ""});
+    assertThrows(
+        IllegalArgumentException.class, () -> cmd.new Webserver(cmd, "localhost", 0, emptySecret));
+
+    CommandLine usedPath =
+        new DefaultParser()
+            .parse(options, new String[] {"--webhook-secret", SECRET, "--webhook-path", "/reason"});
+    assertThrows(
+        IllegalArgumentException.class, () -> cmd.new Webserver(cmd, "localhost", 0, usedPath));
+  }
+
+  @Test
+  @DisplayName("reports its health, and whether it is ready after warming up")
+  void reportsHealthAndReadiness() throws Exception {
+    HttpURLConnection connection = get("/health");
+    assertEquals(200, connection.getResponseCode());
+    assertEquals("ok", new JSONObject(readResponse(connection)).getString("status"));
+
+    // Warming up happens in the background, so wait for it to complete.
+    long deadline = System.currentTimeMillis() + 30000;
+    while (!webserver.isReady() && System.currentTimeMillis() < deadline) Thread.sleep(50);
+    connection = get("/ready");
+    assertEquals(200, connection.getResponseCode());
+    assertTrue(new JSONObject(readResponse(connection)).getBoolean("warm"));
+  }
+
+  @Test
+  @DisplayName("stops accepting connections when shut down")
+  void shutsDown() throws Exception {
+    int port = webserver.getListeningPort();
+    webserver.shutdown(1000);
+    webserver.awaitStop();
+    assertThrows(
+        IOException.class,
+        () -> new URL("http://localhost:" + port + "/health").openConnection().connect());
+  }
+
+  @Test
+  @DisplayName("rejects requests with a Retry-After header when its queue is full")
+  void rejectsRequestsWhenBusy() throws Exception {
+    webserver.stop();
+    webserver = createWebserver("--workers", "1", "--queue-size", "1");
+
+    // Occupy the only worker and the only place in the queue.
+    CountDownLatch release = new CountDownLatch(1);
+    for (int i = 0; i < 2; i++) {
+      Thread thread =
+          new Thread(
+              () -> {
+                try {
+                  webserver.runReasoningTask(
+                      () -> {
+                        try {
+                          release.await();
+                        } catch (InterruptedException ex) {
+                          throw new IOException(ex);
+                        }
+                        return null;
+                      });
+                } catch (Exception ex) {
+                  throw new RuntimeException(ex);
+                }
+              });
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    try {
+      long deadline = System.currentTimeMillis() + 10000;
+      while (webserver.serveReady().getInt("queueDepth") < 1
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(503, get("/ready").getResponseCode());
+
+      byte[] payload = createPayload(JSONLD);
+      HttpURLConnection connection = post(payload, WebhookHelper.sign(payload, SECRET));
+      assertEquals(503, connection.getResponseCode());
+      assertEquals(
+          String.valueOf(WebserverCommand.RETRY_AFTER_SECONDS),
+          connection.getHeaderField("Retry-After"));
+    } finally {
+      release.countDown();
+    }
+  }
+
+  /** Post a job to reason over our JSON-LD document, and return its id. */
+  private String postJob() throws IOException {
+    byte[] payload =
+        ("jsonld=" + URLEncoder.encode(JSONLD.replace('\'', '"'), "UTF-8"))
+            .getBytes(StandardCharsets.UTF_8);
+    HttpURLConnection connection = post("/jobs", payload, null);
+    assertEquals(202, connection.getResponseCode());
+    String id = new JSONObject(readResponse(connection)).getJSONObject("job").getString("id");
+    assertEquals("/jobs/" + id, connection.getHeaderField("Location"));
+    return id;
+  }
+
+  @Test
+  @DisplayName("reasons over jobs in the background and reports their results")
+  void runsJobs() throws Exception {
+    String id = postJob();
+
+    JSONObject job;
+    long deadline = System.currentTimeMillis() + 30000;
+    do {
+      Thread.sleep(50);
+      job = new JSONObject(readResponse(get("/jobs/" + id))).getJSONObject("job");
+    } while (!job.getString("status").equals("completed") && System.currentTimeMillis() < deadline);
+
+    assertEquals("completed", job.getString("status"));
+    assertEquals(1, job.getJSONObject("progress").getInt("phylorefs"));
+    assertEquals(1, job.getJSONObject("progress").getInt("phylorefsResolved"));
+    assertEquals(
+        "[\"#node1\"]",
+        job.getJSONObject("result")
+            .getJSONObject("phylorefs")
+            .getJSONArray("#phyloref1")
+            .toString());
+
+    assertEquals(404, get("/jobs/unknown").getResponseCode());
+  }
+
+  @Test
+  @DisplayName("cancels jobs that haven't finished yet")
+  void cancelsJobs() throws Exception {
+    webserver.stop();
+    webserver = createWebserver("--workers", "1");
+
+    // Occupy the only worker, so that our job stays in the queue.
+    CountDownLatch release = new CountDownLatch(1);
+    webserver.submitReasoningTask(
+        () -> {
+          try {
+            release.await();
+          } catch (InterruptedException ex) {
+            throw new IOException(ex);
+          }
+          return null;
+        });
+
+    try {
+      String id = postJob();
+      HttpURLConnection connection = get("/jobs/" + id);
+      connection.setRequestMethod("DELETE");
+      assertEquals(200, connection.getResponseCode());
+      assertEquals(
+          "cancelled",
+          new JSONObject(readResponse(connection)).getJSONObject("job").getString("status"));
+    } finally {
+      release.countDown();
+    }
+  }
+
+  @Test
+  @DisplayName("returns cached results for documents it has already reasoned over")
+  void cachesResults() throws IOException {
+    byte[] payload =
+        ("jsonld=" + URLEncoder.encode(JSONLD.replace('\'', '"'), "UTF-8"))
+            .getBytes(StandardCharsets.UTF_8);
+    HttpURLConnection connection = post("/reason", payload, null);
+    assertEquals(200, connection.getResponseCode());
+    String result = readResponse(connection);
+
+    connection = post("/reason", payload, null);
+    assertEquals(200, connection.getResponseCode());
+    assertEquals(result, readResponse(connection));
+
+    JSONObject cache = webserver.serveReady().getJSONObject("cache");
+    assertEquals(1, cache.getInt("hits"));
+    assertEquals(1, cache.getInt("misses"));
+    assertEquals(1, cache.getInt("entries"));
+  }
+
+  @Test
+  @DisplayName("returns results in the compact format when the request asks for it")
+  void returnsCompactResults() throws IOException {
+    byte[] payload =
+        ("jsonld=" + URLEncoder.encode(JSONLD.replace('\'', '"'), "UTF-8"))
+            .getBytes(StandardCharsets.UTF_8);
+
+    // Both the result that was reasoned over and the cached result can be returned compactly.
+    for (int i = 0; i < 2; i++) {
+      HttpURLConnection connection = post("/reason?format=compact", payload, null);
+      assertEquals(200, connection.getResponseCode());
+      JSONObject result = new JSONObject(readResponse(connection));
+      assertEquals("[\"#node1\"]", result.getJSONArray("nodes").toString());
+      assertEquals(
+          "[0,1]", result.getJSONObject("phylorefs").getJSONArray("#phyloref1").toString());
+      assertEquals("ok", result.getString("status"));
+    }
+
+    // JSON is still the default.
+    JSONObject result = new JSONObject(readResponse(post("/reason", payload, null)));
+    assertFalse(result.has("nodes"));
+    assertEquals(
+        "[\"#node1\"]", result.getJSONObject("phylorefs").getJSONArray("#phyloref1").toString());
+
+    assertEquals(400, post("/reason?format=xml", payload, null).getResponseCode());
+  }
+
+  /** Read the records of a streamed (NDJSON) response. */
+  private static List<JSONObject> readRecords(HttpURLConnection connection) throws IOException {
+    List<JSONObject> records = new ArrayList<>();
+    try (BufferedReader reader =
+        new BufferedReader(
+            new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) records.add(new JSONObject(line));
+    }
+    return records;
+  }
+
+  /** Post a request body to /reason, asking for the results to be streamed as NDJSON. */
+  private HttpURLConnection postStreamed(byte[] payload) throws IOException {
+    HttpURLConnection connection =
+        (HttpURLConnection)
+            new URL("http://localhost:" + webserver.getListeningPort() + "/reason")
+                .openConnection();
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+    connection.setRequestProperty("Accept", WebserverCommand.NDJSON_MIME_TYPE);
+    try (OutputStream out = connection.getOutputStream()) {
+      out.write(payload);
+    }
+    return connection;
+  }
+
+  @Test
+  @DisplayName("streams results as NDJSON when the request accepts it")
+  void streamsResults() throws IOException {
+    byte[] payload =
+        ("jsonld=" + URLEncoder.encode(JSONLD.replace('\'', '"'), "UTF-8"))
+            .getBytes(StandardCharsets.UTF_8);
+
+    for (boolean cached : new boolean[] {false, true}) {
+      HttpURLConnection connection = postStreamed(payload);
+      assertEquals(200, connection.getResponseCode());
+      assertEquals(WebserverCommand.NDJSON_MIME_TYPE, connection.getContentType());
+      assertEquals("chunked", connection.getHeaderField("Transfer-Encoding"));
+
+      List<JSONObject> records = readRecords(connection);
+      JSONObject header = records.get(0).getJSONObject("header");
+      assertEquals("ok", header.getString("status"));
+      assertEquals(cached, header.getBoolean("cached"));
+
+      // The header is followed by the phyloreference and the summary.
+      assertEquals(3, records.size());
+      JSONObject phyloref = records.get(records.size() - 2);
+      assertEquals("#phyloref1", phyloref.getString("phyloref"));
+      assertEquals("[\"#node1\"]", phyloref.getJSONArray("nodes").toString());
+      JSONObject summary = records.get(records.size() - 1).getJSONObject("summary");
+      assertEquals(1, summary.getInt("phylorefs"));
+      assertEquals(1, summary.getInt("nodes"));
+      assertEquals("ok", summary.getString("status"));
+    }
+
+    // The streamed result is cached, so an ordinary request gets the same phyloreferences.
+    HttpURLConnection connection = post("/reason", payload, null);
+    assertEquals(200, connection.getResponseCode());
+    assertEquals(
+        "[\"#node1\"]",
+        new JSONObject(readResponse(connection))
+            .getJSONObject("phylorefs")
+            .getJSONArray("#phyloref1")
+            .toString());
+    assertEquals(2, webserver.serveReady().getJSONObject("cache").getInt("hits"));
+  }
+
+  @Test
+  @DisplayName("reports the timings of each phase with --timings")
+  void reportsTimings() throws Exception {
+    byte[] payload =
+        ("jsonld=" + URLEncoder.encode(JSONLD.replace('\'', '"'), "UTF-8"))
+            .getBytes(StandardCharsets.UTF_8);
+    HttpURLConnection connection = post("/reason", payload, null);
+    assertFalse(new JSONObject(readResponse(connection)).has("timings"));
+
+    webserver.stop();
+    webserver = createWebserver("--timings");
+    connection = post("/reason", payload, null);
+    assertEquals(200, connection.getResponseCode());
+    JSONObject timings = new JSONObject(readResponse(connection)).getJSONObject("timings");
+    for (String phase :
+        Arrays.asList("parse", "createReasoner", "classify", "resolve", "extract", "total")) {
+      assertTrue(timings.getJSONObject(phase).has("wallMillis"), phase);
+    }
+  }
+
+  @Test
+  @DisplayName("reports metrics on requests, reasoning and caches at /metrics")
+  void reportsMetrics() throws IOException {
+    byte[] payload =
+        ("jsonld=" + URLEncoder.encode(JSONLD.replace('\'', '"'), "UTF-8"))
+            .getBytes(StandardCharsets.UTF_8);
+    assertEquals(200, post("/reason", payload, null).getResponseCode());
+    assertEquals(200, post("/reason", payload, null).getResponseCode());
+    assertEquals(404, get("/jobs/unknown").getResponseCode());
+    assertEquals(404, get("/unknown").getResponseCode());
+
+    HttpURLConnection connection = get("/metrics");
+    assertEquals(200, connection.getResponseCode());
+    assertTrue(connection.getContentType().startsWith("text/plain; version=0.0.4"));
+    String metrics = readResponse(connection);
+    assertTrue(
+        metrics.contains("jphyloref_http_requests_total{path=\"/reason\",status=\"200\"} 2\n"));
+    assertTrue(
+        metrics.contains("jphyloref_http_requests_total{path=\"/jobs/{id}\",status=\"404\"} 1\n"));
+    assertTrue(
+        metrics.contains("jphyloref_http_requests_total{path=\"other\",status=\"404\"} 1\n"));
+    assertTrue(metrics.contains("jphyloref_reasoning_phase_seconds_count{phase=\"parse\"} "));
+    assertTrue(metrics.contains("jphyloref_reasoning_phase_seconds_count{phase=\"reason\"} "));
+    assertTrue(metrics.contains("jphyloref_reasoning_phase_seconds_count{phase=\"extract\"} "));
+    assertTrue(metrics.contains("jphyloref_phylorefs_resolved_total "));
+    assertTrue(metrics.contains("jphyloref_queue_depth 0\n"));
+    assertTrue(metrics.contains("jphyloref_cache_hits_total{cache=\"memory\"} 1\n"));
+    assertTrue(metrics.contains("jphyloref_cache_hit_ratio{cache=\"memory\"} 0.5\n"));
+    assertTrue(metrics.contains("jvm_memory_bytes_used{area=\"heap\"} "));
+  }
+
+  @Test
+  @DisplayName("reasons over identical documents sent at the same time only once")
+  void coalescesRequests() throws Exception {
+    webserver.stop();
+    webserver = createWebserver("--workers", "1");
+
+    // Occupy the only worker, so that both requests arrive before reasoning starts.
+    CountDownLatch release = new CountDownLatch(1);
+    webserver.submitReasoningTask(
+        () -> {
+          try {
+            release.await();
+          } catch (InterruptedException ex) {
+            throw new IOException(ex);
+          }
+          return null;
+        });
+
+    byte[] payload =
+        ("jsonld=" + URLEncoder.encode(JSONLD.replace('\'', '"'), "UTF-8"))
+            .getBytes(StandardCharsets.UTF_8);
+    ExecutorService clients = Executors.newFixedThreadPool(2);
+    try {
+      List<Future<String>> responses = new ArrayList<>();
+      for (int i = 0; i < 2; i++) {
+        responses.add(clients.submit(() -> readResponse(post("/reason", payload, null))));
+      }
+
+      long deadline = System.currentTimeMillis() + 10000;
+      while (webserver.serveReady().getInt("coalesced") < 1
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(1, webserver.serveReady().getInt("coalesced"));
+      assertEquals(1, webserver.serveReady().getInt("queueDepth"));
+
+      release.countDown();
+      String result = responses.get(0).get(30, TimeUnit.SECONDS);
+      assertEquals(result, responses.get(1).get(30, TimeUnit.SECONDS));
+      assertEquals(
+          "[\"#node1\"]",
+          new JSONObject(result).getJSONObject("phylorefs").getJSONArray("#phyloref1").toString());
+    } finally {
+      release.countDown();
+      clients.shutdownNow();
+    }
+  }
+
+  @Test
+  @DisplayName("reasons over identical streamed and ordinary requests at the same time only once")
+  void coalescesStreamedRequests() throws Exception {
+    webserver.stop();
+    webserver = createWebserver("--workers", "1");
+
+    // Occupy the only worker, so that both requests arrive before reasoning starts.
+    CountDownLatch release = new CountDownLatch(1);
+    webserver.submitReasoningTask(
+        () -> {
+          try {
+            release.await();
+          } catch (InterruptedException ex) {
+            throw new IOException(ex);
+          }
+          return null;
+        });
+
+    byte[] payload =
+        ("jsonld=" + URLEncoder.encode(JSONLD.replace('\'', '"'), "UTF-8"))
+            .getBytes(StandardCharsets.UTF_8);
+    ExecutorService clients = Executors.newFixedThreadPool(2);
+    try {
+      Future<List<JSONObject>> streamed = clients.submit(() -> readRecords(postStreamed(payload)));
+      Future<String> plain = clients.submit(() -> readResponse(post("/reason", payload, null)));
+
+      long deadline = System.currentTimeMillis() + 10000;
+      while (webserver.serveReady().getInt("coalesced") < 1
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(1, webserver.serveReady().getInt("coalesced"));
+
+      release.countDown();
+      List<JSONObject> records = streamed.get(30, TimeUnit.SECONDS);
+      assertEquals("ok", records.get(0).getJSONObject("header").getString("status"));
+      JSONObject phyloref = records.get(records.size() - 2);
+      assertEquals("#phyloref1", phyloref.getString("phyloref"));
+      assertEquals("[\"#node1\"]", phyloref.getJSONArray("nodes").toString());
+      assertEquals(
+          "ok", records.get(records.size() - 1).getJSONObject("summary").getString("status"));
+      assertEquals(
+          "[\"#node1\"]",
+          new JSONObject(plain.get(30, TimeUnit.SECONDS))
+              .getJSONObject("phylorefs")
+              .getJSONArray("#phyloref1")
+              .toString());
+    } finally {
+      release.countDown();
+      clients.shutdownNow();
+    }
+  }
+
+  @Test
+  @DisplayName("streams the records of a result to identical streamed requests")
+  void coalescesStreamedRequestsWithEachOther() throws Exception {
+    webserver.stop();
+    webserver = createWebserver("--workers", "1");
+
+    // Occupy the only worker, so that both requests arrive before reasoning starts.
+    CountDownLatch release = new CountDownLatch(1);
+    webserver.submitReasoningTask(
+        () -> {
+          try {
+            release.await();
+          } catch (InterruptedException ex) {
+            throw new IOException(ex);
+          }
+          return null;
+        });
+
+    byte[] payload =
+        ("jsonld=" + URLEncoder.encode(JSONLD.replace('\'', '"'), "UTF-8"))
+            .getBytes(StandardCharsets.UTF_8);
+    ExecutorService clients = Executors.newFixedThreadPool(2);
+    try {
+      List<Future<List<JSONObject>>> streamed = new ArrayList<>();
+      for (int i = 0; i < 2; i++) {
+        streamed.add(clients.submit(() -> readRecords(postStreamed(payload))));
+      }
+
+      long deadline = System.currentTimeMillis() + 10000;
+      while (webserver.serveReady().getInt("coalesced") < 1
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(1, webserver.serveReady().getInt("coalesced"));
+
+      release.countDown();
+      List<JSONObject> first = streamed.get(0).get(30, TimeUnit.SECONDS);
+      List<JSONObject> second = streamed.get(1).get(30, TimeUnit.SECONDS);
+      assertEquals(3, first.size());
+      assertEquals(first.get(1).toString(), second.get(1).toString());
+      assertEquals(first.get(2).toString(), second.get(2).toString());
+      assertEquals("#phyloref1", second.get(1).getString("phyloref"));
+
+      // The cached result was built from the streamed records.
+      JSONObject result = new JSONObject(readResponse(post("/reason", payload, null)));
+      assertEquals("ok", result.getString("status"));
+      assertTrue(result.has("ontology"));
+      assertEquals(
+          "[\"#node1\"]", result.getJSONObject("phylorefs").getJSONArray("#phyloref1").toString());
+      assertEquals(1, webserver.serveReady().getJSONObject("cache").getInt("hits"));
+    } finally {
+      release.countDown();
+      clients.shutdownNow();
+    }
+  }
+
+  @Test
+  @DisplayName("passes on each streamed record to waiting requests as soon as it is written")
+  void passesOnStreamedRecords() throws Exception {
+    WebserverCommand.Flight flight = new WebserverCommand.Flight();
+    StringWriter out = new StringWriter();
+    Writer writer = new WebserverCommand.FlightWriter(out, flight);
+
+    // Only complete records are passed on.
+    writer.write("{\"phyloref\":\"#phyloref1\",\"nodes\":[]}\n{\"phyloref\"");
+    assertEquals(
+        Collections.singletonList("{\"phyloref\":\"#phyloref1\",\"nodes\":[]}\n"),
+        flight.getRecords());
+
+    ExecutorService waiters = Executors.newFixedThreadPool(2);
+    try {
+      Future<String> secondRecord = waiters.submit(() -> flight.awaitRecord(1));
+      Thread.sleep(100);
+      assertFalse(secondRecord.isDone());
+
+      writer.write(":\"#phyloref2\",\"nodes\":[]}\n");
+      assertEquals(
+          "{\"phyloref\":\"#phyloref2\",\"nodes\":[]}\n", secondRecord.get(10, TimeUnit.SECONDS));
+      assertEquals(out.toString(), String.join("", flight.getRecords()));
+
+      // Once the flight has completed, there are no more records to wait for.
+      Future<String> thirdRecord = waiters.submit(() -> flight.awaitRecord(2));
+      flight.complete("{}");
+      assertNull(thirdRecord.get(10, TimeUnit.SECONDS));
+    } finally {
+      waiters.shutdownNow();
+    }
+  }
+
+  @Test
+  @DisplayName("reads JSON-LD documents uploaded as files, spooling them to disk if needed")
+  void readsUploadedFiles() throws Exception {
+    webserver.stop();
+    webserver = createWebserver("--spool-kilobytes", "0");
+
+    byte[] payload =
+        ("--boundary\r\n"
+                + "Content-Disposition: form-data; name=\"jsonldFile\"; filename=\"input.json\"\r\n"
+                + "Content-Type: application/json\r\n"
+                + "\r\n"
+                + JSONLD.replace('\'', '"')
+                + "\r\n--boundary--\r\n")
+            .getBytes(StandardCharsets.UTF_8);
+    HttpURLConnection connection =
+        (HttpURLConnection)
+            new URL("http://localhost:" + webserver.getListeningPort() + "/reason")
+                .openConnection();
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=boundary");
+    try (OutputStream out = connection.getOutputStream()) {
+      out.write(payload);
+    }
+    assertEquals(200, connection.getResponseCode());
+    assertEquals(
+        "[\"#node1\"]",
+        new JSONObject(readResponse(connection))
+            .getJSONObject("phylorefs")
+            .getJSONArray("#phyloref1")
+            .toString());
+  }
+
+  @Test
+  @DisplayName("reads gzipped JSON-LD request bodies and compresses its responses")
+  void readsGzippedBodies() throws IOException {
+    ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+    try (GZIPOutputStream out = new GZIPOutputStream(gzipped)) {
+      out.write(JSONLD.replace('\'', '"').getBytes(StandardCharsets.UTF_8));
+    }
+
+    HttpURLConnection connection =
+        (HttpURLConnection)
+            new URL("http://localhost:" + webserver.getListeningPort() + "/reason")
+                .openConnection();
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    connection.setRequestProperty("Content-Type", "application/ld+json");
+    connection.setRequestProperty("Content-Encoding", "gzip");
+    connection.setRequestProperty("Accept-Encoding", "gzip");
+    try (OutputStream out = connection.getOutputStream()) {
+      out.write(gzipped.toByteArray());
+    }
+    assertEquals(200, connection.getResponseCode());
+    assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+    assertEquals("Accept-Encoding", connection.getHeaderField("Vary"));
+
+    ByteArrayOutputStream response = new ByteArrayOutputStream();
+    try (InputStream in = new GZIPInputStream(connection.getInputStream())) {
+      byte[] buffer = new byte[8192];
+      int count;
+      while ((count = in.read(buffer)) != -1) response.write(buffer, 0, count);
+    }
+    assertEquals(
+        "[\"#node1\"]",
+        new JSONObject(new String(response.toByteArray(), StandardCharsets.UTF_8))
+            .getJSONObject("phylorefs")
+            .getJSONArray("#phyloref1")
+            .toString());
+
+    // We don't support every encoding.
+    connection =
+        (HttpURLConnection)
+            new URL("http://localhost:" + webserver.getListeningPort() + "/reason")
+                .openConnection();
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    connection.setRequestProperty("Content-Type", "application/ld+json");
+    connection.setRequestProperty("Content-Encoding", "zstd");
+    try (OutputStream out = connection.getOutputStream()) {
+      out.write(gzipped.toByteArray());
+    }
+    assertEquals(415, connection.getResponseCode());
+  }
+
+  @Test
+  @DisplayName("only compresses responses if Accept-Encoding prefers gzip")
+  void negotiatesResponseEncoding() throws IOException {
+    assertTrue(WebserverCommand.acceptsGzip("gzip"));
+    assertTrue(WebserverCommand.acceptsGzip("br, gzip;q=0.5, identity;q=0.1"));
+    assertTrue(WebserverCommand.acceptsGzip("deflate, GZIP ; Q=0.8"));
+    assertTrue(WebserverCommand.acceptsGzip("*"));
+    assertFalse(WebserverCommand.acceptsGzip(null));
+    assertFalse(WebserverCommand.acceptsGzip(""));
+    assertFalse(WebserverCommand.acceptsGzip("deflate, br"));
+    assertFalse(WebserverCommand.acceptsGzip("gzip;q=0"));
+    assertFalse(WebserverCommand.acceptsGzip("gzip;q=0.000, identity"));
+    assertFalse(WebserverCommand.acceptsGzip("identity, gzip;q=0.5"));
+    assertFalse(WebserverCommand.acceptsGzip("*;q=0, identity"));
+
+    for (String acceptEncoding : new String[] {"gzip", "gzip;q=0", "identity, gzip;q=0.5"}) {
+      HttpURLConnection connection =
+          (HttpURLConnection)
+              new URL("http://localhost:" + webserver.getListeningPort() + "/version")
+                  .openConnection();
+      connection.setRequestProperty("Accept-Encoding", acceptEncoding);
+      assertEquals(200, connection.getResponseCode());
+      assertEquals("Accept-Encoding", connection.getHeaderField("Vary"));
+
+      InputStream in = connection.getInputStream();
+      if (acceptEncoding.equals("gzip")) {
+        assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+        in = new GZIPInputStream(in);
+      } else {
+        assertNull(connection.getHeaderField("Content-Encoding"), acceptEncoding);
+      }
+      ByteArrayOutputStream response = new ByteArrayOutputStream();
+      try (InputStream body = in) {
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = body.read(buffer)) != -1) response.write(buffer, 0, count);
+      }
+      assertTrue(
+          new JSONObject(new String(response.toByteArray(), StandardCharsets.UTF_8))
+              .has("version"));
+    }
+  }
+
+  @Test
+  @DisplayName("rejects documents larger than --max-body-megabytes")
+  void rejectsLargeDocuments() throws Exception {
+    webserver.stop();
+    webserver = createWebserver("--max-body-megabytes", "0");
+
+    assertEquals(413, post("/reason", createPayload(JSONLD), null).getResponseCode());
+    byte[] payload = createPayload(JSONLD);
+    assertEquals(413, post(payload, WebhookHelper.sign(payload, SECRET)).getResponseCode());
+  }
+
+  @Test
+  @DisplayName("answers several requests sent on a single connection")
+  void supportsKeepAlive() throws IOException {
+    try (Socket socket = new Socket("localhost", webserver.getListeningPort())) {
+      // Send both requests before reading either response.
+      String request = "GET /version HTTP/1.1\r\nHost: localhost\r\n\r\n";
+      OutputStream out = socket.getOutputStream();
+      out.write((request + request).getBytes(StandardCharsets.UTF_8));
+      out.flush();
+
+      BufferedReader in =
+          new BufferedReader(
+              new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+      for (int i = 0; i < 2; i++) {
+        assertTrue(in.readLine().startsWith("HTTP/1.1 200 OK"));
+        int contentLength = -1;
+        String header;
+        while (!(header = in.readLine()).isEmpty()) {
+          if (header.toLowerCase().startsWith("content-length:")) {
+            contentLength = Integer.parseInt(header.substring("content-length:".length()).trim());
+          }
+        }
+        char[] body = new char[contentLength];
+        int read = 0;
+        while (read < contentLength) read += in.read(body, read, contentLength - read);
+        assertTrue(new JSONObject(new String(body)).has("version"));
+      }
+    }
+  }
+}
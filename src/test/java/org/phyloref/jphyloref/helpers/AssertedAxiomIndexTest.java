@@ -0,0 +1,202 @@
+package org.phyloref.jphyloref.helpers;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.semanticweb.owlapi.apibinding.OWLManager;
+import org.semanticweb.owlapi.model.IRI;
+import org.semanticweb.owlapi.model.OWLAxiom;
+import org.semanticweb.owlapi.model.OWLClass;
+import org.semanticweb.owlapi.model.OWLDataFactory;
+import org.semanticweb.owlapi.model.OWLNamedIndividual;
+import org.semanticweb.owlapi.model.OWLObjectProperty;
+import org.semanticweb.owlapi.model.OWLOntology;
+import org.semanticweb.owlapi.model.OWLOntologyCreationException;
+import org.semanticweb.owlapi.model.OWLOntologyManager;
+
+/** A unit test for the AssertedAxiomIndex class */
+@DisplayName("AssertedAxiomIndex")
+class AssertedAxiomIndexTest {
+  OWLOntologyManager manager;
+  OWLDataFactory df;
+  OWLOntology ontology;
+
+  OWLClass classA;
+  OWLClass classB;
+  OWLNamedIndividual individual1;
+  OWLNamedIndividual individual2;
+
+  @BeforeEach
+  void setupOntology() throws OWLOntologyCreationException {
+    manager = OWLManager.createOWLOntologyManager();
+    df = manager.getOWLDataFactory();
+
+    classA = df.getOWLClass(IRI.create("http://example.org/classA"));
+    classB = df.getOWLClass(IRI.create("http://example.org/classB"));
+    individual1 = df.getOWLNamedIndividual(IRI.create("http://example.org/individual1"));
+    individual2 = df.getOWLNamedIndividual(IRI.create("http://example.org/individual2"));
+
+    ontology =
+        manager.createOntology(
+            new HashSet<>(
+                Arrays.asList(
+                    df.getOWLSubClassOfAxiom(classB, classA),
+                    df.getOWLClassAssertionAxiom(classA, individual1),
+                    df.getOWLClassAssertionAxiom(
+                        df.getOWLObjectIntersectionOf(classA, classB), individual2))));
+  }
+
+  @Nested
+  @DisplayName("indexes the asserted axioms in an ontology and")
+  class IndexingTest {
+    @Test
+    @DisplayName("can look up the individuals in every class mentioned in a class assertion")
+    void canLookUpIndividuals() {
+      AssertedAxiomIndex index = AssertedAxiomIndex.getIndex(ontology);
+      assertEquals(
+          new HashSet<>(Arrays.asList(individual1, individual2)),
+          index.getIndividualsWithType(classA));
+      assertEquals(Collections.singleton(individual2), index.getIndividualsWithType(classB));
+      assertEquals(Collections.emptySet(), index.getIndividualsWithType(df.getOWLThing()));
+    }
+
+    @Test
+    @DisplayName("returns sets that can't be modified")
+    void returnsUnmodifiableSets() {
+      AssertedAxiomIndex index = AssertedAxiomIndex.getIndex(ontology);
+      assertThrows(
+          UnsupportedOperationException.class,
+          () -> index.getIndividualsWithType(classA).add(individual2));
+      assertThrows(UnsupportedOperationException.class, () -> index.getSubClasses(classA).clear());
+    }
+
+    @Test
+    @DisplayName("returns copies that don't change along with the ontology")
+    void returnsCopies() {
+      AssertedAxiomIndex index = AssertedAxiomIndex.getIndex(ontology);
+      Set<OWLNamedIndividual> individuals = index.getIndividualsWithType(classB);
+      Set<OWLClass> subClasses = index.getSubClasses(classA);
+
+      manager.addAxiom(ontology, df.getOWLClassAssertionAxiom(classB, individual1));
+      manager.removeAxiom(ontology, df.getOWLSubClassOfAxiom(classB, classA));
+
+      assertEquals(Collections.singleton(individual2), individuals);
+      assertEquals(Collections.singleton(classB), subClasses);
+    }
+
+    @Test
+    @DisplayName("only looks up individuals under the conjuncts of their asserted types")
+    void onlyIndexesConjuncts() {
+      OWLObjectProperty p = df.getOWLObjectProperty(IRI.create("http://example.org/p"));
+      OWLClass classC = df.getOWLClass(IRI.create("http://example.org/classC"));
+      manager.addAxiom(
+          ontology,
+          df.getOWLClassAssertionAxiom(df.getOWLObjectSomeValuesFrom(p, classC), individual1));
+      manager.addAxiom(
+          ontology,
+          df.getOWLClassAssertionAxiom(df.getOWLObjectUnionOf(classB, classC), individual1));
+      manager.addAxiom(
+          ontology,
+          df.getOWLClassAssertionAxiom(df.getOWLObjectAllValuesFrom(p, classC), individual1));
+
+      // Unlike earlier versions, which returned every individual in a class assertion that
+      // mentions a class anywhere, individuals aren't members of classes nested in their types.
+      AssertedAxiomIndex index = AssertedAxiomIndex.getIndex(ontology);
+      assertEquals(Collections.emptySet(), index.getIndividualsWithType(classC));
+      assertEquals(Collections.singleton(individual2), index.getIndividualsWithType(classB));
+    }
+
+    @Test
+    @DisplayName("can look up individuals under restrictions with less specific fillers")
+    void canLookUpRestrictions() {
+      OWLObjectProperty p = df.getOWLObjectProperty(IRI.create("http://example.org/p"));
+      manager.addAxiom(
+          ontology,
+          df.getOWLClassAssertionAxiom(
+              df.getOWLObjectSomeValuesFrom(p, df.getOWLObjectIntersectionOf(classA, classB)),
+              individual1));
+
+      AssertedAxiomIndex index = AssertedAxiomIndex.getIndex(ontology);
+      assertEquals(
+          Collections.singleton(individual1),
+          index.getIndividualsWithType(df.getOWLObjectSomeValuesFrom(p, classB)));
+      assertEquals(
+          Collections.emptySet(),
+          index.getIndividualsWithType(
+              df.getOWLObjectSomeValuesFrom(p, df.getOWLObjectUnionOf(classA, classB))));
+    }
+
+    @Test
+    @DisplayName("can look up asserted subclasses")
+    void canLookUpSubClasses() {
+      AssertedAxiomIndex index = AssertedAxiomIndex.getIndex(ontology);
+      assertEquals(Collections.singleton(classB), index.getSubClasses(classA));
+      assertEquals(Collections.emptySet(), index.getSubClasses(classB));
+    }
+
+    @Test
+    @DisplayName("keeps separate indexes for ontologies that are equal but not identical")
+    void keepsSeparateIndexes() throws OWLOntologyCreationException {
+      IRI ontologyIRI = IRI.create("http://example.org/ontology");
+      OWLOntology ontology1 = OWLManager.createOWLOntologyManager().createOntology(ontologyIRI);
+      OWLOntology ontology2 = OWLManager.createOWLOntologyManager().createOntology(ontologyIRI);
+      ontology2
+          .getOWLOntologyManager()
+          .addAxiom(ontology2, df.getOWLClassAssertionAxiom(classA, individual1));
+
+      assertEquals(ontology1, ontology2);
+      assertEquals(
+          Collections.emptySet(),
+          AssertedAxiomIndex.getIndex(ontology1).getIndividualsWithType(classA));
+      assertEquals(
+          Collections.singleton(individual1),
+          AssertedAxiomIndex.getIndex(ontology2).getIndividualsWithType(classA));
+    }
+  }
+
+  @Nested
+  @DisplayName("is kept up to date when the ontology")
+  class UpdatingTest {
+    @Test
+    @DisplayName("has axioms added to it")
+    void updatesOnAddition() {
+      AssertedAxiomIndex index = AssertedAxiomIndex.getIndex(ontology);
+      manager.addAxiom(ontology, df.getOWLClassAssertionAxiom(classB, individual1));
+      manager.addAxiom(ontology, df.getOWLSubClassOfAxiom(classA, classB));
+
+      assertEquals(
+          new HashSet<>(Arrays.asList(individual1, individual2)),
+          index.getIndividualsWithType(classB));
+      assertEquals(Collections.singleton(classA), index.getSubClasses(classB));
+    }
+
+    @Test
+    @DisplayName("has axioms removed from it")
+    void updatesOnRemoval() {
+      AssertedAxiomIndex index = AssertedAxiomIndex.getIndex(ontology);
+
+      // Asserting that individual2 is a member of classA as well: removing the intersection
+      // assertion should then remove it from classB, but not from classA.
+      OWLAxiom alsoInA = df.getOWLClassAssertionAxiom(classA, individual2);
+      manager.addAxiom(ontology, alsoInA);
+      manager.removeAxiom(
+          ontology,
+          df.getOWLClassAssertionAxiom(df.getOWLObjectIntersectionOf(classA, classB), individual2));
+
+      assertEquals(
+          new HashSet<>(Arrays.asList(individual1, individual2)),
+          index.getIndividualsWithType(classA));
+      assertEquals(Collections.emptySet(), index.getIndividualsWithType(classB));
+
+      manager.removeAxiom(ontology, df.getOWLSubClassOfAxiom(classB, classA));
+      assertEquals(Collections.emptySet(), index.getSubClasses(classA));
+    }
+  }
+}
@@ -0,0 +1,136 @@
+package org.phyloref.jphyloref.helpers;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+/** A unit test for the DiskResultCache class */
+@DisplayName("DiskResultCache")
+class DiskResultCacheTest {
+  Path directory;
+
+  @BeforeEach
+  void createDirectory() throws IOException {
+    directory = Files.createTempDirectory("jphyloref-result-cache");
+  }
+
+  /** Delete the directory and everything in it. */
+  @AfterEach
+  void deleteDirectory() throws IOException {
+    try (Stream<Path> paths = Files.walk(directory)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  private static String getKey(String document) throws IOException {
+    return ResultCache.getKey(
+        new ByteArrayInputStream(document.getBytes(StandardCharsets.UTF_8)), "test");
+  }
+
+  /** @return The number of files in the cache directory. */
+  private long countFiles() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.count();
+    }
+  }
+
+  @Test
+  @DisplayName("stores results that can be read by another cache in the same directory")
+  void storesResults() throws IOException {
+    DiskResultCache cache = new DiskResultCache(directory, 1024);
+    String key = getKey("document");
+    assertNull(cache.get(key));
+    cache.put(key, "{\"phylorefs\":{}}");
+    assertEquals("{\"phylorefs\":{}}", cache.get(key));
+
+    // Only the result itself should be left in the directory, without temporary files.
+    assertEquals(1, countFiles());
+
+    // Another process opening the same directory indexes the results already in it.
+    DiskResultCache otherCache = new DiskResultCache(directory, 1024);
+    assertEquals(1, otherCache.size());
+    assertEquals(16, otherCache.getBytes());
+    assertEquals("{\"phylorefs\":{}}", otherCache.get(key));
+
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  @DisplayName("stores results written as they are produced only once they are committed")
+  void storesPendingResults() throws IOException {
+    DiskResultCache cache = new DiskResultCache(directory, 1024);
+    String key = getKey("document");
+
+    StringWriter out = new StringWriter();
+    try (DiskResultCache.PendingResult pending = cache.startPut(key)) {
+      Writer writer = pending.tee(out);
+      writer.write("{\"phylorefs\":");
+      writer.flush();
+      assertNull(cache.get(key), "Results should not be stored before they are committed");
+      writer.write("{}}");
+      writer.flush();
+      pending.commit();
+    }
+    assertEquals("{\"phylorefs\":{}}", out.toString());
+    assertEquals("{\"phylorefs\":{}}", cache.get(key));
+    assertEquals(1, countFiles());
+
+    // Results that are closed without being committed are discarded.
+    String otherKey = getKey("other document");
+    try (DiskResultCache.PendingResult pending = cache.startPut(otherKey)) {
+      pending.tee(out).write("{\"phylo");
+    }
+    assertNull(cache.get(otherKey));
+    assertEquals(1, countFiles());
+  }
+
+  @Test
+  @DisplayName("evicts the least recently used results when they are too large")
+  void evictsResults() throws IOException {
+    DiskResultCache cache = new DiskResultCache(directory, 25);
+    String key1 = getKey("document 1");
+    String key2 = getKey("document 2");
+    String key3 = getKey("document 3");
+
+    cache.put(key1, "result 1 ");
+    cache.put(key2, "result 2 ");
+    Files.setLastModifiedTime(directory.resolve(key1 + ".json"), FileTime.fromMillis(1000));
+    Files.setLastModifiedTime(directory.resolve(key2 + ".json"), FileTime.fromMillis(2000));
+
+    // Reading the first result marks it as recently used, so the second is evicted instead.
+    assertEquals("result 1 ", cache.get(key1));
+    cache.put(key3, "result 3 ");
+
+    assertEquals(1, cache.getEvictions());
+    assertEquals(2, cache.size());
+    assertNull(cache.get(key2));
+    assertEquals("result 1 ", cache.get(key1));
+    assertEquals("result 3 ", cache.get(key3));
+  }
+
+  @Test
+  @DisplayName("deletes abandoned temporary files when opened")
+  void deletesAbandonedFiles() throws IOException {
+    Path abandoned = Files.createFile(directory.resolve("abcd.1234.tmp"));
+    Files.setLastModifiedTime(abandoned, FileTime.fromMillis(0));
+    Path inProgress = Files.createFile(directory.resolve("abcd.5678.tmp"));
+
+    new DiskResultCache(directory, 1024);
+    assertFalse(Files.exists(abandoned));
+    assertTrue(Files.exists(inProgress));
+  }
+}
@@ -0,0 +1,117 @@
+package org.phyloref.jphyloref.helpers;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.semanticweb.owlapi.apibinding.OWLManager;
+import org.semanticweb.owlapi.model.IRI;
+import org.semanticweb.owlapi.model.OWLClass;
+import org.semanticweb.owlapi.model.OWLDataFactory;
+import org.semanticweb.owlapi.model.OWLNamedIndividual;
+import org.semanticweb.owlapi.model.OWLOntology;
+import org.semanticweb.owlapi.model.OWLOntologyCreationException;
+import org.semanticweb.owlapi.model.OWLOntologyManager;
+
+/** A unit test for the FlightRecorderHelper class */
+@DisplayName("FlightRecorderHelper")
+class FlightRecorderHelperTest {
+  private static final String EX = "http://example.org/jphyloref";
+
+  /** Create an ontology in which node1 is asserted to be a member of phyloref1. */
+  private static OWLOntology createOntology() throws OWLOntologyCreationException {
+    OWLOntologyManager manager = OWLManager.createOWLOntologyManager();
+    OWLDataFactory df = manager.getOWLDataFactory();
+    OWLOntology ontology = manager.createOntology();
+    OWLClass phyloref = df.getOWLClass(IRI.create(EX + "#phyloref1"));
+    OWLNamedIndividual node = df.getOWLNamedIndividual(IRI.create(EX + "#node1"));
+    manager.addAxiom(
+        ontology,
+        df.getOWLSubClassOfAxiom(phyloref, df.getOWLClass(PhylorefHelper.IRI_PHYLOREFERENCE)));
+    manager.addAxiom(ontology, df.getOWLClassAssertionAxiom(phyloref, node));
+    return ontology;
+  }
+
+  @Test
+  @DisplayName("doesn't record events when no recording is running")
+  void recordsNothingByDefault() throws IOException {
+    assertNull(FlightRecorderHelper.beginNodesInClass());
+    assertNull(FlightRecorderHelper.beginDocumentParse());
+
+    // Streams are only wrapped to count their bytes while an event is being recorded.
+    InputStream in = new ByteArrayInputStream(new byte[0]);
+    assertSame(in, FlightRecorderHelper.countBytes(null, in));
+
+    // Ending an event that wasn't recorded does nothing.
+    FlightRecorderHelper.endDocumentParse(null, "input.owl", in, 0);
+  }
+
+  @Test
+  @DisplayName("records events while a recording is running")
+  void recordsEvents() throws Exception {
+    assumeTrue(FlightRecorderHelper.isFlightRecorderAvailable());
+
+    OWLOntology ontology = createOntology();
+    OWLClass phyloref =
+        ontology
+            .getOWLOntologyManager()
+            .getOWLDataFactory()
+            .getOWLClass(IRI.create(EX + "#phyloref1"));
+    Path file = Files.createTempFile("jphyloref", ".jfr");
+    try (Recording recording = new Recording()) {
+      recording.enable("org.phyloref.jphyloref.DocumentParse");
+      recording.enable("org.phyloref.jphyloref.NodesInClass");
+      recording.enable("org.phyloref.jphyloref.PhylorefStatuses");
+      recording.start();
+
+      Object event = FlightRecorderHelper.beginDocumentParse();
+      InputStream in =
+          FlightRecorderHelper.countBytes(
+              event, new ByteArrayInputStream("document".getBytes(StandardCharsets.UTF_8)));
+      while (in.read() != -1) {}
+      FlightRecorderHelper.endDocumentParse(event, "input.owl", in, 2);
+
+      PhylorefHelper.getNodesInClass(phyloref, ontology, null);
+      PhylorefHelper.getStatusesForPhyloref(phyloref, ontology);
+
+      recording.stop();
+      recording.dump(file);
+
+      List<RecordedEvent> events =
+          RecordingFile.readAllEvents(file)
+              .stream()
+              .filter(e -> e.getEventType().getName().startsWith("org.phyloref.jphyloref."))
+              .collect(Collectors.toList());
+      assertEquals(3, events.size());
+
+      RecordedEvent parse = events.get(0);
+      assertEquals("org.phyloref.jphyloref.DocumentParse", parse.getEventType().getName());
+      assertEquals("input.owl", parse.getString("source"));
+      assertEquals(8, parse.getLong("bytes"));
+      assertEquals(2, parse.getInt("axioms"));
+
+      RecordedEvent nodesInClass = events.get(1);
+      assertEquals("org.phyloref.jphyloref.NodesInClass", nodesInClass.getEventType().getName());
+      assertEquals(EX + "#phyloref1", nodesInClass.getString("phyloref"));
+      assertEquals(1, nodesInClass.getInt("nodeCount"));
+
+      RecordedEvent statuses = events.get(2);
+      assertEquals("org.phyloref.jphyloref.PhylorefStatuses", statuses.getEventType().getName());
+      assertEquals(0, statuses.getInt("statusCount"));
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package org.phyloref.jphyloref.helpers;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+/** A unit test for the FormReader class */
+@DisplayName("FormReader")
+class FormReaderTest {
+  /** Read a form, returning its fields in the order they were read. */
+  private static Map<String, String> read(String body, String contentType) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    Map<String, String> fields = new LinkedHashMap<>();
+    FormReader.read(
+        FormReader.limit(new ByteArrayInputStream(bytes), bytes.length),
+        contentType,
+        (name, value) -> fields.put(name, FormReader.readString(value)));
+    return fields;
+  }
+
+  @Test
+  @DisplayName("decodes URL-encoded forms")
+  void readsURLEncodedForms() throws IOException {
+    Map<String, String> fields =
+        read("jsonld=%7B%22a%22%3A+%22%C3%A9%22%7D&empty=&flag&x%20y=z", null);
+    assertEquals("{\"a\": \"é\"}", fields.get("jsonld"));
+    assertEquals("", fields.get("empty"));
+    assertEquals("", fields.get("flag"));
+    assertEquals("z", fields.get("x y"));
+    assertEquals(4, fields.size());
+
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> read("jsonld=%zz", "application/x-www-form-urlencoded"));
+  }
+
+  @Test
+  @DisplayName("reads multipart forms, including values that resemble the boundary")
+  void readsMultipartForms() throws IOException {
+    String body =
+        "preamble\r\n"
+            + "--boundary\r\n"
+            + "Content-Disposition: form-data; name=\"jsonldFile\"; filename=\"input.json\"\r\n"
+            + "Content-Type: application/json\r\n"
+            + "\r\n"
+            + "{\"a\": \"\r\n--bound\"}\r\n"
+            + "--boundary\r\n"
+            + "Content-Disposition: form-data; name=\"other\"\r\n"
+            + "\r\n"
+            + "value\r\n"
+            + "--boundary--\r\n"
+            + "epilogue";
+    Map<String, String> fields = read(body, "multipart/form-data; boundary=\"boundary\"");
+    assertEquals("{\"a\": \"\r\n--bound\"}", fields.get("jsonldFile"));
+    assertEquals("value", fields.get("other"));
+    assertEquals(2, fields.size());
+
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> read("--boundary\r\n\r\nunterminated", "multipart/form-data; boundary=boundary"));
+  }
+
+  @Test
+  @DisplayName("doesn't read beyond the end of the body")
+  void readsOnlyTheBody() throws IOException {
+    InputStream in = new ByteArrayInputStream("a=1&b=2GET /next".getBytes(StandardCharsets.UTF_8));
+    Map<String, String> fields = new LinkedHashMap<>();
+    FormReader.read(
+        FormReader.limit(in, 7),
+        null,
+        (name, value) -> fields.put(name, FormReader.readString(value)));
+    assertEquals("2", fields.get("b"));
+    assertEquals("GET /next", FormReader.readString(in));
+  }
+
+  @Test
+  @DisplayName("rejects content that isn't a form")
+  void rejectsOtherContent() {
+    assertThrows(IllegalArgumentException.class, () -> read("{}", "application/json"));
+  }
+}
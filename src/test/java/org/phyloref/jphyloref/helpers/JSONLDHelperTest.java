@@ -0,0 +1,192 @@
+package org.phyloref.jphyloref.helpers;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.github.jsonldjava.core.JsonLdError;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Set;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.eclipse.rdf4j.rio.RDFParser;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.semanticweb.owlapi.apibinding.OWLManager;
+import org.semanticweb.owlapi.model.IRI;
+import org.semanticweb.owlapi.model.OWLClass;
+import org.semanticweb.owlapi.model.OWLOntology;
+import org.semanticweb.owlapi.model.OWLOntologyCreationException;
+import org.semanticweb.owlapi.model.OWLOntologyManager;
+
+/** A unit test for the JSONLDHelper class */
+@DisplayName("JSONLDHelper")
+class JSONLDHelperTest {
+  /** A JSON-LD context bundled with the test resources under 'contexts/'. */
+  private static final String TEST_CONTEXT_URL = "http://example.org/jphyloref/contexts/test.json";
+
+  /** A JSON-LD document that uses the test context. */
+  private static final String TEST_JSONLD =
+      "{\"@context\": \""
+          + TEST_CONTEXT_URL
+          + "\", \"@id\": \"#phyloref0\", \"@type\": \"owl:Class\", "
+          + "\"label\": \"Test phyloreference\", \"subClassOf\": \"phyloref:Phyloreference\"}";
+
+  /** Parse the test JSON-LD document into a new ontology. */
+  private OWLOntology parseTestDocument() throws OWLOntologyCreationException, IOException {
+    OWLOntologyManager manager = OWLManager.createOWLOntologyManager();
+    OWLOntology ontology = manager.createOntology();
+    RDFParser parser = JSONLDHelper.createRDFParserForOntology(ontology);
+    parser.parse(new StringReader(TEST_JSONLD), "http://example.org/jphyloref");
+    return ontology;
+  }
+
+  @Nested
+  @DisplayName("can load JSON-LD contexts from a local cache that")
+  class ContextLoaderTest {
+    @Test
+    @DisplayName("reads contexts from bundled resources")
+    void canReadBundledContexts() throws OWLOntologyCreationException, IOException {
+      OWLOntology ontology = parseTestDocument();
+
+      Set<OWLClass> phylorefs = PhylorefHelper.getPhyloreferencesWithoutReasoning(ontology);
+      assertEquals(1, phylorefs.size());
+      assertEquals(
+          IRI.create("http://example.org/jphyloref#phyloref0"),
+          phylorefs.iterator().next().getIRI());
+    }
+
+    @Test
+    @DisplayName("parses each context only once")
+    void parsesContextsOnce() throws OWLOntologyCreationException, IOException {
+      JSONLDContextLoader loader = JSONLDContextLoader.getInstance();
+      loader.clear();
+
+      long misses = loader.getMisses();
+
+      parseTestDocument();
+      assertEquals(misses + 1, loader.getMisses(), "First parse should load the context");
+
+      long hits = loader.getHits();
+      parseTestDocument();
+      parseTestDocument();
+      assertEquals(misses + 1, loader.getMisses(), "Later parses should not reload the context");
+      assertTrue(loader.getHits() >= hits + 2, "Later parses should use the cached context");
+    }
+
+    @Test
+    @DisplayName("saves downloaded contexts so that they can be used offline")
+    void savesDownloadedContexts() throws IOException, JsonLdError {
+      Path directory = Files.createTempDirectory("jphyloref-contexts");
+      Path remote = Files.createTempFile("jphyloref-context", ".json");
+      Files.write(
+          remote,
+          "{\"@context\": {\"label\": \"http://www.w3.org/2000/01/rdf-schema#label\"}}"
+              .getBytes(StandardCharsets.UTF_8));
+      String url = remote.toUri().toString();
+
+      JSONLDContextLoader loader = JSONLDContextLoader.getInstance();
+      loader.setContextsDirectory(directory.toFile());
+      try {
+        Object context = loader.loadDocument(url).getDocument();
+        Path saved = directory.resolve(JSONLDContextLoader.getLocalPath(url).substring(1));
+        assertTrue(Files.isRegularFile(saved), "Downloaded context should be saved");
+
+        // Once the original has gone, we should still be able to load the saved copy.
+        Files.delete(remote);
+        loader.clear();
+        assertEquals(context, loader.loadDocument(url).getDocument());
+      } finally {
+        loader.setContextsDirectory(null);
+        loader.clear();
+        Files.deleteIfExists(remote);
+      }
+    }
+
+    @Test
+    @DisplayName("only saves downloaded contexts when a cache directory is set")
+    void onlySavesContextsWhenAsked() throws IOException, JsonLdError {
+      Path remote = Files.createTempFile("jphyloref-context", ".json");
+      Files.write(
+          remote,
+          "{\"@context\": {\"label\": \"http://www.w3.org/2000/01/rdf-schema#label\"}}"
+              .getBytes(StandardCharsets.UTF_8));
+      String url = remote.toUri().toString();
+
+      JSONLDContextLoader loader = JSONLDContextLoader.getInstance();
+      try {
+        loader.loadDocument(url);
+        assertFalse(
+            Files.exists(Paths.get(JSONLDContextLoader.CONTEXTS_DIRECTORY)),
+            "Contexts should not be saved in the current directory");
+      } finally {
+        loader.clear();
+        Files.deleteIfExists(remote);
+      }
+    }
+
+    @Test
+    @DisplayName("maps context URLs to local paths")
+    void mapsURLsToPaths() {
+      assertEquals(
+          "www.phyloref.org/phyx.js/context/v0.2.0/phyx.json",
+          JSONLDContextLoader.getLocalPath(
+              "http://www.phyloref.org/phyx.js/context/v0.2.0/phyx.json"));
+      assertNull(JSONLDContextLoader.getLocalPath("http://example.org/../secret.json"));
+      assertNull(JSONLDContextLoader.getLocalPath("phyx.json"));
+    }
+  }
+
+  @Nested
+  @DisplayName("loads JSON-LD documents with the chosen loader")
+  class LoadJSONLDTest {
+    /** Load a document with '--jsonld-loader phyx' into a new ontology. */
+    private OWLOntology loadWithPhyxLoader(String jsonld)
+        throws OWLOntologyCreationException, IOException, ParseException {
+      Options options = new Options();
+      JSONLDHelper.addCommandLineOptions(options);
+      CommandLine cmdLine =
+          new DefaultParser().parse(options, new String[] {"--jsonld-loader", "phyx"});
+
+      OWLOntology ontology = OWLManager.createOWLOntologyManager().createOntology();
+      JSONLDHelper.loadJSONLD(
+          new ByteArrayInputStream(jsonld.getBytes(StandardCharsets.UTF_8)),
+          "http://example.org/jphyloref",
+          ontology,
+          cmdLine);
+      return ontology;
+    }
+
+    @Test
+    @DisplayName("using the Phyx loader when it is chosen")
+    void usesPhyxLoader() throws OWLOntologyCreationException, IOException, ParseException {
+      OWLOntology ontology = loadWithPhyxLoader(TEST_JSONLD);
+
+      assertEquals(1, PhylorefHelper.getPhyloreferencesWithoutReasoning(ontology).size());
+    }
+
+    @Test
+    @DisplayName("falling back to rdf4j for documents the Phyx loader can't read")
+    void fallsBackToRDF4J() throws OWLOntologyCreationException, IOException, ParseException {
+      String jsonld =
+          "{\"@context\": \""
+              + TEST_CONTEXT_URL
+              + "\", \"@graph\": [{\"@id\": \"#phyloref0\", \"@type\": \"owl:Class\", "
+              + "\"subClassOf\": \"phyloref:Phyloreference\"}]}";
+      OWLOntology ontology = loadWithPhyxLoader(jsonld);
+
+      Set<OWLClass> phylorefs = PhylorefHelper.getPhyloreferencesWithoutReasoning(ontology);
+      assertEquals(1, phylorefs.size());
+      assertEquals(
+          IRI.create("http://example.org/jphyloref#phyloref0"),
+          phylorefs.iterator().next().getIRI());
+    }
+  }
+}
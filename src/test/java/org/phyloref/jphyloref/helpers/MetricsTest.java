@@ -0,0 +1,88 @@
+package org.phyloref.jphyloref.helpers;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+/** A unit test for the Metrics class */
+@DisplayName("Metrics")
+class MetricsTest {
+  @Test
+  @DisplayName("writes out counters for each combination of labels")
+  void writesCounters() {
+    Metrics metrics = new Metrics();
+    Metrics.CounterFamily requests = metrics.counter("requests_total", "Requests.", "path");
+    requests.labels("/reason").increment();
+    requests.labels("/reason").add(2);
+    requests.labels("/version").increment();
+    assertSame(requests.labels("/reason"), requests.labels("/reason"));
+    assertEquals(3, requests.labels("/reason").get());
+
+    StringBuilder out = new StringBuilder();
+    metrics.write(out);
+    String text = out.toString();
+    assertTrue(text.startsWith("# HELP requests_total Requests.\n# TYPE requests_total counter\n"));
+    assertTrue(text.contains("requests_total{path=\"/reason\"} 3\n"));
+    assertTrue(text.contains("requests_total{path=\"/version\"} 1\n"));
+  }
+
+  @Test
+  @DisplayName("rejects the wrong number of label values")
+  void rejectsWrongLabels() {
+    Metrics.CounterFamily requests = new Metrics().counter("requests_total", "Requests.", "path");
+    assertThrows(IllegalArgumentException.class, () -> requests.labels());
+    assertThrows(IllegalArgumentException.class, () -> requests.labels("/reason", "200"));
+  }
+
+  @Test
+  @DisplayName("writes out histograms with cumulative buckets")
+  void writesHistograms() {
+    Metrics metrics = new Metrics();
+    Metrics.Histogram durations =
+        metrics.histogram("duration_seconds", "Durations.", new double[] {1, 0.1}).labels();
+    durations.observe(0.05);
+    durations.observe(0.1);
+    durations.observe(0.5);
+    durations.observe(2);
+    assertEquals(4, durations.getCount());
+    assertEquals(2.65, durations.getSum(), 1e-9);
+
+    StringBuilder out = new StringBuilder();
+    metrics.write(out);
+    assertEquals(
+        "# HELP duration_seconds Durations.\n"
+            + "# TYPE duration_seconds histogram\n"
+            + "duration_seconds_bucket{le=\"0.1\"} 2\n"
+            + "duration_seconds_bucket{le=\"1\"} 3\n"
+            + "duration_seconds_bucket{le=\"+Inf\"} 4\n"
+            + "duration_seconds_sum 2.65\n"
+            + "duration_seconds_count 4\n",
+        out.toString());
+  }
+
+  @Test
+  @DisplayName("escapes label values and help text")
+  void escapesLabels() {
+    StringBuilder out = new StringBuilder();
+    Metrics.writeHeader(out, "gauge", "Line one\nline two", "gauge");
+    Metrics.writeSample(
+        out, "gauge", Collections.singletonList("name"), Arrays.asList("a \"quoted\"\\value"), 1.5);
+    assertEquals(
+        "# HELP gauge Line one\\nline two\n"
+            + "# TYPE gauge gauge\n"
+            + "gauge{name=\"a \\\"quoted\\\"\\\\value\"} 1.5\n",
+        out.toString());
+  }
+
+  @Test
+  @DisplayName("reports the memory and garbage collector statistics of the JVM")
+  void writesJVMMetrics() {
+    StringBuilder out = new StringBuilder();
+    Metrics.writeJVMMetrics(out);
+    assertTrue(out.toString().contains("jvm_memory_bytes_used{area=\"heap\"} "));
+    assertTrue(out.toString().contains("# TYPE jvm_gc_collections_total counter\n"));
+  }
+}
@@ -0,0 +1,74 @@
+package org.phyloref.jphyloref.helpers;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.semanticweb.owlapi.model.IRI;
+import org.semanticweb.owlapi.model.OWLOntology;
+import org.semanticweb.owlapi.model.OWLOntologyCreationException;
+
+/** A unit test for the OntologyLoaderHelper class */
+@DisplayName("OntologyLoaderHelper")
+class OntologyLoaderHelperTest {
+  /** A JSON-LD document without a base URI, which uses the test context. */
+  private static final String TEST_JSONLD =
+      "{\"@context\": \"http://example.org/jphyloref/contexts/test.json\", "
+          + "\"@id\": \"#phyloref0\", \"@type\": \"owl:Class\", "
+          + "\"subClassOf\": \"phyloref:Phyloreference\"}";
+
+  /** Parse command line options in the same way that the commands do. */
+  private CommandLine parse(String... args) throws ParseException {
+    Options opts = new Options();
+    opts.addOption("i", "input", true, "input");
+    opts.addOption("j", "jsonld", false, "jsonld");
+    JSONLDHelper.addCommandLineOptions(opts);
+    return new DefaultParser().parse(opts, args);
+  }
+
+  @Test
+  @DisplayName("reads the input filename from '--input' or the first argument")
+  void readsInputFilename() throws ParseException {
+    assertEquals(
+        "a.owl", OntologyLoaderHelper.getInputFilenameFromCmdLine(parse("--input", "a.owl")));
+    assertEquals("b.owl", OntologyLoaderHelper.getInputFilenameFromCmdLine(parse("test", "b.owl")));
+
+    CommandLine noInput = parse("test");
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> OntologyLoaderHelper.getInputFilenameFromCmdLine(noInput));
+  }
+
+  @Test
+  @DisplayName("recognizes JSON-LD files by their extension or by '--jsonld'")
+  void recognizesJSONLD() throws ParseException {
+    CommandLine cmdLine = parse();
+    assertTrue(OntologyLoaderHelper.isJSONLD(cmdLine, "phyx.json"));
+    assertTrue(OntologyLoaderHelper.isJSONLD(cmdLine, "PHYX.JSONLD"));
+    assertFalse(OntologyLoaderHelper.isJSONLD(cmdLine, "phyx.owl"));
+    assertTrue(OntologyLoaderHelper.isJSONLD(parse("--jsonld"), "-"));
+  }
+
+  @Test
+  @DisplayName("loads JSON-LD with the default URI prefix using either loader")
+  void loadsJSONLD() throws ParseException, OWLOntologyCreationException, IOException {
+    IRI phyloref = IRI.create(OntologyLoaderHelper.DEFAULT_URI_PREFIX + "#phyloref0");
+    for (String loader : new String[] {JSONLDHelper.LOADER_RDF4J, JSONLDHelper.LOADER_PHYX}) {
+      InputStream in = new ByteArrayInputStream(TEST_JSONLD.getBytes(StandardCharsets.UTF_8));
+      OWLOntology ontology =
+          OntologyLoaderHelper.loadOntology(in, "request", true, parse("--jsonld-loader", loader));
+
+      assertTrue(
+          ontology.containsClassInSignature(phyloref),
+          "The " + loader + " loader should resolve '#phyloref0' against the default prefix");
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package org.phyloref.jphyloref.helpers;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import org.json.JSONObject;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+/** A unit test for the PhaseTimer class */
+@DisplayName("PhaseTimer")
+class PhaseTimerTest {
+  @Test
+  @DisplayName("records phases in the order in which they end")
+  void recordsPhases() {
+    PhaseTimer timer = new PhaseTimer();
+    try (PhaseTimer.Phase phase = timer.start("parse")) {
+      // An empty phase still has a wall time.
+    }
+    try (PhaseTimer.Phase phase = timer.start("resolve")) {
+      StringBuilder allocated = new StringBuilder();
+      for (int i = 0; i < 1000; i++) allocated.append(i);
+      assertTrue(allocated.length() > 0);
+    }
+
+    List<PhaseTimer.Phase> phases = timer.getPhases();
+    assertEquals(2, phases.size());
+    assertEquals("parse", phases.get(0).getName());
+    assertEquals("resolve", phases.get(1).getName());
+    for (PhaseTimer.Phase phase : phases) assertTrue(phase.getWallNanos() >= 0);
+    assertTrue(phases.get(1).toString().startsWith("phase=resolve wallMillis="));
+  }
+
+  @Test
+  @DisplayName("ignores phases that haven't ended, and phases that end twice")
+  void ignoresUnfinishedPhases() {
+    PhaseTimer timer = new PhaseTimer();
+    PhaseTimer.Phase phase = timer.start("parse");
+    timer.start("unfinished");
+    assertTrue(timer.getPhases().isEmpty());
+    assertEquals(-1, phase.getWallNanos());
+
+    phase.close();
+    long wallNanos = phase.getWallNanos();
+    phase.close();
+    assertEquals(1, timer.getPhases().size());
+    assertEquals(wallNanos, phase.getWallNanos());
+  }
+
+  @Test
+  @DisplayName("reports each phase and the total as JSON")
+  void reportsJSON() {
+    PhaseTimer timer = new PhaseTimer();
+    try (PhaseTimer.Phase phase = timer.start("parse")) {}
+    try (PhaseTimer.Phase phase = timer.start("extract")) {}
+
+    JSONObject json = timer.toJSON();
+    assertEquals(3, json.length());
+    assertTrue(json.getJSONObject("parse").has("wallMillis"));
+    assertTrue(json.getJSONObject("extract").has("wallMillis"));
+    assertEquals(
+        json.getJSONObject("parse").getDouble("wallMillis")
+            + json.getJSONObject("extract").getDouble("wallMillis"),
+        json.getJSONObject("total").getDouble("wallMillis"),
+        0.01);
+  }
+
+  @Test
+  @DisplayName("records process-wide CPU time and no allocations for multi-threaded phases")
+  void timesMultiThreadedPhases() {
+    PhaseTimer timer = new PhaseTimer();
+    try (PhaseTimer.Phase phase = timer.start("parse")) {}
+    try (PhaseTimer.Phase phase = timer.startMultiThreaded("classify")) {}
+
+    PhaseTimer.Phase classify = timer.getPhases().get(1);
+    assertTrue(classify.isMultiThreaded());
+    assertEquals(-1, classify.getAllocatedBytes());
+    assertFalse(classify.toString().contains(" cpuMillis="));
+    assertFalse(classify.toString().contains("allocatedBytes="));
+
+    JSONObject json = timer.toJSON();
+    assertFalse(json.getJSONObject("classify").has("cpuMillis"));
+    assertFalse(json.getJSONObject("classify").has("allocatedBytes"));
+    assertFalse(json.getJSONObject("total").has("cpuMillis"));
+    assertFalse(json.getJSONObject("total").has("allocatedBytes"));
+    if (classify.getCPUNanos() != -1) {
+      assertTrue(json.getJSONObject("classify").has("processCpuMillis"));
+    }
+  }
+}
@@ -2,10 +2,16 @@ package org.phyloref.jphyloref.helpers;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
@@ -14,17 +20,22 @@ import org.junit.jupiter.api.Test;
 import org.phyloref.jphyloref.helpers.PhylorefHelper.PhylorefStatus;
 import org.semanticweb.elk.owlapi.ElkReasonerFactory;
 import org.semanticweb.owlapi.apibinding.OWLManager;
+import org.semanticweb.owlapi.io.FileDocumentSource;
 import org.semanticweb.owlapi.model.IRI;
+import org.semanticweb.owlapi.model.MissingImportHandlingStrategy;
 import org.semanticweb.owlapi.model.OWLAnonymousIndividual;
 import org.semanticweb.owlapi.model.OWLAxiom;
 import org.semanticweb.owlapi.model.OWLClass;
+import org.semanticweb.owlapi.model.OWLClassAssertionAxiom;
 import org.semanticweb.owlapi.model.OWLDataFactory;
 import org.semanticweb.owlapi.model.OWLNamedIndividual;
 import org.semanticweb.owlapi.model.OWLOntology;
 import org.semanticweb.owlapi.model.OWLOntologyCreationException;
+import org.semanticweb.owlapi.model.OWLOntologyLoaderConfiguration;
 import org.semanticweb.owlapi.model.OWLOntologyManager;
 import org.semanticweb.owlapi.model.OWLOntologyStorageException;
 import org.semanticweb.owlapi.reasoner.OWLReasoner;
+import org.semanticweb.owlapi.reasoner.OWLReasonerFactory;
 import org.semanticweb.owlapi.vocab.OWL2Datatype;
 
 /** A unit test for the PhylorefHelper class. */
@@ -145,6 +156,11 @@ class PhylorefHelperTest {
       OWLNamedIndividual node2 = df.getOWLNamedIndividual(node2IRI);
       axioms.add(df.getOWLClassAssertionAxiom(phyloref2, node2));
 
+      // Both nodes are CDAO nodes.
+      OWLClass cdaoNode = df.getOWLClass(PhylorefHelper.IRI_CDAO_NODE);
+      axioms.add(df.getOWLClassAssertionAxiom(cdaoNode, node1));
+      axioms.add(df.getOWLClassAssertionAxiom(cdaoNode, node2));
+
       // Set up the test ontology.
       testOntology = ontologyManager.createOntology(new HashSet<>(axioms));
     }
@@ -206,6 +222,220 @@ class PhylorefHelperTest {
           nodes.contains(node2),
           "Phyloref 'phyloref1' contains 'node2' as expected with reasoning");
     }
+
+    @Test
+    @DisplayName("can retrieve the nodes in every phyloreference at once")
+    void canRetrieveNodesPerPhyloreference() {
+      OWLDataFactory df = ontologyManager.getOWLDataFactory();
+      OWLClass phyloref1 = df.getOWLClass(IRI.create("http://example.org/phyloref1"));
+      OWLClass phyloref2 = df.getOWLClass(IRI.create("http://example.org/phyloref2"));
+      OWLNamedIndividual node1 = df.getOWLNamedIndividual(IRI.create("http://example.org/node1"));
+      OWLNamedIndividual node2 = df.getOWLNamedIndividual(IRI.create("http://example.org/node2"));
+
+      // Without reasoning, we should get the same results as getNodesInClass().
+      Map<OWLClass, Set<OWLNamedIndividual>> nodesPerPhyloref =
+          PhylorefHelper.getNodesPerPhyloreference(testOntology, null);
+      assertEquals(Collections.singleton(phyloref1), nodesPerPhyloref.keySet());
+      assertEquals(Collections.singleton(node1), nodesPerPhyloref.get(phyloref1));
+
+      // With reasoning, we should find both phyloreferences and all their nodes.
+      OWLReasoner reasoner = new ElkReasonerFactory().createNonBufferingReasoner(testOntology);
+      nodesPerPhyloref = PhylorefHelper.getNodesPerPhyloreference(testOntology, reasoner);
+      assertEquals(new HashSet<>(Arrays.asList(phyloref1, phyloref2)), nodesPerPhyloref.keySet());
+      assertEquals(new HashSet<>(Arrays.asList(node1, node2)), nodesPerPhyloref.get(phyloref1));
+      assertEquals(Collections.singleton(node2), nodesPerPhyloref.get(phyloref2));
+      reasoner.dispose();
+    }
+
+    @Test
+    @DisplayName("can pass on the nodes of each phyloreference before resolving the next one")
+    void canResolvePhyloreferencesOneAtATime() throws Exception {
+      OWLDataFactory df = ontologyManager.getOWLDataFactory();
+      OWLClass phyloref1 = df.getOWLClass(IRI.create("http://example.org/phyloref1"));
+      OWLClass phyloref2 = df.getOWLClass(IRI.create("http://example.org/phyloref2"));
+
+      // Count how many times the reasoner is asked for the instances of a class.
+      OWLReasoner elk = new ElkReasonerFactory().createNonBufferingReasoner(testOntology);
+      int[] instanceQueries = {0};
+      OWLReasoner reasoner =
+          (OWLReasoner)
+              Proxy.newProxyInstance(
+                  OWLReasoner.class.getClassLoader(),
+                  new Class<?>[] {OWLReasoner.class},
+                  (proxy, method, args) -> {
+                    if (method.getName().equals("getInstances")) instanceQueries[0]++;
+                    try {
+                      return method.invoke(elk, args);
+                    } catch (InvocationTargetException ex) {
+                      throw ex.getCause();
+                    }
+                  });
+
+      List<Integer> queriesPerPhyloref = new ArrayList<>();
+      Map<OWLClass, Set<OWLNamedIndividual>> nodesPerPhyloref =
+          PhylorefHelper.resolvePhyloreferences(
+              testOntology,
+              reasoner,
+              (phyloref, nodes, phylorefsResolved, phylorefCount) -> {
+                assertEquals(PhylorefHelper.getNodesInClass(phyloref, testOntology, elk), nodes);
+                assertEquals(queriesPerPhyloref.size() + 1, phylorefsResolved);
+                assertEquals(2, phylorefCount);
+                queriesPerPhyloref.add(instanceQueries[0]);
+              });
+      assertEquals(Arrays.asList(1, 2), queriesPerPhyloref);
+      assertEquals(PhylorefHelper.getNodesPerPhyloreference(testOntology, elk), nodesPerPhyloref);
+      assertEquals(new HashSet<>(Arrays.asList(phyloref1, phyloref2)), nodesPerPhyloref.keySet());
+      elk.dispose();
+    }
+
+    @Test
+    @DisplayName("retrieves the same nodes at once as one phyloreference at a time")
+    void retrievesNodesPerPhyloreferenceLikeNodesInClass() {
+      OWLDataFactory df = ontologyManager.getOWLDataFactory();
+      OWLClass phyloreference =
+          df.getOWLClass(IRI.create("http://ontology.phyloref.org/phyloref.owl#Phyloreference"));
+      OWLClass cdaoNode = df.getOWLClass(PhylorefHelper.IRI_CDAO_NODE);
+      OWLClass phyloref1 = df.getOWLClass(IRI.create("http://example.org/phyloref1"));
+      OWLClass phyloref3 = df.getOWLClass(IRI.create("http://example.org/phyloref3"));
+      OWLNamedIndividual node1 = df.getOWLNamedIndividual(IRI.create("http://example.org/node1"));
+      OWLNamedIndividual node2 = df.getOWLNamedIndividual(IRI.create("http://example.org/node2"));
+      OWLNamedIndividual specimen =
+          df.getOWLNamedIndividual(IRI.create("http://example.org/specimen"));
+
+      // An individual that isn't a CDAO node can still belong to phyloref1, while
+      // every instance of phyloref3 is a node.
+      ontologyManager.addAxiom(testOntology, df.getOWLClassAssertionAxiom(phyloref1, specimen));
+      ontologyManager.addAxiom(testOntology, df.getOWLSubClassOfAxiom(phyloref3, phyloreference));
+      ontologyManager.addAxiom(testOntology, df.getOWLSubClassOfAxiom(phyloref3, cdaoNode));
+      ontologyManager.addAxiom(testOntology, df.getOWLClassAssertionAxiom(phyloref3, node1));
+
+      OWLReasoner reasoner = new ElkReasonerFactory().createNonBufferingReasoner(testOntology);
+      Map<OWLClass, Set<OWLNamedIndividual>> nodesPerPhyloref =
+          PhylorefHelper.getNodesPerPhyloreference(testOntology, reasoner);
+      assertEquals(
+          new HashSet<>(Arrays.asList(node1, node2, specimen)), nodesPerPhyloref.get(phyloref1));
+      assertEquals(Collections.singleton(node1), nodesPerPhyloref.get(phyloref3));
+      for (OWLClass phyloref : nodesPerPhyloref.keySet()) {
+        assertEquals(
+            PhylorefHelper.getNodesInClass(phyloref, testOntology, reasoner),
+            nodesPerPhyloref.get(phyloref),
+            "Phyloref '" + phyloref + "' has the same nodes as getNodesInClass()");
+      }
+      reasoner.dispose();
+    }
+
+    @Test
+    @DisplayName("retrieves the same nodes at once as one phyloreference at a time in dummy1.owl")
+    void retrievesNodesPerPhyloreferenceLikeNodesInClassInFixture() throws Exception {
+      // We skip the imports of dummy1.owl, which would need to be downloaded.
+      OWLOntologyManager manager = OWLManager.createOWLOntologyManager();
+      OWLOntology ontology =
+          manager.loadOntologyFromOntologyDocument(
+              new FileDocumentSource(new File("src/test/resources/phylorefs/dummy1.owl")),
+              new OWLOntologyLoaderConfiguration()
+                  .setMissingImportHandlingStrategy(MissingImportHandlingStrategy.SILENT));
+
+      for (OWLReasonerFactory factory : ReasonerHelper.getReasonerFactories().values()) {
+        if (factory == null) continue;
+        OWLReasoner reasoner = factory.createReasoner(ontology);
+        Map<OWLClass, Set<OWLNamedIndividual>> nodesPerPhyloref =
+            PhylorefHelper.getNodesPerPhyloreference(ontology, reasoner);
+        assertFalse(nodesPerPhyloref.isEmpty(), "dummy1.owl contains phyloreferences");
+        for (OWLClass phyloref : nodesPerPhyloref.keySet()) {
+          assertEquals(
+              PhylorefHelper.getNodesInClass(phyloref, ontology, reasoner),
+              nodesPerPhyloref.get(phyloref),
+              "Phyloref '" + phyloref + "' has the same nodes as getNodesInClass()");
+        }
+        reasoner.dispose();
+      }
+    }
+  }
+
+  @Nested
+  @DisplayName("has methods for retrieving expected nodes that")
+  class ExpectedNodesRetrievalTest {
+    OWLOntologyManager ontologyManager;
+    OWLDataFactory df;
+    OWLOntology testOntology;
+    OWLClass phyloref1;
+    OWLNamedIndividual node1;
+
+    /** Set up a test ontology where node1 is expected to resolve to phyloref1, as in Phyx files. */
+    @BeforeEach
+    void setupOntology() throws OWLOntologyCreationException {
+      ontologyManager = OWLManager.createOWLOntologyManager();
+      df = ontologyManager.getOWLDataFactory();
+
+      phyloref1 = df.getOWLClass(IRI.create("http://example.org/phyloref1"));
+      node1 = df.getOWLNamedIndividual(IRI.create("http://example.org/node1"));
+
+      List<OWLAxiom> axioms = new ArrayList<>();
+      axioms.add(
+          df.getOWLSubClassOfAxiom(phyloref1, df.getOWLClass(PhylorefHelper.IRI_PHYLOREFERENCE)));
+      axioms.add(
+          df.getOWLClassAssertionAxiom(
+              df.getOWLObjectSomeValuesFrom(
+                  df.getOWLObjectProperty(PhylorefHelper.IRI_OBI_IS_SPECIFIED_OUTPUT_OF),
+                  df.getOWLObjectIntersectionOf(
+                      df.getOWLClass(IRI.create("http://purl.obolibrary.org/obo/OBI_0302910")),
+                      df.getOWLObjectSomeValuesFrom(
+                          df.getOWLObjectProperty(PhylorefHelper.IRI_OBI_HAS_SPECIFIED_INPUT),
+                          phyloref1))),
+              node1));
+
+      testOntology = ontologyManager.createOntology(new HashSet<>(axioms));
+    }
+
+    @Test
+    @DisplayName("can retrieve expected nodes with and without reasoning")
+    void canRetrieveExpectedNodes() {
+      assertEquals(
+          Collections.singleton(node1),
+          PhylorefHelper.getExpectedNodes(phyloref1, testOntology, null));
+
+      OWLReasoner reasoner = new ElkReasonerFactory().createNonBufferingReasoner(testOntology);
+      assertEquals(
+          Collections.singleton(node1),
+          PhylorefHelper.getExpectedNodes(phyloref1, testOntology, reasoner));
+
+      // Expected nodes asserted in the canonical form can be found without a reasoner.
+      Set<OWLClassAssertionAxiom> assertions =
+          PhylorefHelper.getExpectedNodeAssertions(testOntology, reasoner);
+      reasoner.dispose();
+      assertEquals(
+          Collections.singleton(
+              df.getOWLClassAssertionAxiom(
+                  PhylorefHelper.getExpectedNodesExpression(df, phyloref1), node1)),
+          assertions);
+    }
+
+    @Test
+    @DisplayName("does not mistake expected nodes for resolved nodes without reasoning")
+    void doesNotResolveToExpectedNodes() {
+      // The expected nodes assertion mentions phyloref1, but only inside a restriction.
+      assertEquals(
+          Collections.emptySet(), PhylorefHelper.getNodesInClass(phyloref1, testOntology, null));
+      assertEquals(
+          Collections.emptySet(),
+          PhylorefHelper.getNodesPerPhyloreference(testOntology, null).get(phyloref1));
+    }
+
+    @Test
+    @DisplayName("returns results without reasoning that don't change along with the ontology")
+    void returnsSnapshotsWithoutReasoning() {
+      Map<OWLClass, Set<OWLNamedIndividual>> nodesPerPhyloref =
+          PhylorefHelper.getNodesPerPhyloreference(testOntology, null);
+      Set<OWLNamedIndividual> nodes = PhylorefHelper.getNodesInClass(phyloref1, testOntology, null);
+
+      ontologyManager.addAxiom(testOntology, df.getOWLClassAssertionAxiom(phyloref1, node1));
+
+      assertEquals(Collections.emptySet(), nodesPerPhyloref.get(phyloref1));
+      assertEquals(Collections.emptySet(), nodes);
+      assertEquals(
+          Collections.singleton(node1),
+          PhylorefHelper.getNodesInClass(phyloref1, testOntology, null));
+    }
   }
 
   @Nested
@@ -0,0 +1,155 @@
+package org.phyloref.jphyloref.helpers;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.eclipse.rdf4j.rio.RDFParseException;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.semanticweb.owlapi.apibinding.OWLManager;
+import org.semanticweb.owlapi.model.AxiomType;
+import org.semanticweb.owlapi.model.MissingImportHandlingStrategy;
+import org.semanticweb.owlapi.model.OWLOntology;
+import org.semanticweb.owlapi.model.OWLOntologyCreationException;
+import org.semanticweb.owlapi.model.OWLOntologyManager;
+
+/** A unit test for the PhyxLoader class */
+@DisplayName("PhyxLoader")
+class PhyxLoaderTest {
+  /** The base URI used by the commands. */
+  private static final String BASE_URI = "http://example.org/jphyloref";
+
+  /** The Phyx context used by our test files. */
+  private static final String PHYX_CONTEXT_URL =
+      "http://www.phyloref.org/phyx.js/context/v0.2.0/phyx.json";
+
+  /**
+   * A copy of the terms from the Phyx context that our test files use, bundled with the test
+   * resources under 'contexts/', so that these tests don't need to download the Phyx context. Both
+   * loaders use the same context, so this doesn't change what we're comparing.
+   */
+  private static final String TEST_CONTEXT_URL = "http://example.org/jphyloref/contexts/phyx.json";
+
+  /** Read a test file, replacing the Phyx context with our bundled copy. */
+  private String readTestFile(String filename) throws IOException {
+    byte[] bytes = Files.readAllBytes(Paths.get("src/test/resources/phylorefs", filename));
+    return new String(bytes, StandardCharsets.UTF_8).replace(PHYX_CONTEXT_URL, TEST_CONTEXT_URL);
+  }
+
+  /**
+   * Create an empty ontology. Our test files import ontologies from the web, which these tests
+   * don't need, so missing imports are ignored.
+   */
+  private OWLOntology createOntology() throws OWLOntologyCreationException {
+    OWLOntologyManager manager = OWLManager.createOWLOntologyManager();
+    manager.setOntologyLoaderConfiguration(
+        manager
+            .getOntologyLoaderConfiguration()
+            .setMissingImportHandlingStrategy(MissingImportHandlingStrategy.SILENT));
+    return manager.createOntology();
+  }
+
+  /** Load a JSON-LD document using the RDF-based JSON-LD loader. */
+  private OWLOntology loadWithRDF4J(String jsonld)
+      throws OWLOntologyCreationException, IOException {
+    OWLOntology ontology = createOntology();
+    JSONLDHelper.createRDFParserForOntology(ontology).parse(new StringReader(jsonld), BASE_URI);
+    return ontology;
+  }
+
+  /** Load a JSON-LD document using the PhyxLoader. */
+  private OWLOntology loadWithPhyxLoader(String jsonld)
+      throws OWLOntologyCreationException, IOException {
+    OWLOntology ontology = createOntology();
+    new PhyxLoader(ontology).load(new StringReader(jsonld), BASE_URI);
+    return ontology;
+  }
+
+  /**
+   * Describe the axioms in an ontology as a sorted list of strings. Anonymous individuals are given
+   * different identifiers by each loader, so we remove their identifiers.
+   */
+  private static List<String> describeAxioms(OWLOntology ontology) {
+    return ontology
+        .getAxioms()
+        .stream()
+        .map(axiom -> axiom.toString().replaceAll("_:[\\w\\-]+", "_:anon"))
+        .sorted()
+        .collect(Collectors.toList());
+  }
+
+  /** Check that two ontologies contain equivalent axioms and ontology annotations. */
+  private static void assertEquivalent(OWLOntology expected, OWLOntology actual) {
+    for (AxiomType<?> axiomType : AxiomType.AXIOM_TYPES) {
+      assertEquals(
+          expected.getAxiomCount(axiomType),
+          actual.getAxiomCount(axiomType),
+          "Number of " + axiomType + " axioms");
+    }
+    assertEquals(describeAxioms(expected), describeAxioms(actual));
+    assertEquals(expected.getAnnotations(), actual.getAnnotations());
+    assertEquals(expected.getImportsDeclarations(), actual.getImportsDeclarations());
+  }
+
+  @Nested
+  @DisplayName("produces the same axioms as the RDF-based loader")
+  class EquivalenceTest {
+    /** Check that both loaders produce equivalent ontologies for a test file. */
+    private void checkTestFile(String filename) throws OWLOntologyCreationException, IOException {
+      String jsonld = readTestFile(filename);
+      OWLOntology expected = loadWithRDF4J(jsonld);
+      OWLOntology actual = loadWithPhyxLoader(jsonld);
+
+      assertTrue(expected.getLogicalAxiomCount() > 0, "Test file should contain logical axioms");
+      assertEquivalent(expected, actual);
+    }
+
+    @Test
+    @DisplayName("for dummy1.jsonld")
+    void loadsDummy1() throws OWLOntologyCreationException, IOException {
+      checkTestFile("dummy1.jsonld");
+    }
+
+    @Test
+    @DisplayName("for failing1.jsonld, whose context is at the end of the file")
+    void loadsFailing1() throws OWLOntologyCreationException, IOException {
+      checkTestFile("failing1.jsonld");
+    }
+
+    @Test
+    @DisplayName("for properties declared in the document")
+    void usesDeclaredProperties() throws OWLOntologyCreationException, IOException {
+      String jsonld =
+          "{\"@context\": {\"ex\": \"http://example.org/jphyloref#\", "
+              + "\"owl\": \"http://www.w3.org/2002/07/owl#\", "
+              + "\"node\": {\"@id\": \"ex:node\", \"@type\": \"@id\"}, \"count\": \"ex:count\"}, "
+              + "\"@id\": \"#a\", \"@type\": \"ex:Thing\", \"node\": [\"#b\", \"_:c\"], "
+              + "\"count\": [3, 1.5, true, {\"@value\": \"3\", \"@language\": \"en\"}], "
+              + "\"ex:declarations\": [{\"@id\": \"ex:node\", \"@type\": \"owl:ObjectProperty\"}, "
+              + "{\"@id\": \"ex:count\", \"@type\": \"owl:DatatypeProperty\"}]}";
+      OWLOntology expected = loadWithRDF4J(jsonld);
+      OWLOntology actual = loadWithPhyxLoader(jsonld);
+
+      assertEquals(2, actual.getAxiomCount(AxiomType.OBJECT_PROPERTY_ASSERTION));
+      assertEquals(4, actual.getAxiomCount(AxiomType.DATA_PROPERTY_ASSERTION));
+      assertEquivalent(expected, actual);
+    }
+  }
+
+  @Test
+  @DisplayName("rejects JSON-LD features it does not support")
+  void rejectsUnsupportedFeatures() {
+    String jsonld =
+        "{\"@context\": {\"ex\": \"http://example.org/jphyloref#\"}, "
+            + "\"@graph\": [{\"@id\": \"#a\", \"@type\": \"ex:Thing\"}]}";
+    RDFParseException ex = assertThrows(RDFParseException.class, () -> loadWithPhyxLoader(jsonld));
+    assertTrue(ex.getMessage().contains("@graph"));
+  }
+}
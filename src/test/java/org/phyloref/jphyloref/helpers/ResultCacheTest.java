@@ -0,0 +1,79 @@
+package org.phyloref.jphyloref.helpers;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+/** A unit test for the ResultCache class */
+@DisplayName("ResultCache")
+class ResultCacheTest {
+  private static String getKey(String document, String variant) throws IOException {
+    return ResultCache.getKey(
+        new ByteArrayInputStream(document.getBytes(StandardCharsets.UTF_8)), variant);
+  }
+
+  @Test
+  @DisplayName("calculates different keys for different documents or variants")
+  void calculatesKeys() throws IOException {
+    assertEquals(getKey("{}", "elk"), getKey("{}", "elk"));
+    assertNotEquals(getKey("{}", "elk"), getKey("[]", "elk"));
+    assertNotEquals(getKey("{}", "elk"), getKey("{}", "tree"));
+  }
+
+  @Nested
+  @DisplayName("evicts the least recently used results")
+  class EvictionTest {
+    @Test
+    @DisplayName("when it has too many results")
+    void evictsByEntries() {
+      ResultCache cache = new ResultCache(2, 1024 * 1024);
+      cache.put("a", "result a");
+      cache.put("b", "result b");
+      assertEquals("result a", cache.get("a"));
+      cache.put("c", "result c");
+
+      // "b" was the least recently used result.
+      assertNull(cache.get("b"));
+      assertEquals("result a", cache.get("a"));
+      assertEquals("result c", cache.get("c"));
+      assertEquals(2, cache.size());
+      assertEquals(1, cache.getEvictions());
+      assertEquals(3, cache.getHits());
+      assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    @DisplayName("when its results are too large")
+    void evictsByBytes() {
+      // Each result takes up 2 * (1 + 9) = 20 bytes.
+      ResultCache cache = new ResultCache(100, 50);
+      cache.put("a", "result  a");
+      cache.put("b", "result  b");
+      assertEquals(40, cache.getBytes());
+      cache.put("c", "result  c");
+
+      assertNull(cache.get("a"));
+      assertEquals(2, cache.size());
+      assertEquals(40, cache.getBytes());
+
+      // Results larger than the cache are never stored.
+      cache.put("d", "a result that is much too large to cache");
+      assertNull(cache.get("d"));
+      assertEquals(2, cache.size());
+    }
+
+    @Test
+    @DisplayName("and caches nothing if it can hold no results")
+    void canBeDisabled() {
+      ResultCache cache = new ResultCache(0, 1024);
+      cache.put("a", "result a");
+      assertNull(cache.get("a"));
+      assertEquals(0, cache.getEvictions());
+    }
+  }
+}
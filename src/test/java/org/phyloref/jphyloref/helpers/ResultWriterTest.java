@@ -0,0 +1,150 @@
+package org.phyloref.jphyloref.helpers;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.semanticweb.owlapi.apibinding.OWLManager;
+import org.semanticweb.owlapi.model.IRI;
+import org.semanticweb.owlapi.model.OWLClass;
+import org.semanticweb.owlapi.model.OWLDataFactory;
+import org.semanticweb.owlapi.model.OWLNamedIndividual;
+
+/** A unit test for the ResultWriter class */
+@DisplayName("ResultWriter")
+class ResultWriterTest {
+  private static final String EX = "http://example.org/jphyloref";
+  private static final OWLDataFactory df = OWLManager.getOWLDataFactory();
+
+  private static final OWLClass phyloref1 = df.getOWLClass(IRI.create(EX + "#phyloref1"));
+  private static final OWLClass phyloref2 = df.getOWLClass(IRI.create(EX + "#phyloref2"));
+  private static final OWLNamedIndividual node1 =
+      df.getOWLNamedIndividual(IRI.create(EX + "#node1"));
+  private static final OWLNamedIndividual node2 =
+      df.getOWLNamedIndividual(IRI.create("http://example.com/other#node2"));
+
+  /** Write two phylorefs and some additional properties in a format. */
+  private static String write(String format, Map<String, Object> properties) throws IOException {
+    StringWriter out = new StringWriter();
+    ResultWriter writer = new ResultWriter(out, format, EX);
+    writer.writePhyloref(phyloref1, new LinkedHashSet<>(Arrays.asList(node1, node2)));
+    writer.writePhyloref(phyloref2, Collections.emptySet());
+    writer.finish(properties);
+    assertEquals(2, writer.getPhylorefCount());
+    assertEquals(out.toString().length(), writer.getLength());
+    return out.toString();
+  }
+
+  @Test
+  @DisplayName("writes results as a single JSON object")
+  void writesJSON() throws IOException {
+    assertEquals(
+        "{\"phylorefs\":{\"#phyloref1\":[\"#node1\",\"http://example.com/other#node2\"],"
+            + "\"#phyloref2\":[]}}\n",
+        write("json", Collections.emptyMap()));
+
+    Map<String, Object> properties = new LinkedHashMap<>();
+    properties.put("timings", new JSONObject("{'parse': 1}"));
+    JSONObject result = new JSONObject(write("json", properties));
+    assertEquals(1, result.getJSONObject("timings").getInt("parse"));
+    assertEquals(2, result.getJSONObject("phylorefs").length());
+
+    // Results without any phylorefs are still valid JSON.
+    StringWriter out = new StringWriter();
+    new ResultWriter(out, "json", EX).finish(Collections.emptyMap());
+    assertEquals("{\"phylorefs\":{}}\n", out.toString());
+  }
+
+  @Test
+  @DisplayName("writes results as a line per phyloref followed by a summary")
+  void writesNDJSON() throws IOException {
+    Map<String, Object> properties = new LinkedHashMap<>();
+    properties.put("timings", new JSONObject("{'parse': 1}"));
+    assertEquals(
+        "{\"phyloref\":\"#phyloref1\",\"nodes\":[\"#node1\",\"http://example.com/other#node2\"]}\n"
+            + "{\"phyloref\":\"#phyloref2\",\"nodes\":[]}\n"
+            + "{\"summary\":{\"phylorefs\":2,\"nodes\":2,\"timings\":{\"parse\":1}}}\n",
+        write("ndjson", properties));
+  }
+
+  /** Decode the nodes of a phyloreference in the 'compact' format from their ranges. */
+  private static Set<String> decodeRanges(JSONArray nodes, JSONArray ranges) {
+    Set<String> decoded = new HashSet<>();
+    int position = 0;
+    for (int i = 0; i < ranges.length(); i += 2) {
+      position += ranges.getInt(i);
+      for (int end = position + ranges.getInt(i + 1); position < end; position++) {
+        decoded.add(nodes.getString(position));
+      }
+    }
+    return decoded;
+  }
+
+  @Test
+  @DisplayName("writes nodes once, and the nodes of each phyloref as ranges, in compact format")
+  void writesCompactResults() throws IOException {
+    Map<String, Object> properties = new LinkedHashMap<>();
+    properties.put("timings", new JSONObject("{'parse': 1}"));
+    JSONObject result = new JSONObject(write("compact", properties));
+    JSONArray nodes = result.getJSONArray("nodes");
+    assertEquals(2, nodes.length());
+    assertEquals(1, result.getJSONObject("timings").getInt("parse"));
+
+    JSONObject phylorefs = result.getJSONObject("phylorefs");
+    assertEquals(
+        new HashSet<>(Arrays.asList("#node1", "http://example.com/other#node2")),
+        decodeRanges(nodes, phylorefs.getJSONArray("#phyloref1")));
+    assertEquals("[]", phylorefs.getJSONArray("#phyloref2").toString());
+
+    // Nested clades and disjoint clades on a phylogeny are each written as a single range.
+    List<OWLNamedIndividual> tree = new ArrayList<>();
+    for (int i = 0; i < 8; i++) tree.add(df.getOWLNamedIndividual(IRI.create(EX + "#n" + i)));
+    Map<String, List<OWLNamedIndividual>> clades = new LinkedHashMap<>();
+    clades.put("#c1", Arrays.asList(tree.get(1), tree.get(6)));
+    clades.put("#c2", Arrays.asList(tree.get(6), tree.get(1), tree.get(3), tree.get(5)));
+    clades.put("#root", tree);
+    clades.put("#c3", Arrays.asList(tree.get(7), tree.get(2)));
+    clades.put("#leaf", Arrays.asList(tree.get(5)));
+
+    StringWriter out = new StringWriter();
+    ResultWriter writer = new ResultWriter(out, "compact", EX);
+    for (Map.Entry<String, List<OWLNamedIndividual>> clade : clades.entrySet()) {
+      writer.writePhyloref(
+          df.getOWLClass(IRI.create(EX + clade.getKey())), new LinkedHashSet<>(clade.getValue()));
+    }
+    writer.finish(Collections.emptyMap());
+
+    result = new JSONObject(out.toString());
+    nodes = result.getJSONArray("nodes");
+    assertEquals(8, nodes.length());
+    for (Map.Entry<String, List<OWLNamedIndividual>> clade : clades.entrySet()) {
+      JSONArray ranges = result.getJSONObject("phylorefs").getJSONArray(clade.getKey());
+      assertEquals(2, ranges.length(), clade.getKey());
+      Set<String> expected = new HashSet<>();
+      for (OWLNamedIndividual node : clade.getValue()) {
+        expected.add(PhylorefHelper.removeDefaultURIPrefix(node.getIRI(), EX));
+      }
+      assertEquals(expected, decodeRanges(nodes, ranges), clade.getKey());
+    }
+  }
+
+  @Test
+  @DisplayName("rejects unknown formats")
+  void rejectsUnknownFormats() {
+    assertThrows(
+        IllegalArgumentException.class, () -> new ResultWriter(new StringWriter(), "xml", EX));
+  }
+}
@@ -0,0 +1,87 @@
+package org.phyloref.jphyloref.helpers;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+/** A unit test for the SpooledDocument class */
+@DisplayName("SpooledDocument")
+class SpooledDocumentTest {
+  File directory;
+
+  @BeforeEach
+  void createDirectory() throws IOException {
+    directory = Files.createTempDirectory("jphyloref-spool-test").toFile();
+  }
+
+  @AfterEach
+  void deleteDirectory() {
+    File[] files = directory.listFiles();
+    if (files != null) for (File file : files) file.delete();
+    directory.delete();
+  }
+
+  private static InputStream stream(String contents) {
+    return new ByteArrayInputStream(contents.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String read(SpooledDocument document) throws IOException {
+    try (InputStream in = document.openStream()) {
+      return FormReader.readString(in);
+    }
+  }
+
+  @Test
+  @DisplayName("keeps small documents in memory")
+  void keepsSmallDocumentsInMemory() throws IOException {
+    try (SpooledDocument document = new SpooledDocument(16, 1024, directory)) {
+      document.readFrom(stream("{\"a\": "));
+      document.readFrom(stream("1}"));
+      assertFalse(document.isSpooled());
+      assertEquals(8, document.getSize());
+      assertEquals("{\"a\": 1}", read(document));
+      assertEquals("{\"a\": 1}", read(document));
+      assertEquals(0, directory.listFiles().length);
+    }
+  }
+
+  @Test
+  @DisplayName("spools large documents to a temporary file, which is deleted once it is released")
+  void spoolsLargeDocuments() throws IOException {
+    SpooledDocument document = new SpooledDocument(4, 1024, directory);
+    document.readFrom(stream("{\"a\": "));
+    document.readFrom(stream("1}"));
+    assertTrue(document.isSpooled());
+    assertEquals("{\"a\": 1}", read(document));
+    assertEquals(1, directory.listFiles().length);
+
+    // The document is only discarded once every reference to it has been released.
+    document.retain();
+    document.close();
+    assertEquals("{\"a\": 1}", read(document));
+    document.close();
+    assertEquals(0, directory.listFiles().length);
+    assertThrows(IOException.class, document::openStream);
+    assertThrows(IllegalStateException.class, document::retain);
+  }
+
+  @Test
+  @DisplayName("rejects documents larger than its maximum size")
+  void rejectsLargeDocuments() throws IOException {
+    try (SpooledDocument document = new SpooledDocument(4, 8, directory)) {
+      assertThrows(
+          SpooledDocument.DocumentTooLargeException.class,
+          () -> document.readFrom(stream("{\"a\": 10}")));
+    }
+    assertEquals(0, directory.listFiles().length);
+  }
+}
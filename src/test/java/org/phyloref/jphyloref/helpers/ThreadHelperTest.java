@@ -0,0 +1,29 @@
+package org.phyloref.jphyloref.helpers;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+/** A unit test for the ThreadHelper class */
+@DisplayName("ThreadHelper")
+class ThreadHelperTest {
+  @Test
+  @DisplayName("runs tasks on named threads, which are virtual if virtual threads are available")
+  void runsTasks() throws Exception {
+    ExecutorService executor = ThreadHelper.newThreadPerTaskExecutor("jphyloref-test-");
+    try {
+      Thread thread = executor.submit(Thread::currentThread).get(10, TimeUnit.SECONDS);
+      assertTrue(thread.getName().startsWith("jphyloref-test-"), thread.getName());
+      if (ThreadHelper.areVirtualThreadsAvailable()) {
+        assertTrue((Boolean) Thread.class.getMethod("isVirtual").invoke(thread));
+      } else {
+        assertTrue(thread.isDaemon());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,148 @@
+package org.phyloref.jphyloref.helpers;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.json.JSONObject;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.semanticweb.elk.owlapi.ElkReasonerFactory;
+import org.semanticweb.owlapi.apibinding.OWLManager;
+import org.semanticweb.owlapi.model.IRI;
+import org.semanticweb.owlapi.model.OWLClass;
+import org.semanticweb.owlapi.model.OWLDataFactory;
+import org.semanticweb.owlapi.model.OWLNamedIndividual;
+import org.semanticweb.owlapi.model.OWLOntology;
+import org.semanticweb.owlapi.model.OWLOntologyCreationException;
+import org.semanticweb.owlapi.model.OWLOntologyManager;
+import org.semanticweb.owlapi.reasoner.OWLReasoner;
+
+/** A unit test for the VerificationHelper class */
+@DisplayName("VerificationHelper")
+class VerificationHelperTest {
+  private static final String EX = "http://example.org/jphyloref/verification";
+
+  @Nested
+  @DisplayName("can verify one reasoner against another and")
+  class VerifyTest {
+    @Test
+    @DisplayName("reports the phyloreferences they resolve differently")
+    void reportsDisagreements() throws OWLOntologyCreationException, InterruptedException {
+      // Set up an ontology with two phyloreferences, one of which is a subclass of the other.
+      // Without a reasoner, we can only find phyloref A and its asserted member node1; with
+      // a reasoner, we should also find phyloref B, and that node2 is a member of both.
+      OWLOntologyManager manager = OWLManager.createOWLOntologyManager();
+      OWLDataFactory df = manager.getOWLDataFactory();
+      OWLOntology ontology = manager.createOntology();
+
+      OWLClass phyloreference = df.getOWLClass(PhylorefHelper.IRI_PHYLOREFERENCE);
+      OWLClass phylorefA = df.getOWLClass(IRI.create(EX + "#phylorefA"));
+      OWLClass phylorefB = df.getOWLClass(IRI.create(EX + "#phylorefB"));
+      OWLNamedIndividual node1 = df.getOWLNamedIndividual(IRI.create(EX + "#node1"));
+      OWLNamedIndividual node2 = df.getOWLNamedIndividual(IRI.create(EX + "#node2"));
+
+      manager.addAxiom(ontology, df.getOWLDeclarationAxiom(phyloreference));
+      manager.addAxiom(ontology, df.getOWLSubClassOfAxiom(phylorefA, phyloreference));
+      manager.addAxiom(ontology, df.getOWLSubClassOfAxiom(phylorefB, phylorefA));
+      manager.addAxiom(ontology, df.getOWLClassAssertionAxiom(phylorefA, node1));
+      manager.addAxiom(ontology, df.getOWLClassAssertionAxiom(phylorefB, node2));
+      OWLClass cdaoNode = df.getOWLClass(PhylorefHelper.IRI_CDAO_NODE);
+      manager.addAxiom(ontology, df.getOWLClassAssertionAxiom(cdaoNode, node1));
+      manager.addAxiom(ontology, df.getOWLClassAssertionAxiom(cdaoNode, node2));
+
+      OWLReasoner elk = new ElkReasonerFactory().createReasoner(ontology);
+      VerificationHelper.Verification verification = VerificationHelper.verify(ontology, null, elk);
+      elk.dispose();
+
+      assertEquals("No reasoner used", verification.getPrimary().getReasonerName());
+      assertEquals("ELK", verification.getReference().getReasonerName());
+      assertEquals(
+          new HashSet<>(Arrays.asList(phylorefA, phylorefB)),
+          verification.getDisagreements().keySet());
+
+      VerificationHelper.Disagreement disagreementA =
+          verification.getDisagreements().get(phylorefA);
+      assertEquals(Collections.emptySet(), disagreementA.getPrimaryOnly());
+      assertEquals(Collections.singleton(node2), disagreementA.getReferenceOnly());
+
+      JSONObject json = verification.toJSON(EX);
+      assertEquals(
+          "[\"#node2\"]",
+          json.getJSONObject("disagreements")
+              .getJSONObject("#phylorefB")
+              .getJSONArray("referenceOnly")
+              .toString());
+      assertTrue(json.getJSONObject("primary").has("elapsedMillis"));
+    }
+
+    @Test
+    @DisplayName("reports no disagreements when both reasoners agree")
+    void reportsAgreements() {
+      OWLDataFactory df = OWLManager.getOWLDataFactory();
+      OWLClass phyloref = df.getOWLClass(IRI.create(EX + "#phyloref"));
+      OWLNamedIndividual node = df.getOWLNamedIndividual(IRI.create(EX + "#node"));
+
+      VerificationHelper.Verification verification =
+          new VerificationHelper.Verification(
+              new VerificationHelper.Resolution(
+                  "primary", Collections.singletonMap(phyloref, Collections.singleton(node)), 1),
+              new VerificationHelper.Resolution(
+                  "reference",
+                  Collections.singletonMap(phyloref, Collections.singleton(node)),
+                  10));
+
+      assertTrue(verification.getDisagreements().isEmpty());
+      assertEquals(
+          "primary took 1 ms and reference took 10 ms to resolve 1 phyloreferences; they disagreed on 0 phyloreferences.",
+          verification.getSummary());
+    }
+  }
+
+  @Nested
+  @DisplayName("can read its options from the command line and")
+  class CommandLineTest {
+    private CommandLine parse(String... args) throws ParseException {
+      Options opts = new Options();
+      VerificationHelper.addCommandLineOptions(opts);
+      return new DefaultParser().parse(opts, args);
+    }
+
+    @Test
+    @DisplayName("does not verify unless asked to")
+    void noVerificationByDefault() throws ParseException {
+      CommandLine cmdLine = parse();
+      assertFalse(VerificationHelper.isVerificationRequested(cmdLine));
+      assertNull(VerificationHelper.getReferenceReasonerFactoryFromCmdLine(cmdLine));
+      assertEquals(
+          VerificationHelper.DEFAULT_SAMPLE_RATE,
+          VerificationHelper.getSampleRateFromCmdLine(cmdLine));
+    }
+
+    @Test
+    @DisplayName("reads the reference reasoner and sample rate")
+    void readsOptions() throws ParseException {
+      CommandLine cmdLine = parse("--verify-against", "elk", "--verify-sample-rate", "0.5");
+      assertTrue(VerificationHelper.isVerificationRequested(cmdLine));
+      assertTrue(
+          VerificationHelper.getReferenceReasonerFactoryFromCmdLine(cmdLine)
+              instanceof ElkReasonerFactory);
+      assertEquals(0.5, VerificationHelper.getSampleRateFromCmdLine(cmdLine));
+    }
+
+    @Test
+    @DisplayName("rejects sample rates outside 0 to 1")
+    void rejectsInvalidSampleRates() throws ParseException {
+      CommandLine cmdLine = parse("--verify-sample-rate", "2");
+      assertThrows(
+          IllegalArgumentException.class,
+          () -> VerificationHelper.getSampleRateFromCmdLine(cmdLine));
+    }
+  }
+}
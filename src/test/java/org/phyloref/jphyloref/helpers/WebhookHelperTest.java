@@ -0,0 +1,75 @@
+package org.phyloref.jphyloref.helpers;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+/** A unit test for the WebhookHelper class */
+@DisplayName("WebhookHelper")
+class WebhookHelperTest {
+  private static final byte[] PAYLOAD = "jsonldGzipped=abc%2B".getBytes(StandardCharsets.UTF_8);
+
+  @Nested
+  @DisplayName("can check request signatures and")
+  class SignatureTest {
+    @Test
+    @DisplayName("calculates HMAC-SHA1 signatures as used in X-Hub-Signature")
+    void calculatesSignatures() {
+      // Calculated with: printf 'jsonldGzipped=abc%%2B' | openssl dgst -sha1 -hmac secret
+      assertEquals(
+          "sha1=bbed28b4aa9178f43708720a1595078ee8fb44a8", WebhookHelper.sign(PAYLOAD, "secret"));
+    }
+
+    @Test
+    @DisplayName("accepts valid signatures with or without the 'sha1=' prefix")
+    void acceptsValidSignatures() {
+      String signature = WebhookHelper.sign(PAYLOAD, "secret");
+      assertTrue(WebhookHelper.isSignatureValid(PAYLOAD, "secret", signature));
+      assertTrue(WebhookHelper.isSignatureValid(PAYLOAD, "secret", signature.substring(5)));
+    }
+
+    @Test
+    @DisplayName("rejects missing or invalid signatures")
+    void rejectsInvalidSignatures() {
+      assertFalse(WebhookHelper.isSignatureValid(PAYLOAD, "secret", null));
+      assertFalse(
+          WebhookHelper.isSignatureValid(
+              PAYLOAD, "secret", WebhookHelper.sign(PAYLOAD, "another secret")));
+      assertFalse(
+          WebhookHelper.isSignatureValid(
+              "jsonldGzipped=abd".getBytes(StandardCharsets.UTF_8),
+              "secret",
+              WebhookHelper.sign(PAYLOAD, "secret")));
+    }
+  }
+
+  @Nested
+  @DisplayName("can read fields from request bodies")
+  class PayloadTest {
+    @Test
+    @DisplayName("that are URL-encoded forms")
+    void readsForms() {
+      assertEquals(
+          "abc+",
+          WebhookHelper.getPayloadField(
+              PAYLOAD, "application/x-www-form-urlencoded", "jsonldGzipped"));
+      assertNull(WebhookHelper.getPayloadField(PAYLOAD, null, "jsonld"));
+    }
+
+    @Test
+    @DisplayName("that are JSON objects")
+    void readsJSON() {
+      byte[] payload = "{\"jsonldGzipped\": \"abc+\"}".getBytes(StandardCharsets.UTF_8);
+      assertEquals(
+          "abc+",
+          WebhookHelper.getPayloadField(
+              payload, "application/json; charset=UTF-8", "jsonldGzipped"));
+      assertThrows(
+          IllegalArgumentException.class,
+          () -> WebhookHelper.getPayloadField(PAYLOAD, "application/json", "jsonldGzipped"));
+    }
+  }
+}
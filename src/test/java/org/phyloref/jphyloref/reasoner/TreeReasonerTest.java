@@ -0,0 +1,453 @@
+package org.phyloref.jphyloref.reasoner;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.phyloref.jphyloref.helpers.PhylorefHelper;
+import org.phyloref.jphyloref.helpers.ReasonerHelper;
+import org.semanticweb.elk.owlapi.ElkReasonerFactory;
+import org.semanticweb.owlapi.apibinding.OWLManager;
+import org.semanticweb.owlapi.model.IRI;
+import org.semanticweb.owlapi.model.OWLAxiom;
+import org.semanticweb.owlapi.model.OWLClass;
+import org.semanticweb.owlapi.model.OWLClassExpression;
+import org.semanticweb.owlapi.model.OWLDataFactory;
+import org.semanticweb.owlapi.model.OWLDataProperty;
+import org.semanticweb.owlapi.model.OWLNamedIndividual;
+import org.semanticweb.owlapi.model.OWLObjectProperty;
+import org.semanticweb.owlapi.model.OWLOntology;
+import org.semanticweb.owlapi.model.OWLOntologyCreationException;
+import org.semanticweb.owlapi.model.OWLOntologyManager;
+import org.semanticweb.owlapi.reasoner.InferenceType;
+import org.semanticweb.owlapi.reasoner.OWLReasoner;
+
+/** A unit test for the TreeReasoner class */
+@DisplayName("TreeReasoner")
+class TreeReasonerTest {
+  private static final String EX = "http://example.org/jphyloref/tree#";
+
+  private OWLOntologyManager manager;
+  private OWLDataFactory df;
+  private OWLOntology ontology;
+
+  private OWLObjectProperty hasChild;
+  private OWLObjectProperty hasParent;
+  private OWLObjectProperty hasSibling;
+  private OWLObjectProperty hasDescendant;
+  private OWLObjectProperty representsTU;
+  private OWLObjectProperty includesTU;
+  private OWLObjectProperty excludesTU;
+  private OWLObjectProperty hasName;
+  private OWLDataProperty nameComplete;
+
+  /** The phyloreferences we've added to the ontology. */
+  private List<OWLClass> phylorefs;
+
+  /** The nodes we've added to the ontology. */
+  private List<OWLNamedIndividual> nodes;
+
+  /**
+   * Set up an ontology containing the parts of the Phyloref ontology that ELK needs to resolve
+   * phyloreferences.
+   */
+  @BeforeEach
+  void setupOntology() throws OWLOntologyCreationException {
+    manager = OWLManager.createOWLOntologyManager();
+    df = manager.getOWLDataFactory();
+    ontology = manager.createOntology();
+    phylorefs = new ArrayList<>();
+    nodes = new ArrayList<>();
+
+    hasChild = df.getOWLObjectProperty(PhylorefHelper.IRI_CDAO_HAS_CHILD);
+    hasParent = df.getOWLObjectProperty(PhylorefHelper.IRI_CDAO_HAS_PARENT);
+    hasSibling = df.getOWLObjectProperty(PhylorefHelper.IRI_PHYLOREF_HAS_SIBLING);
+    hasDescendant = df.getOWLObjectProperty(PhylorefHelper.IRI_CDAO_HAS_DESCENDANT);
+    representsTU = df.getOWLObjectProperty(PhylorefHelper.IRI_CDAO_REPRESENTS_TU);
+    includesTU = df.getOWLObjectProperty(PhylorefHelper.IRI_PHYLOREF_INCLUDES_TU);
+    excludesTU = df.getOWLObjectProperty(PhylorefHelper.IRI_PHYLOREF_EXCLUDES_TU);
+    hasName =
+        df.getOWLObjectProperty(IRI.create("http://rs.tdwg.org/ontology/voc/TaxonConcept#hasName"));
+    nameComplete =
+        df.getOWLDataProperty(IRI.create("http://rs.tdwg.org/ontology/voc/TaxonName#nameComplete"));
+
+    List<OWLAxiom> axioms = new ArrayList<>();
+    for (OWLObjectProperty property :
+        Arrays.asList(
+            hasChild,
+            hasParent,
+            hasSibling,
+            hasDescendant,
+            representsTU,
+            includesTU,
+            excludesTU,
+            hasName)) {
+      axioms.add(df.getOWLDeclarationAxiom(property));
+    }
+    axioms.add(df.getOWLDeclarationAxiom(nameComplete));
+    axioms.add(df.getOWLSubObjectPropertyOfAxiom(hasChild, hasDescendant));
+    axioms.add(df.getOWLTransitiveObjectPropertyAxiom(hasDescendant));
+    axioms.add(df.getOWLSubObjectPropertyOfAxiom(representsTU, includesTU));
+    axioms.add(
+        df.getOWLSubPropertyChainOfAxiom(Arrays.asList(hasDescendant, representsTU), includesTU));
+    axioms.add(df.getOWLSubPropertyChainOfAxiom(Arrays.asList(hasSibling, includesTU), excludesTU));
+    axioms.add(df.getOWLSubPropertyChainOfAxiom(Arrays.asList(hasParent, excludesTU), excludesTU));
+    manager.addAxioms(ontology, new HashSet<>(axioms));
+  }
+
+  /** Return a taxonomic unit with a particular name, in the form Phyx uses. */
+  private OWLClassExpression taxon(String name) {
+    return df.getOWLObjectSomeValuesFrom(
+        hasName, df.getOWLDataHasValue(nameComplete, df.getOWLLiteral(name)));
+  }
+
+  private OWLClassExpression includes(String name) {
+    return df.getOWLObjectSomeValuesFrom(includesTU, taxon(name));
+  }
+
+  private OWLClassExpression excludes(String name) {
+    return df.getOWLObjectSomeValuesFrom(excludesTU, taxon(name));
+  }
+
+  /**
+   * Add a random phylogeny to the ontology, with has_Child, has_Parent and has_Sibling assertions
+   * for every node. Every leaf node (and some internal nodes) represent a taxon named "T0" to "Tn",
+   * with some names used more than once.
+   */
+  private void addPhylogeny(Random random, int nodeCount, int taxonCount) {
+    List<OWLAxiom> axioms = new ArrayList<>();
+    int first = nodes.size();
+    List<List<Integer>> children = new ArrayList<>();
+    for (int i = 0; i < nodeCount; i++) {
+      OWLNamedIndividual node = df.getOWLNamedIndividual(IRI.create(EX + "node" + (first + i)));
+      nodes.add(node);
+      children.add(new ArrayList<>());
+      axioms.add(df.getOWLClassAssertionAxiom(df.getOWLClass(PhylorefHelper.IRI_CDAO_NODE), node));
+      if (i > 0) {
+        int parent = random.nextInt(i);
+        children.get(parent).add(i);
+        axioms.add(
+            df.getOWLObjectPropertyAssertionAxiom(hasChild, nodes.get(first + parent), node));
+        axioms.add(
+            df.getOWLObjectPropertyAssertionAxiom(hasParent, node, nodes.get(first + parent)));
+      }
+    }
+    for (int i = 0; i < nodeCount; i++) {
+      for (int a : children.get(i)) {
+        for (int b : children.get(i)) {
+          if (a != b) {
+            axioms.add(
+                df.getOWLObjectPropertyAssertionAxiom(
+                    hasSibling, nodes.get(first + a), nodes.get(first + b)));
+          }
+        }
+      }
+      if (children.get(i).isEmpty() || random.nextInt(5) == 0) {
+        axioms.add(
+            df.getOWLClassAssertionAxiom(
+                df.getOWLObjectSomeValuesFrom(
+                    representsTU, taxon("T" + random.nextInt(taxonCount))),
+                nodes.get(first + i)));
+      }
+    }
+    manager.addAxioms(ontology, new HashSet<>(axioms));
+  }
+
+  /** Add a phyloreference with a particular definition to the ontology. */
+  private OWLClass addPhyloref(OWLClassExpression definition) {
+    OWLClass phyloref = df.getOWLClass(IRI.create(EX + "phyloref" + phylorefs.size()));
+    phylorefs.add(phyloref);
+    manager.addAxiom(ontology, df.getOWLEquivalentClassesAxiom(phyloref, definition));
+    manager.addAxiom(
+        ontology,
+        df.getOWLSubClassOfAxiom(phyloref, df.getOWLClass(PhylorefHelper.IRI_PHYLOREFERENCE)));
+    return phyloref;
+  }
+
+  /** Add phyloreferences of each of the shapes Phyx produces, using random taxa. */
+  private void addRandomPhylorefs(Random random, int count, int taxonCount) {
+    for (int i = 0; i < count; i++) {
+      String a = "T" + random.nextInt(taxonCount);
+      String b = "T" + random.nextInt(taxonCount);
+      String c = "T" + random.nextInt(taxonCount);
+      switch (i % 6) {
+        case 0:
+          // A node-based phyloreference with two internal specifiers.
+          addPhyloref(
+              df.getOWLObjectSomeValuesFrom(
+                  hasChild, df.getOWLObjectIntersectionOf(includes(a), excludes(b))));
+          break;
+        case 1:
+          // A node-based phyloreference built on top of another phyloreference.
+          OWLClass previous = phylorefs.get(random.nextInt(phylorefs.size()));
+          addPhyloref(
+              df.getOWLObjectIntersectionOf(
+                  df.getOWLObjectSomeValuesFrom(
+                      hasChild, df.getOWLObjectIntersectionOf(previous, excludes(c))),
+                  df.getOWLObjectSomeValuesFrom(
+                      hasChild, df.getOWLObjectIntersectionOf(includes(c), excludes(a)))));
+          break;
+        case 2:
+          // A branch-based phyloreference with an external specifier.
+          addPhyloref(df.getOWLObjectIntersectionOf(includes(a), includes(b), excludes(c)));
+          break;
+        case 3:
+          addPhyloref(includes(a));
+          break;
+        case 4:
+          addPhyloref(df.getOWLObjectSomeValuesFrom(hasSibling, includes(a)));
+          break;
+        case 5:
+          addPhyloref(
+              df.getOWLObjectIntersectionOf(
+                  df.getOWLObjectSomeValuesFrom(hasDescendant, includes(a)),
+                  df.getOWLObjectSomeValuesFrom(hasParent, excludes(b))));
+          break;
+      }
+    }
+  }
+
+  /** Check that the tree reasoner and ELK find the same instances for every phyloreference. */
+  private void assertSameInstancesAsElk() {
+    OWLReasoner elk = new ElkReasonerFactory().createReasoner(ontology);
+    OWLReasoner tree = new TreeReasonerFactory().createReasoner(ontology);
+    try {
+      int resolved = 0;
+      for (OWLClass phyloref : phylorefs) {
+        Set<OWLNamedIndividual> expected = elk.getInstances(phyloref, false).getFlattened();
+        assertEquals(
+            expected,
+            tree.getInstances(phyloref, false).getFlattened(),
+            "Instances of " + phyloref);
+        if (!expected.isEmpty()) resolved++;
+      }
+      assertTrue(resolved > 0, "At least some phyloreferences should resolve");
+
+      // Both reasoners should also agree on the types of every node.
+      for (OWLNamedIndividual node : nodes) {
+        assertEquals(
+            elk.getTypes(node, false).getFlattened(),
+            tree.getTypes(node, false).getFlattened(),
+            "Types of " + node);
+      }
+    } finally {
+      elk.dispose();
+      tree.dispose();
+    }
+  }
+
+  @Nested
+  @DisplayName("resolves phyloreferences using the phylogenies")
+  class TreeResolutionTest {
+    @Test
+    @DisplayName("for the (Aa_a, (Bb_b, (Cc_c, Dd_d, Ee_e))) test phylogeny")
+    void resolvesTestPhylogeny() throws TreeEvaluator.UnsupportedExpressionException {
+      // Node 0 is the root, and nodes 2 to 4 are the (C, D, E) clade.
+      int[] parents = new int[] {-1, 0, 1, 2, 2, 2, 1, 0};
+      String[] taxa = new String[] {null, null, null, "Cc c", "Dd d", "Ee e", "Bb b", "Aa a"};
+      List<OWLAxiom> axioms = new ArrayList<>();
+      for (int i = 0; i < parents.length; i++) {
+        nodes.add(df.getOWLNamedIndividual(IRI.create(EX + "node" + i)));
+      }
+      for (int i = 0; i < parents.length; i++) {
+        if (parents[i] >= 0) {
+          axioms.add(
+              df.getOWLObjectPropertyAssertionAxiom(hasChild, nodes.get(parents[i]), nodes.get(i)));
+          axioms.add(
+              df.getOWLObjectPropertyAssertionAxiom(
+                  hasParent, nodes.get(i), nodes.get(parents[i])));
+          for (int j = 0; j < parents.length; j++) {
+            if (i != j && parents[i] == parents[j]) {
+              axioms.add(
+                  df.getOWLObjectPropertyAssertionAxiom(hasSibling, nodes.get(i), nodes.get(j)));
+            }
+          }
+        }
+        if (taxa[i] != null) {
+          axioms.add(
+              df.getOWLClassAssertionAxiom(
+                  df.getOWLObjectSomeValuesFrom(representsTU, taxon(taxa[i])), nodes.get(i)));
+        }
+      }
+      manager.addAxioms(ontology, new HashSet<>(axioms));
+
+      // "Node-based, includes C and E, should resolve to (C, D, E) clade."
+      OWLClass phyloref =
+          addPhyloref(
+              df.getOWLObjectSomeValuesFrom(
+                  hasChild, df.getOWLObjectIntersectionOf(excludes("Cc c"), includes("Ee e"))));
+
+      assertEquals(
+          new HashSet<>(Arrays.asList(nodes.get(2))),
+          new TreeEvaluator(ontology).getInstances(phyloref));
+      assertSameInstancesAsElk();
+    }
+
+    @Test
+    @DisplayName("in the same way as ELK for random phylogenies")
+    void resolvesRandomPhylogenies() throws TreeEvaluator.UnsupportedExpressionException {
+      Random random = new Random(1);
+      addPhylogeny(random, 60, 20);
+      addPhylogeny(random, 40, 20);
+      addRandomPhylorefs(random, 30, 20);
+
+      // Make sure we answered these questions ourselves, rather than by falling back to ELK.
+      TreeEvaluator evaluator = new TreeEvaluator(ontology);
+      for (OWLClass phyloref : phylorefs) {
+        evaluator.getInstances(phyloref);
+      }
+      assertSameInstancesAsElk();
+    }
+
+    @Test
+    @DisplayName("and finds nodes that are expected to resolve to a phyloreference")
+    void resolvesExpectedNodes() {
+      Random random = new Random(2);
+      addPhylogeny(random, 30, 10);
+      addRandomPhylorefs(random, 6, 10);
+
+      // Phyx files mark the nodes a phyloreference is expected to resolve to with an
+      // OBI_0000312 (is_specified_output_of) some (OBI_0000293 (has_specified_input) some
+      // phyloref) class assertion, and TestCommand asks the reasoner for nodes of this type.
+      OWLObjectProperty isSpecifiedOutputOf =
+          df.getOWLObjectProperty(PhylorefHelper.IRI_OBI_IS_SPECIFIED_OUTPUT_OF);
+      OWLObjectProperty hasSpecifiedInput =
+          df.getOWLObjectProperty(PhylorefHelper.IRI_OBI_HAS_SPECIFIED_INPUT);
+      OWLClassExpression expectedNodes =
+          df.getOWLObjectSomeValuesFrom(
+              isSpecifiedOutputOf,
+              df.getOWLObjectSomeValuesFrom(hasSpecifiedInput, phylorefs.get(0)));
+      manager.addAxiom(ontology, df.getOWLDeclarationAxiom(isSpecifiedOutputOf));
+      manager.addAxiom(ontology, df.getOWLDeclarationAxiom(hasSpecifiedInput));
+      manager.addAxiom(ontology, df.getOWLClassAssertionAxiom(expectedNodes, nodes.get(3)));
+
+      OWLReasoner tree = new TreeReasonerFactory().createReasoner(ontology);
+      assertEquals(
+          new HashSet<>(Arrays.asList(nodes.get(3))),
+          tree.getInstances(expectedNodes, false).getFlattened());
+      tree.dispose();
+    }
+  }
+
+  @Nested
+  @DisplayName("precomputes inferences")
+  class PrecomputationTest {
+    @Test
+    @DisplayName("by working out the types of nodes itself, without ELK realizing the ontology")
+    void precomputesTypesWithoutElk() {
+      Random random = new Random(5);
+      addPhylogeny(random, 40, 10);
+      addRandomPhylorefs(random, 12, 10);
+
+      TreeReasoner tree = (TreeReasoner) new TreeReasonerFactory().createReasoner(ontology);
+      try {
+        ReasonerHelper.classify(tree);
+        assertTrue(tree.isPrecomputed(InferenceType.CLASS_ASSERTIONS));
+        PhylorefHelper.getNodesPerPhyloreference(ontology, tree);
+        assertFalse(
+            tree.getFallbackReasoner().isPrecomputed(InferenceType.CLASS_ASSERTIONS),
+            "ELK should not have realized the ontology");
+      } finally {
+        tree.dispose();
+      }
+    }
+
+    @Test
+    @DisplayName("by asking ELK to realize the ontology if it can't work out the types itself")
+    void precomputesTypesWithElkIfNeeded() {
+      Random random = new Random(6);
+      addPhylogeny(random, 20, 5);
+      addRandomPhylorefs(random, 6, 5);
+      manager.addAxiom(
+          ontology,
+          df.getOWLSameIndividualAxiom(
+              nodes.get(0), df.getOWLNamedIndividual(IRI.create(EX + "x"))));
+
+      TreeReasoner tree = (TreeReasoner) new TreeReasonerFactory().createReasoner(ontology);
+      try {
+        ReasonerHelper.classify(tree);
+        assertTrue(tree.getFallbackReasoner().isPrecomputed(InferenceType.CLASS_ASSERTIONS));
+      } finally {
+        tree.dispose();
+      }
+    }
+  }
+
+  @Nested
+  @DisplayName("falls back to ELK")
+  class FallbackTest {
+    @Test
+    @DisplayName("when has_Sibling assertions are missing")
+    void fallsBackWithoutSiblings() {
+      Random random = new Random(3);
+      addPhylogeny(random, 30, 10);
+      addRandomPhylorefs(random, 12, 10);
+
+      // Remove one has_Sibling assertion: ELK will no longer be able to tell that some nodes
+      // exclude their siblings, so we need to get the same answers it does.
+      OWLAxiom sibling =
+          ontology
+              .getObjectPropertyAssertionAxioms(nodes.get(1))
+              .stream()
+              .filter(axiom -> axiom.getProperty().equals(hasSibling))
+              .findFirst()
+              .orElseThrow(() -> new IllegalStateException("Node 1 should have a sibling"));
+      manager.removeAxiom(ontology, sibling);
+
+      TreeEvaluator evaluator = new TreeEvaluator(ontology);
+      assertThrows(
+          TreeEvaluator.UnsupportedExpressionException.class,
+          () -> evaluator.getInstances(phylorefs.get(0)));
+      assertSameInstancesAsElk();
+    }
+
+    @Test
+    @DisplayName("when the phylogeny properties aren't defined as expected")
+    void fallsBackForUnexpectedPropertyAxioms() {
+      Random random = new Random(7);
+      addPhylogeny(random, 30, 10);
+      addRandomPhylorefs(random, 12, 10);
+
+      // Without this property chain, nodes no longer exclude the taxonomic units their
+      // ancestors exclude, so we can't use the phylogenies to work out excludes_TU.
+      OWLAxiom chain =
+          df.getOWLSubPropertyChainOfAxiom(Arrays.asList(hasParent, excludesTU), excludesTU);
+      manager.removeAxiom(ontology, chain);
+      TreeEvaluator evaluator = new TreeEvaluator(ontology);
+      assertThrows(
+          TreeEvaluator.UnsupportedExpressionException.class,
+          () -> evaluator.getInstances(phylorefs.get(0)));
+      assertSameInstancesAsElk();
+
+      // Additional property axioms change their values as well.
+      manager.addAxiom(ontology, chain);
+      manager.addAxiom(ontology, df.getOWLSubObjectPropertyOfAxiom(hasSibling, includesTU));
+      TreeEvaluator extended = new TreeEvaluator(ontology);
+      assertThrows(
+          TreeEvaluator.UnsupportedExpressionException.class,
+          () -> extended.getInstances(phylorefs.get(0)));
+      assertSameInstancesAsElk();
+    }
+
+    @Test
+    @DisplayName("for class expressions outside OWL 2 EL")
+    void fallsBackForUnsupportedExpressions() {
+      Random random = new Random(4);
+      addPhylogeny(random, 20, 5);
+      addRandomPhylorefs(random, 6, 5);
+
+      OWLClassExpression union = df.getOWLObjectUnionOf(phylorefs.get(0), phylorefs.get(1));
+      TreeEvaluator evaluator = new TreeEvaluator(ontology);
+      assertThrows(
+          TreeEvaluator.UnsupportedExpressionException.class, () -> evaluator.getInstances(union));
+    }
+  }
+}
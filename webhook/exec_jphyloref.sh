@@ -3,6 +3,13 @@
 # Environmental variables:
 # - JARFILE: The JAR file to load (defaults to /app/JPhyloRef.jar)
 # - MEMORY: The maximum memory to give Java via `-Xmx` (defaults to 16G)
+# - DAEMON_PORT: If set, send the input to a JPhyloRef daemon (started with
+#   `java -jar JPhyloRef.jar daemon --daemon-port $DAEMON_PORT`) instead of
+#   resolving it in a new JVM with all of MEMORY. We talk to the daemon directly
+#   from this script, so no JVM is started at all.
+# - DAEMON_TOKEN_FILE: The file the daemon writes its token to when it starts
+#   (defaults to $HOME/.jphyloref/daemon-$DAEMON_PORT.token, as in the daemon).
+#   This script must run as the same user as the daemon to be able to read it.
 # Webhook should set environmental variable $JSONLD_FILENAME (JSON-LD input as file)
 
 # Set up proxy
@@ -15,5 +22,42 @@
 mv "$JSONLD_FILENAME" "$JSONLD_FILENAME.gz" 2> /dev/null
 gunzip "$JSONLD_FILENAME" 2> /dev/null
 
+# Send a JSON-LD file to the daemon connected on file descriptor 3, and copy
+# the STDOUT and STDERR frames it sends back to our STDOUT and STDERR as they
+# arrive. Returns the daemon's exit code. See DaemonHelper.java for a
+# description of the protocol.
+resolve_via_daemon() {
+  local kind length
+
+  # Since bash can't close one side of a connection, we send the length of the
+  # input so that the daemon knows where it ends. The token is a hex string, so
+  # it doesn't need to be escaped.
+  printf '{"token":"%s","input":"input.jsonld","args":["--jsonld","--errors-as-json"],"length":%d}\n' \
+    "$2" "$(wc -c < "$1")" >&3
+  cat "$1" >&3
+
+  while read -r kind length <&3; do
+    case "$kind" in
+      out) head -c "$length" <&3 ;;
+      err) head -c "$length" <&3 >&2 ;;
+      exit) exec 3<&-; return "$length" ;;
+      *) break ;;
+    esac
+  done
+  exec 3<&-
+  return 1
+}
+
 # Run it!
-java -Xmx"${MEMORY:=16G}" -jar "${JARFILE:=/app/JPhyloRef.jar}" resolve "$JSONLD_FILENAME" -j --errors-as-json 2> /dev/null
+if [ -n "$DAEMON_PORT" ]; then
+  DAEMON_TOKEN_FILE="${DAEMON_TOKEN_FILE:-$HOME/.jphyloref/daemon-$DAEMON_PORT.token}"
+  if ! DAEMON_TOKEN="$(cat "$DAEMON_TOKEN_FILE" 2> /dev/null)"; then
+    echo '{"error":"Could not resolve ontology via daemon","message":"Could not read the daemon token from '"$DAEMON_TOKEN_FILE"'"}'
+  elif { exec 3<> "/dev/tcp/127.0.0.1/$DAEMON_PORT"; } 2> /dev/null; then
+    resolve_via_daemon "$JSONLD_FILENAME" "$DAEMON_TOKEN" 2> /dev/null
+  else
+    echo '{"error":"Could not resolve ontology via daemon","message":"Could not connect to the daemon on port '"$DAEMON_PORT"'"}'
+  fi
+else
+  java -Xmx"${MEMORY:=16G}" -jar "${JARFILE:=/app/JPhyloRef.jar}" resolve "$JSONLD_FILENAME" -j --errors-as-json 2> /dev/null
+fi